@@ -74,6 +74,8 @@ function connectUser(username) {
     const socket = new net.Socket()
     const userSession = { socket: socket, responseQueue: [], username: username, connected: false, isConnecting: false, notifications: [] }
 
+    // utf8 en el socket: un carácter partido entre dos "data" no se corrompe
+    socket.setEncoding("utf8")
     socket.setTimeout(300000)
     socket.on("timeout", () => {
       console.error(`[${username}] Socket timeout`)
@@ -92,9 +94,20 @@ function connectUser(username) {
     socket.connect(TCP_PORT, TCP_HOST)
 
     let loginResponseReceived = false
+    // El servidor manda una línea por mensaje; un "data" puede traer varias o una a medias
+    let pending = ""
 
     socket.on("data", (data) => {
-      const message = data.toString().trim()
+      pending += data
+      const lines = pending.split("\n")
+      pending = lines.pop()
+      for (const line of lines) {
+        const message = line.trim()
+        if (message) handleLine(message)
+      }
+    })
+
+    function handleLine(message) {
       console.log(`[${username}] Recibido de Java: ${message}`)
       appendLog(`[${username}] Recibido de Java:`, message)
 
@@ -108,6 +121,10 @@ function connectUser(username) {
         console.error(`[${username}] Error de login: ${message}`)
         socket.end()
         reject(new Error(message))
+      } else if (isPush(message)) {
+        // Bandeja offline (tras login_success) o repetición de resume: no responde a ningún comando
+        userSession.notifications.push(message)
+        console.log(`[${username}] Notificación offline guardada: ${message}`)
       } else {
         // Respuesta a un comando HTTP o notificación
         if (userSession.responseQueue.length > 0) {
@@ -120,7 +137,7 @@ function connectUser(username) {
           console.log(`[${username}] Notificación guardada: ${message}`)
         }
       }
-    })
+    }
 
     socket.on("error", (err) => {
       console.error(`[${username}] Error de socket: ${err.message}`)
@@ -140,6 +157,11 @@ function connectUser(username) {
   })
 }
 
+// Líneas que el servidor manda por su cuenta marcadas con offline:true (bandeja y resume)
+function isPush(message) {
+  return message.split("|").includes("offline:true")
+}
+
 function sendCommand(username, command) {
   return new Promise((resolve, reject) => {
     const session = activeConnections.get(username)
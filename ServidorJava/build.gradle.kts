@@ -17,7 +17,31 @@ dependencies {
 }
 
 tasks.test {
-    useJUnitPlatform()
+    useJUnitPlatform {
+        excludeTags("benchmark")
+    }
+    // ChatHistory y compañía usan rutas relativas (data/...): cada clase corre en su JVM y en un directorio propio
+    workingDir = layout.buildDirectory.dir("test-work").get().asFile
+    forkEvery = 1
+    doFirst { workingDir.mkdirs() }
+}
+
+// Benchmarks cronometrados (src/test/java/**/*Benchmark.java): gradle benchmark -Dbench.connections=1000,10000
+val benchmark by tasks.registering(Test::class) {
+    description = "Corre los benchmarks (@Tag(\"benchmark\")) e imprime sus resultados."
+    group = "verification"
+    testClassesDirs = sourceSets.test.get().output.classesDirs
+    classpath = sourceSets.test.get().runtimeClasspath
+    useJUnitPlatform {
+        includeTags("benchmark")
+    }
+    workingDir = layout.buildDirectory.dir("bench-work").get().asFile
+    forkEvery = 1
+    maxHeapSize = "2g"
+    systemProperties(System.getProperties().filterKeys { it.toString().startsWith("bench.") }.mapKeys { it.key.toString() })
+    testLogging.showStandardStreams = true
+    outputs.upToDateWhen { false }
+    doFirst { workingDir.mkdirs() }
 }
 
 tasks.withType<JavaCompile> {
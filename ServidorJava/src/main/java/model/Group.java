@@ -1,9 +1,9 @@
 package model;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Group implements java.io.Serializable {
     private final String name;
@@ -14,7 +14,7 @@ public class Group implements java.io.Serializable {
     public Group(String name, String creator) {
         this.name = name;
         this.creator = creator;
-        this.members = new HashSet<>();
+        this.members = ConcurrentHashMap.newKeySet();
         this.messages = new ArrayList<>();
         this.members.add(creator);
     }
@@ -0,0 +1,171 @@
+package network;
+
+import protocol.BinaryCodec;
+import protocol.Frame;
+import protocol.TextCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Base64;
+
+/**
+ * Respuesta larga que sale en tramas de a chunkBytes sin cargarse entera en
+ * memoria (p.ej. una nota de voz pedida con get_audio).
+ *
+ * Cada trama copia los campos de la plantilla y agrega "offset", "last" y el
+ * campo de datos. En formato binario los datos no pasan por el heap: se
+ * escribe la cabecera y luego la fuente los transfiere directo al socket
+ * (sendfile). En texto, donde los bytes no tienen representación, cada tramo
+ * se lee y viaja en base64.
+ *
+ * Ocupa un solo lugar en la {@link OutboundQueue}; la conexión la va
+ * escribiendo a medida que el socket acepta, y la cierra al terminar.
+ */
+public final class ChunkedStream implements Closeable {
+
+    /**
+     * De dónde salen los bytes: transfiere [position, position + count) al
+     * canal. Devuelve 0 solo si el canal no acepta más; si a la fuente le
+     * faltan bytes debería lanzar IOException.
+     */
+    @FunctionalInterface
+    public interface Source {
+        long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+    }
+
+    private final Frame template;
+    private final String dataKey;
+    private final Source source;
+    private final Closeable owner;
+    private final long end;
+    private final int chunkBytes;
+
+    private long position;
+    // un rango vacío igual manda una trama (last:true), para que el cliente sepa que terminó
+    private boolean started;
+    // tramo en curso: cabecera (o la línea entera en texto) y bytes de datos ya enviados
+    private ByteBuffer header;
+    private int chunkLength;
+    private long chunkSent;
+    // bytes que pasaron al canal (cabeceras y datos), para notar una fuente que no avanza
+    private long moved;
+    // la última escritura no movió nada
+    private boolean stalled;
+
+    /**
+     * @param owner se cierra al terminar o al descartarse el stream
+     */
+    public ChunkedStream(Frame template, String dataKey, Source source, Closeable owner,
+                         long from, long to, int chunkBytes) {
+        this.template = template;
+        this.dataKey = dataKey;
+        this.source = source;
+        this.owner = owner;
+        this.position = from;
+        this.end = to;
+        this.chunkBytes = Math.max(1, chunkBytes);
+    }
+
+    boolean isDone() {
+        return started && position >= end && header == null;
+    }
+
+    /**
+     * Escribe todo lo que el canal acepte.
+     *
+     * Se vuelve a llamar cuando el canal avisa que tiene lugar (OP_WRITE): si
+     * otra vez no sale ni un byte, el que no avanza es la fuente (p.ej. un
+     * pack truncado) y se corta con IOException en lugar de girar para siempre.
+     *
+     * @return true si el stream terminó; false si el canal (no bloqueante) se llenó
+     */
+    boolean writeTo(WritableByteChannel channel, WireFormat format, FlushStats stats) throws IOException {
+        long before = moved;
+        while (!isDone()) {
+            if (!writeChunk(channel, format, stats)) {
+                boolean none = moved == before;
+                if (none && stalled) throw truncated();
+                stalled = none;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    IOException truncated() {
+        return new IOException("Blob truncado: la fuente no entregó más bytes en la posición " + (position + chunkSent));
+    }
+
+    /**
+     * Escribe lo que falte del tramo en curso (empezando uno nuevo si hace falta).
+     *
+     * @return true si el tramo quedó completo
+     */
+    boolean writeChunk(WritableByteChannel channel, WireFormat format, FlushStats stats) throws IOException {
+        if (header == null) startChunk(format);
+
+        while (header.hasRemaining()) {
+            int n = channel.write(header);
+            if (n == 0) return false;
+            moved += n;
+        }
+        while (chunkSent < chunkLength) {
+            long n = source.transferTo(position + chunkSent, chunkLength - chunkSent, channel);
+            if (n <= 0) return false;
+            chunkSent += n;
+            moved += n;
+        }
+
+        stats.record(1, header.limit() + chunkLength);
+        position += chunkLength;
+        header = null;
+        return true;
+    }
+
+    private void startChunk(WireFormat format) throws IOException {
+        started = true;
+        int length = (int) Math.min(chunkBytes, end - position);
+        Frame frame = new Frame(template.type());
+        for (int i = 0; i < template.size(); i++) {
+            Object value = template.valueAt(i);
+            if (value instanceof String s) frame.put(template.keyAt(i), s);
+            else if (value instanceof Long l) frame.putLong(template.keyAt(i), l);
+            else if (value instanceof Boolean b) frame.putBoolean(template.keyAt(i), b);
+            else if (value instanceof byte[] bytes) frame.putBytes(template.keyAt(i), bytes);
+        }
+        frame.putLong("offset", position).putBoolean("last", position + length >= end);
+
+        chunkSent = 0;
+        if (format == WireFormat.BINARY) {
+            header = BinaryCodec.encode(frame, dataKey, length);
+            chunkLength = length;
+        } else {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(length);
+            WritableByteChannel target = Channels.newChannel(data);
+            long read = 0;
+            while (read < length) {
+                long n = source.transferTo(position + read, length - read, target);
+                if (n <= 0) throw new IOException("Blob truncado: la fuente no entregó más bytes en la posición " + (position + read));
+                read += n;
+            }
+            frame.put(dataKey, Base64.getEncoder().encodeToString(data.toByteArray()));
+            header = ByteBuffer.wrap(TextCodec.encodeLine(frame));
+            // los datos ya van en la línea
+            position += length;
+            chunkLength = 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            owner.close();
+        } catch (IOException e) {
+            System.err.println("Error cerrando stream: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package network;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors para los hilos lectores de {@link TCPConnection}.
+ * Los hilos virtuales se obtienen por reflexión para que el proyecto siga
+ * compilando con JDK 17; en ese caso se usan hilos de plataforma.
+ */
+public final class ConnectionExecutors {
+
+    private ConnectionExecutors() {}
+
+    /**
+     * Hilos de plataforma (daemon): un lector por conexión, como el modo original.
+     * Los hilos ociosos se reutilizan para las tareas escritoras de las colas de salida.
+     */
+    public static Executor platformThreads() {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "tcp-io-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Un hilo virtual por conexión (JDK 21+). Si la JVM no los soporta
+     * devuelve {@link #platformThreads()}.
+     */
+    public static Executor virtualThreads() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("⚠️ Esta JVM no soporta hilos virtuales (" + Runtime.version() + "), usando hilos de plataforma");
+            return platformThreads();
+        }
+    }
+}
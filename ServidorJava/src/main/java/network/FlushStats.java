@@ -0,0 +1,42 @@
+package network;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores de escrituras de una conexión: cuántos mensajes salen en cada
+ * flush (escritura al socket) cuando la cola de salida los agrupa.
+ */
+public class FlushStats {
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private volatile int maxMessagesPerFlush;
+
+    public void record(int messageCount, long byteCount) {
+        flushes.increment();
+        messages.add(messageCount);
+        bytes.add(byteCount);
+        if (messageCount > maxMessagesPerFlush) maxMessagesPerFlush = messageCount;
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public int getMaxMessagesPerFlush() {
+        return maxMessagesPerFlush;
+    }
+
+    public double getMessagesPerFlush() {
+        long f = flushes.sum();
+        return f == 0 ? 0 : (double) messages.sum() / f;
+    }
+}
@@ -0,0 +1,114 @@
+package network;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hilo con un Selector propio que atiende lecturas y escrituras de
+ * muchas {@link NioTCPConnection}. Todo cambio sobre las SelectionKey
+ * se hace desde este hilo; otros hilos encolan tareas con {@link #execute}.
+ */
+public class NioEventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void register(NioTCPConnection connection) {
+        execute(() -> {
+            try {
+                SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                connection.attach(key);
+                connection.onRegistered();
+            } catch (IOException e) {
+                connection.fail(e);
+            }
+        });
+    }
+
+    /**
+     * Ejecuta la tarea en el hilo del event loop.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // si hay tareas pendientes no se bloquea en select
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    processKey(key);
+                }
+                runTasks();
+            } catch (IOException e) {
+                System.err.println("⚠️ Error en event loop " + thread.getName() + ": " + e.getMessage());
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioTCPConnection connection) connection.disconnect();
+        }
+        try { selector.close(); } catch (IOException ignored) {}
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("⚠️ Error ejecutando tarea en " + thread.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        NioTCPConnection connection = (NioTCPConnection) key.attachment();
+        try {
+            if (key.isReadable()) connection.handleRead();
+            if (key.isValid() && key.isWritable()) connection.handleWrite();
+        } catch (CancelledKeyException ignored) {
+            // la conexión se cerró mientras se procesaba
+        } catch (IOException e) {
+            connection.fail(e);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Servidor TCP no bloqueante.
+ * Un hilo acepta conexiones y las reparte (round-robin) entre un pool
+ * pequeño de {@link NioEventLoop}, cada uno con su propio Selector.
+ * Las conexiones se entregan al mismo {@link TCPConnectionListener}
+ * que usa el transporte bloqueante.
+ */
+public class NioServer {
+    private final int port;
+    private final TCPConnectionListener listener;
+    private final NioEventLoop[] loops;
+    private final OutboundConfig outboundConfig;
+    private int nextLoop = 0;
+
+    public NioServer(int port, int loopCount, TCPConnectionListener listener, OutboundConfig outboundConfig) throws IOException {
+        this.port = port;
+        this.listener = listener;
+        this.outboundConfig = outboundConfig;
+        this.loops = new NioEventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop("nio-loop-" + i);
+            loops[i].start();
+        }
+    }
+
+    /**
+     * Acepta conexiones indefinidamente en el hilo que llama.
+     */
+    public void run() throws IOException {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("⚡ Transporte NIO activo con " + loops.length + " event loops");
+
+            while (serverChannel.isOpen()) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    NioEventLoop loop = loops[nextLoop];
+                    nextLoop = (nextLoop + 1) % loops.length;
+                    loop.register(new NioTCPConnection(channel, listener, loop, outboundConfig));
+                } catch (IOException e) {
+                    System.err.println("⚠️ Error al aceptar conexión: " + e.getMessage());
+                }
+            }
+        } finally {
+            for (NioEventLoop loop : loops) loop.shutdown();
+        }
+    }
+}
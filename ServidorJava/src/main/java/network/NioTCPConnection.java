@@ -0,0 +1,257 @@
+package network;
+
+import protocol.BinaryCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Conexión TCP atendida por un {@link NioEventLoop}.
+ * Mantiene buffers de lectura/escritura propios y separa los mensajes
+ * por '\n', igual que el modo texto de {@link TCPConnection}, de modo que
+ * el protocolo "type:...|clave:valor" no cambia para los clientes.
+ * Tras negociar el formato binario separa por prefijo de longitud.
+ */
+public class NioTCPConnection extends TCPConnection {
+    private static final int INITIAL_READ_BUFFER = 8 * 1024;
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private SelectionKey key;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    // hasta dónde ya se buscó '\n' en la línea incompleta: cada byte se mira una sola vez
+    private int scanned;
+    // lote tomado de la cola que aún no termina de escribirse (solo event loop)
+    private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>();
+    private long inFlightBytes;
+    private ByteBuffer[] gather = new ByteBuffer[16];
+    // stream que se está escribiendo; lo que venga detrás en la cola espera a que termine
+    private ChunkedStream streaming;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    public NioTCPConnection(SocketChannel channel, TCPConnectionListener listener, NioEventLoop loop,
+                            OutboundConfig outboundConfig) {
+        super(channel, listener, outboundConfig);
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Ya hay SelectionKey: avisa al listener y escribe lo que se haya
+     * encolado antes (esos flush no tenían dónde escribir).
+     */
+    void onRegistered() throws IOException {
+        if (listener != null) listener.onConnectionReady(this);
+        handleWrite();
+    }
+
+    // =====================================================
+    // 📥 Lectura (solo desde el event loop)
+    // =====================================================
+
+    void handleRead() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            disconnect();
+            return;
+        }
+        recordBytesRead(read);
+
+        readBuffer.flip();
+        int required = 0;
+        while (connected && readBuffer.hasRemaining()) {
+            int start = readBuffer.position();
+            Object message;
+
+            if (readFormat == WireFormat.BINARY) {
+                if (readBuffer.remaining() < 4) break;
+                int length = readBuffer.getInt(start);
+                BinaryCodec.checkLength(length);
+                if (readBuffer.remaining() < 4 + length) {
+                    required = 4 + length;
+                    break;
+                }
+                message = BinaryCodec.decode(readBuffer.slice(start + 4, length));
+                readBuffer.position(start + 4 + length);
+            } else {
+                int newline = indexOf(readBuffer, Math.max(start, scanned), (byte) '\n');
+                if (newline < 0) {
+                    scanned = readBuffer.limit();
+                    break;
+                }
+                int end = (newline > start && readBuffer.get(newline - 1) == '\r') ? newline - 1 : newline;
+                String line = new String(readBuffer.array(), start, end - start, StandardCharsets.UTF_8);
+                readBuffer.position(newline + 1);
+                if (onHandshake(line)) continue;
+                message = line;
+            }
+
+            recordActivity();
+            if (listener != null) listener.onReceiveObject(this, message);
+        }
+
+        // compact corre lo que queda al principio del buffer
+        scanned = Math.max(0, scanned - readBuffer.position());
+        readBuffer.compact();
+        if (required > readBuffer.capacity() || !readBuffer.hasRemaining()) {
+            growReadBuffer(required);
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, byte value) {
+        byte[] array = buffer.array();
+        for (int i = from; i < buffer.limit(); i++) {
+            if (array[i] == value) return i;
+        }
+        return -1;
+    }
+
+    private void growReadBuffer(int required) throws IOException {
+        int max = readFormat == WireFormat.BINARY ? 4 + BinaryCodec.MAX_FRAME_LENGTH : MAX_LINE_LENGTH;
+        if (readBuffer.capacity() >= max) {
+            throw new IOException("Mensaje excede el tamaño máximo de " + max + " bytes");
+        }
+        int size = Math.min(Math.max(readBuffer.capacity() * 2, required), max);
+        ByteBuffer bigger = ByteBuffer.allocate(size);
+        readBuffer.flip();
+        bigger.put(readBuffer);
+        readBuffer = bigger;
+    }
+
+    // =====================================================
+    // 📤 Escritura
+    // =====================================================
+
+    /**
+     * Encola el mensaje en la cola acotada y programa su escritura en el event loop.
+     * Solo bloquea al emisor con la política BLOCK y nunca si es el propio event loop.
+     */
+    @Override
+    protected void enqueue(OutboundMessage message) {
+        if (!connected) {
+            message.discard();
+            return;
+        }
+
+        if (!outbound.offer(message, !loop.inEventLoop())) {
+            message.discard();
+            onSlowConsumer();
+            return;
+        }
+
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                try {
+                    handleWrite();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Escribe con una sola llamada (writev) todos los mensajes pendientes
+     * hasta coalesceBytes. Como el flush se programa una vez por ráfaga,
+     * los mensajes encolados mientras tanto salen juntos.
+     */
+    void handleWrite() throws IOException {
+        if (key == null || !key.isValid()) return;
+
+        while (true) {
+            if (streaming != null && inFlight.isEmpty()) {
+                if (!streaming.writeTo(channel, writeFormat, flushStats)) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                streaming.close();
+                streaming = null;
+            }
+
+            OutboundMessage next;
+            while (streaming == null && inFlightBytes < coalesceBytes && (next = outbound.poll()) != null) {
+                if (next.getStream() != null) {
+                    streaming = next.getStream();
+                    break;
+                }
+                ByteBuffer buffer = next.encode(writeFormat);
+                if (next.getSwitchTo() != null) writeFormat = next.getSwitchTo();
+                inFlight.add(buffer);
+                inFlightBytes += buffer.remaining();
+            }
+            if (inFlight.isEmpty()) {
+                if (streaming != null) continue;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                return;
+            }
+
+            int count = inFlight.size();
+            if (gather.length < count) gather = new ByteBuffer[count * 2];
+            inFlight.toArray(gather);
+            long written = channel.write(gather, 0, count);
+            inFlightBytes -= written;
+
+            // solo cuentan los mensajes que terminaron en esta escritura: uno a medias se cuenta cuando se completa
+            int completed = 0;
+            while (!inFlight.isEmpty() && !inFlight.peek().hasRemaining()) {
+                inFlight.poll();
+                completed++;
+            }
+            flushStats.record(completed, written);
+            if (!inFlight.isEmpty()) {
+                // el socket está lleno: esperar a OP_WRITE
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    // =====================================================
+    // 🔌 Cierre
+    // =====================================================
+
+    void fail(Exception e) {
+        if (connected && listener != null) {
+            listener.onException(this, e);
+        }
+        disconnect();
+    }
+
+    @Override
+    public void disconnect() {
+        if (!closed.compareAndSet(false, true)) return;
+        connected = false;
+        outbound.clear();
+        // el stream en curso solo lo toca el event loop
+        loop.execute(() -> {
+            if (streaming != null) {
+                streaming.close();
+                streaming = null;
+            }
+        });
+        if (key != null) key.cancel();
+        try { channel.close(); } catch (IOException ignored) {}
+        if (listener != null) listener.onDisconnect(this);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected && channel.isOpen();
+    }
+}
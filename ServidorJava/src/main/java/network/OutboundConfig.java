@@ -0,0 +1,33 @@
+package network;
+
+/**
+ * Configuración de la cola de salida de cada conexión.
+ * Se lee de propiedades del sistema:
+ * -Dchat.outbound.capacity=N      mensajes pendientes por conexión (0 = escritura directa)
+ * -Dchat.outbound.policy=P        drop_oldest | disconnect | block
+ * -Dchat.outbound.blockTimeoutMs  espera máxima con la política block (100 ms: el que
+ *                                  espera es un shard con muchas conversaciones detrás)
+ * -Dchat.outbound.coalesceWindowUs ventana para juntar mensajes en una sola escritura
+ *                                  (0 = solo junta lo que ya está en la cola, sin esperar)
+ * -Dchat.outbound.coalesceBytes    máximo de bytes por escritura
+ */
+public record OutboundConfig(int capacity, OverflowPolicy policy, long blockTimeoutMs,
+                             long coalesceWindowMicros, int coalesceBytes) {
+
+    /** Escritura síncrona en el hilo que llama, sin cola (modo cliente). */
+    public static final OutboundConfig DIRECT = new OutboundConfig(0, OverflowPolicy.BLOCK, 0, 0, 0);
+
+    public static OutboundConfig fromSystemProperties() {
+        return new OutboundConfig(
+                Integer.getInteger("chat.outbound.capacity", 4096),
+                OverflowPolicy.parse(System.getProperty("chat.outbound.policy"), OverflowPolicy.DISCONNECT),
+                Long.getLong("chat.outbound.blockTimeoutMs", 100L),
+                Long.getLong("chat.outbound.coalesceWindowUs", 0L),
+                Integer.getInteger("chat.outbound.coalesceBytes", 64 * 1024)
+        );
+    }
+
+    public boolean isDirect() {
+        return capacity <= 0;
+    }
+}
@@ -0,0 +1,147 @@
+package network;
+
+import model.AudioMessage;
+import protocol.BinaryCodec;
+import protocol.Frame;
+import protocol.TextCodec;
+import protocol.TextCommand;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Mensaje pendiente en una {@link OutboundQueue}. Se codifica al escribirse,
+ * en el formato que tenga la conexión en ese momento, así un cambio de
+ * formato negociado queda ordenado con el resto de mensajes.
+ *
+ * Un mismo OutboundMessage se puede enviar a muchas conexiones (difusión,
+ * grupos): cada formato se codifica una sola vez y todas las conexiones
+ * escriben vistas (duplicate) del mismo buffer, sin copiar los bytes.
+ *
+ * Solo las notificaciones ({@link #notification}) se pueden descartar con
+ * la política DROP_OLDEST; mensajes de chat, confirmaciones, cambios de
+ * formato y streams siempre se escriben.
+ */
+public final class OutboundMessage {
+    private final Serializable payload;
+    // si no es null, la conexión pasa a este formato después de escribir el mensaje
+    private final WireFormat switchTo;
+    // respuesta en tramas que se escribe a medida que el socket acepta (payload es null)
+    private final ChunkedStream stream;
+    private final boolean droppable;
+    // codificación compartida por formato; no se modifica una vez publicada
+    private volatile ByteBuffer text;
+    private volatile ByteBuffer binary;
+
+    private OutboundMessage(Serializable payload, WireFormat switchTo, ChunkedStream stream, boolean droppable) {
+        this.payload = payload;
+        this.switchTo = switchTo;
+        this.stream = stream;
+        this.droppable = droppable;
+    }
+
+    public static OutboundMessage of(Serializable payload) {
+        return new OutboundMessage(payload, null, null, false);
+    }
+
+    /**
+     * Aviso que un cliente lento puede perderse sin romper nada (p.ej.
+     * "fulano se conectó"): con DROP_OLDEST es lo único que se descarta.
+     */
+    public static OutboundMessage notification(Serializable payload) {
+        return new OutboundMessage(payload, null, null, true);
+    }
+
+    /**
+     * Mensaje para una sola conexión que sale en varias tramas; no se codifica con {@link #encode}.
+     */
+    public static OutboundMessage of(ChunkedStream stream) {
+        return new OutboundMessage(null, null, stream, false);
+    }
+
+    /**
+     * Confirmación del saludo: se escribe en el formato actual y luego cambia a format.
+     */
+    static OutboundMessage formatSwitch(WireFormat format) {
+        return new OutboundMessage(format.ackLine(), format, null, false);
+    }
+
+    public boolean isDroppable() {
+        return droppable;
+    }
+
+    WireFormat getSwitchTo() {
+        return switchTo;
+    }
+
+    ChunkedStream getStream() {
+        return stream;
+    }
+
+    /**
+     * El mensaje se descartó sin escribirse: libera lo que tenga abierto.
+     */
+    void discard() {
+        if (stream != null) stream.close();
+    }
+
+    public Serializable getPayload() {
+        return payload;
+    }
+
+    /**
+     * Vista propia (posición y límite independientes) de la codificación
+     * compartida en format. Quien la recibe solo puede leerla.
+     */
+    public ByteBuffer encode(WireFormat format) {
+        ByteBuffer encoded = format == WireFormat.BINARY ? binary : text;
+        if (encoded == null) encoded = encodeOnce(format);
+        return encoded.duplicate();
+    }
+
+    private synchronized ByteBuffer encodeOnce(WireFormat format) {
+        if (format == WireFormat.BINARY) {
+            if (binary == null) binary = encodeBinary();
+            return binary;
+        }
+        if (text == null) text = encodeText();
+        return text;
+    }
+
+    private ByteBuffer encodeText() {
+        // modo texto: si es String, enviar tal cual; si no, enviar toString()
+        if (payload instanceof Frame frame) {
+            return ByteBuffer.wrap(TextCodec.encodeLine(frame));
+        }
+        String text = payload instanceof String s ? s : payload.toString();
+        return ByteBuffer.wrap(TextCodec.encodeLine(text));
+    }
+
+    private ByteBuffer encodeBinary() {
+        Frame frame;
+        if (payload instanceof Frame f) {
+            frame = f;
+        } else if (payload instanceof String s) {
+            frame = TextCommand.parse(s).toFrame();
+        } else if (payload instanceof AudioMessage audio) {
+            frame = toFrame(audio);
+        } else {
+            frame = new Frame("object").put("text", payload.toString());
+        }
+        return BinaryCodec.encode(frame);
+    }
+
+    /**
+     * Nota de voz como trama: metadatos tipados y el audio como bytes crudos.
+     */
+    public static Frame toFrame(AudioMessage audio) {
+        return new Frame("audio_message")
+                .put("id", audio.getId())
+                .put("from", audio.getFrom())
+                .put("to", audio.getTo())
+                .putBoolean("isGroup", audio.isGroupMessage())
+                .putLong("timestamp", audio.getTimestamp().getTime())
+                .putLong("duration", audio.getDuration())
+                .putBytes("data", audio.getAudioData());
+    }
+}
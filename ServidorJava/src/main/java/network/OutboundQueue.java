@@ -0,0 +1,196 @@
+package network;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cola acotada de mensajes pendientes de escribir en una conexión.
+ * Los emisores encolan y vuelven; una tarea escritora (o el event loop NIO)
+ * la vacía. Cuando se llena se aplica la {@link OverflowPolicy} configurada.
+ */
+public class OutboundQueue {
+    private final ArrayDeque<OutboundMessage> items = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+
+    // mensajes descartables en la cola, para no recorrerla si no hay ninguno
+    private int droppable;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int depth;
+    private volatile int highWater;
+
+    public OutboundQueue(OutboundConfig config) {
+        this.capacity = Math.max(1, config.capacity());
+        this.policy = config.policy();
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.blockTimeoutMs());
+    }
+
+    /**
+     * Encola un mensaje.
+     *
+     * @param mayBlock false si el hilo que llama no puede esperar (p.ej. un event loop);
+     *                 en ese caso BLOCK se comporta como DISCONNECT
+     * @return false si la conexión debe cerrarse por ser un consumidor lento
+     */
+    public boolean offer(OutboundMessage message, boolean mayBlock) {
+        lock.lock();
+        try {
+            if (items.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST -> {
+                        dropped.incrementAndGet();
+                        if (!dropOldestNotification()) {
+                            // la nueva es lo único descartable: se pierde ella
+                            if (message.isDroppable()) {
+                                message.discard();
+                                return true;
+                            }
+                            return false;
+                        }
+                    }
+                    case DISCONNECT -> {
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                    case BLOCK -> {
+                        if (!mayBlock || !awaitSpace()) {
+                            dropped.incrementAndGet();
+                            return false;
+                        }
+                    }
+                }
+            }
+            items.add(message);
+            if (message.isDroppable()) droppable++;
+            updateDepth();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Quita la notificación más cercana a la cabeza. Se llama con el lock.
+     *
+     * @return false si no había ninguna
+     */
+    private boolean dropOldestNotification() {
+        if (droppable == 0) return false;
+        for (Iterator<OutboundMessage> it = items.iterator(); it.hasNext(); ) {
+            OutboundMessage queued = it.next();
+            if (queued.isDroppable()) {
+                it.remove();
+                droppable--;
+                queued.discard();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean awaitSpace() {
+        long nanos = blockTimeoutNanos;
+        try {
+            while (items.size() >= capacity) {
+                if (nanos <= 0) return false;
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public OutboundMessage poll() {
+        lock.lock();
+        try {
+            OutboundMessage message = items.poll();
+            if (message != null) {
+                if (message.isDroppable()) droppable--;
+                updateDepth();
+                notFull.signal();
+            }
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Como {@link #poll()} pero espera hasta timeoutNanos a que llegue un mensaje.
+     * Lo usa la escritura agrupada para cerrar su ventana de coalescencia.
+     */
+    public OutboundMessage poll(long timeoutNanos) {
+        lock.lock();
+        try {
+            long nanos = timeoutNanos;
+            while (items.isEmpty()) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return poll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return depth == 0;
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            for (OutboundMessage message : items) message.discard();
+            items.clear();
+            droppable = 0;
+            updateDepth();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateDepth() {
+        depth = items.size();
+        if (depth > highWater) highWater = depth;
+    }
+
+    // =====================================================
+    // 📊 Métricas
+    // =====================================================
+
+    /** Mensajes pendientes en este momento. */
+    public int getDepth() {
+        return depth;
+    }
+
+    /** Máximo de mensajes pendientes observado. */
+    public int getHighWater() {
+        return highWater;
+    }
+
+    /** Mensajes descartados o rechazados por la política de desborde. */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,33 @@
+package network;
+
+/**
+ * Qué hacer cuando la cola de salida de una conexión está llena
+ * (el cliente no lee tan rápido como le escribimos).
+ */
+public enum OverflowPolicy {
+    /**
+     * Descarta la notificación más antigua de la cola (solo mensajes
+     * {@link OutboundMessage#isDroppable() descartables}: avisos del sistema)
+     * y encola la nueva. Si no hay ninguna que descartar, desconecta.
+     */
+    DROP_OLDEST,
+    /** Desconecta al cliente lento. */
+    DISCONNECT,
+    /**
+     * Bloquea al emisor hasta que haya espacio; si no lo hay a tiempo,
+     * desconecta. El emisor suele ser un shard de {@code CommandDispatcher}:
+     * mientras espera no avanza ninguna de las conversaciones de ese shard,
+     * por eso la espera por defecto es corta (ver {@link OutboundConfig}).
+     */
+    BLOCK;
+
+    public static OverflowPolicy parse(String value, OverflowPolicy fallback) {
+        if (value == null || value.isBlank()) return fallback;
+        try {
+            return OverflowPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("⚠️ Política de cola desconocida '" + value + "', usando " + fallback);
+            return fallback;
+        }
+    }
+}
@@ -1,7 +1,19 @@
 package network;
 
+import protocol.BinaryCodec;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * TCPConnection compatible con:
@@ -9,6 +21,7 @@ import java.net.Socket;
  * - clientes que usan texto (BufferedReader / PrintWriter) (modo texto)
  *
  * Detecta el modo en el arranque y luego procesa mensajes acorde a ese modo.
+ * En modo texto el cliente puede negociar tramas binarias (ver {@link WireFormat}).
  */
 public class TCPConnection {
     private final Socket socket;
@@ -17,38 +30,95 @@ public class TCPConnection {
     private ObjectInputStream objectInputStream;
     private ObjectOutputStream objectOutputStream;
 
-    // Streams para modo texto (fallback)
-    private BufferedReader reader;
-    private PrintWriter writer;
+    // Streams para modo texto (fallback); se leen bytes para poder pasar a tramas binarias
+    private DataInputStream in;
+    private OutputStream out;
+    private byte[] lineBuffer = new byte[256];
+
+    protected static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    // Formato negociado: el de lectura lo cambia el lector, el de escritura el escritor
+    protected volatile WireFormat readFormat = WireFormat.TEXT;
+    protected WireFormat writeFormat = WireFormat.TEXT;
+
+    // Actividad de lectura: solo la escribe el hilo lector (o el event loop)
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile long bytesRead;
+
+    protected TCPConnectionListener listener;
+    protected volatile boolean connected;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    // ReentrantLock en lugar de synchronized: no fija (pin) hilos virtuales en la E/S
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Cola de salida y tarea escritora; outbound es null en modo de escritura directa
+    protected final OutboundQueue outbound;
+    private final Executor writers;
+    private final AtomicBoolean draining = new AtomicBoolean(false);
 
-    private TCPConnectionListener listener;
-    private volatile boolean connected;
-    private Thread listenerThread;
+    // Escritura agrupada: varios mensajes de la cola salen en un solo write/flush
+    protected final long coalesceWindowNanos;
+    protected final int coalesceBytes;
+    protected final FlushStats flushStats = new FlushStats();
+
+    // Executor por defecto: hilos de plataforma
+    private static final Executor DEFAULT_READERS = ConnectionExecutors.platformThreads();
 
     // true si estamos en modo texto, false si estamos en modo objeto
     private boolean textMode = false;
 
     public TCPConnection(Socket socket, TCPConnectionListener listener) throws IOException {
+        this(socket, listener, DEFAULT_READERS, OutboundConfig.DIRECT);
+    }
+
+    /**
+     * @param readers  executor donde corren el bucle lector y la tarea escritora
+     *                 de esta conexión (ver {@link ConnectionExecutors})
+     * @param outbound tamaño y política de la cola de salida
+     */
+    public TCPConnection(Socket socket, TCPConnectionListener listener, Executor readers,
+                         OutboundConfig outbound) throws IOException {
         this.socket = socket;
         this.listener = listener;
         this.connected = true;
+        this.outbound = outbound.isDirect() ? null : new OutboundQueue(outbound);
+        this.writers = readers;
+        this.coalesceWindowNanos = TimeUnit.MICROSECONDS.toNanos(outbound.coalesceWindowMicros());
+        this.coalesceBytes = Math.max(1, outbound.coalesceBytes());
 
         // ⚠️ Forzamos modo texto SIEMPRE para compatibilidad con Node
         this.textMode = true;
-        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), true);
+        this.in = new DataInputStream(new BufferedInputStream(new CountingInputStream(socket.getInputStream())));
+        // el buffer cubre un lote completo para que solo el flush explícito llegue al socket
+        this.out = new BufferedOutputStream(socket.getOutputStream(), Math.max(8192, coalesceBytes));
 
-        startListening();
+        startListening(readers);
     }
 
 
+    /**
+     * Constructor para transportes no bloqueantes (ver {@link NioTCPConnection}):
+     * no abre streams ni lanza hilo lector, el canal lo atiende un event loop.
+     */
+    protected TCPConnection(SocketChannel channel, TCPConnectionListener listener, OutboundConfig outbound) {
+        this.socket = channel.socket();
+        this.listener = listener;
+        this.connected = true;
+        this.textMode = true;
+        this.outbound = new OutboundQueue(outbound);
+        this.writers = null;
+        this.coalesceWindowNanos = TimeUnit.MICROSECONDS.toNanos(outbound.coalesceWindowMicros());
+        this.coalesceBytes = Math.max(1, outbound.coalesceBytes());
+    }
+
     // Constructor auxiliar que crea socket cliente (si se usa)
     public TCPConnection(TCPConnectionListener listener, String ip, int port) throws IOException {
         this(new Socket(ip, port), listener);
     }
 
-    private void startListening() {
-        listenerThread = new Thread(() -> {
+    private void startListening(Executor readers) {
+        readers.execute(() -> {
             try {
                 // Notificar que la conexión está lista
                 if (listener != null) {
@@ -62,10 +132,19 @@ public class TCPConnection {
                         if (listener != null) listener.onReceiveObject(this, obj);
                     }
                 } else {
-                    // modo texto: leer líneas
-                    String line;
-                    while (connected && (line = reader.readLine()) != null) {
-                        if (listener != null) listener.onReceiveObject(this, line);
+                    // modo texto: leer líneas (o tramas, si se negoció el formato binario)
+                    while (connected) {
+                        Object message;
+                        if (readFormat == WireFormat.BINARY) {
+                            message = BinaryCodec.read(in);
+                        } else {
+                            String line = readLine();
+                            if (line != null && onHandshake(line)) continue;
+                            message = line;
+                        }
+                        if (message == null) break;
+                        recordActivity();
+                        if (listener != null) listener.onReceiveObject(this, message);
                     }
                 }
             } catch (IOException | ClassNotFoundException e) {
@@ -76,45 +155,242 @@ public class TCPConnection {
                 disconnect(); // asegura limpieza y onDisconnect
             }
         });
-        listenerThread.setDaemon(true);
-        listenerThread.start();
+    }
+
+    protected void recordActivity() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    protected void recordBytesRead(long bytes) {
+        bytesRead += bytes; // un solo escritor: no hace falta un contador atómico
+    }
+
+    /**
+     * Cuenta los bytes que llegan del socket; va debajo del BufferedInputStream,
+     * así se suma una vez por bloque leído y no por byte.
+     */
+    private final class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) recordBytesRead(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) recordBytesRead(n);
+            return n;
+        }
+    }
+
+    /**
+     * Lee una línea UTF-8 terminada en '\n' (sin el '\r' final).
+     *
+     * @return la línea, o null al final del stream
+     */
+    private String readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (length == lineBuffer.length) {
+                if (length >= MAX_LINE_LENGTH) {
+                    throw new IOException("Línea excede el tamaño máximo de " + MAX_LINE_LENGTH + " bytes");
+                }
+                lineBuffer = Arrays.copyOf(lineBuffer, Math.min(length * 2, MAX_LINE_LENGTH));
+            }
+            lineBuffer[length++] = (byte) b;
+        }
+        if (b == -1 && length == 0) return null;
+        if (length > 0 && lineBuffer[length - 1] == '\r') length--;
+        return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Atiende "type:hello|protocol:..." en el hilo lector: a partir de aquí se leen
+     * tramas del formato pedido y la confirmación cambia el formato de escritura.
+     *
+     * @return true si la línea era un saludo (no se entrega al listener)
+     */
+    protected boolean onHandshake(String line) {
+        WireFormat requested = WireFormat.parseHandshake(line);
+        if (requested == null) return false;
+        readFormat = requested;
+        enqueue(OutboundMessage.formatSwitch(requested));
+        System.out.println("🔀 " + getRemoteAddress() + " usa protocolo " + requested);
+        return true;
     }
 
     /**
      * Envía un objeto o texto al cliente, respetando el modo del cliente
      * Si el cliente está en modo texto y el objeto no es String, lo convierte a String via toString()
+     *
+     * Con cola de salida el mensaje solo se encola: lo escribe la tarea escritora
+     * de la conexión, así un cliente lento no frena a quien envía.
      */
-    public synchronized void sendObject(Serializable object) {
-        if (!connected) return;
+    public void sendObject(Serializable object) {
+        send(OutboundMessage.of(object));
+    }
 
-        try {
-            if (!textMode) {
+    /**
+     * Envía un mensaje ya armado. Para difundir lo mismo a muchas conexiones
+     * se crea un único OutboundMessage y se pasa a cada una: se codifica una
+     * vez por formato y todas comparten el buffer.
+     */
+    public void send(OutboundMessage message) {
+        if (!connected) {
+            message.discard();
+            return;
+        }
+
+        if (!textMode) {
+            writeLock.lock();
+            try {
                 // modo objeto: enviar como objeto serializado
-                objectOutputStream.writeObject(object);
+                objectOutputStream.writeObject(message.getPayload());
                 objectOutputStream.flush();
-            } else {
-                // modo texto: si es String, enviar tal cual; si no, enviar toString()
-                if (object instanceof String s) {
-                    writer.println(s);
-                } else {
-                    // Puedes mejorar aquí y usar JSON si quieres más estructura
-                    writer.println(object.toString());
+            } catch (IOException e) {
+                if (listener != null) listener.onException(this, e);
+            } finally {
+                writeLock.unlock();
+            }
+            return;
+        }
+
+        enqueue(message);
+    }
+
+    protected void enqueue(OutboundMessage message) {
+        if (outbound == null) {
+            writeBatch(message);
+        } else if (outbound.offer(message, true)) {
+            scheduleDrain();
+        } else {
+            message.discard();
+            onSlowConsumer();
+        }
+    }
+
+    protected void onSlowConsumer() {
+        System.err.println("🐢 Cola de salida llena para " + getRemoteAddress() + ", desconectando");
+        disconnect();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            writers.execute(this::drain);
+        }
+    }
+
+    /**
+     * Tarea escritora: vacía la cola y termina; se vuelve a programar
+     * cuando llegan mensajes nuevos, así no hay un hilo escritor ocioso por conexión.
+     */
+    private void drain() {
+        while (true) {
+            OutboundMessage first;
+            while ((first = outbound.poll()) != null) {
+                if (!writeBatch(first)) return;
+            }
+            draining.set(false);
+            // un emisor pudo encolar justo después del último poll
+            if (outbound.isEmpty() || !draining.compareAndSet(false, true)) return;
+        }
+    }
+
+    /**
+     * Escribe first y, si hay cola, los mensajes que la siguen hasta llenar
+     * coalesceBytes o agotar la ventana de coalescencia; luego un único flush.
+     * Un mensaje suelto sin ventana configurada sale de inmediato.
+     */
+    private boolean writeBatch(OutboundMessage first) {
+        writeLock.lock();
+        try {
+            int messages = 0;
+            long bytes = 0;
+            long deadline = System.nanoTime() + coalesceWindowNanos;
+            OutboundMessage message = first;
+
+            while (message != null) {
+                if (message.getStream() != null) {
+                    // lo anterior sale primero; el stream va en sus propias escrituras
+                    if (messages > 0) {
+                        out.flush();
+                        flushStats.record(messages, bytes);
+                    }
+                    writeStream(message.getStream());
+                    return true;
+                }
+                ByteBuffer buffer = message.encode(writeFormat);
+                if (message.getSwitchTo() != null) writeFormat = message.getSwitchTo();
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                messages++;
+                bytes += buffer.remaining();
+                if (outbound == null || bytes >= coalesceBytes) break;
+
+                message = outbound.poll();
+                if (message == null && coalesceWindowNanos > 0) {
+                    message = outbound.poll(deadline - System.nanoTime());
                 }
-                writer.flush();
             }
+
+            out.flush();
+            flushStats.record(messages, bytes);
+            return true;
         } catch (IOException e) {
-            if (listener != null) listener.onException(this, e);
+            if (connected && listener != null) listener.onException(this, e);
+            disconnect();
+            return false;
+        } finally {
+            writeLock.unlock();
         }
     }
 
-    public synchronized void disconnect() {
+    /**
+     * Escribe un {@link ChunkedStream} tramo por tramo con un flush después de
+     * cada uno, así el cliente puede ir usando los datos mientras llegan.
+     * El canal es bloqueante y nunca rechaza bytes: un tramo incompleto
+     * quiere decir que la fuente se quedó sin datos, y la conexión se corta
+     * (ya salió una cabecera que promete más). Se llama con el lock de escritura.
+     */
+    private void writeStream(ChunkedStream stream) throws IOException {
+        try {
+            WritableByteChannel channel = Channels.newChannel(out);
+            while (!stream.isDone()) {
+                if (!stream.writeChunk(channel, writeFormat, flushStats)) throw stream.truncated();
+                out.flush();
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Cierra la conexión. Es idempotente: onDisconnect se notifica una sola vez
+     * aunque lo llamen a la vez el hilo lector y el servidor.
+     */
+    public void disconnect() {
+        if (!closed.compareAndSet(false, true)) return;
         connected = false;
         try {
-            try { if (objectOutputStream != null) objectOutputStream.close(); } catch (IOException ignored) {}
-            try { if (objectInputStream != null) objectInputStream.close(); } catch (IOException ignored) {}
-            try { if (reader != null) reader.close(); } catch (IOException ignored) {}
-            try { if (writer != null) writer.close(); } catch (Exception ignored) {}
+            // cerrar el socket primero desbloquea al lector sin esperar el lock de escritura
             try { if (socket != null && !socket.isClosed()) socket.close(); } catch (IOException ignored) {}
+            // despierta a emisores bloqueados por la política BLOCK
+            if (outbound != null) outbound.clear();
+            writeLock.lock();
+            try {
+                try { if (objectOutputStream != null) objectOutputStream.close(); } catch (IOException ignored) {}
+                try { if (out != null) out.close(); } catch (IOException ignored) {}
+            } finally {
+                writeLock.unlock();
+            }
+            try { if (objectInputStream != null) objectInputStream.close(); } catch (IOException ignored) {}
+            try { if (in != null) in.close(); } catch (IOException ignored) {}
             if (listener != null) listener.onDisconnect(this);
         } catch (Exception e) {
             if (listener != null) listener.onException(this, e instanceof Exception ? (Exception) e : new Exception(e));
@@ -136,6 +412,39 @@ public class TCPConnection {
         return socket;
     }
 
+    /**
+     * Cola de salida de la conexión (métricas de profundidad y descartes),
+     * o null si escribe directamente en el hilo que llama.
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    /**
+     * Contadores de flushes y mensajes por flush de esta conexión.
+     */
+    public FlushStats getFlushStats() {
+        return flushStats;
+    }
+
+    /**
+     * Momento (epoch ms) del último mensaje recibido, o de la conexión si aún no llegó ninguno.
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Formato pedido por el cliente (el de escritura lo sigue tras la confirmación).
+     */
+    public WireFormat getWireFormat() {
+        return readFormat;
+    }
+
     @Override
     public String toString() {
         return getRemoteAddress();
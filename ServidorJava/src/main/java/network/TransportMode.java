@@ -0,0 +1,23 @@
+package network;
+
+/**
+ * Modos de transporte TCP que puede usar el servidor.
+ * - BLOCKING: un hilo por conexión con lectura bloqueante (modo original)
+ * - VIRTUAL: igual que BLOCKING pero cada lector corre en un hilo virtual
+ * - NIO: pocos event loops con Selector atendiendo todas las conexiones
+ */
+public enum TransportMode {
+    BLOCKING,
+    VIRTUAL,
+    NIO;
+
+    public static TransportMode parse(String value) {
+        if (value == null || value.isBlank()) return BLOCKING;
+        try {
+            return TransportMode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("⚠️ Modo de transporte desconocido '" + value + "', usando BLOCKING");
+            return BLOCKING;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package network;
+
+/**
+ * Formato en el cable de una conexión en modo texto.
+ * - TEXT: líneas "type:...|clave:valor" terminadas en '\n' (proxy Node, MainClient)
+ * - BINARY: tramas con prefijo de longitud (ver {@link protocol.BinaryCodec})
+ *
+ * Toda conexión empieza en TEXT; el cliente pide BINARY con
+ * "type:hello|protocol:binary" y el servidor confirma con "type:hello_ack|protocol:binary".
+ * Desde la confirmación ambos lados usan tramas binarias.
+ */
+public enum WireFormat {
+    TEXT,
+    BINARY;
+
+    static final String HANDSHAKE_PREFIX = "type:hello|";
+
+    /**
+     * Si la línea es un saludo de negociación devuelve el formato pedido, si no null.
+     */
+    static WireFormat parseHandshake(String line) {
+        if (!line.startsWith(HANDSHAKE_PREFIX)) return null;
+        int idx = line.indexOf("protocol:");
+        if (idx < 0) return null;
+        int end = line.indexOf('|', idx);
+        String value = line.substring(idx + "protocol:".length(), end < 0 ? line.length() : end).trim();
+        return "binary".equalsIgnoreCase(value) ? BINARY : TEXT;
+    }
+
+    String ackLine() {
+        return "type:hello_ack|protocol:" + name().toLowerCase();
+    }
+}
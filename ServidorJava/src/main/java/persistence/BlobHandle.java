@@ -0,0 +1,122 @@
+package persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Acceso a un blob del {@link BlobStore} sin cargarlo entero: se puede leer
+ * un tramo, recorrer como stream o pasar directo a un canal.
+ *
+ * Tiene su propio descriptor del pack, así una compactación que borre el pack
+ * mientras tanto no lo corta. Hay que cerrarlo.
+ */
+public class BlobHandle implements Closeable {
+    private final FileChannel channel;
+    private final String hash;
+    private final long offset;
+    private final int length;
+
+    BlobHandle(FileChannel channel, String hash, long offset, int length) {
+        this.channel = channel;
+        this.hash = hash;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public int size() {
+        return length;
+    }
+
+    /**
+     * Bytes [position, position + count) del blob, recortado al final.
+     */
+    public byte[] read(long position, int count) throws IOException {
+        checkPosition(position);
+        ByteBuffer data = ByteBuffer.allocate((int) Math.min(count, length - position));
+        while (data.hasRemaining()) {
+            if (channel.read(data, offset + position + data.position()) < 0) {
+                throw new IOException("Blob " + hash + " cortado");
+            }
+        }
+        return data.array();
+    }
+
+    public byte[] readAll() throws IOException {
+        return read(0, length);
+    }
+
+    /**
+     * Pasa al canal los bytes [position, position + count) del blob sin
+     * copiarlos al heap.
+     *
+     * @return bytes transferidos
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        checkPosition(position);
+        long end = Math.min(length, position + count);
+        long sent = position;
+        while (sent < end) {
+            long n = channel.transferTo(offset + sent, end - sent, target);
+            if (n <= 0) {
+                // sin avance: el destino está lleno (socket no bloqueante) o el pack quedó corto
+                if (offset + sent >= channel.size()) throw new IOException("Blob " + hash + " cortado");
+                break;
+            }
+            sent += n;
+        }
+        return sent - position;
+    }
+
+    /**
+     * Stream sobre el blob; no es dueño del handle, cerrarlo no lo cierra.
+     */
+    public InputStream openStream() {
+        return new InputStream() {
+            private long position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int from, int count) throws IOException {
+                if (position >= length) return -1;
+                int n = (int) Math.min(count, length - position);
+                ByteBuffer target = ByteBuffer.wrap(buffer, from, n);
+                while (target.hasRemaining()) {
+                    if (channel.read(target, offset + position + (target.position() - from)) < 0) {
+                        throw new IOException("Blob " + hash + " cortado");
+                    }
+                }
+                position += n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return (int) (length - position);
+            }
+        };
+    }
+
+    private void checkPosition(long position) {
+        if (position < 0 || position > length) {
+            throw new IndexOutOfBoundsException("Posición " + position + " fuera del blob de " + length + " bytes");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
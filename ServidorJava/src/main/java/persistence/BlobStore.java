@@ -0,0 +1,498 @@
+package persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Almacén de audio direccionado por contenido.
+ *
+ * Cada nota de voz se guarda una sola vez, identificada por el SHA-256 de sus
+ * bytes, dentro de archivos "pack" grandes de solo-agregar (data/blobs/000001.pack)
+ * en lugar de un archivo por nota. Los mensajes de audio la referencian por
+ * su id: reenviar o repetir la misma nota solo suma una referencia.
+ *
+ * El catálogo (data/blobs/catalog/, un {@link SegmentedLog}) registra dónde
+ * está cada blob y qué mensajes lo usan; se reconstruye en memoria al
+ * arrancar. La compactación copia los blobs vivos de los packs con mucha
+ * basura (blobs sin referencias) al pack activo, reescribe el catálogo y
+ * borra esos packs.
+ */
+public class BlobStore {
+    private static final String PACK_SUFFIX = ".pack";
+    private static final String CATALOG = "catalog";
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REF = 2;
+    private static final byte OP_UNREF = 3;
+    private static final int HASH_BYTES = 32;
+
+    private final Path dir;
+    private final long packBytes;
+    private final double compactRatio;
+
+    private SegmentedLog catalog;
+    private final Map<String, Blob> blobs = new HashMap<>();
+    private final Map<String, String> hashById = new HashMap<>();
+    // bytes de cada pack ocupados por blobs del catálogo (con o sin referencias)
+    private final Map<Integer, Long> packUsed = new TreeMap<>();
+    private final Map<Integer, FileChannel> readers = new HashMap<>();
+
+    private int activePack;
+    private FileChannel active;
+    private long activeSize;
+
+    private final LongAdder dedupHits = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+
+    private static final class Blob {
+        int pack;
+        long offset;
+        int length;
+        final Set<String> refs = new HashSet<>();
+
+        Blob(int pack, long offset, int length) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public BlobStore(Path dir, long packBytes, double compactRatio) throws IOException {
+        this.dir = dir;
+        this.packBytes = packBytes;
+        this.compactRatio = compactRatio;
+        Files.createDirectories(dir);
+        recoverCatalogSwap();
+        catalog = new SegmentedLog(dir.resolve(CATALOG), Long.MAX_VALUE);
+        catalog.forEach(this::replay);
+        openPacks();
+    }
+
+    /**
+     * -Dchat.blobs.packBytes (256 MB), -Dchat.blobs.compactRatio (0.5: fracción de
+     * basura a partir de la cual se compacta un pack) y -Dchat.blobs.compactIntervalMs
+     * (cada cuánto corre la compactación; 10 minutos, 0 la desactiva).
+     */
+    public static BlobStore fromSystemProperties(Path dir) throws IOException {
+        BlobStore store = new BlobStore(dir,
+                Long.getLong("chat.blobs.packBytes", 256L * 1024 * 1024),
+                Double.parseDouble(System.getProperty("chat.blobs.compactRatio", "0.5")));
+        long interval = Long.getLong("chat.blobs.compactIntervalMs", 600_000);
+        if (interval > 0) {
+            ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "blob-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(store::compactQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        return store;
+    }
+
+    // =====================================================
+    // 📂 Arranque
+    // =====================================================
+
+    private void replay(ByteBuffer record) {
+        byte op = record.get();
+        switch (op) {
+            case OP_PUT -> {
+                String hash = readHash(record);
+                int pack = record.getInt();
+                long offset = record.getLong();
+                int length = record.getInt();
+                Blob blob = blobs.get(hash);
+                if (blob == null) {
+                    blobs.put(hash, new Blob(pack, offset, length));
+                } else {
+                    // solo pasa si un catálogo reescrito lo reubicó
+                    blob.pack = pack;
+                    blob.offset = offset;
+                }
+            }
+            case OP_REF -> {
+                String hash = readHash(record);
+                String id = StandardCharsets.UTF_8.decode(record).toString();
+                Blob blob = blobs.get(hash);
+                if (blob != null) {
+                    blob.refs.add(id);
+                    hashById.put(id, hash);
+                }
+            }
+            case OP_UNREF -> {
+                String id = StandardCharsets.UTF_8.decode(record).toString();
+                String hash = hashById.remove(id);
+                if (hash != null && blobs.containsKey(hash)) blobs.get(hash).refs.remove(id);
+            }
+            default -> System.err.println("⚠️ Registro de catálogo desconocido: " + op);
+        }
+    }
+
+    /**
+     * Los packs que el catálogo no menciona (de una compactación que no llegó a
+     * cambiar el catálogo) se borran; el último queda como activo, recortado
+     * hasta el final del último blob registrado.
+     */
+    private void openPacks() throws IOException {
+        Map<Integer, Long> ends = new TreeMap<>();
+        for (Blob blob : blobs.values()) {
+            ends.merge(blob.pack, blob.offset + blob.length, Math::max);
+            packUsed.merge(blob.pack, (long) blob.length, Long::sum);
+        }
+
+        int last = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + PACK_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                int pack = Integer.parseInt(name.substring(0, name.length() - PACK_SUFFIX.length()));
+                last = Math.max(last, pack);
+            }
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + PACK_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                int pack = Integer.parseInt(name.substring(0, name.length() - PACK_SUFFIX.length()));
+                if (pack != last && !ends.containsKey(pack)) Files.delete(path);
+            }
+        }
+
+        activePack = Math.max(1, last);
+        Path path = packPath(activePack);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // lo escrito después del último blob registrado no tiene entrada en el catálogo
+            long end = ends.getOrDefault(activePack, 0L);
+            if (channel.size() > end) channel.truncate(end);
+        }
+        openActive();
+    }
+
+    private void openActive() throws IOException {
+        active = FileChannel.open(packPath(activePack), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeSize = active.size();
+    }
+
+    private Path packPath(int pack) {
+        return dir.resolve(String.format("%06d", pack) + PACK_SUFFIX);
+    }
+
+    // =====================================================
+    // ✍️ Escritura
+    // =====================================================
+
+    /**
+     * Guarda los bytes de la nota de voz del mensaje id. Si ya hay un blob con el
+     * mismo contenido solo se le agrega la referencia.
+     *
+     * @return el hash del contenido
+     */
+    public synchronized String put(String id, byte[] data) throws IOException {
+        String hash = hash(data);
+        String previous = hashById.get(id);
+        if (hash.equals(previous)) return hash;
+        if (previous != null) release(id);
+
+        Blob blob = blobs.get(hash);
+        List<byte[]> records = new ArrayList<>(2);
+        if (blob == null) {
+            if (activeSize >= packBytes) rollPack();
+            blob = new Blob(activePack, activeSize, data.length);
+            ByteBuffer bytes = ByteBuffer.wrap(data);
+            while (bytes.hasRemaining()) active.write(bytes);
+            activeSize += data.length;
+            packUsed.merge(activePack, (long) data.length, Long::sum);
+            blobs.put(hash, blob);
+            records.add(putRecord(hash, blob));
+        } else {
+            dedupHits.increment();
+        }
+        blob.refs.add(id);
+        hashById.put(id, hash);
+        records.add(refRecord(hash, id));
+        catalog.append(records);
+        return hash;
+    }
+
+    /**
+     * Quita la referencia del mensaje a su blob; si queda sin referencias, la
+     * próxima compactación recupera su espacio.
+     */
+    public synchronized void release(String id) throws IOException {
+        String hash = hashById.remove(id);
+        if (hash == null) return;
+        blobs.get(hash).refs.remove(id);
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        catalog.append(ByteBuffer.allocate(1 + idBytes.length).put(OP_UNREF).put(idBytes).array());
+    }
+
+    /**
+     * fsync del pack activo y después del catálogo que lo describe.
+     */
+    public synchronized void force() throws IOException {
+        active.force(false);
+        catalog.force();
+    }
+
+    private void rollPack() throws IOException {
+        active.force(false);
+        active.close();
+        activePack++;
+        openActive();
+    }
+
+    private static byte[] putRecord(String hash, Blob blob) {
+        return ByteBuffer.allocate(1 + HASH_BYTES + 4 + 8 + 4)
+                .put(OP_PUT).put(HexFormat.of().parseHex(hash))
+                .putInt(blob.pack).putLong(blob.offset).putInt(blob.length)
+                .array();
+    }
+
+    private static byte[] refRecord(String hash, String id) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + HASH_BYTES + idBytes.length)
+                .put(OP_REF).put(HexFormat.of().parseHex(hash)).put(idBytes)
+                .array();
+    }
+
+    private static String readHash(ByteBuffer record) {
+        byte[] hash = new byte[HASH_BYTES];
+        record.get(hash);
+        return HexFormat.of().formatHex(hash);
+    }
+
+    static String hash(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+
+    // =====================================================
+    // 📖 Lectura
+    // =====================================================
+
+    /**
+     * Bytes de la nota de voz del mensaje, o null si no hay.
+     */
+    public byte[] get(String id) throws IOException {
+        try (BlobHandle handle = open(id)) {
+            return handle == null ? null : handle.readAll();
+        }
+    }
+
+    /**
+     * Handle sobre la nota de voz del mensaje, o null si no hay. Abre su
+     * propio descriptor: sigue siendo válido aunque una compactación mueva
+     * el blob después.
+     */
+    public synchronized BlobHandle open(String id) throws IOException {
+        String hash = hashById.get(id);
+        if (hash == null) return null;
+        Blob blob = blobs.get(hash);
+        return new BlobHandle(FileChannel.open(packPath(blob.pack), StandardOpenOption.READ),
+                hash, blob.offset, blob.length);
+    }
+
+    public synchronized boolean contains(String id) {
+        return hashById.containsKey(id);
+    }
+
+    private FileChannel reader(int pack) throws IOException {
+        FileChannel channel = readers.get(pack);
+        if (channel == null) {
+            channel = FileChannel.open(packPath(pack), StandardOpenOption.READ);
+            readers.put(pack, channel);
+        }
+        return channel;
+    }
+
+    // =====================================================
+    // 🧹 Compactación
+    // =====================================================
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error compactando audio: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Copia al pack activo los blobs vivos de los packs cerrados cuya basura
+     * supera compactRatio, olvida los blobs sin referencias, reescribe el
+     * catálogo y borra esos packs.
+     *
+     * @return bytes recuperados
+     */
+    public synchronized long compact() throws IOException {
+        Map<Integer, Long> garbage = new HashMap<>();
+        for (Blob blob : blobs.values()) {
+            if (blob.refs.isEmpty()) garbage.merge(blob.pack, (long) blob.length, Long::sum);
+        }
+        Set<Integer> victims = new HashSet<>();
+        for (Map.Entry<Integer, Long> entry : garbage.entrySet()) {
+            int pack = entry.getKey();
+            long used = packUsed.getOrDefault(pack, 0L);
+            if (pack != activePack && used > 0 && (double) entry.getValue() / used >= compactRatio) victims.add(pack);
+        }
+        // los blobs sin referencias del pack activo se olvidan igual; su espacio vuelve al cerrarse el pack
+        boolean dropActive = garbage.containsKey(activePack);
+        if (victims.isEmpty() && !dropActive) return 0;
+
+        long reclaimed = 0;
+        List<String> dead = new ArrayList<>();
+        for (Map.Entry<String, Blob> entry : blobs.entrySet()) {
+            Blob blob = entry.getValue();
+            if (blob.refs.isEmpty()) {
+                if (victims.contains(blob.pack)) reclaimed += blob.length;
+                if (victims.contains(blob.pack)) {
+                    dead.add(entry.getKey());
+                } else if (blob.pack == activePack) {
+                    packUsed.merge(activePack, (long) -blob.length, Long::sum);
+                    dead.add(entry.getKey());
+                }
+            } else if (victims.contains(blob.pack)) {
+                relocate(blob);
+            }
+        }
+        for (String hash : dead) blobs.remove(hash);
+
+        active.force(false);
+        rewriteCatalog();
+        for (int pack : victims) {
+            FileChannel channel = readers.remove(pack);
+            if (channel != null) channel.close();
+            packUsed.remove(pack);
+            Files.deleteIfExists(packPath(pack));
+        }
+
+        compactions.increment();
+        reclaimedBytes.add(reclaimed);
+        if (reclaimed > 0) {
+            System.out.println("🧹 Audio compactado: " + victims.size() + " packs, " + reclaimed + " bytes recuperados");
+        }
+        return reclaimed;
+    }
+
+    private void relocate(Blob blob) throws IOException {
+        if (activeSize >= packBytes) rollPack();
+        ByteBuffer data = ByteBuffer.allocate(blob.length);
+        FileChannel channel = reader(blob.pack);
+        while (data.hasRemaining()) {
+            if (channel.read(data, blob.offset + data.position()) < 0) {
+                throw new IOException("Blob cortado en el pack " + blob.pack);
+            }
+        }
+        data.flip();
+        long offset = activeSize;
+        while (data.hasRemaining()) active.write(data);
+        activeSize += blob.length;
+        packUsed.merge(activePack, (long) blob.length, Long::sum);
+        blob.pack = activePack;
+        blob.offset = offset;
+    }
+
+    /**
+     * Escribe el estado actual como catálogo nuevo (solo PUT y REF de lo vivo)
+     * en catalog.new y lo intercambia con el actual.
+     */
+    private void rewriteCatalog() throws IOException {
+        Path current = dir.resolve(CATALOG);
+        Path fresh = dir.resolve(CATALOG + ".new");
+        Path old = dir.resolve(CATALOG + ".old");
+        ChatHistory.deleteRecursively(fresh);
+
+        SegmentedLog rewritten = new SegmentedLog(fresh, Long.MAX_VALUE);
+        try {
+            for (Map.Entry<String, Blob> entry : blobs.entrySet()) {
+                List<byte[]> records = new ArrayList<>();
+                records.add(putRecord(entry.getKey(), entry.getValue()));
+                for (String id : entry.getValue().refs) records.add(refRecord(entry.getKey(), id));
+                rewritten.append(records);
+            }
+            rewritten.force();
+        } finally {
+            rewritten.close();
+        }
+
+        catalog.close();
+        Files.move(current, old);
+        Files.move(fresh, current);
+        ChatHistory.deleteRecursively(old);
+        catalog = new SegmentedLog(current, Long.MAX_VALUE);
+    }
+
+    /**
+     * Termina un intercambio de catálogo que se cortó: si falta el catálogo
+     * pero está el nuevo completo, ese pasa a ser el catálogo.
+     */
+    private void recoverCatalogSwap() throws IOException {
+        Path current = dir.resolve(CATALOG);
+        Path fresh = dir.resolve(CATALOG + ".new");
+        Path old = dir.resolve(CATALOG + ".old");
+        if (!Files.exists(current) && Files.exists(fresh)) {
+            Files.move(fresh, current);
+        }
+        ChatHistory.deleteRecursively(fresh);
+        ChatHistory.deleteRecursively(old);
+    }
+
+    // =====================================================
+    // 📊 Métricas
+    // =====================================================
+
+    public synchronized int getBlobCount() {
+        return blobs.size();
+    }
+
+    public synchronized int getReferenceCount() {
+        return hashById.size();
+    }
+
+    /**
+     * Bytes ocupados en los packs (incluye blobs sin referencias todavía no compactados).
+     */
+    public synchronized long getStoredBytes() {
+        long total = 0;
+        for (long used : packUsed.values()) total += used;
+        return total;
+    }
+
+    public synchronized int getPackCount() {
+        return packUsed.size();
+    }
+
+    public long getDedupHits() {
+        return dedupHits.sum();
+    }
+
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes.sum();
+    }
+}
@@ -2,220 +2,610 @@ package persistence;
 
 import model.Message;
 import model.AudioMessage;
-
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Historial persistente: un {@link SegmentedLog} por conversación
+ * (data/history/user_x/, data/history/group_x/ y sus "_audio" con los
+ * metadatos de notas de voz). Guardar es un append de un registro binario
+ * ({@link RecordCodec}); los nombres de usuarios y grupos se guardan una vez
+ * en la {@link SymbolTable}. Al arrancar se migran los archivos
+ * data/history/*.txt del formato de texto anterior.
+ * El texto de cada mensaje se agrega además al {@link SearchIndex}.
+ *
+ * Todo lote pasa primero por el {@link WriteAheadLog}: el commit es el fsync
+ * del WAL, los logs de conversación se fuerzan en cada checkpoint y al
+ * arrancar se re-aplica lo que el WAL tenga después del último.
+ *
+ * Cada log se usa con el lock de su franja (por nombre de log): escrituras y
+ * lecturas de conversaciones distintas van en paralelo y las de una misma
+ * conversación se serializan, sin perder ni desordenar mensajes.
+ */
 public class ChatHistory {
     private static final String HISTORY_DIR = "data/history/";
     private static final String AUDIO_DIR = "data/audio/";
+    private static final String SEARCH_DIR = "data/search/";
+    private static final String SYMBOLS_DIR = "data/symbols/";
+    private static final String BLOBS_DIR = "data/blobs/";
+    private static final String WAL_DIR = "data/wal/";
+    private static final String AUDIO_LOG_SUFFIX = "_audio";
+    private static final int CATCH_UP_CHUNK = 4096;
+    private static final String LEGACY_SUFFIX = ".txt";
+    private static final String LEGACY_AUDIO_SUFFIX = ".txt_audio";
+
+    // tamaño al que se abre un segmento nuevo (-Dchat.history.segmentBytes)
+    private final long segmentBytes = Long.getLong("chat.history.segmentBytes", 4L * 1024 * 1024);
+    // cada cuántos registros se indexa un offset (-Dchat.history.indexInterval)
+    private final int indexInterval = Integer.getInteger("chat.history.indexInterval", SegmentedLog.DEFAULT_INDEX_INTERVAL);
+    private final Map<String, SegmentedLog> logs = new ConcurrentHashMap<>();
+    // un log se lee y escribe con el lock de su franja tomado (-Dchat.history.lockStripes)
+    private final ReentrantLock[] stripes = newStripes(Integer.getInteger("chat.history.lockStripes", 64));
+    // checkpoint cada -Dchat.wal.checkpointBytes escritos en el WAL
+    private final long checkpointBytes = Long.getLong("chat.wal.checkpointBytes", 64L * 1024 * 1024);
+    // appendAll toma el de lectura (WAL + log); el checkpoint, el de escritura para ver todo aplicado
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    // logs con registros que todavía no se forzaron en un checkpoint
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final SymbolTable symbols;
+    private final BlobStore blobs;
+    private final WriteAheadLog wal;
+    private final SearchIndex searchIndex;
 
     public ChatHistory() {
         createDirectories();
+        symbols = openSymbols();
+        blobs = openBlobs();
+        wal = openWal();
+        // las migraciones van antes de la recuperación: no renumeran nada y ningún log está abierto todavía
+        migrateAudioFiles();
+        boolean migrated = migrateLegacyFiles();
+        recover();
+        if (migrated) {
+            // los números de secuencia pudieron cambiar: el índice se rehace desde los logs
+            try {
+                deleteRecursively(Paths.get(SEARCH_DIR));
+            } catch (IOException e) {
+                System.err.println("Error borrando índice de búsqueda: " + e.getMessage());
+            }
+        }
+        searchIndex = openSearchIndex();
+        catchUpSearchIndex();
     }
 
     private void createDirectories() {
         new File(HISTORY_DIR).mkdirs();
-        new File(AUDIO_DIR).mkdirs();
     }
 
     public void saveMessage(Message message) {
         if (message == null) return;
 
-        String filename = getHistoryFilename(message.getTo(), message.isGroupMessage());
-        List<Message> messages = loadMessages(message.getTo(), message.isGroupMessage());
-        messages.add(message);
-
-        saveMessagesToFile(messages, filename);
+        try {
+            appendAll(List.of(message));
+        } catch (IOException e) {
+            System.err.println("Error guardando mensajes: " + e.getMessage());
+        }
     }
 
     public void saveAudioMessage(AudioMessage audioMessage) {
-        if (audioMessage == null) return;
-
-        // Guardar metadatos del audio
-        String filename = getHistoryFilename(audioMessage.getTo(), audioMessage.isGroupMessage()) + "_audio";
-        List<AudioMessage> audioMessages = loadAudioMessages(audioMessage.getTo(), audioMessage.isGroupMessage());
-        audioMessages.add(audioMessage);
+        saveMessage(audioMessage);
+    }
 
-        saveAudioMessagesToFile(audioMessages, filename);
+    /**
+     * Guarda un lote de mensajes de cualquier conversación: los registros de
+     * cada log salen juntos en una sola escritura, y el audio de las notas de
+     * voz se escribe antes que sus metadatos. Cada grupo de registros va
+     * primero al WAL y después a su log. No fuerza a disco (ver {@link #sync}).
+     *
+     * @return secuencia de cada mensaje en su log ({@link #logNameOf}), en el orden del lote
+     */
+    public long[] appendAll(List<? extends Message> batch) throws IOException {
+        Map<String, List<Message>> byLog = new LinkedHashMap<>();
+        Map<String, List<Integer>> positions = new HashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            Message message = batch.get(i);
+            if (message instanceof AudioMessage audioMessage) {
+                // Guardar datos de audio en el almacén de blobs
+                saveAudioData(audioMessage);
+            }
+            String name = logNameOf(message);
+            byLog.computeIfAbsent(name, k -> new ArrayList<>()).add(message);
+            positions.computeIfAbsent(name, k -> new ArrayList<>()).add(i);
+        }
 
-        // Guardar datos de audio en archivo separado
-        saveAudioData(audioMessage);
+        long[] seqs = new long[batch.size()];
+        checkpointLock.readLock().lock();
+        try {
+            for (Map.Entry<String, List<Message>> entry : byLog.entrySet()) {
+                long first = appendToLog(entry.getKey(), entry.getValue());
+                List<Integer> at = positions.get(entry.getKey());
+                for (int i = 0; i < at.size(); i++) seqs[at.get(i)] = first + i;
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        return seqs;
     }
 
-    private void saveMessagesToFile(List<Message> messages, String filename) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
-            for (Message message : messages) {
-                writer.println(serializeMessage(message));
+    /**
+     * @return secuencia del primer mensaje en el log
+     */
+    private long appendToLog(String name, List<Message> messages) throws IOException {
+        List<byte[]> records = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            records.add(RecordCodec.encode(message, symbols));
+        }
+
+        // el índice de búsqueda necesita las secuencias de cada conversación en orden
+        ReentrantLock lock = lockFor(name);
+        lock.lock();
+        try {
+            SegmentedLog log = log(name);
+            long first = log.getNextOffset();
+            wal.append(name, first, records);
+            log.append(records);
+            dirty.add(name);
+
+            for (int i = 0; i < messages.size(); i++) {
+                Message message = messages.get(i);
+                if (!(message instanceof AudioMessage)) {
+                    searchIndex.add(name, first + i, message.getFrom(), message.getContent());
+                }
             }
-        } catch (IOException e) {
-            System.err.println("Error guardando mensajes: " + e.getMessage());
+            return first;
+        } finally {
+            lock.unlock();
         }
     }
 
-    private void saveAudioMessagesToFile(List<AudioMessage> audioMessages, String filename) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
-            for (AudioMessage audioMessage : audioMessages) {
-                writer.println(serializeAudioMessage(audioMessage));
+    /**
+     * Agrega huecos al log hasta que su próxima secuencia sea upTo: ocupan
+     * las secuencias de mensajes que se entregaron pero no se guardaron, para
+     * que no se repartan de nuevo. Las lecturas los saltan.
+     *
+     * @return cuántos huecos agregó
+     */
+    int fillTo(String logName, long upTo) throws IOException {
+        checkpointLock.readLock().lock();
+        ReentrantLock lock = lockFor(logName);
+        lock.lock();
+        try {
+            SegmentedLog log = log(logName);
+            long first = log.getNextOffset();
+            if (first >= upTo) return 0;
+            List<byte[]> records = new ArrayList<>((int) (upTo - first));
+            for (long seq = first; seq < upTo; seq++) records.add(RecordCodec.tombstone());
+            wal.append(logName, first, records);
+            log.append(records);
+            dirty.add(logName);
+            return records.size();
+        } finally {
+            lock.unlock();
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Hace durable todo lo agregado hasta ahora: fsync de la tabla de nombres
+     * y del audio que referencian los registros, y después del WAL. Si el WAL
+     * pasó checkpointBytes desde el último checkpoint, hace uno.
+     */
+    public void sync() throws IOException {
+        symbols.force();
+        blobs.force();
+        wal.force();
+        if (wal.getBytesSinceCheckpoint() >= checkpointBytes) checkpoint();
+    }
+
+    /**
+     * Escribe a disco lo que el índice de búsqueda tiene en memoria. Va
+     * después de vaciar lo que se esté escribiendo (ver
+     * {@link WriteBehindPipeline#close}): lo que se agregue luego ya no se indexa.
+     */
+    public void close() {
+        searchIndex.close();
+    }
+
+    /**
+     * Fuerza los logs de conversación con registros pendientes y anota en el
+     * WAL que lo anterior ya no hace falta releerlo.
+     */
+    public void checkpoint() throws IOException {
+        long upTo;
+        long bytesMark;
+        List<String> toForce;
+        // con el de escritura no hay appendAll a medias: todo lo anterior a upTo ya está en su log
+        checkpointLock.writeLock().lock();
+        try {
+            upTo = wal.getNextOffset();
+            bytesMark = wal.getAppendedBytes();
+            toForce = new ArrayList<>(dirty);
+            dirty.clear();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+
+        try {
+            for (String name : toForce) {
+                // con el lock: un append concurrente puede cerrar el segmento activo al rotar
+                ReentrantLock lock = lockFor(name);
+                lock.lock();
+                try {
+                    log(name).force();
+                } finally {
+                    lock.unlock();
+                }
             }
         } catch (IOException e) {
-            System.err.println("Error guardando audio messages: " + e.getMessage());
-        }
-    }
-
-    private String serializeMessage(Message message) {
-        return String.format("id:%s|from:%s|to:%s|content:%s|timestamp:%d|isGroup:%b",
-                message.getId(),
-                message.getFrom(),
-                message.getTo(),
-                escapeContent(message.getContent()),
-                message.getTimestamp().getTime(),
-                message.isGroupMessage()
-        );
-    }
-
-    private String serializeAudioMessage(AudioMessage audioMessage) {
-        return String.format("id:%s|from:%s|to:%s|timestamp:%d|isGroup:%b|duration:%d|size:%d",
-                audioMessage.getId(),
-                audioMessage.getFrom(),
-                audioMessage.getTo(),
-                audioMessage.getTimestamp().getTime(),
-                audioMessage.isGroupMessage(),
-                audioMessage.getDuration(),
-                audioMessage.getAudioSize()
-        );
-    }
-
-    private Message deserializeMessage(String line) {
-        try {
-            Map<String, String> data = parseLine(line);
-            Message message = new Message(
-                    data.get("from"),
-                    data.get("to"),
-                    unescapeContent(data.get("content")),
-                    Boolean.parseBoolean(data.get("isGroup"))
-            );
-            return message;
-        } catch (Exception e) {
+            dirty.addAll(toForce);
+            throw e;
+        }
+        wal.checkpoint(upTo, bytesMark);
+    }
+
+    private Message decode(ByteBuffer record) {
+        try {
+            return RecordCodec.decode(record, symbols);
+        } catch (RuntimeException e) {
             System.err.println("Error deserializando mensaje: " + e.getMessage());
             return null;
         }
     }
 
-    private AudioMessage deserializeAudioMessage(String line) {
+    private AudioMessage decodeAudio(ByteBuffer record) {
+        // Para audio, solo guardamos metadatos, los datos binarios se guardan aparte
+        Message message = decode(record);
+        return message instanceof AudioMessage audioMessage ? audioMessage : null;
+    }
+
+    /**
+     * Si falla, el lote no se escribe: no quedan metadatos apuntando a un audio que no está.
+     */
+    private void saveAudioData(AudioMessage audioMessage) throws IOException {
+        if (audioMessage.getAudioData() == null) return;
+        blobs.put(audioMessage.getId(), audioMessage.getAudioData());
+    }
+
+    public List<Message> loadMessages(String target, boolean isGroup) {
+        List<Message> messages = new ArrayList<>();
+        String name = getLogName(target, isGroup);
+        ReentrantLock lock = lockFor(name);
+        lock.lock();
+        try {
+            log(name).forEach(record -> {
+                Message message = decode(record);
+                if (message != null) {
+                    messages.add(message);
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Error cargando mensajes: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+
+        return messages;
+    }
+
+    /**
+     * Lee una página del historial sin cargar la conversación entera.
+     * Con after se devuelven los siguientes a esa secuencia; con before, los
+     * inmediatamente anteriores; sin ninguno, los últimos.
+     *
+     * @param before secuencia exclusiva hasta la que leer, o null
+     * @param after  secuencia exclusiva desde la que leer, o null (tiene prioridad sobre before)
+     */
+    public HistoryPage loadPage(String target, boolean isGroup, Long before, Long after, int limit) {
+        ArrayList<Message> messages = new ArrayList<>();
+        int size = Math.max(0, limit);
+        long first = 0;
+        long end = 0;
+        boolean hasMore = false;
+        String name = getLogName(target, isGroup);
+        ReentrantLock lock = lockFor(name);
+        lock.lock();
         try {
-            Map<String, String> data = parseLine(line);
-            // Para audio, solo guardamos metadatos, los datos binarios se guardan aparte
-            AudioMessage audioMessage = new AudioMessage(
-                    data.get("id"),
-                    data.get("from"),
-                    data.get("to"),
-                    Boolean.parseBoolean(data.get("isGroup")),
-                    Long.parseLong(data.get("timestamp")),
-                    Integer.parseInt(data.get("audioSize")),
-                    Integer.parseInt(data.get("duration"))
-            );
+            SegmentedLog log = log(name);
+            long next = log.getNextOffset();
+            if (after != null) {
+                // after se acota a next antes de sumar: un cursor en Long.MAX_VALUE no desborda
+                first = Math.max(0, Math.min(after, next - 1) + 1);
+                end = first + Math.min(size, next - first);
+                hasMore = end < next;
+            } else {
+                end = before != null ? Math.max(0, Math.min(before, next)) : next;
+                first = end - Math.min(size, end);
+                hasMore = first > 0;
+            }
+            if (first < end) {
+                messages.ensureCapacity((int) (end - first));
+                log.read(first, (int) (end - first), record -> {
+                    Message message = decode(record);
+                    if (message != null) {
+                        messages.add(message);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            System.err.println("Error cargando página del historial: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
 
-            return audioMessage;
-        } catch (Exception e) {
-            System.err.println("Error deserializando audio message: " + e.getMessage());
-            return null;
+        return new HistoryPage(messages, first, Math.max(first, end) - 1, hasMore);
+    }
+
+    // =====================================================
+    // 🔎 Búsqueda
+    // =====================================================
+
+    /**
+     * Mensajes que contienen todos los términos de la consulta, del más nuevo
+     * al más viejo, entre los que el usuario puede ver: los de sus grupos, los
+     * privados que recibió y los que envió.
+     */
+    public List<Message> search(String query, String username, Collection<String> groups, int limit) {
+        Set<String> readable = new HashSet<>();
+        readable.add(getLogName(username, false));
+        for (String group : groups) readable.add(getLogName(group, true));
+
+        List<Message> results = new ArrayList<>();
+        List<SearchIndex.Hit> hits = searchIndex.search(query,
+                (conversation, sender) -> readable.contains(conversation)
+                        || (conversation.startsWith("user_") && username.equals(sender)),
+                limit);
+        for (SearchIndex.Hit hit : hits) {
+            ReentrantLock lock = lockFor(hit.getConversation());
+            lock.lock();
+            try {
+                log(hit.getConversation()).read(hit.getSeq(), 1, record -> {
+                    Message message = decode(record);
+                    if (message != null) results.add(message);
+                });
+            } catch (IOException e) {
+                System.err.println("Error leyendo resultado de búsqueda: " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
         }
+        return results;
     }
 
-    private Map<String, String> parseLine(String line) {
-        Map<String, String> result = new HashMap<>();
-        String[] pairs = line.split("\\|");
-        for (String pair : pairs) {
-            String[] keyValue = pair.split(":", 2);
-            if (keyValue.length == 2) {
-                result.put(keyValue[0].trim(), keyValue[1].trim());
+    /**
+     * Secuencia que recibirá el próximo mensaje del log.
+     */
+    long nextSeq(String logName) throws IOException {
+        ReentrantLock lock = lockFor(logName);
+        lock.lock();
+        try {
+            return log(logName).getNextOffset();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mensaje en la secuencia seq del log, o null si no está (o no se puede leer).
+     */
+    Message readAt(String logName, long seq) {
+        Message[] found = new Message[1];
+        ReentrantLock lock = lockFor(logName);
+        lock.lock();
+        try {
+            SegmentedLog log = log(logName);
+            if (seq >= 0 && seq < log.getNextOffset()) {
+                log.read(seq, 1, record -> found[0] = decode(record));
             }
+        } catch (IOException e) {
+            System.err.println("Error leyendo mensaje " + logName + "#" + seq + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
         }
-        return result;
+        return found[0];
     }
 
-    private String escapeContent(String content) {
-        return content.replace("|", "\\|").replace(":", "\\:").replace("\n", "\\n");
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
     }
 
-    private String unescapeContent(String content) {
-        return content.replace("\\|", "|").replace("\\:", ":").replace("\\n", "\n");
+    public BlobStore getBlobStore() {
+        return blobs;
     }
 
-    private void saveAudioData(AudioMessage audioMessage) {
-        String audioFilename = AUDIO_DIR + audioMessage.getId() + ".audio";
-        try (FileOutputStream fos = new FileOutputStream(audioFilename)) {
-            fos.write(audioMessage.getAudioData());
+    public WriteAheadLog getWriteAheadLog() {
+        return wal;
+    }
+
+    private SymbolTable openSymbols() {
+        try {
+            return new SymbolTable(Paths.get(SYMBOLS_DIR));
         } catch (IOException e) {
-            System.err.println("Error guardando datos de audio: " + e.getMessage());
+            // sin la tabla no se pueden leer los registros: no tiene sentido seguir
+            throw new UncheckedIOException("No se pudo abrir la tabla de nombres del historial", e);
         }
     }
 
-    public List<Message> loadMessages(String target, boolean isGroup) {
-        String filename = getHistoryFilename(target, isGroup);
-        List<Message> messages = new ArrayList<>();
+    private BlobStore openBlobs() {
+        try {
+            return BlobStore.fromSystemProperties(Paths.get(BLOBS_DIR));
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo abrir el almacén de audio", e);
+        }
+    }
 
-        File file = new File(filename);
-        if (!file.exists()) {
-            return messages;
+    /**
+     * Pasa al almacén de blobs los audios guardados como un archivo por nota
+     * (data/audio/&lt;id&gt;.audio) y borra cada archivo una vez que el catálogo
+     * quedó en disco. Si se corta a la mitad, lo que quedó se importa en el
+     * próximo arranque sin duplicar nada.
+     */
+    private void migrateAudioFiles() {
+        Path dir = Paths.get(AUDIO_DIR);
+        if (!Files.isDirectory(dir)) return;
+
+        List<Path> imported = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.audio")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                blobs.put(name.substring(0, name.length() - ".audio".length()), Files.readAllBytes(file));
+                imported.add(file);
+            }
+            blobs.force();
+            for (Path file : imported) Files.delete(file);
+            try (DirectoryStream<Path> rest = Files.newDirectoryStream(dir)) {
+                if (!rest.iterator().hasNext()) Files.delete(dir);
+            }
+        } catch (IOException e) {
+            System.err.println("Error migrando archivos de audio: " + e.getMessage());
+        }
+        if (!imported.isEmpty()) {
+            System.out.println("🎵 Audio migrado al almacén de blobs: " + imported.size() + " notas de voz, "
+                    + blobs.getBlobCount() + " blobs distintos");
         }
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                Message message = deserializeMessage(line);
-                if (message != null) {
-                    messages.add(message);
+    private WriteAheadLog openWal() {
+        try {
+            return WriteAheadLog.fromSystemProperties(Paths.get(WAL_DIR));
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo abrir el WAL del historial", e);
+        }
+    }
+
+    /**
+     * Re-aplica a los logs de conversación los lotes del WAL posteriores al
+     * último checkpoint que no llegaron a ellos (o llegaron a medias: al
+     * abrir un log se recorta su cola cortada). Se compara por offset, así un
+     * lote que ya estaba no se duplica. Después se fuerza todo y se hace un
+     * checkpoint, con lo que el WAL queda vacío. Si un log termina antes del
+     * primer lote que el WAL tiene para él, le faltan registros que ya no se
+     * pueden rehacer: la recuperación falla sin tocar nada, y el WAL queda
+     * como estaba para revisarlo.
+     */
+    private void recover() {
+        long start = System.nanoTime();
+        long[] applied = new long[1];
+        try {
+            long batches = wal.replay((name, first, records) -> {
+                SegmentedLog log = log(name);
+                long next = log.getNextOffset();
+                if (next >= first + records.size()) return;
+                if (next < first) {
+                    // agregar dejaría los offsets corridos respecto de los seq ya entregados
+                    throw new IOException("Faltan registros en " + name + ": el log termina en el offset "
+                            + next + " y el WAL sigue en " + first);
                 }
+                int skip = (int) Math.max(0, next - first);
+                log.append(records.subList(skip, records.size()));
+                dirty.add(name);
+                applied[0] += records.size() - skip;
+            });
+            checkpoint();
+            if (batches > 0) {
+                System.out.println("♻️ Historial recuperado del WAL: " + batches + " lotes leídos, "
+                        + applied[0] + " registros re-aplicados en "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms");
             }
         } catch (IOException e) {
-            System.err.println("Error cargando mensajes: " + e.getMessage());
+            // sin recuperar, los logs podrían quedar sin mensajes ya confirmados
+            throw new UncheckedIOException("No se pudo recuperar el historial desde el WAL", e);
         }
-
-        return messages;
     }
 
-    public List<AudioMessage> loadAudioMessages(String target, boolean isGroup) {
-        String filename = getHistoryFilename(target, isGroup) + "_audio";
-        List<AudioMessage> audioMessages = new ArrayList<>();
+    private SearchIndex openSearchIndex() {
+        Path dir = Paths.get(SEARCH_DIR);
+        try {
+            return SearchIndex.fromSystemProperties(dir);
+        } catch (IOException | RuntimeException e) {
+            // el índice se puede rehacer entero desde los logs
+            System.err.println("⚠️ Índice de búsqueda ilegible, se reconstruye: " + e.getMessage());
+            try {
+                deleteRecursively(dir);
+                return SearchIndex.fromSystemProperties(dir);
+            } catch (IOException retry) {
+                throw new UncheckedIOException(retry);
+            }
+        }
+    }
 
-        File file = new File(filename);
-        if (!file.exists()) {
-            return audioMessages;
+    /**
+     * Indexa lo que los logs tengan más allá de lo que cubre el índice
+     * (lo que estaba en memoria al apagar, o todo si el índice es nuevo).
+     * Solo se llama desde el constructor, antes de que otros hilos usen el historial.
+     */
+    private void catchUpSearchIndex() {
+        long indexed = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(HISTORY_DIR))) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                // los nombres de log no llevan puntos: x.migrating, x.migrated, etc. son temporales o respaldos
+                if (!Files.isDirectory(path) || name.endsWith(AUDIO_LOG_SUFFIX) || name.indexOf('.') >= 0) continue;
+
+                SegmentedLog log = log(name);
+                long from = searchIndex.getNextSeq(name);
+                while (from < log.getNextOffset()) {
+                    log.read(from, CATCH_UP_CHUNK, (record, offset) -> {
+                        Message message = decode(record);
+                        if (message != null) {
+                            searchIndex.add(name, offset, message.getFrom(), message.getContent());
+                        }
+                    });
+                    indexed += Math.min(CATCH_UP_CHUNK, log.getNextOffset() - from);
+                    from += CATCH_UP_CHUNK;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error actualizando índice de búsqueda: " + e.getMessage());
+        }
+        if (indexed > 0) {
+            System.out.println("🔎 Índice de búsqueda actualizado: " + indexed + " mensajes");
         }
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                AudioMessage audioMessage = deserializeAudioMessage(line);
+    /**
+     * Metadatos de las notas de voz de la conversación, sin el audio: los
+     * bytes se piden aparte con {@link #openAudio} o {@link #loadAudioData}.
+     */
+    public List<AudioMessage> loadAudioMessages(String target, boolean isGroup) {
+        List<AudioMessage> audioMessages = new ArrayList<>();
+        String name = getAudioLogName(target, isGroup);
+        ReentrantLock lock = lockFor(name);
+        lock.lock();
+        try {
+            log(name).forEach(record -> {
+                AudioMessage audioMessage = decodeAudio(record);
                 if (audioMessage != null) {
-                    // Cargar datos de audio
-                    byte[] audioData = loadAudioData(audioMessage.getId());
-                    if (audioData != null) {
-                        // Necesitaríamos un método setter en AudioMessage para establecer los datos
-                        // audioMessage.setAudioData(audioData);
-                    }
                     audioMessages.add(audioMessage);
                 }
-            }
+            });
         } catch (IOException e) {
             System.err.println("Error cargando audio messages: " + e.getMessage());
+        } finally {
+            lock.unlock();
         }
 
         return audioMessages;
     }
 
-    public byte[] loadAudioData(String audioId) {
-        String audioFilename = AUDIO_DIR + audioId + ".audio";
-        File file = new File(audioFilename);
-
-        if (!file.exists()) {
-            return null;
-        }
+    /**
+     * Handle para leer el audio por tramos o como stream, o null si no hay
+     * audio con ese id. Quien lo pide lo cierra.
+     */
+    public BlobHandle openAudio(String audioId) throws IOException {
+        return blobs.open(audioId);
+    }
 
-        try (FileInputStream fis = new FileInputStream(audioFilename)) {
-            return fis.readAllBytes();
+    public byte[] loadAudioData(String audioId) {
+        try {
+            return blobs.get(audioId);
         } catch (IOException e) {
             System.err.println("Error cargando datos de audio: " + e.getMessage());
             return null;
@@ -224,9 +614,169 @@ public class ChatHistory {
 
 
 
-    private String getHistoryFilename(String target, boolean isGroup) {
+    // =====================================================
+    // 🗂️ Logs por conversación
+    // =====================================================
+
+    /**
+     * Log de la conversación, abriéndolo la primera vez. Se llama con el lock
+     * de su franja tomado (o desde el constructor), así nunca se abre dos veces.
+     */
+    private SegmentedLog log(String name) throws IOException {
+        SegmentedLog log = logs.get(name);
+        if (log == null) {
+            log = new SegmentedLog(Paths.get(HISTORY_DIR, name), segmentBytes, indexInterval);
+            logs.put(name, log);
+        }
+        return log;
+    }
+
+    /**
+     * Lock de la franja del log: las conversaciones de franjas distintas se
+     * leen y escriben en paralelo; las de la misma, de a una. SegmentedLog no
+     * es thread-safe, así que cubre también las lecturas.
+     */
+    private ReentrantLock lockFor(String logName) {
+        return stripes[Math.floorMod(logName.hashCode(), stripes.length)];
+    }
+
+    private static ReentrantLock[] newStripes(int count) {
+        ReentrantLock[] locks = new ReentrantLock[Math.max(1, count)];
+        for (int i = 0; i < locks.length; i++) locks[i] = new ReentrantLock();
+        return locks;
+    }
+
+    private static String getLogName(String target, boolean isGroup) {
         String prefix = isGroup ? "group_" : "user_";
         String safeTarget = target.replaceAll("[^a-zA-Z0-9]", "_");
-        return HISTORY_DIR + prefix + safeTarget + ".txt";
+        return prefix + safeTarget;
+    }
+
+    private static String getAudioLogName(String target, boolean isGroup) {
+        return getLogName(target, isGroup) + AUDIO_LOG_SUFFIX;
+    }
+
+    /**
+     * Log donde {@link #appendAll} guarda el mensaje (las notas de voz van a su propio log).
+     */
+    static String logNameOf(Message message) {
+        return message instanceof AudioMessage
+                ? getAudioLogName(message.getTo(), message.isGroupMessage())
+                : getLogName(message.getTo(), message.isGroupMessage());
+    }
+
+    /**
+     * Pasa cada data/history/x.txt (y x.txt_audio) del formato anterior,
+     * que se reescribía completo en cada mensaje, a su log segmentado.
+     * Solo si ese log está vacío y sin lotes en el WAL: los mensajes viejos
+     * irían delante de los nuevos y les cambiarían la secuencia, así que si
+     * ya hay algo el archivo queda como está (y se avisa en cada arranque).
+     * Se copia primero a un directorio temporal que se renombra al terminar,
+     * así una migración interrumpida se repite entera en el próximo arranque;
+     * el archivo viejo queda como .migrated.
+     *
+     * @return true si migró algo
+     */
+    private boolean migrateLegacyFiles() {
+        List<Path> legacyFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(HISTORY_DIR))) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (Files.isRegularFile(path) && (name.endsWith(LEGACY_SUFFIX) || name.endsWith(LEGACY_AUDIO_SUFFIX))) {
+                    legacyFiles.add(path);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error buscando historial para migrar: " + e.getMessage());
+            return false;
+        }
+
+        if (legacyFiles.isEmpty()) return false;
+
+        Set<String> pending;
+        try {
+            pending = wal.getPendingLogNames();
+        } catch (IOException e) {
+            System.err.println("Error leyendo el WAL antes de migrar: " + e.getMessage());
+            return false;
+        }
+
+        boolean migrated = false;
+        for (Path legacy : legacyFiles) {
+            String file = legacy.getFileName().toString();
+            String name = file.endsWith(LEGACY_AUDIO_SUFFIX)
+                    ? file.substring(0, file.length() - LEGACY_AUDIO_SUFFIX.length()) + AUDIO_LOG_SUFFIX
+                    : file.substring(0, file.length() - LEGACY_SUFFIX.length());
+            try {
+                if (pending.contains(name) || !isEmptyLog(Paths.get(HISTORY_DIR, name))) {
+                    System.err.println("⚠️ " + name + " ya tiene mensajes nuevos, no se migra " + file);
+                    continue;
+                }
+                migrate(legacy, name);
+                migrated = true;
+                System.out.println("📦 Historial migrado a log segmentado: " + file);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error migrando " + file + ": " + e.getMessage());
+            }
+        }
+        return migrated;
+    }
+
+    private boolean isEmptyLog(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) return true;
+        SegmentedLog log = new SegmentedLog(dir, segmentBytes);
+        try {
+            return log.getNextOffset() == 0;
+        } finally {
+            log.close();
+        }
+    }
+
+    private void migrate(Path legacy, String name) throws IOException {
+        Path target = Paths.get(HISTORY_DIR, name);
+        Path temp = Paths.get(HISTORY_DIR, name + ".migrating");
+        deleteRecursively(temp);
+
+        boolean audio = name.endsWith(AUDIO_LOG_SUFFIX);
+        SegmentedLog log = new SegmentedLog(temp, segmentBytes);
+        try {
+            copyTextRecords(legacy, audio, log);
+        } finally {
+            log.close();
+        }
+
+        deleteRecursively(target);
+        Files.move(temp, target);
+        Files.move(legacy, legacy.resolveSibling(legacy.getFileName() + ".migrated"));
+    }
+
+    /**
+     * Agrega al log, en binario, cada línea del archivo .txt.
+     */
+    private void copyTextRecords(Path textFile, boolean audio, SegmentedLog log) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(textFile)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                Message message;
+                try {
+                    message = RecordCodec.fromLegacyText(line, audio);
+                } catch (RuntimeException e) {
+                    System.err.println("Línea de historial ilegible en " + textFile + ", se omite: " + e.getMessage());
+                    continue;
+                }
+                log.append(RecordCodec.encode(message, symbols));
+            }
+        }
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path child : stream) deleteRecursively(child);
+            }
+        }
+        Files.delete(path);
     }
-}
\ No newline at end of file
+}
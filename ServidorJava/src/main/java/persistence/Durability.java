@@ -0,0 +1,23 @@
+package persistence;
+
+/**
+ * Cuándo hace fsync el {@link WriteBehindPipeline} de lo que ya escribió.
+ */
+public enum Durability {
+    /** fsync al final de cada lote; el futuro se completa cuando el lote está en disco. */
+    BATCH,
+    /** fsync como mucho cada fsyncIntervalMs; los futuros se completan en ese fsync. */
+    INTERVAL,
+    /** Nunca fuerza; el futuro se completa al escribir (el sistema operativo decide cuándo baja a disco). */
+    NEVER;
+
+    public static Durability parse(String value, Durability fallback) {
+        if (value == null || value.isBlank()) return fallback;
+        try {
+            return Durability.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("⚠️ Política de durabilidad desconocida '" + value + "', usando " + fallback);
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package persistence;
+
+import model.Group;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Grupos y miembros persistidos como eventos (crear, unirse, salir).
+ *
+ * Cada cambio se aplica al mapa en memoria y se agrega al diario
+ * (data/groups/journal/, un {@link SegmentedLog} con CRC por registro), con
+ * fsync. Cada snapshotEvents eventos un hilo en segundo plano escribe una
+ * foto binaria compacta de todos los grupos (data/groups/snapshot) y borra
+ * del diario lo que la foto ya cubre. Al arrancar se carga la foto y se
+ * re-aplica solo la cola del diario.
+ *
+ * Formato de la foto: MAGIC, versión, offset del diario que cubre, cantidad
+ * de grupos, por grupo nombre, creador y miembros; al final el CRC32 de todo.
+ */
+public class GroupStore {
+    private static final String SNAPSHOT = "snapshot";
+    private static final String JOURNAL = "journal";
+    private static final int MAGIC = 0x43484753; // "CHGS"
+    private static final byte VERSION = 1;
+
+    private static final byte OP_CREATE = 1;
+    private static final byte OP_JOIN = 2;
+    private static final byte OP_LEAVE = 3;
+    private static final byte OP_CLEAR = 4;
+
+    private final Path dir;
+    private final int snapshotEvents;
+    private final SegmentedLog journal;
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    // los cambios toman el de lectura (entre sí solo compiten por el diario); la foto, el de escritura
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long snapshotOffset;
+    private boolean snapshotting;
+    // una foto a la vez: la de fondo y una forzada compartirían el temporal
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "group-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder snapshots = new LongAdder();
+    private volatile long loadMillis;
+    private volatile long replayed;
+
+    public GroupStore(Path dir, long segmentBytes, int snapshotEvents) throws IOException {
+        this.dir = dir;
+        this.snapshotEvents = Math.max(1, snapshotEvents);
+        Files.createDirectories(dir);
+        this.journal = new SegmentedLog(dir.resolve(JOURNAL), segmentBytes);
+        load();
+    }
+
+    /**
+     * -Dchat.groups.snapshotEvents (10000 eventos entre fotos) y
+     * -Dchat.groups.segmentBytes (4 MB por segmento del diario).
+     */
+    public static GroupStore fromSystemProperties(Path dir) throws IOException {
+        return new GroupStore(dir,
+                Long.getLong("chat.groups.segmentBytes", 4L * 1024 * 1024),
+                Integer.getInteger("chat.groups.snapshotEvents", 10_000));
+    }
+
+    /**
+     * Mapa vivo de grupos por nombre. Se lee libremente; los cambios pasan por
+     * {@link #create}, {@link #join}, {@link #leave} y {@link #clear}.
+     */
+    public Map<String, Group> getGroups() {
+        return groups;
+    }
+
+    // =====================================================
+    // 📂 Arranque
+    // =====================================================
+
+    private void load() throws IOException {
+        long start = System.nanoTime();
+        Path snapshot = dir.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            try {
+                snapshotOffset = readSnapshot(snapshot);
+            } catch (IOException e) {
+                // el diario anterior a la foto ya se borró: se recupera lo que quede en él
+                System.err.println("⚠️ Foto de grupos ilegible, se usa solo el diario: " + e.getMessage());
+                groups.clear();
+                snapshotOffset = 0;
+            }
+        }
+
+        long from = snapshotOffset;
+        long end = journal.getNextOffset();
+        while (from < end) {
+            int count = (int) Math.min(end - from, 4096);
+            journal.read(from, count, this::replay);
+            from += count;
+        }
+        replayed = Math.max(0, end - snapshotOffset);
+        loadMillis = (System.nanoTime() - start) / 1_000_000;
+        if (!groups.isEmpty()) {
+            System.out.println("👥 Grupos cargados: " + groups.size() + " (" + replayed
+                    + " eventos del diario) en " + loadMillis + " ms");
+        }
+    }
+
+    private void replay(ByteBuffer record) {
+        byte op = record.get();
+        switch (op) {
+            case OP_CREATE -> applyCreate(readString(record), readString(record));
+            case OP_JOIN -> applyJoin(readString(record), readString(record));
+            case OP_LEAVE -> applyLeave(readString(record), readString(record));
+            case OP_CLEAR -> groups.clear();
+            default -> System.err.println("⚠️ Evento de grupo desconocido: " + op);
+        }
+    }
+
+    // =====================================================
+    // ✍️ Eventos
+    // =====================================================
+
+    /**
+     * @return false si el grupo ya existía
+     */
+    public boolean create(String group, String creator) {
+        return commit(OP_CREATE, group, creator);
+    }
+
+    /**
+     * @return false si el grupo no existe o el usuario ya era miembro
+     */
+    public boolean join(String group, String username) {
+        return commit(OP_JOIN, group, username);
+    }
+
+    /**
+     * Saca al usuario; un grupo que queda vacío se borra.
+     *
+     * @return false si no era miembro
+     */
+    public boolean leave(String group, String username) {
+        return commit(OP_LEAVE, group, username);
+    }
+
+    public void clear() {
+        commit(OP_CLEAR, null, null);
+    }
+
+    /**
+     * Aplica el evento en memoria y, si cambió algo, lo agrega al diario.
+     * Los eventos de un mismo grupo llegan en orden (los ordena el shard del
+     * grupo), así el diario los guarda en el orden en que se aplicaron.
+     */
+    private boolean commit(byte op, String group, String user) {
+        boolean changed = false;
+        boolean snapshotDue = false;
+        lock.readLock().lock();
+        try {
+            changed = switch (op) {
+                case OP_CREATE -> applyCreate(group, user);
+                case OP_JOIN -> applyJoin(group, user);
+                case OP_LEAVE -> applyLeave(group, user);
+                default -> {
+                    groups.clear();
+                    yield true;
+                }
+            };
+            if (!changed) return false;
+
+            byte[] event = encode(op, group, user);
+            synchronized (journal) {
+                journal.append(event);
+                journal.force();
+                snapshotDue = journal.getNextOffset() - snapshotOffset >= snapshotEvents && !snapshotting;
+                if (snapshotDue) snapshotting = true;
+            }
+        } catch (IOException e) {
+            // el cambio queda en memoria; se pierde si el servidor se reinicia antes de una foto
+            System.err.println("Error guardando evento de grupo: " + e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (snapshotDue) snapshotter.execute(this::snapshotQuietly);
+        return changed;
+    }
+
+    private boolean applyCreate(String group, String creator) {
+        return groups.putIfAbsent(group, new Group(group, creator)) == null;
+    }
+
+    private boolean applyJoin(String group, String username) {
+        Group existing = groups.get(group);
+        return existing != null && existing.addMember(username);
+    }
+
+    private boolean applyLeave(String group, String username) {
+        Group existing = groups.get(group);
+        if (existing == null || !existing.removeMember(username)) return false;
+        if (existing.getMemberCount() == 0) groups.remove(group);
+        return true;
+    }
+
+    private static byte[] encode(byte op, String group, String user) {
+        byte[] name = group == null ? new byte[0] : group.getBytes(StandardCharsets.UTF_8);
+        byte[] member = user == null ? new byte[0] : user.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + 2 + name.length + 2 + member.length)
+                .put(op)
+                .putShort((short) name.length).put(name)
+                .putShort((short) member.length).put(member)
+                .array();
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & 0xffff];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // =====================================================
+    // 📸 Fotos
+    // =====================================================
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error escribiendo foto de grupos: " + e.getMessage());
+        } finally {
+            synchronized (journal) {
+                snapshotting = false;
+            }
+        }
+    }
+
+    /**
+     * Copia el estado con el lock de escritura (no hay eventos a medias), lo
+     * escribe fuera del lock en un temporal que se renombra, y borra del
+     * diario los segmentos que la foto cubre. Si ya hay una foto en curso
+     * (la de fondo), espera a que termine y después saca la suya.
+     */
+    public void snapshot() throws IOException {
+        snapshotLock.lock();
+        try {
+            writeSnapshot();
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        long offset;
+        List<String[]> copy;
+        lock.writeLock().lock();
+        try {
+            synchronized (journal) {
+                offset = journal.getNextOffset();
+            }
+            copy = new ArrayList<>(groups.size());
+            for (Group group : groups.values()) {
+                String[] members = group.getMembers().toArray(new String[0]);
+                String[] entry = new String[2 + members.length];
+                entry[0] = group.getName();
+                entry[1] = group.getCreator();
+                System.arraycopy(members, 0, entry, 2, members.length);
+                copy.add(entry);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Path target = dir.resolve(SNAPSHOT);
+        Path temp = dir.resolve(SNAPSHOT + ".tmp");
+        CRC32 crc = new CRC32();
+        try (OutputStream file = Files.newOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            DataOutputStream body = new DataOutputStream(new CheckedOutputStream(out, crc));
+            body.writeInt(MAGIC);
+            body.writeByte(VERSION);
+            body.writeLong(offset);
+            writeVarint(body, copy.size());
+            for (String[] entry : copy) {
+                body.writeUTF(entry[0]);
+                body.writeUTF(entry[1]);
+                writeVarint(body, entry.length - 2);
+                for (int i = 2; i < entry.length; i++) body.writeUTF(entry[i]);
+            }
+            body.flush();
+            out.writeInt((int) crc.getValue());
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (journal) {
+            snapshotOffset = offset;
+            journal.deleteBefore(offset);
+        }
+        snapshots.increment();
+    }
+
+    /**
+     * @return offset del diario que cubre la foto
+     */
+    private long readSnapshot(Path path) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream file = Files.newInputStream(path);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file, 64 * 1024))) {
+            DataInputStream body = new DataInputStream(new CheckedInputStream(in, crc));
+            if (body.readInt() != MAGIC) throw new IOException("Foto de grupos inválida: " + path);
+            byte version = body.readByte();
+            if (version != VERSION) throw new IOException("Versión de foto de grupos desconocida: " + version);
+            long offset = body.readLong();
+            int count = readVarint(body);
+            for (int g = 0; g < count; g++) {
+                String name = body.readUTF();
+                String creator = body.readUTF();
+                Group group = new Group(name, creator);
+                int members = readVarint(body);
+                boolean creatorIsMember = false;
+                for (int m = 0; m < members; m++) {
+                    String member = body.readUTF();
+                    group.addMember(member);
+                    if (member.equals(creator)) creatorIsMember = true;
+                }
+                // el creador pudo haber salido del grupo
+                if (!creatorIsMember) group.removeMember(creator);
+                groups.put(name, group);
+            }
+            int expected = (int) crc.getValue();
+            if (in.readInt() != expected) throw new IOException("CRC de la foto de grupos no coincide");
+            return offset;
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    // =====================================================
+    // 📊 Métricas
+    // =====================================================
+
+    /**
+     * Eventos en el diario que no cubre la última foto (lo que se re-aplicaría al arrancar).
+     */
+    public long getEventsSinceSnapshot() {
+        synchronized (journal) {
+            return journal.getNextOffset() - snapshotOffset;
+        }
+    }
+
+    public long getSnapshots() {
+        return snapshots.sum();
+    }
+
+    public long getLoadMillis() {
+        return loadMillis;
+    }
+
+    public long getReplayed() {
+        return replayed;
+    }
+}
@@ -0,0 +1,236 @@
+package persistence;
+
+import model.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Caché en memoria de los mensajes más recientes de cada conversación,
+ * delante de {@link ChatHistory}.
+ *
+ * Cada entrada guarda los últimos maxMessages mensajes de una conversación
+ * y se mantiene al día al guardar (write-through), así que una vez cargada
+ * no vuelve a leer el disco. Las entradas se desalojan por LRU cuando el
+ * total estimado supera maxBytes. Si varios piden la misma conversación
+ * mientras se carga, esperan esa única lectura en lugar de repetirla.
+ *
+ * Todo el estado se protege con un lock; la lectura de disco se hace fuera de él.
+ */
+public class HistoryCache {
+    // costo fijo estimado por mensaje (objeto, fecha, nodo de la cola)
+    private static final long MESSAGE_OVERHEAD = 96;
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    // en orden de acceso: el primero es el menos usado
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Entry {
+        // null mientras se carga
+        ArrayDeque<Message> messages;
+        long bytes;
+        CompletableFuture<List<Message>> loading;
+        // guardados mientras se cargaba: se agregan al terminar si el disco no los traía
+        List<Message> pendingWhileLoading;
+    }
+
+    public HistoryCache(int maxMessages, long maxBytes) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * -Dchat.history.cacheMessages (500 por conversación) y -Dchat.history.cacheBytes (64 MB en total).
+     */
+    public static HistoryCache fromSystemProperties() {
+        return new HistoryCache(Integer.getInteger("chat.history.cacheMessages", 500),
+                Long.getLong("chat.history.cacheBytes", 64L * 1024 * 1024));
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * Últimos mensajes de la conversación, del más viejo al más nuevo.
+     *
+     * @param loader lee la conversación de disco si no está en caché
+     */
+    public List<Message> get(String key, Supplier<List<Message>> loader) {
+        Entry entry;
+        CompletableFuture<List<Message>> inProgress;
+        lock.lock();
+        try {
+            entry = entries.get(key);
+            if (entry != null && entry.messages != null) {
+                hits.increment();
+                return new ArrayList<>(entry.messages);
+            }
+            if (entry != null) {
+                hits.increment();
+                inProgress = entry.loading;
+            } else {
+                misses.increment();
+                entry = new Entry();
+                entry.loading = new CompletableFuture<>();
+                entry.pendingWhileLoading = new ArrayList<>();
+                entries.put(key, entry);
+                inProgress = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (inProgress != null) {
+            return new ArrayList<>(inProgress.join());
+        }
+        return load(key, entry, loader);
+    }
+
+    private List<Message> load(String key, Entry entry, Supplier<List<Message>> loader) {
+        List<Message> loaded;
+        try {
+            loaded = loader.get();
+        } catch (RuntimeException e) {
+            lock.lock();
+            try {
+                entries.remove(key, entry);
+            } finally {
+                lock.unlock();
+            }
+            entry.loading.completeExceptionally(e);
+            throw e;
+        }
+
+        List<Message> result;
+        lock.lock();
+        try {
+            ArrayDeque<Message> messages = new ArrayDeque<>(Math.min(loaded.size(), maxMessages) + 1);
+            int from = Math.max(0, loaded.size() - maxMessages);
+            Set<String> ids = new HashSet<>();
+            for (int i = from; i < loaded.size(); i++) {
+                messages.add(loaded.get(i));
+                ids.add(loaded.get(i).getId());
+            }
+            for (Message message : entry.pendingWhileLoading) {
+                if (!ids.contains(message.getId())) messages.add(message);
+            }
+            while (messages.size() > maxMessages) messages.poll();
+
+            entry.messages = messages;
+            entry.pendingWhileLoading = null;
+            for (Message message : messages) entry.bytes += sizeOf(message);
+            // pudo desalojarse mientras cargaba: solo cuenta si sigue en el mapa
+            if (entries.get(key) == entry) {
+                totalBytes += entry.bytes;
+                evict();
+            }
+            result = new ArrayList<>(messages);
+        } finally {
+            lock.unlock();
+        }
+        entry.loading.complete(result);
+        entry.loading = null;
+        return result;
+    }
+
+    /**
+     * Write-through: agrega el mensaje recién guardado si la conversación está en caché.
+     */
+    public void append(String key, Message message) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry == null) return;
+            if (entry.messages == null) {
+                entry.pendingWhileLoading.add(message);
+                return;
+            }
+
+            entry.messages.add(message);
+            long size = sizeOf(message);
+            entry.bytes += size;
+            totalBytes += size;
+            while (entry.messages.size() > maxMessages) {
+                long removed = sizeOf(entry.messages.poll());
+                entry.bytes -= removed;
+                totalBytes -= removed;
+            }
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.messages == null) continue; // cargando
+            it.remove();
+            totalBytes -= entry.bytes;
+            evictions.increment();
+        }
+    }
+
+    private static long sizeOf(Message message) {
+        long chars = length(message.getId()) + length(message.getFrom())
+                + length(message.getTo()) + length(message.getContent());
+        return MESSAGE_OVERHEAD + 2 * chars;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    // =====================================================
+    // 📊 Métricas
+    // =====================================================
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getBytes() {
+        lock.lock();
+        try {
+            return totalBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getConversations() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
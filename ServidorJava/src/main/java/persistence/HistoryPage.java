@@ -0,0 +1,43 @@
+package persistence;
+
+import model.Message;
+
+import java.util.List;
+
+/**
+ * Una página del historial de una conversación: los mensajes con número de
+ * secuencia (offset en el log) en [first, last], del más viejo al más nuevo.
+ */
+public class HistoryPage {
+    private final List<Message> messages;
+    private final long first;
+    private final long last;
+    private final boolean hasMore;
+
+    HistoryPage(List<Message> messages, long first, long last, boolean hasMore) {
+        this.messages = messages;
+        this.first = first;
+        this.last = last;
+        this.hasMore = hasMore;
+    }
+
+    public List<Message> getMessages() { return messages; }
+
+    /**
+     * Secuencia del primer registro de la página; sirve de cursor "before" para la anterior.
+     */
+    public long getFirst() { return first; }
+
+    /**
+     * Secuencia del último registro; sirve de cursor "after" para la siguiente.
+     * Menor que first si la página está vacía.
+     */
+    public long getLast() { return last; }
+
+    /**
+     * true si quedan mensajes más allá de la página, en la dirección en que se pidió.
+     */
+    public boolean hasMore() { return hasMore; }
+
+    public boolean isEmpty() { return last < first; }
+}
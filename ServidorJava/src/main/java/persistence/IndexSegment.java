@@ -0,0 +1,378 @@
+package persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Segmento inmutable del índice de búsqueda.
+ *
+ * Los documentos (mensajes) se numeran 0..n-1 dentro del segmento en el
+ * orden en que se indexaron; de cada uno se guarda la conversación (nombre
+ * del log), el número de secuencia en ese log y el remitente. Cada término
+ * tiene su lista de documentos en orden creciente, codificada como
+ * diferencias en varints (un mensaje cercano al anterior ocupa un byte).
+ *
+ * Formato en disco ("0000000012.seg"):
+ * <pre>
+ * MAGIC, docs, conversaciones[], remitentes[],
+ * por documento: conversación, remitente, secuencia (varints),
+ * términos, por término: texto, largo, postings
+ * </pre>
+ */
+class IndexSegment implements IndexView {
+    static final String SEGMENT_SUFFIX = ".seg";
+    private static final int MAGIC = 0x43484958; // "CHIX"
+
+    private final long generation;
+    private final String[] conversations;
+    private final String[] senders;
+    private final int[] docConversation;
+    private final int[] docSender;
+    private final long[] docSeq;
+    private final Map<String, byte[]> postings;
+
+    private IndexSegment(long generation, String[] conversations, String[] senders,
+                         int[] docConversation, int[] docSender, long[] docSeq, Map<String, byte[]> postings) {
+        this.generation = generation;
+        this.conversations = conversations;
+        this.senders = senders;
+        this.docConversation = docConversation;
+        this.docSender = docSender;
+        this.docSeq = docSeq;
+        this.postings = postings;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public int docCount() {
+        return docSeq.length;
+    }
+
+    @Override
+    public int[] postings(String term) {
+        byte[] encoded = postings.get(term);
+        return encoded == null ? null : decode(encoded);
+    }
+
+    @Override
+    public String conversation(int doc) {
+        return conversations[docConversation[doc]];
+    }
+
+    @Override
+    public String sender(int doc) {
+        return senders[docSender[doc]];
+    }
+
+    @Override
+    public long seq(int doc) {
+        return docSeq[doc];
+    }
+
+    static Path path(Path dir, long generation) {
+        return dir.resolve(String.format("%010d", generation) + SEGMENT_SUFFIX);
+    }
+
+    // =====================================================
+    // 📝 Segmento en memoria
+    // =====================================================
+
+    /**
+     * Segmento mutable donde entran los mensajes nuevos hasta que se congela
+     * con {@link #build}. Las postings son arreglos de int que crecen.
+     */
+    static final class Builder implements IndexView {
+        private final List<String> conversations = new ArrayList<>();
+        private final Map<String, Integer> conversationIds = new HashMap<>();
+        private final List<String> senders = new ArrayList<>();
+        private final Map<String, Integer> senderIds = new HashMap<>();
+        private int[] docConversation = new int[256];
+        private int[] docSender = new int[256];
+        private long[] docSeq = new long[256];
+        private int docs;
+        private final Map<String, IntList> postings = new HashMap<>();
+
+        void add(String conversation, long seq, String sender, List<String> terms) {
+            if (docs == docSeq.length) {
+                docConversation = Arrays.copyOf(docConversation, docs * 2);
+                docSender = Arrays.copyOf(docSender, docs * 2);
+                docSeq = Arrays.copyOf(docSeq, docs * 2);
+            }
+            int doc = docs++;
+            docConversation[doc] = intern(conversation, conversations, conversationIds);
+            docSender[doc] = intern(sender == null ? "" : sender, senders, senderIds);
+            docSeq[doc] = seq;
+            for (String term : terms) {
+                postings.computeIfAbsent(term, k -> new IntList()).add(doc);
+            }
+        }
+
+        private static int intern(String value, List<String> values, Map<String, Integer> ids) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                values.add(value);
+                ids.put(value, id);
+            }
+            return id;
+        }
+
+        @Override
+        public int docCount() {
+            return docs;
+        }
+
+        @Override
+        public int[] postings(String term) {
+            IntList list = postings.get(term);
+            return list == null ? null : list.toArray();
+        }
+
+        @Override
+        public String conversation(int doc) {
+            return conversations.get(docConversation[doc]);
+        }
+
+        @Override
+        public String sender(int doc) {
+            return senders.get(docSender[doc]);
+        }
+
+        @Override
+        public long seq(int doc) {
+            return docSeq[doc];
+        }
+
+        IndexSegment build(long generation) {
+            Map<String, byte[]> encoded = new HashMap<>(postings.size() * 2);
+            for (Map.Entry<String, IntList> entry : postings.entrySet()) {
+                IntList list = entry.getValue();
+                encoded.put(entry.getKey(), encode(list.values, list.size));
+            }
+            return new IndexSegment(generation,
+                    conversations.toArray(new String[0]), senders.toArray(new String[0]),
+                    Arrays.copyOf(docConversation, docs), Arrays.copyOf(docSender, docs),
+                    Arrays.copyOf(docSeq, docs), encoded);
+        }
+    }
+
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    // =====================================================
+    // 🔀 Fusión
+    // =====================================================
+
+    /**
+     * Une varios segmentos (del más viejo al más nuevo) en uno: los
+     * documentos de cada uno quedan a continuación de los del anterior.
+     */
+    static IndexSegment merge(List<IndexSegment> inputs, long generation) {
+        Builder names = new Builder();
+        int total = 0;
+        for (IndexSegment segment : inputs) total += segment.docCount();
+
+        int[] docConversation = new int[total];
+        int[] docSender = new int[total];
+        long[] docSeq = new long[total];
+        int[] bases = new int[inputs.size()];
+        int doc = 0;
+        for (int s = 0; s < inputs.size(); s++) {
+            IndexSegment segment = inputs.get(s);
+            bases[s] = doc;
+            for (int d = 0; d < segment.docCount(); d++, doc++) {
+                docConversation[doc] = Builder.intern(segment.conversation(d), names.conversations, names.conversationIds);
+                docSender[doc] = Builder.intern(segment.sender(d), names.senders, names.senderIds);
+                docSeq[doc] = segment.seq(d);
+            }
+        }
+
+        Map<String, List<Integer>> owners = new HashMap<>();
+        for (int s = 0; s < inputs.size(); s++) {
+            for (String term : inputs.get(s).postings.keySet()) {
+                owners.computeIfAbsent(term, k -> new ArrayList<>()).add(s);
+            }
+        }
+        Map<String, byte[]> merged = new HashMap<>(owners.size() * 2);
+        IntList docs = new IntList();
+        for (Map.Entry<String, List<Integer>> entry : owners.entrySet()) {
+            docs.size = 0;
+            for (int s : entry.getValue()) {
+                for (int d : decode(inputs.get(s).postings.get(entry.getKey()))) docs.add(bases[s] + d);
+            }
+            merged.put(entry.getKey(), encode(docs.values, docs.size));
+        }
+
+        return new IndexSegment(generation,
+                names.conversations.toArray(new String[0]), names.senders.toArray(new String[0]),
+                docConversation, docSender, docSeq, merged);
+    }
+
+    // =====================================================
+    // 🔢 Postings (diferencias en varints)
+    // =====================================================
+
+    static byte[] encode(int[] docs, int size) {
+        byte[] out = new byte[size * 5];
+        int pos = 0;
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            int delta = docs[i] - previous;
+            previous = docs[i];
+            while ((delta & ~0x7F) != 0) {
+                out[pos++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            out[pos++] = (byte) delta;
+        }
+        return Arrays.copyOf(out, pos);
+    }
+
+    static int[] decode(byte[] encoded) {
+        int count = 0;
+        for (byte b : encoded) {
+            if (b >= 0) count++;
+        }
+        int[] docs = new int[count];
+        int pos = 0;
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = encoded[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            previous += delta;
+            docs[i] = previous;
+        }
+        return docs;
+    }
+
+    // =====================================================
+    // 💾 Disco
+    // =====================================================
+
+    /**
+     * Escribe el segmento en un temporal y lo renombra, así nunca queda uno a medias.
+     */
+    void write(Path dir) throws IOException {
+        Path target = path(dir, generation);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (OutputStream file = Files.newOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            out.writeInt(MAGIC);
+            writeVarLong(out, docCount());
+            writeStrings(out, conversations);
+            writeStrings(out, senders);
+            for (int doc = 0; doc < docCount(); doc++) {
+                writeVarLong(out, docConversation[doc]);
+                writeVarLong(out, docSender[doc]);
+                writeVarLong(out, docSeq[doc]);
+            }
+            // ordenados, para que el archivo no dependa del orden del HashMap
+            Map<String, byte[]> sorted = new TreeMap<>(postings);
+            writeVarLong(out, sorted.size());
+            for (Map.Entry<String, byte[]> entry : sorted.entrySet()) {
+                out.writeUTF(entry.getKey());
+                writeVarLong(out, entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static IndexSegment read(Path dir, long generation) throws IOException {
+        Path path = path(dir, generation);
+        try (InputStream file = Files.newInputStream(path);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file, 64 * 1024))) {
+            if (in.readInt() != MAGIC) throw new IOException("Segmento de búsqueda inválido: " + path);
+            int docs = (int) readVarLong(in);
+            String[] conversations = readStrings(in);
+            String[] senders = readStrings(in);
+            int[] docConversation = new int[docs];
+            int[] docSender = new int[docs];
+            long[] docSeq = new long[docs];
+            for (int doc = 0; doc < docs; doc++) {
+                docConversation[doc] = (int) readVarLong(in);
+                docSender[doc] = (int) readVarLong(in);
+                docSeq[doc] = readVarLong(in);
+            }
+            int terms = (int) readVarLong(in);
+            Map<String, byte[]> postings = new HashMap<>(terms * 2);
+            for (int i = 0; i < terms; i++) {
+                String term = in.readUTF();
+                byte[] encoded = new byte[(int) readVarLong(in)];
+                in.readFully(encoded);
+                postings.put(term, encoded);
+            }
+            return new IndexSegment(generation, conversations, senders, docConversation, docSender, docSeq, postings);
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+        writeVarLong(out, values.length);
+        for (String value : values) out.writeUTF(value);
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] values = new String[(int) readVarLong(in)];
+        for (int i = 0; i < values.length; i++) values[i] = in.readUTF();
+        return values;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
@@ -0,0 +1,20 @@
+package persistence;
+
+/**
+ * Lo que necesita una consulta de {@link SearchIndex}, sea de un segmento
+ * en disco o del que se está llenando en memoria.
+ */
+interface IndexView {
+    int docCount();
+
+    /**
+     * Documentos que contienen el término, en orden creciente; null si ninguno.
+     */
+    int[] postings(String term);
+
+    String conversation(int doc);
+
+    String sender(int doc);
+
+    long seq(int doc);
+}
@@ -0,0 +1,335 @@
+package persistence;
+
+import model.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ObjLongConsumer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bandejas de entrada de los usuarios desconectados (store-and-forward).
+ *
+ * Cuando un mensaje no se pudo entregar porque el destinatario no estaba en
+ * línea, se anota en su bandeja una referencia al mensaje: el log de la
+ * conversación y la secuencia que le dio {@link ChatHistory#appendAll}. El
+ * mensaje no se copia; al iniciar sesión se leen las referencias en lotes,
+ * se resuelven contra el historial y se entregan solo esos mensajes.
+ *
+ * Cada bandeja es un {@link SegmentedLog} en data/inbox/&lt;usuario&gt;/ con un
+ * archivo cursor (hasta dónde se entregó). En memoria solo están las
+ * bandejas abiertas, como mucho maxOpen (las menos usadas se cierran), así
+ * que la memoria no depende de cuántas referencias haya encoladas. Cada
+ * bandeja admite como mucho maxPerUser pendientes; lo que pase de ahí se
+ * descarta (sigue en el historial).
+ *
+ * Formato de una referencia: u16 largo + nombre del log, u64 secuencia.
+ */
+public class OfflineInbox {
+    private static final String CURSOR = "cursor";
+
+    private final Path dir;
+    private final ChatHistory history;
+    private final long segmentBytes;
+    private final int maxPerUser;
+    private final int batchSize;
+
+    // bandejas abiertas, de la menos a la más usada; se toma antes que el monitor de una bandeja
+    private final LinkedHashMap<String, Inbox> open;
+    // bandejas desalojadas con escrituras sin fsync (se fuerzan en el próximo force, no al desalojar)
+    private final Set<Path> unsyncedClosed = new HashSet<>();
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Bandeja abierta de un usuario. Se usa con su monitor tomado; si al
+     * tomarlo ya está cerrada (desalojada o vaciada) hay que volver a pedirla.
+     */
+    private static final class Inbox {
+        final Path dir;
+        SegmentedLog log;
+        long cursor;
+        boolean dirty;
+        boolean closed;
+
+        Inbox(Path dir) {
+            this.dir = dir;
+        }
+
+        long pending() {
+            return log.getNextOffset() - cursor;
+        }
+    }
+
+    public OfflineInbox(Path dir, ChatHistory history, long segmentBytes, int maxPerUser, int maxOpen, int batchSize) {
+        this.dir = dir;
+        this.history = history;
+        this.segmentBytes = segmentBytes;
+        this.maxPerUser = Math.max(1, maxPerUser);
+        this.batchSize = Math.max(1, batchSize);
+        int limit = Math.max(1, maxOpen);
+        this.open = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Inbox> eldest) {
+                if (size() <= limit) return false;
+                if (close(eldest.getValue())) unsyncedClosed.add(eldest.getValue().dir);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * -Dchat.inbox.maxPerUser (100000 pendientes), -Dchat.inbox.openInboxes
+     * (1024 bandejas abiertas), -Dchat.inbox.batch (256 por lote al entregar)
+     * y -Dchat.inbox.segmentBytes (1 MB por segmento).
+     */
+    public static OfflineInbox fromSystemProperties(Path dir, ChatHistory history) {
+        return new OfflineInbox(dir, history,
+                Long.getLong("chat.inbox.segmentBytes", 1024L * 1024),
+                Integer.getInteger("chat.inbox.maxPerUser", 100_000),
+                Integer.getInteger("chat.inbox.openInboxes", 1024),
+                Integer.getInteger("chat.inbox.batch", 256));
+    }
+
+    // =====================================================
+    // 📥 Encolar
+    // =====================================================
+
+    /**
+     * Referencia al mensaje en la secuencia seq de logName, para {@link #addAll}.
+     */
+    static byte[] reference(String logName, long seq) {
+        byte[] name = logName.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + name.length + 8)
+                .putShort((short) name.length).put(name).putLong(seq)
+                .array();
+    }
+
+    /**
+     * Anota las referencias en la bandeja de cada usuario, con una escritura
+     * por bandeja. No fuerza a disco (ver {@link #force}); un error se informa
+     * y esos mensajes quedan solo en el historial.
+     */
+    void addAll(Map<String, List<byte[]>> referencesByUser) {
+        for (Map.Entry<String, List<byte[]>> entry : referencesByUser.entrySet()) {
+            String username = entry.getKey();
+            List<byte[]> refs = entry.getValue();
+            try {
+                while (true) {
+                    Inbox inbox = inbox(username, true);
+                    synchronized (inbox) {
+                        if (inbox.closed) continue;
+                        int room = (int) Math.max(0, Math.min(refs.size(), maxPerUser - inbox.pending()));
+                        if (room > 0) {
+                            inbox.log.append(room == refs.size() ? refs : refs.subList(0, room));
+                            inbox.dirty = true;
+                            enqueued.add(room);
+                        }
+                        dropped.add(refs.size() - room);
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error encolando mensajes para " + username + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * fsync de las bandejas con referencias sin forzar, abiertas o ya desalojadas.
+     */
+    void force() throws IOException {
+        List<Inbox> inboxes;
+        List<Path> closed;
+        synchronized (open) {
+            inboxes = new ArrayList<>(open.values());
+            closed = new ArrayList<>(unsyncedClosed);
+            unsyncedClosed.clear();
+        }
+        for (Inbox inbox : inboxes) {
+            synchronized (inbox) {
+                if (inbox.closed || !inbox.dirty) continue;
+                inbox.log.force();
+                inbox.dirty = false;
+            }
+        }
+        for (Path path : closed) {
+            // el fsync de cualquier descriptor baja las páginas sucias del archivo
+            try (DirectoryStream<Path> segments = Files.newDirectoryStream(path, "*.dat")) {
+                for (Path segment : segments) {
+                    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                        channel.force(true);
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // la bandeja se vació y se borró mientras tanto
+            }
+        }
+    }
+
+    // =====================================================
+    // 📤 Entregar
+    // =====================================================
+
+    /**
+     * Pasa a sink, con su secuencia en la conversación, en lotes de batchSize
+     * y en el orden en que llegaron, los mensajes pendientes de username. El cursor avanza después de cada lote,
+     * así un corte a la mitad vuelve a entregar a lo sumo el último lote. Al
+     * vaciarse, la bandeja se borra del disco.
+     *
+     * @return mensajes entregados
+     */
+    public int drain(String username, ObjLongConsumer<Message> sink) {
+        int total = 0;
+        try {
+            while (true) {
+                Inbox inbox = inbox(username, false);
+                if (inbox == null) return total;
+
+                boolean empty;
+                synchronized (inbox) {
+                    if (inbox.closed) continue;
+                    int count = (int) Math.min(batchSize, inbox.pending());
+                    if (count > 0) {
+                        int[] found = new int[1];
+                        inbox.log.read(inbox.cursor, count, record -> {
+                            byte[] name = new byte[record.getShort() & 0xffff];
+                            record.get(name);
+                            long seq = record.getLong();
+                            Message message = history.readAt(new String(name, StandardCharsets.UTF_8), seq);
+                            if (message != null) {
+                                sink.accept(message, seq);
+                                found[0]++;
+                            }
+                        });
+                        total += found[0];
+                        delivered.add(found[0]);
+                        inbox.cursor += count;
+                    }
+                    empty = inbox.pending() == 0;
+                    if (empty) {
+                        delete(inbox);
+                    } else {
+                        writeCursor(inbox);
+                        inbox.log.deleteBefore(inbox.cursor);
+                    }
+                }
+                if (empty) {
+                    synchronized (open) {
+                        open.remove(username, inbox);
+                    }
+                    return total;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error entregando bandeja de " + username + ": " + e.getMessage());
+            return total;
+        }
+    }
+
+    // =====================================================
+    // 🧱 Bandejas
+    // =====================================================
+
+    /**
+     * Bandeja abierta de username; si no hay en disco, la crea o devuelve null según create.
+     */
+    private Inbox inbox(String username, boolean create) throws IOException {
+        Path path = dir.resolve(dirName(username));
+        synchronized (open) {
+            Inbox inbox = open.get(username);
+            if (inbox != null && !inbox.closed) return inbox;
+            if (!create && !Files.isDirectory(path)) return null;
+
+            inbox = new Inbox(path);
+            inbox.log = new SegmentedLog(path, segmentBytes);
+            Path cursor = path.resolve(CURSOR);
+            if (Files.exists(cursor)) {
+                inbox.cursor = Math.min(Long.parseLong(Files.readString(cursor).trim()), inbox.log.getNextOffset());
+            }
+            open.put(username, inbox);
+            return inbox;
+        }
+    }
+
+    private static void writeCursor(Inbox inbox) throws IOException {
+        Path temp = inbox.dir.resolve(CURSOR + ".tmp");
+        Files.writeString(temp, Long.toString(inbox.cursor));
+        Files.move(temp, inbox.dir.resolve(CURSOR), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return true si quedaron escrituras sin fsync
+     */
+    private static boolean close(Inbox inbox) {
+        synchronized (inbox) {
+            if (inbox.closed) return false;
+            inbox.closed = true;
+            try {
+                inbox.log.close();
+            } catch (IOException e) {
+                System.err.println("Error cerrando bandeja " + inbox.dir + ": " + e.getMessage());
+            }
+            return inbox.dirty;
+        }
+    }
+
+    private static void delete(Inbox inbox) throws IOException {
+        inbox.closed = true;
+        inbox.log.close();
+        ChatHistory.deleteRecursively(inbox.dir);
+    }
+
+    /**
+     * Nombre de directorio sin colisiones: el usuario tal cual si es
+     * alfanumérico, si no "_" + hex de sus bytes.
+     */
+    private static String dirName(String username) {
+        if (!username.isEmpty() && username.chars().allMatch(c -> c < 128 && Character.isLetterOrDigit(c))) {
+            return username;
+        }
+        return "_" + HexFormat.of().formatHex(username.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // =====================================================
+    // 📊 Métricas
+    // =====================================================
+
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * Referencias descartadas por bandeja llena.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public int getOpenInboxes() {
+        synchronized (open) {
+            return open.size();
+        }
+    }
+}
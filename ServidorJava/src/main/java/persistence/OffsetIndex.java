@@ -0,0 +1,161 @@
+package persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Índice disperso de un segmento: cada interval registros guarda el par
+ * (offset del registro, posición en bytes dentro del segmento), así una
+ * lectura paginada salta directo cerca del registro pedido y recorre como
+ * mucho interval - 1 líneas de más.
+ *
+ * Vive al lado del segmento ("00000000000000052113.idx", entradas de 16 bytes).
+ * No se fuerza a disco: si falta o no cuadra con el segmento se reconstruye
+ * recorriéndolo.
+ */
+class OffsetIndex {
+    static final String INDEX_SUFFIX = ".idx";
+    private static final int ENTRY_BYTES = 16;
+
+    private final Path path;
+    private final int interval;
+    private long[] offsets = new long[16];
+    private long[] positions = new long[16];
+    private int size;
+    private FileChannel out;
+
+    OffsetIndex(Path path, int interval) {
+        this.path = path;
+        this.interval = interval;
+    }
+
+    int getInterval() {
+        return interval;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * true si el registro con ese offset (relativo a la base del segmento) lleva entrada.
+     */
+    boolean isIndexed(long relativeOffset) {
+        return relativeOffset % interval == 0;
+    }
+
+    void add(long offset, long position) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            positions = Arrays.copyOf(positions, size * 2);
+        }
+        offsets[size] = offset;
+        positions[size] = position;
+        size++;
+    }
+
+    /**
+     * Agrega la entrada y la escribe al final del archivo de índice.
+     */
+    void append(long offset, long position) throws IOException {
+        add(offset, position);
+        if (out == null) {
+            out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES).putLong(offset).putLong(position).flip();
+        while (entry.hasRemaining()) out.write(entry);
+    }
+
+    /**
+     * Descarta las entradas desde newSize (las de un append que no se escribió).
+     */
+    void truncate(int newSize) throws IOException {
+        if (newSize >= size) return;
+        size = newSize;
+        if (out != null) out.truncate((long) newSize * ENTRY_BYTES);
+    }
+
+    /**
+     * Última entrada con offset menor o igual al pedido.
+     *
+     * @return su posición en el arreglo, o -1 si el índice está vacío
+     */
+    int floor(long offset) {
+        int lo = 0;
+        int hi = size - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (offsets[mid] <= offset) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    long offsetAt(int i) {
+        return offsets[i];
+    }
+
+    long positionAt(int i) {
+        return positions[i];
+    }
+
+    /**
+     * Carga el índice del disco si es coherente con el segmento
+     * (entradas crecientes, cada interval registros, dentro del archivo).
+     *
+     * @return false si no existe o no sirve; entonces hay que reconstruirlo
+     */
+    boolean load(long base, long segmentSize) throws IOException {
+        if (!Files.exists(path)) return false;
+        long bytes = Files.size(path);
+        if (bytes % ENTRY_BYTES != 0) return false;
+
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+        size = 0;
+        long expected = base;
+        long lastPosition = -1;
+        while (data.remaining() >= ENTRY_BYTES) {
+            long offset = data.getLong();
+            long position = data.getLong();
+            if (offset != expected || position <= lastPosition || position >= Math.max(1, segmentSize)) {
+                size = 0;
+                return false;
+            }
+            add(offset, position);
+            expected += interval;
+            lastPosition = position;
+        }
+        return true;
+    }
+
+    /**
+     * Reescribe el archivo con las entradas en memoria.
+     */
+    void write() throws IOException {
+        close();
+        ByteBuffer data = ByteBuffer.allocate(size * ENTRY_BYTES);
+        for (int i = 0; i < size; i++) data.putLong(offsets[i]).putLong(positions[i]);
+        data.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) channel.write(data);
+        }
+    }
+
+    void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+}
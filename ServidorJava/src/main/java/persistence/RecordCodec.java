@@ -0,0 +1,188 @@
+package persistence;
+
+import model.AudioMessage;
+import model.Message;
+import protocol.Command;
+import protocol.TextCommand;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Formato binario de los registros del historial. El marco (largo y CRC) lo
+ * pone {@link SegmentedLog}; esto es el contenido:
+ * <pre>
+ * versión (1 byte) | tipo (1: texto, 2: audio, 3: hueco) | flags (1)
+ * id         16 bytes si es un UUID (flag ID_UUID); si no, cadena
+ * timestamp  8 bytes, milisegundos
+ * from, to   varint con el id interno del nombre ({@link SymbolTable})
+ * texto:     contenido como cadena
+ * audio:     varint duración, varint tamaño
+ * </pre>
+ * Las cadenas van como varint(largo + 1) y UTF-8; 0 es null.
+ * Un hueco termina en los flags: ocupa la secuencia de un mensaje que se
+ * entregó pero no se llegó a guardar (ver {@link #tombstone()}).
+ * El id y el timestamp se conservan exactos al leer.
+ */
+final class RecordCodec {
+    static final byte VERSION = 1;
+    private static final byte KIND_TEXT = 1;
+    private static final byte KIND_AUDIO = 2;
+    private static final byte KIND_TOMBSTONE = 3;
+    private static final int FLAG_GROUP = 1;
+    private static final int FLAG_ID_UUID = 2;
+
+    private RecordCodec() {
+    }
+
+    static byte[] encode(Message message, SymbolTable symbols) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        boolean audio = message instanceof AudioMessage;
+        UUID uuid = parseUuid(message.getId());
+
+        out.write(VERSION);
+        out.write(audio ? KIND_AUDIO : KIND_TEXT);
+        out.write((message.isGroupMessage() ? FLAG_GROUP : 0) | (uuid != null ? FLAG_ID_UUID : 0));
+        if (uuid != null) {
+            writeLong(out, uuid.getMostSignificantBits());
+            writeLong(out, uuid.getLeastSignificantBits());
+        } else {
+            writeString(out, message.getId());
+        }
+        writeLong(out, message.getTimestamp().getTime());
+        writeVarint(out, symbols.intern(message.getFrom()));
+        writeVarint(out, symbols.intern(message.getTo()));
+
+        if (audio) {
+            AudioMessage audioMessage = (AudioMessage) message;
+            writeVarint(out, audioMessage.getDuration());
+            writeVarint(out, audioMessage.getAudioSize());
+        } else {
+            writeString(out, message.getContent());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Registro que solo ocupa una secuencia: las lecturas lo saltan.
+     */
+    static byte[] tombstone() {
+        return new byte[]{VERSION, KIND_TOMBSTONE, 0};
+    }
+
+    /**
+     * @return el mensaje, o null si el registro es un hueco
+     * @throws IllegalArgumentException si la versión o el tipo no se conocen
+     */
+    static Message decode(ByteBuffer record, SymbolTable symbols) {
+        int version = record.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Versión de registro desconocida: " + version);
+        }
+        int kind = record.get();
+        int flags = record.get();
+        if (kind == KIND_TOMBSTONE) return null;
+        String id = (flags & FLAG_ID_UUID) != 0
+                ? new UUID(record.getLong(), record.getLong()).toString()
+                : readString(record);
+        long timestamp = record.getLong();
+        String from = symbols.name(readVarint(record));
+        String to = symbols.name(readVarint(record));
+        boolean isGroup = (flags & FLAG_GROUP) != 0;
+
+        switch (kind) {
+            case KIND_TEXT:
+                return new Message(id, from, to, readString(record), isGroup, timestamp);
+            case KIND_AUDIO:
+                int duration = readVarint(record);
+                int size = readVarint(record);
+                return new AudioMessage(id, from, to, isGroup, timestamp, size, duration);
+            default:
+                throw new IllegalArgumentException("Tipo de registro desconocido: " + kind);
+        }
+    }
+
+    // =====================================================
+    // 📜 Formato de texto anterior
+    // =====================================================
+
+    /**
+     * Lee una línea del formato de texto (clave:valor escapado) del historial
+     * .txt, conservando id y timestamp.
+     */
+    static Message fromLegacyText(String line, boolean audio) {
+        // también lee el escape "\:" de las líneas escritas por versiones anteriores
+        Command data = TextCommand.parseEscaped(line);
+        String id = data.get("id");
+        long timestamp = data.getLong("timestamp", System.currentTimeMillis());
+        if (id == null) id = UUID.randomUUID().toString();
+
+        if (audio) {
+            // el serializador siempre escribió "size"; "audioSize" queda por compatibilidad
+            return new AudioMessage(id, data.get("from"), data.get("to"), data.getBoolean("isGroup"), timestamp,
+                    data.getInt("size", data.getInt("audioSize", 0)), data.getInt("duration", 0));
+        }
+        return new Message(id, data.get("from"), data.get("to"), data.get("content"),
+                data.getBoolean("isGroup"), timestamp);
+    }
+
+    // =====================================================
+    // 🔢 Primitivas
+    // =====================================================
+
+    private static UUID parseUuid(String id) {
+        if (id == null || id.length() != 36) return null;
+        try {
+            UUID uuid = UUID.fromString(id);
+            // solo si se reescribe idéntico: UUID.fromString acepta formas abreviadas
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) out.write((int) (value >>> shift));
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarint(in) - 1;
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
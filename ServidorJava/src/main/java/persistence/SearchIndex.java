@@ -0,0 +1,433 @@
+package persistence;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+
+/**
+ * Índice invertido del texto de los mensajes, mantenido a medida que
+ * {@link ChatHistory} los guarda.
+ *
+ * Los mensajes nuevos entran a un segmento en memoria; al llegar a flushDocs
+ * se congela y un hilo en segundo plano lo escribe a disco (data/search/),
+ * fuera del camino de {@link ChatHistory#appendAll}: mientras tanto se sigue
+ * buscando en él. Cuando hay mergeFactor segmentos en disco, otro hilo los
+ * fusiona en uno. El archivo
+ * "segments" lista los segmentos vigentes, del más viejo al más nuevo, y se
+ * reemplaza de forma atómica: lo que no figura ahí se borra al arrancar.
+ *
+ * {@link #close} escribe lo que quede en memoria; lo llama
+ * {@link ChatHistory#close}. Si el proceso termina sin cerrarlo se pierde,
+ * pero el índice sabe hasta qué secuencia cubre cada conversación
+ * ({@link #getNextSeq}) y ChatHistory le vuelve a pasar el resto al arrancar.
+ */
+public class SearchIndex {
+    private static final String MANIFEST = "segments";
+
+    private final Path dir;
+    private final int flushDocs;
+    private final int mergeFactor;
+    // add y los cambios de segmentos toman el de escritura; las consultas, el de lectura
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private IndexSegment.Builder memory = new IndexSegment.Builder();
+    // congelados que todavía no están en disco, del más viejo al más nuevo
+    private final List<IndexSegment.Builder> flushing = new ArrayList<>();
+    // del más viejo al más nuevo; se reemplaza entera, nunca se modifica
+    private List<IndexSegment> segments = List.of();
+    private final Map<String, Long> nextSeq = new HashMap<>();
+    private long generation;
+    private boolean merging;
+    private boolean closed;
+
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "search-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "search-merge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder queryNanos = new LongAdder();
+    private final LongAdder merges = new LongAdder();
+
+    /**
+     * Un resultado: el mensaje con esa secuencia en el log de esa conversación.
+     */
+    public static class Hit {
+        private final String conversation;
+        private final long seq;
+
+        Hit(String conversation, long seq) {
+            this.conversation = conversation;
+            this.seq = seq;
+        }
+
+        public String getConversation() { return conversation; }
+        public long getSeq() { return seq; }
+    }
+
+    public SearchIndex(Path dir, int flushDocs, int mergeFactor) throws IOException {
+        this.dir = dir;
+        this.flushDocs = Math.max(1, flushDocs);
+        this.mergeFactor = Math.max(2, mergeFactor);
+        Files.createDirectories(dir);
+        load();
+    }
+
+    /**
+     * -Dchat.search.flushDocs (50000 mensajes por segmento) y -Dchat.search.mergeFactor (8).
+     */
+    public static SearchIndex fromSystemProperties(Path dir) throws IOException {
+        return new SearchIndex(dir,
+                Integer.getInteger("chat.search.flushDocs", 50_000),
+                Integer.getInteger("chat.search.mergeFactor", 8));
+    }
+
+    private void load() throws IOException {
+        Path manifest = dir.resolve(MANIFEST);
+        List<IndexSegment> loaded = new ArrayList<>();
+        Set<String> live = new HashSet<>();
+        if (Files.exists(manifest)) {
+            for (String line : Files.readAllLines(manifest)) {
+                if (line.isBlank()) continue;
+                long gen = Long.parseLong(line.trim());
+                loaded.add(IndexSegment.read(dir, gen));
+                live.add(IndexSegment.path(dir, gen).getFileName().toString());
+                generation = Math.max(generation, gen + 1);
+            }
+        }
+
+        // restos de un flush o una fusión que no llegaron al manifiesto
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (!name.equals(MANIFEST) && !live.contains(name)) Files.delete(path);
+            }
+        }
+
+        for (IndexSegment segment : loaded) {
+            for (int doc = 0; doc < segment.docCount(); doc++) {
+                nextSeq.merge(segment.conversation(doc), segment.seq(doc) + 1, Math::max);
+            }
+        }
+        segments = List.copyOf(loaded);
+    }
+
+    // =====================================================
+    // ✍️ Indexado
+    // =====================================================
+
+    /**
+     * Indexa un mensaje. Las secuencias de una conversación deben llegar en
+     * orden; las ya cubiertas se ignoran.
+     */
+    public void add(String conversation, long seq, String sender, String content) {
+        List<String> terms = Tokenizer.tokenize(content);
+        lock.writeLock().lock();
+        try {
+            if (seq < nextSeq.getOrDefault(conversation, 0L)) return;
+            nextSeq.put(conversation, seq + 1);
+            if (terms.isEmpty()) return;
+            memory.add(conversation, seq, sender, terms);
+            if (memory.docCount() >= flushDocs && !closed) freeze();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Primera secuencia de la conversación que todavía no está indexada.
+     */
+    public long getNextSeq(String conversation) {
+        lock.readLock().lock();
+        try {
+            return nextSeq.getOrDefault(conversation, 0L);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Congela el segmento en memoria y le pasa la escritura al hilo de
+     * flush. Se llama con el lock de escritura.
+     */
+    private void freeze() {
+        if (memory.docCount() == 0) return;
+        flushing.add(memory);
+        memory = new IndexSegment.Builder();
+        flusher.execute(this::flushFrozen);
+    }
+
+    /**
+     * Escribe a disco los segmentos congelados, del más viejo al más nuevo,
+     * sin el lock mientras los construye y escribe. Si uno falla sigue en
+     * memoria (y en las búsquedas) y se reintenta en el próximo flush.
+     */
+    private synchronized void flushFrozen() {
+        while (true) {
+            IndexSegment.Builder frozen;
+            long gen;
+            lock.writeLock().lock();
+            try {
+                if (flushing.isEmpty()) return;
+                frozen = flushing.get(0);
+                gen = generation++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            IndexSegment segment = frozen.build(gen);
+            try {
+                segment.write(dir);
+                lock.writeLock().lock();
+                try {
+                    List<IndexSegment> updated = new ArrayList<>(segments);
+                    updated.add(segment);
+                    writeManifest(updated);
+                    segments = List.copyOf(updated);
+                    flushing.remove(0);
+                    maybeMerge();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } catch (IOException e) {
+                System.err.println("Error escribiendo índice de búsqueda: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fusión por niveles: un segmento es de nivel k si tiene del orden de
+     * flushDocs * mergeFactor^k documentos. Cuando los últimos mergeFactor
+     * segmentos son del mismo nivel se fusionan en uno del siguiente, así cada
+     * documento se reescribe una vez por nivel y no en cada fusión.
+     * Se llama con el lock de escritura.
+     */
+    private void maybeMerge() {
+        if (closed || merging || segments.size() < mergeFactor) return;
+        int end = segments.size();
+        int level = level(segments.get(end - 1));
+        int start = end - 1;
+        while (start > 0 && level(segments.get(start - 1)) == level) start--;
+        if (end - start < mergeFactor) return;
+
+        merging = true;
+        List<IndexSegment> inputs = List.copyOf(segments.subList(start, end));
+        merger.execute(() -> merge(inputs));
+    }
+
+    private int level(IndexSegment segment) {
+        double ratio = (double) segment.docCount() / flushDocs;
+        return ratio <= 1 ? 0 : (int) (Math.log(ratio) / Math.log(mergeFactor) + 1e-9);
+    }
+
+    /**
+     * Fusiona los segmentos indicados (consecutivos en la lista) fuera del
+     * lock y después los reemplaza por el resultado.
+     */
+    private void merge(List<IndexSegment> inputs) {
+        long gen;
+        lock.writeLock().lock();
+        try {
+            gen = generation++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            IndexSegment merged = IndexSegment.merge(inputs, gen);
+            merged.write(dir);
+
+            lock.writeLock().lock();
+            try {
+                // los flush que llegaron mientras tanto quedan después
+                int from = segments.indexOf(inputs.get(0));
+                List<IndexSegment> updated = new ArrayList<>(segments.subList(0, from));
+                updated.add(merged);
+                updated.addAll(segments.subList(from + inputs.size(), segments.size()));
+                writeManifest(updated);
+                segments = List.copyOf(updated);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            merges.increment();
+
+            for (IndexSegment input : inputs) {
+                Files.deleteIfExists(IndexSegment.path(dir, input.getGeneration()));
+            }
+        } catch (IOException e) {
+            System.err.println("Error fusionando índice de búsqueda: " + e.getMessage());
+        } finally {
+            lock.writeLock().lock();
+            try {
+                merging = false;
+                // la fusión pudo completar un grupo del nivel siguiente
+                maybeMerge();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void writeManifest(List<IndexSegment> list) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (IndexSegment segment : list) text.append(segment.getGeneration()).append('\n');
+        Path temp = dir.resolve(MANIFEST + ".tmp");
+        Files.writeString(temp, text);
+        Files.move(temp, dir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Escribe a disco lo que esté en memoria, después de lo que ya estaba
+     * esperando al hilo de flush. No espera a una fusión en curso: si no
+     * llega a terminar, sus segmentos de entrada siguen en el manifiesto.
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+            if (memory.docCount() > 0) {
+                flushing.add(memory);
+                memory = new IndexSegment.Builder();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushFrozen();
+        merger.shutdown();
+    }
+
+    // =====================================================
+    // 🔎 Consultas
+    // =====================================================
+
+    /**
+     * Mensajes que contienen todos los términos de la consulta, del más nuevo al más viejo.
+     *
+     * @param visible recibe (conversación, remitente) y dice si el que busca puede verlo
+     */
+    public List<Hit> search(String query, BiPredicate<String, String> visible, int limit) {
+        long start = System.nanoTime();
+        List<String> terms = Tokenizer.tokenize(query);
+        List<Hit> hits = new ArrayList<>();
+        if (terms.isEmpty() || limit <= 0) return hits;
+
+        lock.readLock().lock();
+        try {
+            collect(memory, terms, visible, limit, hits);
+            for (int i = flushing.size() - 1; i >= 0 && hits.size() < limit; i--) {
+                collect(flushing.get(i), terms, visible, limit, hits);
+            }
+            for (int i = segments.size() - 1; i >= 0 && hits.size() < limit; i--) {
+                collect(segments.get(i), terms, visible, limit, hits);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        queries.increment();
+        queryNanos.add(System.nanoTime() - start);
+        return hits;
+    }
+
+    private static void collect(IndexView segment, List<String> terms,
+                                BiPredicate<String, String> visible, int limit, List<Hit> hits) {
+        int[] docs = null;
+        for (String term : terms) {
+            int[] postings = segment.postings(term);
+            if (postings == null) return;
+            docs = docs == null ? postings : intersect(docs, postings);
+            if (docs.length == 0) return;
+        }
+        for (int i = docs.length - 1; i >= 0 && hits.size() < limit; i--) {
+            int doc = docs[i];
+            if (visible.test(segment.conversation(doc), segment.sender(doc))) {
+                hits.add(new Hit(segment.conversation(doc), segment.seq(doc)));
+            }
+        }
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    // =====================================================
+    // 📊 Métricas
+    // =====================================================
+
+    public long getDocCount() {
+        lock.readLock().lock();
+        try {
+            long docs = memory.docCount();
+            for (IndexSegment.Builder frozen : flushing) docs += frozen.docCount();
+            for (IndexSegment segment : segments) docs += segment.docCount();
+            return docs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    public long getMerges() {
+        return merges.sum();
+    }
+
+    /**
+     * Tiempo medio por consulta en el índice, en milisegundos (sin leer los mensajes).
+     */
+    public double getAverageQueryMillis() {
+        long q = queries.sum();
+        return q == 0 ? 0 : queryNanos.sum() / 1e6 / q;
+    }
+}
@@ -0,0 +1,529 @@
+package persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Log de solo-agregar de una conversación, partido en segmentos.
+ *
+ * Cada registro son bytes opacos (ver {@link RecordCodec}) guardados como
+ * varint con el largo, los datos y su CRC32; guardar un mensaje es un único
+ * append al segmento activo, sin leer ni reescribir lo anterior. Cuando el
+ * segmento activo supera segmentBytes se abre otro. Los segmentos se llaman
+ * por el offset (número de registro) de su primer registro, con ceros a la
+ * izquierda para que el orden alfabético sea el orden del log:
+ * <pre>
+ * data/history/group_amigos/00000000000000000000.dat
+ * data/history/group_amigos/00000000000000052113.dat
+ * </pre>
+ * Cada segmento tiene al lado un {@link OffsetIndex} disperso (".idx") para
+ * leer una página de registros sin recorrer el log desde el principio.
+ * La lectura va sobre los segmentos mapeados en memoria: se salta de un
+ * registro al siguiente por su largo y solo se entregan los que se piden.
+ * Un registro cuyo CRC no coincide se informa y se omite; al abrir, una cola
+ * incompleta en el segmento activo (escritura cortada) se recorta.
+ *
+ * No es thread-safe: quien lo usa ({@link ChatHistory}) serializa el acceso.
+ */
+public class SegmentedLog {
+    static final String SEGMENT_SUFFIX = ".dat";
+    static final int DEFAULT_INDEX_INTERVAL = 64;
+    private static final int CRC_BYTES = 4;
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final int indexInterval;
+    private final List<Long> segmentBases = new ArrayList<>();
+    // en paralelo a segmentBases; null si todavía no se cargó
+    private final List<OffsetIndex> indexes = new ArrayList<>();
+    // segmentos cerrados mapeados por base: no cambian, así que cada lector usa un duplicate()
+    private final Map<Long, MappedByteBuffer> mapped = new ConcurrentHashMap<>();
+    // el activo crece: se vuelve a mapear cuando lo escrito pasa lo mapeado
+    private MappedByteBuffer activeMap;
+
+    private FileChannel active;
+    private long activeSize;
+    private long nextOffset;
+    // un append falló y no se pudo deshacer: el segmento activo tiene basura al final
+    private IOException writeFailure;
+
+    public SegmentedLog(Path dir, long segmentBytes) throws IOException {
+        this(dir, segmentBytes, DEFAULT_INDEX_INTERVAL);
+    }
+
+    /**
+     * @param indexInterval cada cuántos registros se guarda una entrada en el índice
+     */
+    public SegmentedLog(Path dir, long segmentBytes, int indexInterval) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = Math.max(1, indexInterval);
+        Files.createDirectories(dir);
+        loadSegments();
+    }
+
+    private void loadSegments() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path segment : stream) {
+                String name = segment.getFileName().toString();
+                segmentBases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Segmento con nombre inválido en " + dir, e);
+        }
+        segmentBases.sort(null);
+
+        if (segmentBases.isEmpty()) {
+            segmentBases.add(0L);
+        }
+        for (int i = 0; i < segmentBases.size(); i++) indexes.add(null);
+
+        long base = lastBase();
+        truncateTornTail(segmentPath(base));
+        // los segmentos cerrados no se releen: su tamaño en registros es la base del siguiente.
+        // El activo sí se recorre, y de paso se rehace su índice (pudo quedar corto)
+        OffsetIndex index = new OffsetIndex(indexPath(base), indexInterval);
+        nextOffset = base + scan(map(segmentPath(base), -1), base, index);
+        index.write();
+        indexes.set(indexes.size() - 1, index);
+        openActive(base);
+    }
+
+    /**
+     * Recorta del segmento lo que siga al último registro completo e intacto
+     * (lo que dejó una escritura cortada por una caída).
+     */
+    private static void truncateTornTail(Path segment) throws IOException {
+        if (!Files.exists(segment)) return;
+        // se lee sin mapear: un archivo mapeado no se puede recortar en todos los sistemas
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segment));
+        int size = data.limit();
+        int valid = 0;
+        while (valid < size) {
+            int end = frameEnd(data, valid);
+            if (end < 0 || !intact(data, valid)) break;
+            valid = end;
+        }
+        if (valid == size) return;
+
+        System.err.println("⚠️ Registro incompleto al final de " + segment + ", se descartan " + (size - valid) + " bytes");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(valid);
+        }
+    }
+
+    /**
+     * Recorre el segmento de registro en registro contando y anotando en el
+     * índice dónde empieza cada uno que le corresponde.
+     *
+     * @return la cantidad de registros
+     */
+    private long scan(ByteBuffer segment, long base, OffsetIndex index) {
+        if (segment == null) return 0;
+        long count = 0;
+        int position = 0;
+        int limit = segment.limit();
+        while (position < limit) {
+            int end = frameEnd(segment, position);
+            if (end < 0) break;
+            if (index.isIndexed(count)) index.add(base + count, position);
+            count++;
+            position = end;
+        }
+        return count;
+    }
+
+    /**
+     * Índice del segmento i; el de un segmento cerrado se carga (o se rehace) la primera vez.
+     */
+    private OffsetIndex index(int i) throws IOException {
+        OffsetIndex index = indexes.get(i);
+        if (index != null) return index;
+
+        long base = segmentBases.get(i);
+        ByteBuffer segment = view(i);
+        index = new OffsetIndex(indexPath(base), indexInterval);
+        if (!index.load(base, segment == null ? 0 : segment.limit())) {
+            index = new OffsetIndex(indexPath(base), indexInterval);
+            scan(segment, base, index);
+            index.write();
+        }
+        indexes.set(i, index);
+        return index;
+    }
+
+    private void openActive(long base) throws IOException {
+        Path path = segmentPath(base);
+        active = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeSize = active.size();
+    }
+
+    private long lastBase() {
+        return segmentBases.get(segmentBases.size() - 1);
+    }
+
+    Path segmentPath(long base) {
+        return dir.resolve(String.format("%020d", base) + SEGMENT_SUFFIX);
+    }
+
+    Path indexPath(long base) {
+        return dir.resolve(String.format("%020d", base) + OffsetIndex.INDEX_SUFFIX);
+    }
+
+    // =====================================================
+    // ✍️ Escritura
+    // =====================================================
+
+    /**
+     * Agrega un registro al final del log.
+     *
+     * @return el offset asignado al registro
+     */
+    public long append(byte[] record) throws IOException {
+        return append(List.of(record));
+    }
+
+    /**
+     * Agrega varios registros con una sola escritura (group commit). Ninguno
+     * puede ser vacío (ver {@link #frameEnd}). Si la escritura falla, el
+     * segmento y su índice vuelven a como estaban; si ni eso se puede, el log
+     * no acepta más escrituras hasta reabrirlo (al abrir se recorta la cola).
+     *
+     * @return el offset del primero
+     */
+    public long append(List<byte[]> records) throws IOException {
+        for (byte[] record : records) {
+            if (record.length == 0) throw new IllegalArgumentException("Registro vacío en " + dir);
+        }
+        if (writeFailure != null) throw new IOException("Log " + dir + " inutilizable hasta reabrirlo", writeFailure);
+        if (activeSize >= segmentBytes) roll();
+
+        OffsetIndex index = indexes.get(indexes.size() - 1);
+        long base = lastBase();
+        long sizeBefore = activeSize;
+        int indexedBefore = index.size();
+        int total = 0;
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                long offset = nextOffset + i;
+                if (index.isIndexed(offset - base)) index.append(offset, activeSize + total);
+                total += frameSize(records.get(i).length);
+            }
+
+            ByteBuffer bytes = ByteBuffer.allocate(total);
+            CRC32 crc = new CRC32();
+            for (byte[] record : records) {
+                putVarint(bytes, record.length);
+                bytes.put(record);
+                crc.reset();
+                crc.update(record);
+                bytes.putInt((int) crc.getValue());
+            }
+            bytes.flip();
+
+            while (bytes.hasRemaining()) {
+                active.write(bytes);
+            }
+        } catch (IOException e) {
+            rollback(index, indexedBefore, sizeBefore, e);
+            throw e;
+        }
+        activeSize += total;
+        long first = nextOffset;
+        nextOffset += records.size();
+        return first;
+    }
+
+    /**
+     * Baja a disco lo escrito en el segmento activo (fsync de los datos).
+     */
+    public void force() throws IOException {
+        active.force(false);
+    }
+
+    /**
+     * Deshace un append a medias: recorta el segmento activo a size y el índice a indexSize.
+     */
+    private void rollback(OffsetIndex index, int indexSize, long size, IOException cause) {
+        try {
+            index.truncate(indexSize);
+        } catch (IOException e) {
+            // el índice se reconstruye al abrir si no cuadra con el segmento
+            cause.addSuppressed(e);
+        }
+        try {
+            active.truncate(size);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            writeFailure = cause;
+        }
+    }
+
+    /**
+     * Canal del segmento activo, para forzarlo sin el lock de quien escribe.
+     * Si un roll lo cierra mientras tanto, antes lo forzó.
+     */
+    FileChannel activeChannel() {
+        return active;
+    }
+
+    private void roll() throws IOException {
+        // el segmento que se cierra queda durable: después solo se fuerza el activo
+        active.force(false);
+        active.close();
+        indexes.get(indexes.size() - 1).close();
+        activeMap = null;
+        segmentBases.add(nextOffset);
+        indexes.add(new OffsetIndex(indexPath(nextOffset), indexInterval));
+        openActive(nextOffset);
+    }
+
+    /**
+     * Borra los segmentos cerrados cuyos registros son todos anteriores a
+     * offset (lo que ya no hace falta de un WAL después de un checkpoint).
+     * El activo nunca se borra, así el log sigue sabiendo su próximo offset.
+     *
+     * @return cantidad de segmentos borrados
+     */
+    public int deleteBefore(long offset) throws IOException {
+        int removed = 0;
+        while (segmentBases.size() > 1 && segmentBases.get(1) <= offset) {
+            long base = segmentBases.remove(0);
+            OffsetIndex index = indexes.remove(0);
+            if (index != null) index.close();
+            mapped.remove(base);
+            Files.deleteIfExists(segmentPath(base));
+            Files.deleteIfExists(indexPath(base));
+            removed++;
+        }
+        return removed;
+    }
+
+    // =====================================================
+    // 📖 Lectura
+    // =====================================================
+
+    /**
+     * Recorre todos los registros en orden, del más viejo al más nuevo.
+     */
+    public void forEach(Consumer<ByteBuffer> consumer) throws IOException {
+        for (int i = 0; i < segmentBases.size(); i++) {
+            ByteBuffer segment = view(i);
+            if (segment == null) continue;
+            visit(segment, 0, segmentBases.get(i), 0, Long.MAX_VALUE, (record, offset) -> consumer.accept(record));
+        }
+    }
+
+    /**
+     * Recorre los registros con offset en [from, from + count), del más viejo
+     * al más nuevo. Salta con el índice al punto de entrada más cercano de
+     * cada segmento, así el costo no depende del largo del log.
+     */
+    public void read(long from, int count, Consumer<ByteBuffer> consumer) throws IOException {
+        read(from, count, (record, offset) -> consumer.accept(record));
+    }
+
+    /**
+     * Igual que {@link #read(long, int, Consumer)}, pasando también el offset de cada registro.
+     */
+    public void read(long from, int count, ObjLongConsumer<ByteBuffer> consumer) throws IOException {
+        long start = Math.max(0, from);
+        // from + count desborda cerca de Long.MAX_VALUE: se compara contra nextOffset - count
+        long end = count <= 0 ? start : from > nextOffset - count ? nextOffset : from + count;
+        int segment = segmentOf(start);
+        while (start < end && segment < segmentBases.size()) {
+            long segmentEnd = segment + 1 < segmentBases.size() ? segmentBases.get(segment + 1) : nextOffset;
+            long stop = Math.min(end, segmentEnd);
+            ByteBuffer view = view(segment);
+            if (view != null) {
+                OffsetIndex index = index(segment);
+                int entry = index.floor(start);
+                long offset = entry < 0 ? segmentBases.get(segment) : index.offsetAt(entry);
+                int position = entry < 0 ? 0 : (int) index.positionAt(entry);
+
+                visit(view, position, offset, start, stop, consumer);
+            }
+            start = stop;
+            segment++;
+        }
+    }
+
+    /**
+     * Recorre el segmento desde position (donde empieza el registro offset) y
+     * entrega los registros con offset en [start, stop); los anteriores solo
+     * se saltan por su largo.
+     */
+    private void visit(ByteBuffer segment, int position, long offset, long start, long stop,
+                       ObjLongConsumer<ByteBuffer> consumer) {
+        while (offset < stop && position < segment.limit()) {
+            int end = frameEnd(segment, position);
+            if (end < 0) {
+                System.err.println("⚠️ Registro truncado en " + dir + " (offset " + offset + ")");
+                return;
+            }
+            if (offset >= start) {
+                if (intact(segment, position)) {
+                    int length = readVarint(segment, position);
+                    consumer.accept(segment.slice(position + varintSize(length), length), offset);
+                } else {
+                    System.err.println("⚠️ Registro dañado en " + dir + " (offset " + offset + "), se omite");
+                }
+            }
+            position = end;
+            offset++;
+        }
+    }
+    /**
+     * Vista de solo lectura del segmento i, con posición propia (se puede usar
+     * desde varios hilos); null si el archivo no existe.
+     */
+    private ByteBuffer view(int i) throws IOException {
+        long base = segmentBases.get(i);
+        if (i < segmentBases.size() - 1) {
+            MappedByteBuffer map = mapped.get(base);
+            if (map == null) {
+                map = map(segmentPath(base), -1);
+                if (map == null) return null;
+                mapped.putIfAbsent(base, map);
+            }
+            return map.duplicate();
+        }
+
+        if (activeMap == null || activeMap.capacity() < activeSize) {
+            activeMap = map(segmentPath(base), activeSize);
+        }
+        return activeMap.duplicate().limit((int) Math.min(activeSize, activeMap.capacity()));
+    }
+
+    /**
+     * Mapea los primeros size bytes del archivo (todo si size < 0).
+     */
+    private static MappedByteBuffer map(Path segment, long size) throws IOException {
+        if (!Files.exists(segment)) return null;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            long length = size < 0 ? channel.size() : Math.min(size, channel.size());
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Segmento demasiado grande para mapear: " + segment);
+            }
+            // el mapeo sigue válido después de cerrar el canal
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+    }
+
+    // =====================================================
+    // 📦 Marco de cada registro: varint(largo), datos, CRC32
+    // =====================================================
+
+    static int frameSize(int length) {
+        return varintSize(length) + length + CRC_BYTES;
+    }
+
+    /**
+     * Fin del registro que empieza en position, o -1 si no está completo.
+     * Un largo 0 también cuenta como cortado: ningún registro es vacío, y una
+     * cola de ceros (bloques reservados pero no escritos antes de una caída)
+     * pasaría el CRC, que de cero bytes es 0.
+     */
+    private static int frameEnd(ByteBuffer segment, int position) {
+        int length = readVarint(segment, position);
+        if (length <= 0) return -1;
+        long end = (long) position + frameSize(length);
+        return end > segment.limit() ? -1 : (int) end;
+    }
+
+    /**
+     * true si el CRC guardado coincide con los datos del registro.
+     */
+    private static boolean intact(ByteBuffer segment, int position) {
+        int length = readVarint(segment, position);
+        int data = position + varintSize(length);
+        CRC32 crc = new CRC32();
+        crc.update(segment.slice(data, length));
+        return (int) crc.getValue() == segment.getInt(data + length);
+    }
+
+    /**
+     * Varint sin signo en position; -1 si está cortado o no cabe en un int.
+     */
+    private static int readVarint(ByteBuffer segment, int position) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position >= segment.limit()) return -1;
+            byte b = segment.get(position++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value < 0 ? -1 : value;
+        }
+        return -1;
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Segmento que contiene el offset (el de mayor base que no lo supera).
+     */
+    private int segmentOf(long offset) {
+        int lo = 0;
+        int hi = segmentBases.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segmentBases.get(mid) <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Cantidad de registros escritos (offset que recibirá el próximo).
+     */
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    public int getSegmentCount() {
+        return segmentBases.size();
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    public void close() throws IOException {
+        active.close();
+        activeMap = null;
+        mapped.clear();
+        for (OffsetIndex index : indexes) {
+            if (index != null) index.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package persistence;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Nombres de usuarios y grupos internados: los registros del historial
+ * guardan un número en lugar del nombre (ver {@link RecordCodec}).
+ *
+ * Se persiste como un {@link SegmentedLog} más (data/symbols/): el registro
+ * con offset n es el nombre con id n + 1; el 0 significa "sin valor". Un
+ * nombre se escribe antes que cualquier registro que lo use, y
+ * {@link ChatHistory#sync} fuerza esta tabla antes que los logs.
+ */
+class SymbolTable {
+    private final SegmentedLog log;
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    SymbolTable(Path dir) throws IOException {
+        this.log = new SegmentedLog(dir, Long.MAX_VALUE);
+        log.forEach(record -> names.add(StandardCharsets.UTF_8.decode(record).toString()));
+        for (int i = 0; i < names.size(); i++) ids.put(names.get(i), i + 1);
+    }
+
+    /**
+     * Id del nombre, agregándolo a la tabla si es nuevo.
+     */
+    synchronized int intern(String name) throws IOException {
+        if (name == null) return 0;
+        Integer id = ids.get(name);
+        if (id != null) return id;
+
+        log.append(name.getBytes(StandardCharsets.UTF_8));
+        names.add(name);
+        id = names.size();
+        ids.put(name, id);
+        return id;
+    }
+
+    synchronized String name(int id) {
+        if (id == 0) return null;
+        if (id < 0 || id > names.size()) {
+            throw new IllegalArgumentException("Símbolo desconocido: " + id);
+        }
+        return names.get(id - 1);
+    }
+
+    synchronized void force() throws IOException {
+        log.force();
+    }
+
+    synchronized int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,46 @@
+package persistence;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parte un texto en términos para el índice de búsqueda: secuencias de
+ * letras y dígitos, en minúsculas y sin tildes ("Canción" → "cancion").
+ * Los términos de menos de MIN_LENGTH caracteres no se indexan.
+ */
+final class Tokenizer {
+    static final int MIN_LENGTH = 2;
+    static final int MAX_LENGTH = 40;
+
+    private Tokenizer() {
+    }
+
+    /**
+     * Términos distintos del texto, en el orden en que aparecen.
+     */
+    static List<String> tokenize(String text) {
+        if (text == null || text.isEmpty()) return List.of();
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD);
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) continue;
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_LENGTH) term.append(Character.toLowerCase(c));
+            } else {
+                add(terms, term);
+            }
+        }
+        add(terms, term);
+        return new ArrayList<>(terms);
+    }
+
+    private static void add(Set<String> terms, StringBuilder term) {
+        if (term.length() >= MIN_LENGTH) terms.add(term.toString());
+        term.setLength(0);
+    }
+}
@@ -0,0 +1,249 @@
+package persistence;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log de escritura anticipada (WAL) del historial.
+ *
+ * Cada lote que {@link ChatHistory} agrega a un log de conversación se
+ * escribe antes acá, con el nombre del log y el offset donde empieza; el
+ * commit de un lote es un solo fsync de este archivo, no uno por
+ * conversación. Los logs de conversación se fuerzan recién en el checkpoint,
+ * que anota hasta qué registro del WAL ya está todo en ellos y borra los
+ * segmentos anteriores.
+ *
+ * Al arrancar solo se recorre lo que sigue al último checkpoint, así el
+ * tiempo de recuperación depende de lo escrito desde entonces y no del
+ * tamaño del historial. Es un {@link SegmentedLog}: cada registro lleva su
+ * CRC y una cola cortada se recorta al abrir.
+ *
+ * Formato de un registro: u16 largo + nombre del log, u64 offset del primer
+ * registro en ese log, y por cada registro u32 largo + bytes.
+ */
+public class WriteAheadLog {
+    private static final String CHECKPOINT = "checkpoint";
+
+    private final Path dir;
+    private final SegmentedLog log;
+    // serializa los checkpoints sin tomar el monitor (que es el de append) durante sus fsync
+    private final Object checkpointLock = new Object();
+    // primer registro del WAL que puede no estar todavía en los logs de conversación
+    private long checkpoint;
+    private long appendedBytes;
+    private long checkpointBytes;
+
+    private final LongAdder checkpoints = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+
+    /**
+     * Recibe un lote a re-aplicar: nombre del log, offset del primero y los registros.
+     */
+    @FunctionalInterface
+    interface Replayer {
+        void apply(String logName, long first, List<byte[]> records) throws IOException;
+    }
+
+    public WriteAheadLog(Path dir, long segmentBytes) throws IOException {
+        this.dir = dir;
+        this.log = new SegmentedLog(dir, segmentBytes);
+        checkpoint = readCheckpoint(dir.resolve(CHECKPOINT));
+        if (checkpoint > log.getNextOffset()) {
+            // el WAL quedó más corto que el checkpoint (borrado a mano): se relee lo que haya
+            System.err.println("⚠️ WAL más corto que su checkpoint, se recorre entero");
+            checkpoint = 0;
+        }
+    }
+
+    /**
+     * -Dchat.wal.segmentBytes (16 MB por segmento).
+     */
+    public static WriteAheadLog fromSystemProperties(Path dir) throws IOException {
+        return new WriteAheadLog(dir, Long.getLong("chat.wal.segmentBytes", 16L * 1024 * 1024));
+    }
+
+    // =====================================================
+    // ✍️ Escritura
+    // =====================================================
+
+    synchronized void append(String logName, long first, List<byte[]> records) throws IOException {
+        byte[] name = logName.getBytes(StandardCharsets.UTF_8);
+        int size = 2 + name.length + 8;
+        for (byte[] record : records) size += 4 + record.length;
+
+        ByteBuffer entry = ByteBuffer.allocate(size);
+        entry.putShort((short) name.length).put(name).putLong(first);
+        for (byte[] record : records) entry.putInt(record.length).put(record);
+        log.append(entry.array());
+        appendedBytes += size;
+    }
+
+    /**
+     * fsync de lo agregado hasta ahora. No toma el monitor mientras espera al
+     * disco, así los append que llegan en el medio arman el próximo lote.
+     */
+    void force() throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            channel = log.activeChannel();
+        }
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // un roll cerró el segmento, y antes lo forzó: lo anterior ya está en disco
+        }
+    }
+
+    /**
+     * Registro que recibirá el próximo append: todo lo anterior ya está escrito.
+     */
+    synchronized long getNextOffset() {
+        return log.getNextOffset();
+    }
+
+    synchronized long getAppendedBytes() {
+        return appendedBytes;
+    }
+
+    /**
+     * Anota que los registros anteriores a upTo ya están forzados en los logs
+     * de conversación y borra los segmentos del WAL que solo tenían esos
+     * registros. El archivo se escribe en un temporal forzado que se renombra,
+     * y se fuerza el directorio: los segmentos se borran recién cuando el
+     * checkpoint nuevo no se puede perder.
+     *
+     * @param bytesMark {@link #getAppendedBytes()} tomado junto con upTo
+     */
+    void checkpoint(long upTo, long bytesMark) throws IOException {
+        synchronized (checkpointLock) {
+            synchronized (this) {
+                if (upTo < checkpoint) return;
+            }
+            Path temp = dir.resolve(CHECKPOINT + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer bytes = ByteBuffer.wrap(Long.toString(upTo).getBytes(StandardCharsets.UTF_8));
+                while (bytes.hasRemaining()) channel.write(bytes);
+                channel.force(true);
+            }
+            Files.move(temp, dir.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+                directory.force(true);
+            }
+
+            synchronized (this) {
+                checkpoint = upTo;
+                checkpointBytes = Math.max(checkpointBytes, bytesMark);
+                log.deleteBefore(upTo);
+            }
+            checkpoints.increment();
+        }
+    }
+
+    /**
+     * Checkpoint guardado, o 0 (recorrer todo el WAL) si no hay o no se puede leer.
+     */
+    private static long readCheckpoint(Path file) throws IOException {
+        if (!Files.exists(file)) return 0;
+        String text = Files.readString(file).trim();
+        try {
+            return Math.max(0, Long.parseLong(text));
+        } catch (NumberFormatException e) {
+            System.err.println("⚠️ Checkpoint del WAL ilegible (\"" + text + "\"), se recorre entero");
+            return 0;
+        }
+    }
+
+    // =====================================================
+    // ♻️ Recuperación
+    // =====================================================
+
+    /**
+     * Entrega, en orden, los lotes escritos desde el último checkpoint.
+     *
+     * @return cantidad de lotes leídos
+     */
+    synchronized long replay(Replayer replayer) throws IOException {
+        long batches = visit(replayer);
+        replayed.add(batches);
+        return batches;
+    }
+
+    /**
+     * Logs con lotes posteriores al último checkpoint: los que {@link #replay} puede tocar.
+     */
+    synchronized Set<String> getPendingLogNames() throws IOException {
+        Set<String> names = new HashSet<>();
+        visit((name, first, records) -> names.add(name));
+        return names;
+    }
+
+    private long visit(Replayer replayer) throws IOException {
+        long from = checkpoint;
+        long end = log.getNextOffset();
+        try {
+            while (from < end) {
+                int count = (int) Math.min(end - from, 4096);
+                log.read(from, count, record -> {
+                    byte[] name = new byte[record.getShort() & 0xffff];
+                    record.get(name);
+                    long first = record.getLong();
+                    List<byte[]> records = new ArrayList<>();
+                    while (record.hasRemaining()) {
+                        byte[] bytes = new byte[record.getInt()];
+                        record.get(bytes);
+                        records.add(bytes);
+                    }
+                    try {
+                        replayer.apply(new String(name, StandardCharsets.UTF_8), first, records);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                from += count;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return end - checkpoint;
+    }
+
+    // =====================================================
+    // 📊 Métricas
+    // =====================================================
+
+    /**
+     * Bytes escritos en el WAL desde el último checkpoint (lo que habría que releer al arrancar).
+     */
+    public synchronized long getBytesSinceCheckpoint() {
+        return appendedBytes - checkpointBytes;
+    }
+
+    public synchronized int getSegmentCount() {
+        return log.getSegmentCount();
+    }
+
+    public long getCheckpoints() {
+        return checkpoints.sum();
+    }
+
+    /**
+     * Lotes releídos del WAL en la última recuperación.
+     */
+    public long getReplayed() {
+        return replayed.sum();
+    }
+}
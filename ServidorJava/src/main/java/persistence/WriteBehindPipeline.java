@@ -0,0 +1,541 @@
+package persistence;
+
+import model.Message;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+/**
+ * Persistencia diferida (write-behind) del historial.
+ *
+ * Los handlers encolan el mensaje y siguen con la entrega; uno o más hilos
+ * escritores toman lotes de la cola, agrupan los registros por conversación
+ * (una escritura por log y lote, ver {@link ChatHistory#appendAll}) y hacen
+ * fsync del WAL según la {@link Durability} configurada.
+ *
+ * Cada conversación cae siempre en el mismo escritor, así sus mensajes se
+ * guardan en orden aunque haya varios. La cola de cada escritor es acotada:
+ * si el disco no da abasto, submit espera lugar como mucho offerTimeoutMs
+ * (contrapresión) y después el mensaje falla, en lugar de acumular memoria
+ * sin límite o dejar el shard trabado mientras el disco no responda.
+ *
+ * Un mensaje puede traer los destinatarios que no estaban en línea: una vez
+ * escrito, se anota su referencia en la {@link OfflineInbox} de cada uno.
+ *
+ * Al encolarlo, cada mensaje recibe su número de secuencia en la
+ * conversación: el offset que tendrá en su log, ya que los de una misma
+ * conversación se escriben en el orden en que se encolan. Si un lote falla,
+ * lo que ya estaba numerado después en ese log también falla (quedaría en
+ * otro offset). Esas secuencias ya se entregaron, así que no se vuelven a
+ * usar: antes del próximo mensaje el log se rellena con huecos hasta la
+ * última secuencia entregada (ver {@link ChatHistory#fillTo}).
+ */
+public class WriteBehindPipeline {
+    private static final long IDLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ChatHistory history;
+    private final OfflineInbox inbox;
+    private final Durability durability;
+    private final long fsyncIntervalNanos;
+    private final int maxBatch;
+    private final long offerTimeoutNanos;
+    private final Writer[] writers;
+    private volatile boolean running = true;
+
+    // numeración por log; se descarta si un lote falla y la reemplaza una que sigue después de lo entregado
+    private final Map<String, Sequence> sequences = new ConcurrentHashMap<>();
+    // último append pendiente por conversación, para que las lecturas vean lo encolado
+    private final Map<String, CompletableFuture<Void>> lastAppend = new ConcurrentHashMap<>();
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder commitNanos = new LongAdder();
+    private volatile long maxCommitNanos;
+    private volatile int maxBatchSize;
+
+    public WriteBehindPipeline(ChatHistory history, OfflineInbox inbox, int writerCount, int capacity, int maxBatch,
+                               Durability durability, long fsyncIntervalMs, long offerTimeoutMs) {
+        this.history = history;
+        this.inbox = inbox;
+        this.durability = durability;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, fsyncIntervalMs));
+        this.maxBatch = Math.max(1, maxBatch);
+        this.offerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, offerTimeoutMs));
+        this.writers = new Writer[Math.max(1, writerCount)];
+        int perWriter = Math.max(1, capacity / writers.length);
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Writer("persist-" + i, perWriter);
+            writers[i].start();
+        }
+    }
+
+    /**
+     * -Dchat.persist.writers (1), -Dchat.persist.capacity (10000),
+     * -Dchat.persist.batch (256), -Dchat.persist.durability=batch|interval|never (interval)
+     * -Dchat.persist.fsyncIntervalMs (1000) y -Dchat.persist.offerTimeoutMs (1000):
+     * cuánto puede esperar un shard lugar en la cola de su escritor.
+     */
+    public static WriteBehindPipeline fromSystemProperties(ChatHistory history, OfflineInbox inbox) {
+        return new WriteBehindPipeline(history, inbox,
+                Integer.getInteger("chat.persist.writers", 1),
+                Integer.getInteger("chat.persist.capacity", 10_000),
+                Integer.getInteger("chat.persist.batch", 256),
+                Durability.parse(System.getProperty("chat.persist.durability"), Durability.INTERVAL),
+                Long.getLong("chat.persist.fsyncIntervalMs", 1000),
+                Long.getLong("chat.persist.offerTimeoutMs", 1000));
+    }
+
+    /**
+     * Entrega en vivo de un mensaje que ya tiene secuencia.
+     */
+    @FunctionalInterface
+    public interface Delivery {
+        /**
+         * @return destinatarios que no estaban en línea (para su bandeja)
+         */
+        Collection<String> deliver(long seq);
+    }
+
+    /**
+     * Numeración de un log. Los mensajes esperan en ready; uno solo de los
+     * que envían (el que encuentra draining en false) los numera, entrega y
+     * encola en orden, sin tener tomado el monitor mientras tanto.
+     */
+    private static final class Sequence {
+        final String logName;
+        final ArrayDeque<Pending> ready = new ArrayDeque<>();
+        boolean draining;
+        // next es -1 hasta leerla del log, y antes hay que esperar lo encolado con
+        // la numeración descartada; la cambia solo quien vacía ready, con el monitor
+        long next = -1;
+        Sequence previous;
+        // primera secuencia que no se entregó con las numeraciones descartadas
+        final long floor;
+        // un mensaje de este log no se guardó: lo numerado desde él ya no corresponde a su offset
+        volatile long brokenFrom = Long.MAX_VALUE;
+        volatile CompletableFuture<Void> lastEnqueued;
+
+        Sequence(String logName, Sequence previous, long floor) {
+            this.logName = logName;
+            this.previous = previous;
+            this.floor = floor;
+        }
+
+        boolean isBroken() {
+            return brokenFrom != Long.MAX_VALUE;
+        }
+    }
+
+    // =====================================================
+    // 📥 Productores
+    // =====================================================
+
+    /**
+     * Encola el mensaje para guardarlo. Espera solo si la cola del escritor
+     * está llena, y como mucho offerTimeoutMs: después el futuro falla.
+     *
+     * @return futuro que se completa cuando el mensaje es durable según la política
+     */
+    public CompletableFuture<Void> submit(Message message) {
+        return submit(message, List.of());
+    }
+
+    /**
+     * Igual que {@link #submit(Message)}, anotando el mensaje en la bandeja de
+     * cada usuario de offline cuando quede escrito.
+     */
+    public CompletableFuture<Void> submit(Message message, Collection<String> offline) {
+        return submit(message, seq -> offline);
+    }
+
+    /**
+     * Numera el mensaje, lo entrega con delivery y lo encola. Los mensajes de
+     * una conversación pasan por esos tres pasos de a uno y en orden, aunque
+     * lleguen desde distintos shards: las secuencias se entregan en el orden
+     * en que se guardan. Ningún lock queda tomado durante la entrega ni
+     * mientras se espera lugar en la cola; si otro hilo ya está procesando
+     * la conversación, él se encarga de este mensaje y submit vuelve enseguida.
+     */
+    public CompletableFuture<Void> submit(Message message, Delivery delivery) {
+        String logName = ChatHistory.logNameOf(message);
+        Sequence sequence = sequences.computeIfAbsent(logName, name -> new Sequence(name, null, 0));
+        Pending pending = new Pending(message, delivery, sequence);
+        String key = conversationKey(message.getTo(), message.isGroupMessage());
+        boolean drain;
+        synchronized (sequence) {
+            // en el mismo orden en que se va a escribir, aunque todavía no esté en la cola
+            lastAppend.put(key, pending.appended);
+            pending.appended.whenComplete((v, e) -> lastAppend.remove(key, pending.appended));
+            sequence.ready.add(pending);
+            drain = !sequence.draining;
+            sequence.draining = true;
+        }
+        if (drain) drain(sequence);
+        return pending.durable;
+    }
+
+    private void drain(Sequence sequence) {
+        while (true) {
+            Pending pending;
+            synchronized (sequence) {
+                pending = sequence.ready.poll();
+                if (pending == null) {
+                    sequence.draining = false;
+                    return;
+                }
+            }
+            dispatch(sequence, pending);
+        }
+    }
+
+    private void dispatch(Sequence sequence, Pending pending) {
+        if (sequence.isBroken()) {
+            pending.fail(new IOException("Falló un lote anterior de " + sequence.logName));
+            return;
+        }
+        try {
+            if (sequence.next < 0) start(sequence);
+        } catch (IOException e) {
+            discard(sequence, Long.MIN_VALUE);
+            pending.fail(e);
+            return;
+        }
+        long seq;
+        synchronized (sequence) {
+            // discard ya leyó hasta dónde se entregó: esta numeración no reparte más
+            if (sequence.isBroken()) {
+                pending.fail(new IOException("Falló un lote anterior de " + sequence.logName));
+                return;
+            }
+            seq = sequence.next++;
+        }
+        pending.seq = seq;
+        try {
+            pending.offline = pending.delivery.deliver(seq);
+        } catch (RuntimeException e) {
+            // la secuencia ya se usó: el mensaje se guarda igual
+            System.err.println("Error entregando mensaje de " + pending.message.getFrom() + ": " + e.getMessage());
+            pending.offline = List.of();
+        }
+        enqueue(pending);
+    }
+
+    /**
+     * Lee la numeración del log. Si reemplaza a una descartada, antes espera
+     * lo que esa encoló y rellena el log con huecos hasta floor: esas
+     * secuencias ya las vio alguien y no se reparten de nuevo.
+     */
+    private void start(Sequence sequence) throws IOException {
+        if (sequence.previous != null) {
+            awaitQuietly(sequence.previous.lastEnqueued);
+            sequence.previous = null;
+        }
+        long next = history.nextSeq(sequence.logName);
+        if (next < sequence.floor) {
+            history.fillTo(sequence.logName, sequence.floor);
+            next = sequence.floor;
+        }
+        synchronized (sequence) {
+            sequence.next = next;
+        }
+    }
+
+    private void enqueue(Pending pending) {
+        Message message = pending.message;
+        String key = conversationKey(message.getTo(), message.isGroupMessage());
+        IOException failure;
+        try {
+            if (writers[shardOf(key)].queue.offer(pending, offerTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                pending.sequence.lastEnqueued = pending.appended;
+                return;
+            }
+            failure = new IOException("Cola de persistencia llena: el disco no da abasto");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new IOException("Interrumpido al encolar el mensaje");
+        }
+        // la secuencia ya se entregó y el log no va a avanzar: la próxima numeración la salta
+        System.err.println("Error encolando mensaje de " + message.getFrom() + ": " + failure.getMessage());
+        failed.increment();
+        discard(pending.sequence, pending.seq);
+        pending.fail(failure);
+    }
+
+    /**
+     * El mensaje con secuencia from no llega al log: lo numerado desde él con
+     * sequence falla (lo anterior ya está en la cola, en su offset), y la
+     * numeración que la reemplaza sigue después de la última secuencia que
+     * esta entregó, cuando el escritor termine con lo ya encolado.
+     */
+    private void discard(Sequence sequence, long from) {
+        long floor;
+        synchronized (sequence) {
+            sequence.brokenFrom = Math.min(sequence.brokenFrom, from);
+            floor = sequence.next >= 0 ? sequence.next : sequence.floor;
+        }
+        sequences.replace(sequence.logName, sequence, new Sequence(sequence.logName, sequence, floor));
+    }
+
+    /**
+     * Espera a que lo encolado para la conversación esté escrito (no necesariamente
+     * sincronizado), para que un get_history vea los mensajes recién enviados.
+     */
+    public void awaitAppended(String target, boolean isGroup) {
+        awaitQuietly(lastAppend.get(conversationKey(target, isGroup)));
+    }
+
+    /**
+     * Espera a que lo encolado para las conversaciones (destino, es grupo) que
+     * acepta filter esté escrito y anotado en las bandejas, p.ej. las que
+     * pueden dejar algo en la bandeja de quien inicia sesión. Solo se miran
+     * las conversaciones con algo pendiente.
+     */
+    public void awaitAppended(BiPredicate<String, Boolean> filter) {
+        for (Map.Entry<String, CompletableFuture<Void>> entry : new ArrayList<>(lastAppend.entrySet())) {
+            String key = entry.getKey();
+            if (filter.test(key.substring(1), key.charAt(0) == '#')) awaitQuietly(entry.getValue());
+        }
+    }
+
+    private static void awaitQuietly(CompletableFuture<Void> future) {
+        if (future == null) return;
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            // el error ya se informó al escribir
+        }
+    }
+
+    private static String conversationKey(String target, boolean isGroup) {
+        return (isGroup ? "#" : "@") + target;
+    }
+
+    private int shardOf(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % writers.length;
+    }
+
+    /**
+     * Detiene los escritores después de vaciar y sincronizar sus colas.
+     */
+    public void close() {
+        if (!running) return;
+        running = false;
+        for (Writer writer : writers) {
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // =====================================================
+    // ✍️ Escritores
+    // =====================================================
+
+    private static final class Pending {
+        final Message message;
+        final Delivery delivery;
+        final Sequence sequence;
+        // los fija dispatch antes de encolar
+        long seq;
+        Collection<String> offline;
+        final long enqueuedNanos = System.nanoTime();
+        final CompletableFuture<Void> appended = new CompletableFuture<>();
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        Pending(Message message, Delivery delivery, Sequence sequence) {
+            this.message = message;
+            this.delivery = delivery;
+            this.sequence = sequence;
+        }
+
+        void fail(Throwable e) {
+            appended.completeExceptionally(e);
+            durable.completeExceptionally(e);
+        }
+    }
+
+    private final class Writer extends Thread {
+        final BlockingQueue<Pending> queue;
+        private final List<Pending> batch = new ArrayList<>();
+        private final List<Message> messages = new ArrayList<>();
+        // escritos pero aún sin fsync
+        private final List<Pending> unsynced = new ArrayList<>();
+        private long lastSync = System.nanoTime();
+
+        Writer(String name, int capacity) {
+            super(name);
+            setDaemon(true);
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                try {
+                    Pending first = queue.poll(pollNanos(), TimeUnit.NANOSECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, maxBatch - 1);
+                        writeBatch();
+                    }
+                    if (!unsynced.isEmpty()
+                            && (durability == Durability.BATCH || System.nanoTime() - lastSync >= fsyncIntervalNanos)) {
+                        sync();
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (!unsynced.isEmpty()) sync();
+        }
+
+        private long pollNanos() {
+            if (durability != Durability.INTERVAL || unsynced.isEmpty()) return IDLE_POLL_NANOS;
+            return Math.max(0, lastSync + fsyncIntervalNanos - System.nanoTime());
+        }
+
+        private void writeBatch() {
+            for (Iterator<Pending> it = batch.iterator(); it.hasNext(); ) {
+                Pending pending = it.next();
+                if (pending.seq >= pending.sequence.brokenFrom) {
+                    // numerado después de un mensaje de su log que no se guardó: su offset ya no es su secuencia
+                    failed.increment();
+                    pending.fail(new IOException("Falló un lote anterior de " + pending.sequence.logName));
+                    it.remove();
+                }
+            }
+            if (batch.isEmpty()) return;
+            for (Pending pending : batch) messages.add(pending.message);
+            batches.increment();
+            records.add(batch.size());
+            if (batch.size() > maxBatchSize) maxBatchSize = batch.size();
+
+            try {
+                long[] seqs = history.appendAll(messages);
+                // una escritura por bandeja y lote, aunque un mensaje de grupo vaya a muchas
+                Map<String, List<byte[]>> references = new HashMap<>();
+                for (int i = 0; i < batch.size(); i++) {
+                    Pending pending = batch.get(i);
+                    if (pending.offline.isEmpty()) continue;
+                    byte[] ref = OfflineInbox.reference(ChatHistory.logNameOf(pending.message), seqs[i]);
+                    for (String user : pending.offline) {
+                        references.computeIfAbsent(user, k -> new ArrayList<>()).add(ref);
+                    }
+                }
+                if (!references.isEmpty()) inbox.addAll(references);
+                for (Pending pending : batch) {
+                    pending.appended.complete(null);
+                    if (durability == Durability.NEVER) {
+                        commit(pending);
+                    } else {
+                        unsynced.add(pending);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error guardando mensajes: " + e.getMessage());
+                failed.add(batch.size());
+                for (Pending pending : batch) {
+                    // el log no avanzó como se esperaba: lo que siga en la cola de ese log también falla
+                    discard(pending.sequence, pending.seq);
+                    pending.fail(e);
+                }
+            } finally {
+                batch.clear();
+                messages.clear();
+            }
+        }
+
+        private void sync() {
+            try {
+                history.sync();
+                inbox.force();
+                syncs.increment();
+                for (Pending pending : unsynced) commit(pending);
+            } catch (IOException e) {
+                System.err.println("Error sincronizando historial: " + e.getMessage());
+                failed.add(unsynced.size());
+                for (Pending pending : unsynced) pending.durable.completeExceptionally(e);
+            } finally {
+                unsynced.clear();
+                lastSync = System.nanoTime();
+            }
+        }
+
+        private void commit(Pending pending) {
+            long latency = System.nanoTime() - pending.enqueuedNanos;
+            commits.increment();
+            commitNanos.add(latency);
+            if (latency > maxCommitNanos) maxCommitNanos = latency;
+            pending.durable.complete(null);
+        }
+    }
+
+    // =====================================================
+    // 📊 Métricas
+    // =====================================================
+
+    public int getQueued() {
+        int queued = 0;
+        for (Writer writer : writers) queued += writer.queue.size();
+        return queued;
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public double getAverageBatchSize() {
+        long b = batches.sum();
+        return b == 0 ? 0 : (double) records.sum() / b;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getSyncs() {
+        return syncs.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * Latencia media de commit (de submit a durable), en milisegundos.
+     */
+    public double getAverageCommitMillis() {
+        long c = commits.sum();
+        return c == 0 ? 0 : commitNanos.sum() / 1e6 / c;
+    }
+
+    public double getMaxCommitMillis() {
+        return maxCommitNanos / 1e6;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+}
@@ -0,0 +1,227 @@
+package protocol;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Codificación de {@link Frame} en el cable (big-endian):
+ * <pre>
+ * trama  := u32 longitud | cuerpo            (longitud = bytes del cuerpo)
+ * cuerpo := u8 tipo [str8 nombreTipo si tipo == 0] u16 numCampos campo*
+ * campo  := u8 clase str8 clave valor
+ *   clase 1 texto : u32 len + UTF-8
+ *   clase 2 bytes : u32 len + bytes crudos
+ *   clase 3 long  : i64
+ *   clase 4 bool  : u8
+ * str8   := u8 len + UTF-8
+ * </pre>
+ * Los tipos conocidos viajan como un código de un byte; el resto con código 0 y su nombre.
+ */
+public final class BinaryCodec {
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private static final byte KIND_STRING = 1;
+    private static final byte KIND_BYTES = 2;
+    private static final byte KIND_LONG = 3;
+    private static final byte KIND_BOOL = 4;
+
+    private static final String[] TYPES = {
+            null,
+            // comandos del cliente
+            "login", "logout", "private_message", "group_message", "create_group", "join_group",
+            "get_online_users", "get_groups", "get_history", "call_start", "call_accept", "call_end",
+            "audio_message", "get_stats",
+            // respuestas y notificaciones del servidor
+            "login_success", "login_error", "system_message", "message_sent", "group_created",
+            "join_group_success", "online_users", "groups_list", "history", "incoming_call",
+            "call_waiting", "call_accepted", "error", "stats",
+            // latidos (en ambos sentidos); los códigos nuevos se agregan siempre al final
+            "ping", "pong"
+    };
+    private static final Map<String, Integer> TYPE_CODES = new HashMap<>();
+
+    static {
+        for (int i = 1; i < TYPES.length; i++) TYPE_CODES.put(TYPES[i], i);
+    }
+
+    private BinaryCodec() {}
+
+    // =====================================================
+    // 📤 Codificación
+    // =====================================================
+
+    /**
+     * Codifica la trama completa (con prefijo de longitud) en un buffer listo para escribir.
+     * Se calcula primero el tamaño exacto y se escribe directo en un único arreglo.
+     */
+    public static ByteBuffer encode(Frame frame) {
+        return encode(frame, null, 0);
+    }
+
+    /**
+     * Como {@link #encode(Frame)}, pero la trama termina con un campo de bytes
+     * trailingKey de trailingLength bytes que no va en el buffer: el prefijo de
+     * longitud y la cabecera del campo ya lo cuentan, y quien escribe manda
+     * esos bytes a continuación (p.ej. con FileChannel.transferTo). Del otro
+     * lado se lee como una trama normal.
+     *
+     * @throws IllegalArgumentException si la trama no tiene tipo (solo los registros de historial, que van en texto)
+     */
+    public static ByteBuffer encode(Frame frame, String trailingKey, int trailingLength) {
+        if (frame.type() == null) {
+            throw new IllegalArgumentException("Una trama binaria necesita tipo");
+        }
+        Integer code = TYPE_CODES.get(frame.type());
+        byte[] typeName = code == null ? str8(frame.type()) : null;
+
+        int count = frame.size();
+        byte[] trailing = trailingKey == null ? null : str8(trailingKey);
+        byte[][] keys = new byte[count][];
+        byte[][] texts = new byte[count][];
+        int length = 1 + (typeName == null ? 0 : 1 + typeName.length) + 2;
+        for (int i = 0; i < count; i++) {
+            keys[i] = str8(frame.keyAt(i));
+            length += 1 + 1 + keys[i].length;
+            Object value = frame.valueAt(i);
+            if (value instanceof byte[] data) {
+                length += 4 + data.length;
+            } else if (value instanceof Long) {
+                length += 8;
+            } else if (value instanceof Boolean) {
+                length += 1;
+            } else {
+                texts[i] = value.toString().getBytes(StandardCharsets.UTF_8);
+                length += 4 + texts[i].length;
+            }
+        }
+        int header = length;
+        if (trailing != null) {
+            header += 1 + 1 + trailing.length + 4;
+            length = header + trailingLength;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + header);
+        buffer.putInt(length);
+        buffer.put((byte) (code == null ? 0 : code));
+        if (typeName != null) putStr8(buffer, typeName);
+        buffer.putShort((short) (trailing == null ? count : count + 1));
+        for (int i = 0; i < count; i++) {
+            Object value = frame.valueAt(i);
+            if (value instanceof byte[] data) {
+                buffer.put(KIND_BYTES);
+                putStr8(buffer, keys[i]);
+                buffer.putInt(data.length).put(data);
+            } else if (value instanceof Long l) {
+                buffer.put(KIND_LONG);
+                putStr8(buffer, keys[i]);
+                buffer.putLong(l);
+            } else if (value instanceof Boolean b) {
+                buffer.put(KIND_BOOL);
+                putStr8(buffer, keys[i]);
+                buffer.put((byte) (b ? 1 : 0));
+            } else {
+                buffer.put(KIND_STRING);
+                putStr8(buffer, keys[i]);
+                buffer.putInt(texts[i].length).put(texts[i]);
+            }
+        }
+        if (trailing != null) {
+            buffer.put(KIND_BYTES);
+            putStr8(buffer, trailing);
+            buffer.putInt(trailingLength);
+        }
+        return buffer.flip();
+    }
+
+    private static byte[] str8(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 255) throw new IllegalArgumentException("Clave demasiado larga: " + value);
+        return bytes;
+    }
+
+    private static void putStr8(ByteBuffer buffer, byte[] bytes) {
+        buffer.put((byte) bytes.length).put(bytes);
+    }
+
+    // =====================================================
+    // 📥 Decodificación
+    // =====================================================
+
+    /**
+     * Lee una trama completa de un stream bloqueante.
+     *
+     * @return la trama, o null si el stream terminó limpiamente entre tramas
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        checkLength(length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decode(ByteBuffer.wrap(body));
+    }
+
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Longitud de trama inválida: " + length);
+        }
+    }
+
+    /**
+     * Decodifica el cuerpo de una trama (sin el prefijo de longitud).
+     */
+    public static Frame decode(ByteBuffer body) throws IOException {
+        try {
+            int code = body.get() & 0xff;
+            String type;
+            if (code == 0) {
+                type = readStr8(body);
+            } else if (code < TYPES.length) {
+                type = TYPES[code];
+            } else {
+                throw new IOException("Tipo de trama desconocido: " + code);
+            }
+
+            Frame frame = new Frame(type);
+            int count = body.getShort() & 0xffff;
+            for (int i = 0; i < count; i++) {
+                byte kind = body.get();
+                String key = readStr8(body);
+                switch (kind) {
+                    case KIND_STRING -> frame.put(key, new String(readBlock(body), StandardCharsets.UTF_8));
+                    case KIND_BYTES -> frame.putBytes(key, readBlock(body));
+                    case KIND_LONG -> frame.putLong(key, body.getLong());
+                    case KIND_BOOL -> frame.putBoolean(key, body.get() != 0);
+                    default -> throw new IOException("Clase de campo desconocida: " + kind);
+                }
+            }
+            return frame;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Trama truncada");
+        }
+    }
+
+    private static String readStr8(ByteBuffer body) {
+        byte[] bytes = new byte[body.get() & 0xff];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBlock(ByteBuffer body) throws IOException {
+        int length = body.getInt();
+        if (length < 0 || length > body.remaining()) throw new IOException("Campo truncado");
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,46 @@
+package protocol;
+
+/**
+ * Vista de solo lectura sobre un comando recibido, venga de una línea de
+ * texto ({@link TextCommand}) o de una trama binaria ({@link Frame}).
+ * Los handlers de MainServer trabajan contra esta interfaz sin saber el formato.
+ */
+public interface Command {
+
+    String type();
+
+    /**
+     * Valor del campo como texto, o null si no existe.
+     */
+    String get(String key);
+
+    default boolean has(String key) {
+        return get(key) != null;
+    }
+
+    /**
+     * true si el campo existe y vale exactamente expected.
+     */
+    default boolean is(String key, String expected) {
+        return expected.equals(get(key));
+    }
+
+    default boolean getBoolean(String key) {
+        return Boolean.parseBoolean(get(key));
+    }
+
+    default long getLong(String key, long fallback) {
+        String value = get(key);
+        if (value == null) return fallback;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    default int getInt(String key, int fallback) {
+        long value = getLong(key, fallback);
+        return value > Integer.MAX_VALUE || value < Integer.MIN_VALUE ? fallback : (int) value;
+    }
+}
@@ -0,0 +1,127 @@
+package protocol;
+
+import java.util.Arrays;
+
+/**
+ * Mensaje del protocolo: un tipo y campos tipados (texto, bytes crudos,
+ * enteros de 64 bits y booleanos), en orden de inserción.
+ *
+ * Es a la vez el builder de las respuestas del servidor (en lugar de
+ * String.format) y la forma decodificada de una trama binaria. Los campos
+ * se guardan en dos arreglos paralelos, sin mapa por mensaje; con los
+ * pocos campos de cada comando la búsqueda lineal es lo más barato.
+ * Se codifica con {@link TextCodec} o {@link BinaryCodec} según la conexión.
+ */
+public class Frame implements Command, java.io.Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String type;
+    private String[] keys = new String[6];
+    private Object[] values = new Object[6];
+    private int size;
+
+    /**
+     * @param type tipo del mensaje, o null para registros sin campo "type" (historial)
+     */
+    public Frame(String type) {
+        this.type = type;
+    }
+
+    @Override
+    public String type() { return type; }
+
+    public int size() { return size; }
+    public String keyAt(int index) { return keys[index]; }
+    public Object valueAt(int index) { return values[index]; }
+
+    // =====================================================
+    // 🧱 Construcción
+    // =====================================================
+
+    public Frame put(String key, String value) {
+        return value == null ? this : add(key, value);
+    }
+
+    public Frame putBytes(String key, byte[] value) {
+        return value == null ? this : add(key, value);
+    }
+
+    public Frame putLong(String key, long value) {
+        return add(key, value);
+    }
+
+    public Frame putBoolean(String key, boolean value) {
+        return add(key, value);
+    }
+
+    private Frame add(String key, Object value) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i].equals(key)) {
+                values[i] = value;
+                return this;
+            }
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        return this;
+    }
+
+    // =====================================================
+    // 📖 Lectura
+    // =====================================================
+
+    private Object value(String key) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i].equals(key)) return values[i];
+        }
+        return null;
+    }
+
+    /**
+     * Valor de un campo como texto (los enteros y booleanos se convierten;
+     * los campos de bytes no tienen representación de texto).
+     */
+    @Override
+    public String get(String key) {
+        if ("type".equals(key)) return type;
+        Object value = value(key);
+        if (value == null || value instanceof byte[]) return null;
+        return value.toString();
+    }
+
+    public String getString(String key) {
+        return get(key);
+    }
+
+    public byte[] getBytes(String key) {
+        return value(key) instanceof byte[] bytes ? bytes : null;
+    }
+
+    @Override
+    public long getLong(String key, long fallback) {
+        Object value = value(key);
+        if (value instanceof Long l) return l;
+        return Command.super.getLong(key, fallback);
+    }
+
+    @Override
+    public boolean getBoolean(String key) {
+        Object value = value(key);
+        if (value instanceof Boolean b) return b;
+        return Command.super.getBoolean(key);
+    }
+
+    public String toTextLine() {
+        return TextCodec.toLine(this, false);
+    }
+
+    @Override
+    public String toString() {
+        return toTextLine();
+    }
+}
@@ -0,0 +1,136 @@
+package protocol;
+
+import java.util.Arrays;
+
+/**
+ * Codificación de {@link Frame} como línea de texto "type:...|clave:valor".
+ *
+ * Las líneas se arman en un StringBuilder y un byte[] reutilizados por hilo
+ * y se codifican a UTF-8 a mano; la única reserva por mensaje es el byte[]
+ * final, que debe ser propio porque la escritura es asíncrona.
+ */
+public final class TextCodec {
+    // buffers más grandes que esto no se conservan entre mensajes
+    private static final int MAX_RETAINED = 64 * 1024;
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private static final class Scratch {
+        StringBuilder chars = new StringBuilder(256);
+        byte[] bytes = new byte[512];
+    }
+
+    private TextCodec() {}
+
+    /**
+     * Línea sin '\n'. Con escape = true los valores se escapan para poder
+     * guardarse en el historial y leerse con {@link TextCommand#parseEscaped}.
+     */
+    public static String toLine(Frame frame, boolean escape) {
+        Scratch scratch = SCRATCH.get();
+        StringBuilder sb = scratch.chars;
+        sb.setLength(0);
+        appendLine(frame, sb, escape);
+        String line = sb.toString();
+        release(scratch);
+        return line;
+    }
+
+    public static void appendLine(Frame frame, StringBuilder sb, boolean escape) {
+        boolean first = true;
+        if (frame.type() != null) {
+            sb.append("type:").append(frame.type());
+            first = false;
+        }
+        for (int i = 0; i < frame.size(); i++) {
+            Object value = frame.valueAt(i);
+            if (value instanceof byte[]) continue;
+            if (!first) sb.append('|');
+            first = false;
+            sb.append(frame.keyAt(i)).append(':');
+            if (value instanceof String s) {
+                if (escape) appendEscaped(sb, s); else sb.append(s);
+            } else if (value instanceof Long l) {
+                sb.append(l.longValue());
+            } else if (value instanceof Boolean b) {
+                sb.append(b.booleanValue());
+            } else {
+                sb.append(value);
+            }
+        }
+    }
+
+    private static void appendEscaped(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '|' -> sb.append("\\|");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                default -> sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * Línea de red lista para escribir: UTF-8 terminada en '\n'.
+     */
+    public static byte[] encodeLine(Frame frame) {
+        Scratch scratch = SCRATCH.get();
+        StringBuilder sb = scratch.chars;
+        sb.setLength(0);
+        appendLine(frame, sb, false);
+        byte[] bytes = encodeUtf8Line(scratch, sb);
+        release(scratch);
+        return bytes;
+    }
+
+    /**
+     * Igual que {@link #encodeLine(Frame)} para un texto ya armado.
+     */
+    public static byte[] encodeLine(CharSequence text) {
+        Scratch scratch = SCRATCH.get();
+        byte[] bytes = encodeUtf8Line(scratch, text);
+        release(scratch);
+        return bytes;
+    }
+
+    private static byte[] encodeUtf8Line(Scratch scratch, CharSequence text) {
+        int length = text.length();
+        // peor caso: 3 bytes por char (los pares sustitutos usan 4 bytes para 2 chars)
+        if (scratch.bytes.length < length * 3 + 1) {
+            scratch.bytes = new byte[length * 3 + 1];
+        }
+        byte[] out = scratch.bytes;
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xC0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                out[pos++] = (byte) (0xF0 | (cp >> 18));
+                out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out[pos++] = '?';
+            } else {
+                out[pos++] = (byte) (0xE0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        out[pos++] = '\n';
+        return Arrays.copyOf(out, pos);
+    }
+
+    private static void release(Scratch scratch) {
+        if (scratch.chars.capacity() > MAX_RETAINED) scratch.chars = new StringBuilder(256);
+        if (scratch.bytes.length > MAX_RETAINED * 3) scratch.bytes = new byte[512];
+    }
+}
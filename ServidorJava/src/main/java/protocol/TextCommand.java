@@ -0,0 +1,178 @@
+package protocol;
+
+/**
+ * Comando en formato de texto "clave:valor|clave:valor" leído en el sitio:
+ * no hay split, regex ni mapa; cada consulta recorre la línea buscando la
+ * clave y solo se crea un String para el valor que se pide.
+ *
+ * En modo escapado (registros de historial) '\' escapa el carácter siguiente,
+ * de modo que el contenido puede llevar '|', ':' y saltos de línea.
+ */
+public final class TextCommand implements Command {
+    private final String line;
+    private final boolean escaped;
+    private String type;
+
+    private TextCommand(String line, boolean escaped) {
+        this.line = line;
+        this.escaped = escaped;
+    }
+
+    /**
+     * Comando del protocolo de red (sin escapes, compatible con el proxy Node).
+     */
+    public static TextCommand parse(String line) {
+        return new TextCommand(line, false);
+    }
+
+    /**
+     * Registro con escapes, como los que escribe {@link TextCodec} con escape = true.
+     */
+    public static TextCommand parseEscaped(String line) {
+        return new TextCommand(line, true);
+    }
+
+    public String getLine() {
+        return line;
+    }
+
+    @Override
+    public String type() {
+        if (type == null) type = get("type");
+        return type;
+    }
+
+    @Override
+    public String get(String key) {
+        int start = valueStart(key);
+        if (start < 0) return null;
+        return value(start, fieldEnd(start));
+    }
+
+    private String value(int start, int end) {
+        if (escaped) {
+            int backslash = line.indexOf('\\', start);
+            if (backslash >= 0 && backslash < end) return unescape(start, end);
+        }
+        return line.substring(start, end);
+    }
+
+    @Override
+    public boolean has(String key) {
+        return valueStart(key) >= 0;
+    }
+
+    @Override
+    public boolean is(String key, String expected) {
+        int start = valueStart(key);
+        if (start < 0) return false;
+        int end = fieldEnd(start);
+        return end - start == expected.length() && line.regionMatches(start, expected, 0, expected.length());
+    }
+
+    @Override
+    public boolean getBoolean(String key) {
+        int start = valueStart(key);
+        if (start < 0) return false;
+        return fieldEnd(start) - start == 4 && line.regionMatches(true, start, "true", 0, 4);
+    }
+
+    @Override
+    public long getLong(String key, long fallback) {
+        int start = valueStart(key);
+        if (start < 0) return fallback;
+        int end = fieldEnd(start);
+        while (start < end && line.charAt(start) == ' ') start++;
+        while (end > start && line.charAt(end - 1) == ' ') end--;
+        if (start == end) return fallback;
+
+        boolean negative = line.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end) return fallback;
+        long value = 0;
+        for (; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9' || value > (Long.MAX_VALUE - (c - '0')) / 10) return fallback;
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Todos los campos como {@link Frame} (todos de texto), para reenviar por
+     * una conexión binaria un mensaje que se armó como línea.
+     */
+    public Frame toFrame() {
+        Frame frame = new Frame(type());
+        int length = line.length();
+        int fieldStart = 0;
+        while (fieldStart < length) {
+            int end = fieldEnd(fieldStart);
+            int colon = line.indexOf(':', fieldStart);
+            if (colon > fieldStart && colon < end) {
+                String key = line.substring(fieldStart, colon);
+                if (!"type".equals(key)) frame.put(key, value(colon + 1, end));
+            }
+            fieldStart = end + 1;
+        }
+        return frame;
+    }
+
+    // =====================================================
+    // 🔍 Recorrido de la línea
+    // =====================================================
+
+    /**
+     * Posición donde empieza el valor de key, o -1 si no está.
+     */
+    private int valueStart(String key) {
+        int length = line.length();
+        int keyLength = key.length();
+        int fieldStart = 0;
+        while (fieldStart < length) {
+            int colon = fieldStart + keyLength;
+            if (colon < length && line.charAt(colon) == ':' && line.startsWith(key, fieldStart)) {
+                return colon + 1;
+            }
+            fieldStart = fieldEnd(fieldStart) + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Posición del siguiente separador '|' (no escapado) desde from, o el fin de la línea.
+     */
+    private int fieldEnd(int from) {
+        int length = line.length();
+        for (int i = from; i < length; i++) {
+            char c = line.charAt(i);
+            if (c == '|') return i;
+            if (c == '\\' && escaped) i++;
+        }
+        return length;
+    }
+
+    private String unescape(int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c != '\\' || i + 1 >= end) {
+                sb.append(c);
+                continue;
+            }
+            char next = line.charAt(++i);
+            switch (next) {
+                case 'n' -> sb.append('\n');
+                case 'r' -> sb.append('\r');
+                case '|', ':', '\\' -> sb.append(next);
+                default -> sb.append('\\').append(next);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return line;
+    }
+}
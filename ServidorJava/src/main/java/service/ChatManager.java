@@ -4,56 +4,147 @@ import model.User;
 import model.Group;
 import model.Message;
 import model.AudioMessage;
+import network.TCPConnection;
+import persistence.BlobHandle;
+import persistence.BlobStore;
 import persistence.ChatHistory;
-
+import persistence.GroupStore;
+import persistence.HistoryCache;
+import persistence.HistoryPage;
+import persistence.OfflineInbox;
+import persistence.SearchIndex;
+import persistence.WriteAheadLog;
+import persistence.WriteBehindPipeline;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Estado compartido del chat (usuarios en línea, grupos e historial).
+ *
+ * Nota de concurrencia: MainServer ya no serializa los comandos con un
+ * lock global; los reparte con {@link CommandDispatcher} en shards de un
+ * hilo por conversación. Por eso esta clase se usa desde varios hilos:
+ * - Los usuarios en línea viven en {@link SessionRegistry} (único registro
+ *   usuario ↔ conexión); login usa putIfAbsent para que dos logins
+ *   simultáneos con el mismo nombre no entren ambos. groups es el mapa
+ *   concurrente de {@link GroupStore}, que además guarda cada alta, unión y
+ *   salida en su diario, así los grupos sobreviven a un reinicio.
+ * - Los miembros de cada {@link Group} son un set concurrente: se modifican
+ *   en el shard del grupo pero se leen desde cualquier shard (llamadas,
+ *   getUserGroups), y la iteración nunca lanza ConcurrentModificationException.
+ * - Crear/unirse/salir de un grupo se ordena por el shard del grupo, así que
+ *   check-then-act sobre un mismo grupo no compite consigo mismo.
+ * - {@link ChatHistory} agrega a un log por conversación, con un lock por
+ *   franja de conversaciones y un WAL compartido. La E/S de disco no corre en
+ *   los shards: los mensajes se guardan en segundo plano con
+ *   {@link WriteBehindPipeline} y la entrega no espera al disco.
+ * - Lo que no se pudo entregar porque el destinatario no estaba en línea se
+ *   anota (como referencia al historial) en su {@link OfflineInbox} y se
+ *   entrega en lotes al iniciar sesión.
+ * - Los objetos {@link Message} son inmutables y se pueden compartir.
+ */
 public class ChatManager {
-    private Map<String, User> onlineUsers;
-    private Map<String, Group> groups;
+    private static final String GROUPS_DIR = "data/groups/";
+    private static final String INBOX_DIR = "data/inbox/";
+
+    private final SessionRegistry sessions;
+    private final GroupStore groupStore;
+    private final Map<String, Group> groups;
     private ChatHistory chatHistory;
+    private final OfflineInbox inbox;
+    private final WriteBehindPipeline persistence;
+    private final HistoryCache historyCache;
 
     public ChatManager() {
-        this.onlineUsers = new ConcurrentHashMap<>();
-        this.groups = new ConcurrentHashMap<>();
+        this.sessions = new SessionRegistry();
+        this.groupStore = openGroups();
+        this.groups = groupStore.getGroups();
         this.chatHistory = new ChatHistory();
+        this.inbox = OfflineInbox.fromSystemProperties(Paths.get(INBOX_DIR), chatHistory);
+        this.persistence = WriteBehindPipeline.fromSystemProperties(chatHistory, inbox);
+        this.historyCache = HistoryCache.fromSystemProperties();
+    }
+
+    private static GroupStore openGroups() {
+        try {
+            return GroupStore.fromSystemProperties(Paths.get(GROUPS_DIR));
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudieron cargar los grupos", e);
+        }
     }
 
     public boolean loginUser(String username) {
+        return login(username, null) != null;
+    }
+
+    /**
+     * Autentica username sobre la conexión y abre su sesión.
+     *
+     * @return la sesión, o null si el nombre es inválido, ya está en uso o la conexión ya inició sesión
+     */
+    public Session login(String username, TCPConnection connection) {
         if (username == null || username.trim().isEmpty()) {
-            return false;
+            return null;
         }
 
         String cleanUsername = username.trim();
 
-        if (onlineUsers.containsKey(cleanUsername)) {
-            return false;
+        Session session = sessions.bind(cleanUsername, connection);
+        if (session == null) {
+            return null;
         }
-
-        User user = new User(cleanUsername);
-        onlineUsers.put(cleanUsername, user);
         System.out.println("Usuario conectado: " + cleanUsername);
-        return true;
+        return session;
     }
 
     public void logoutUser(String username) {
         if (username != null) {
-            onlineUsers.remove(username);
+            sessions.unbind(username);
             System.out.println("Usuario desconectado: " + username);
         }
     }
 
+    /**
+     * Cierra la sesión de la conexión en O(1).
+     *
+     * @return la sesión cerrada, o null si la conexión no había iniciado sesión
+     */
+    public Session logout(TCPConnection connection) {
+        Session session = sessions.unbind(connection);
+        if (session != null) {
+            System.out.println("Usuario desconectado: " + session.getUsername());
+        }
+        return session;
+    }
+
     public boolean isUserOnline(String username) {
-        return onlineUsers.containsKey(username);
+        return sessions.isOnline(username);
     }
 
     public List<String> getOnlineUsers() {
-        return new ArrayList<>(onlineUsers.keySet());
+        return sessions.getUsernames();
     }
 
     public User getUser(String username) {
-        return onlineUsers.get(username);
+        Session session = sessions.get(username);
+        return session == null ? null : session.getUser();
+    }
+
+    public SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    /**
+     * Vacía y sincroniza lo pendiente de guardar y después cierra el historial.
+     */
+    public void close() {
+        persistence.close();
+        chatHistory.close();
     }
 
     public boolean createGroup(String groupName, String creator) {
@@ -73,8 +164,10 @@ public class ChatManager {
             return false;
         }
 
-        Group group = new Group(cleanGroupName, creator);
-        groups.put(cleanGroupName, group);
+        if (!groupStore.create(cleanGroupName, creator)) {
+            System.out.println("Grupo ya existe: " + cleanGroupName);
+            return false;
+        }
         System.out.println("Grupo creado: " + cleanGroupName + " por " + creator);
         return true;
     }
@@ -95,7 +188,7 @@ public class ChatManager {
             return false;
         }
 
-        boolean success = group.addMember(username);
+        boolean success = groupStore.join(groupName, username);
         if (success) {
             System.out.println("Usuario " + username + " se unió al grupo " + groupName);
         } else {
@@ -114,12 +207,11 @@ public class ChatManager {
             return false;
         }
 
-        boolean success = group.removeMember(username);
+        boolean success = groupStore.leave(groupName, username);
         if (success) {
             System.out.println("Usuario " + username + " abandonó el grupo " + groupName);
 
-            if (group.getMemberCount() == 0) {
-                groups.remove(groupName);
+            if (!groups.containsKey(groupName)) {
                 System.out.println("Grupo eliminado por estar vacío: " + groupName);
             }
         }
@@ -146,32 +238,91 @@ public class ChatManager {
         return groups.get(groupName);
     }
 
-    public void saveTextMessage(Message message) {
-        if (message != null) {
-            chatHistory.saveMessage(message);
-            System.out.println("Mensaje guardado: " + message.getFrom() + " -> " + message.getTo());
+    /**
+     * Encola el mensaje para guardarlo sin esperar al disco.
+     *
+     * @return futuro que se completa cuando el mensaje es durable
+     */
+    public CompletableFuture<Void> saveTextMessage(Message message) {
+        return saveTextMessage(message, seq -> List.of());
+    }
+
+    /**
+     * Igual que {@link #saveTextMessage(Message)}, entregándolo antes con
+     * delivery, que recibe la secuencia del mensaje en su conversación y
+     * devuelve los destinatarios que no estaban en línea (el mensaje queda en
+     * su bandeja). Ver {@link WriteBehindPipeline#submit(Message, WriteBehindPipeline.Delivery)}.
+     */
+    public CompletableFuture<Void> saveTextMessage(Message message, WriteBehindPipeline.Delivery delivery) {
+        if (message == null) {
+            return CompletableFuture.completedFuture(null);
         }
+        String key = historyKey(message.getTo(), message.isGroupMessage());
+        CompletableFuture<Void> saved = persistence.submit(message, seq -> {
+            // dentro del orden de secuencias: la caché queda en el mismo orden que el log
+            historyCache.append(key, message);
+            return delivery.deliver(seq);
+        });
+        saved.thenRun(() -> System.out.println("Mensaje guardado: " + message.getFrom() + " -> " + message.getTo()));
+        return saved;
+    }
+
+    public CompletableFuture<Void> saveAudioMessage(AudioMessage audioMessage) {
+        return saveAudioMessage(audioMessage, seq -> List.of());
     }
 
-    public void saveAudioMessage(AudioMessage audioMessage) {
-        if (audioMessage != null) {
-            chatHistory.saveAudioMessage(audioMessage);
-            System.out.println("Audio guardado: " + audioMessage.getFrom() + " -> " + audioMessage.getTo() +
-                    " (" + audioMessage.getAudioSize() + " bytes)");
+    public CompletableFuture<Void> saveAudioMessage(AudioMessage audioMessage, WriteBehindPipeline.Delivery delivery) {
+        if (audioMessage == null) {
+            return CompletableFuture.completedFuture(null);
         }
+        CompletableFuture<Void> saved = persistence.submit(audioMessage, delivery);
+        saved.thenRun(() -> System.out.println("Audio guardado: " + audioMessage.getFrom() + " -> " + audioMessage.getTo() +
+                " (" + audioMessage.getAudioSize() + " bytes)"));
+        return saved;
     }
 
+    /**
+     * Últimos mensajes de la conversación (como mucho chat.history.cacheMessages),
+     * servidos desde {@link HistoryCache}; el disco se lee una vez por conversación.
+     */
     public List<Message> getMessageHistory(String target, boolean isGroup) {
         if (target == null) {
             return new ArrayList<>();
         }
-        return chatHistory.loadMessages(target, isGroup);
+        return historyCache.get(historyKey(target, isGroup), () -> {
+            persistence.awaitAppended(target, isGroup);
+            // solo la cola que entra en caché: no se decodifica el resto del log
+            return chatHistory.loadPage(target, isGroup, null, null, historyCache.getMaxMessages()).getMessages();
+        });
+    }
+
+    /**
+     * Página del historial leída directo del log (ver {@link ChatHistory#loadPage}).
+     */
+    public HistoryPage getMessagePage(String target, boolean isGroup, Long before, Long after, int limit) {
+        persistence.awaitAppended(target, isGroup);
+        return chatHistory.loadPage(target, isGroup, before, after, limit);
+    }
+
+    /**
+     * Busca en los mensajes que el usuario puede ver: sus grupos y sus privados.
+     */
+    public List<Message> searchMessages(String username, String query, int limit) {
+        if (username == null || query == null) {
+            return new ArrayList<>();
+        }
+        return chatHistory.search(query, username, getUserGroups(username), limit);
+    }
+
+    private static String historyKey(String target, boolean isGroup) {
+        return (isGroup ? "#" : "@") + target;
     }
 
     public List<AudioMessage> getAudioMessageHistory(String target, boolean isGroup) {
         if (target == null) {
             return new ArrayList<>();
         }
+        persistence.awaitAppended(target, isGroup);
         return chatHistory.loadAudioMessages(target, isGroup);
     }
 
@@ -179,8 +330,54 @@ public class ChatManager {
         return chatHistory.loadAudioData(audioId);
     }
 
+    public BlobHandle openAudio(String audioId) throws IOException {
+        return chatHistory.openAudio(audioId);
+    }
+
+    public WriteBehindPipeline getPersistence() {
+        return persistence;
+    }
+
+    public HistoryCache getHistoryCache() {
+        return historyCache;
+    }
+
+    public SearchIndex getSearchIndex() {
+        return chatHistory.getSearchIndex();
+    }
+
+    public BlobStore getBlobStore() {
+        return chatHistory.getBlobStore();
+    }
+
+    public WriteAheadLog getWriteAheadLog() {
+        return chatHistory.getWriteAheadLog();
+    }
+
+    /**
+     * Entrega a sink, en lotes y con su secuencia, lo que llegó a username
+     * mientras estaba desconectado. Antes espera a que quede escrito lo ya
+     * encolado en sus conversaciones (sus privados y sus grupos), para no
+     * dejar afuera un mensaje enviado justo antes del login.
+     *
+     * @return mensajes entregados
+     */
+    public int deliverInbox(String username, ObjLongConsumer<Message> sink) {
+        persistence.awaitAppended((target, isGroup) ->
+                isGroup ? isUserInGroup(username, target) : target.equals(username));
+        return inbox.drain(username, sink);
+    }
+
+    public OfflineInbox getInbox() {
+        return inbox;
+    }
+
+    public GroupStore getGroupStore() {
+        return groupStore;
+    }
+
     public int getOnlineUserCount() {
-        return onlineUsers.size();
+        return sessions.size();
     }
 
     public int getGroupCount() {
@@ -191,14 +388,14 @@ public class ChatManager {
         Map<String, Object> status = new HashMap<>();
         status.put("onlineUsers", getOnlineUserCount());
         status.put("activeGroups", getGroupCount());
-        status.put("totalUsers", onlineUsers.size());
+        status.put("totalUsers", sessions.size());
         status.put("totalGroups", groups.size());
         return status;
     }
 
     public void clearAllData() {
-        onlineUsers.clear();
-        groups.clear();
+        sessions.clear();
+        groupStore.clear();
         System.out.println("Todos los datos han sido limpiados");
     }
 
@@ -0,0 +1,70 @@
+package service;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reparte tareas entre un número fijo de executors de un solo hilo.
+ * Cada tarea lleva una clave (conversación, grupo o conexión); las tareas
+ * con la misma clave caen siempre en el mismo shard y se ejecutan en orden,
+ * mientras que claves distintas avanzan en paralelo.
+ */
+public class CommandDispatcher {
+    private final ExecutorService[] shards;
+
+    public CommandDispatcher(int shardCount) {
+        this.shards = new ExecutorService[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            String name = "dispatch-" + i;
+            shards[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public void dispatch(Object key, Runnable task) {
+        shards[shardOf(key)].execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("💥 Error procesando comando (" + key + "): " + e.getMessage());
+            }
+        });
+    }
+
+    public int shardOf(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % shards.length;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Clave de una conversación privada: igual para (a, b) y (b, a).
+     */
+    public static String pairKey(String a, String b) {
+        return a.compareTo(b) <= 0 ? a + "\u0000" + b : b + "\u0000" + a;
+    }
+
+    public static String groupKey(String groupName) {
+        return "#" + groupName;
+    }
+
+    public void shutdown() {
+        for (ExecutorService shard : shards) shard.shutdown();
+        for (ExecutorService shard : shards) {
+            try {
+                shard.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package service;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Temporizador de rueda (hashed wheel) para muchísimos plazos de baja precisión,
+ * como los de inactividad de cada conexión.
+ *
+ * La rueda tiene N casillas que un único hilo recorre a razón de una por tick.
+ * Programar solo encola el plazo (O(1), sin lock) y el hilo lo deja en su
+ * casilla en el siguiente tick; cancelar marca el plazo y el hilo lo saca de
+ * su lista doblemente enlazada, también en O(1). Los plazos que dan más de
+ * una vuelta llevan la cuenta de vueltas restantes.
+ *
+ * Las tareas corren en el hilo de la rueda y deben ser cortas: lo habitual
+ * es que solo reenvíen el trabajo a otro executor.
+ */
+public class HashedWheelTimer {
+    // tope de plazos nuevos que se ubican por tick, para no frenar la rueda
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong scheduled = new AtomicLong();
+    private final LongSupplier nanoTime;
+    private final long startTime;
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long tick; // solo lo toca el hilo de la rueda
+
+    /**
+     * @param tickDuration resolución de la rueda
+     * @param ticksPerWheel casillas (se redondea a potencia de dos)
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this(tickDuration, unit, ticksPerWheel, System::nanoTime, true);
+    }
+
+    /**
+     * Con startWorker en false no hay hilo: la rueda solo avanza cuando se
+     * llama a {@link #runDueTicks}, según nanoTime (para pruebas con reloj falso).
+     */
+    HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel, LongSupplier nanoTime, boolean startWorker) {
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) wheel[i] = new Bucket();
+        this.mask = size - 1;
+        this.nanoTime = nanoTime;
+        this.startTime = nanoTime.getAsLong();
+        if (startWorker) {
+            this.worker = new Thread(this::run, "wheel-timer");
+            this.worker.setDaemon(true);
+            this.worker.start();
+        } else {
+            this.worker = null;
+        }
+    }
+
+    /**
+     * Programa task para dentro de delay. No bloquea ni toma locks.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = nanoTime.getAsLong() - startTime + Math.max(0, unit.toNanos(delay));
+        Timeout timeout = new Timeout(this, task, deadline);
+        scheduled.incrementAndGet();
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Plazos programados que aún no vencieron ni se cancelaron.
+     */
+    public long getPendingCount() {
+        return scheduled.get();
+    }
+
+    public void stop() {
+        running = false;
+        if (worker != null) worker.interrupt();
+    }
+
+    // =====================================================
+    // ⚙️ Hilo de la rueda
+    // =====================================================
+
+    private void run() {
+        while (running) {
+            long deadline = waitForNextTick();
+            if (deadline < 0) continue;
+            processTick(deadline);
+        }
+    }
+
+    /**
+     * Procesa los ticks que ya terminaron según el reloj, sin esperar. Solo
+     * para una rueda sin hilo propio.
+     */
+    void runDueTicks() {
+        long now = nanoTime.getAsLong() - startTime;
+        while (tickNanos * (tick + 1) <= now) processTick(tickNanos * (tick + 1));
+    }
+
+    private void processTick(long deadline) {
+        removeCancelled();
+        transferPending();
+        wheel[(int) (tick & mask)].expire(deadline);
+        tick++;
+    }
+
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long sleepNanos = deadline - (nanoTime.getAsLong() - startTime);
+            if (sleepNanos <= 0) return deadline;
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+                if (!running) return -1;
+            }
+        }
+    }
+
+    private void transferPending() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = pending.poll();
+            if (timeout == null) return;
+            if (timeout.state != Timeout.ST_INIT) continue;
+
+            long calculated = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            // un plazo ya vencido va a la casilla actual
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+
+    // =====================================================
+    // ⏱️ Plazos
+    // =====================================================
+
+    public static final class Timeout {
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = ST_INIT;
+
+        // solo los toca el hilo de la rueda
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout prev;
+        private Bucket bucket;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return true si se canceló antes de vencer
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) return false;
+            timer.scheduled.decrementAndGet();
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == ST_EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) return;
+            timer.scheduled.decrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("💥 Error en tarea del temporizador: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Casilla de la rueda: lista doblemente enlazada, solo la toca el hilo de la rueda.
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (timeout.deadline <= deadline) timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) return;
+            if (timeout.prev != null) timeout.prev.next = timeout.next; else head = timeout.next;
+            if (timeout.next != null) timeout.next.prev = timeout.prev; else tail = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
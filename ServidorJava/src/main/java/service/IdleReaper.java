@@ -0,0 +1,169 @@
+package service;
+
+import network.TCPConnection;
+import protocol.Frame;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Cierra las conexiones que llevan demasiado tiempo sin enviar nada
+ * (sockets medio abiertos de proxies caídos, clientes colgados).
+ *
+ * Cada conexión tiene un único plazo en la {@link HashedWheelTimer}, fijado
+ * para cuando vencería su inactividad. Recibir mensajes no toca el plazo:
+ * la conexión solo actualiza su última actividad y, al vencer, el plazo
+ * se reprograma por el tiempo que falte. Así el costo por mensaje es cero
+ * y el de la rueda es O(1) por conexión y por vencimiento.
+ *
+ * A las sesiones que usan latidos (enviaron "type:ping") se les manda un
+ * "type:ping" al pasar pingAfter sin actividad; su "type:pong" cuenta como actividad.
+ * Los clientes que no conocen los latidos (proxy HTTP) nunca reciben pings.
+ */
+public class IdleReaper {
+    private static final long[] IDLE_BUCKETS_MS = {1_000, 10_000, 60_000, 600_000};
+    private static final String[] IDLE_BUCKET_NAMES = {"lt1s", "lt10s", "lt1m", "lt10m", "ge10m"};
+
+    private final HashedWheelTimer timer;
+    private final CommandDispatcher dispatcher;
+    private final SessionRegistry sessions;
+    private final long idleTimeoutMs;
+    private final long pingAfterMs;
+    // epoch ms, como TCPConnection#getLastActivity
+    private final LongSupplier clock;
+    private final Map<TCPConnection, HashedWheelTimer.Timeout> timeouts = new ConcurrentHashMap<>();
+
+    private final LongAdder reaped = new LongAdder();
+    private final LongAdder pingsSent = new LongAdder();
+
+    /**
+     * @param idleTimeoutMs inactividad tras la que se cierra la conexión (0 desactiva)
+     * @param pingAfterMs   inactividad tras la que se envía un ping a sesiones con latidos
+     */
+    public IdleReaper(HashedWheelTimer timer, CommandDispatcher dispatcher, SessionRegistry sessions,
+                      long idleTimeoutMs, long pingAfterMs) {
+        this(timer, dispatcher, sessions, idleTimeoutMs, pingAfterMs, System::currentTimeMillis);
+    }
+
+    IdleReaper(HashedWheelTimer timer, CommandDispatcher dispatcher, SessionRegistry sessions,
+               long idleTimeoutMs, long pingAfterMs, LongSupplier clock) {
+        this.clock = clock;
+        this.timer = timer;
+        this.dispatcher = dispatcher;
+        this.sessions = sessions;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.pingAfterMs = pingAfterMs;
+    }
+
+    /**
+     * Lee -Dchat.idle.timeoutMs (por defecto 10 min, 0 desactiva),
+     * -Dchat.idle.pingMs (por defecto la mitad) y -Dchat.timer.tickMs (por defecto 100).
+     */
+    public static IdleReaper fromSystemProperties(CommandDispatcher dispatcher, SessionRegistry sessions) {
+        long timeout = Long.getLong("chat.idle.timeoutMs", 600_000);
+        long ping = Long.getLong("chat.idle.pingMs", timeout / 2);
+        long tick = Long.getLong("chat.timer.tickMs", 100);
+        HashedWheelTimer timer = new HashedWheelTimer(tick, TimeUnit.MILLISECONDS, 512);
+        return new IdleReaper(timer, dispatcher, sessions, timeout, ping);
+    }
+
+    public boolean isEnabled() {
+        return idleTimeoutMs > 0;
+    }
+
+    public void track(TCPConnection connection) {
+        if (!isEnabled()) return;
+        timeouts.put(connection, schedule(connection, firstDelay()));
+    }
+
+    public void untrack(TCPConnection connection) {
+        HashedWheelTimer.Timeout timeout = timeouts.remove(connection);
+        if (timeout != null) timeout.cancel();
+    }
+
+    private long firstDelay() {
+        return pingAfterMs > 0 ? Math.min(pingAfterMs, idleTimeoutMs) : idleTimeoutMs;
+    }
+
+    private HashedWheelTimer.Timeout schedule(TCPConnection connection, long delayMs) {
+        // la revisión corre en el shard de la conexión, ordenada con login/desconexión
+        return timer.schedule(() -> dispatcher.dispatch(connection, () -> check(connection)),
+                Math.max(1, delayMs), TimeUnit.MILLISECONDS);
+    }
+
+    private void check(TCPConnection connection) {
+        if (!timeouts.containsKey(connection)) return;
+        if (!connection.isConnected()) {
+            untrack(connection);
+            return;
+        }
+
+        long idle = clock.getAsLong() - connection.getLastActivity();
+        if (idle >= idleTimeoutMs) {
+            reaped.increment();
+            untrack(connection);
+            System.out.println("💤 Conexión inactiva " + idle + " ms, cerrando: " + connection.getRemoteAddress());
+            connection.disconnect();
+            return;
+        }
+
+        long next = idleTimeoutMs - idle;
+        if (pingAfterMs > 0 && idle >= pingAfterMs) {
+            Session session = sessions.get(connection);
+            if (session != null && session.usesHeartbeat()) {
+                pingsSent.increment();
+                connection.sendObject(new Frame("ping"));
+            }
+        } else if (pingAfterMs > 0) {
+            next = pingAfterMs - idle;
+        }
+
+        HashedWheelTimer.Timeout rescheduled = schedule(connection, next);
+        if (timeouts.computeIfPresent(connection, (c, old) -> rescheduled) == null) {
+            // se desconectó mientras tanto
+            rescheduled.cancel();
+        }
+    }
+
+    // =====================================================
+    // 📊 Métricas
+    // =====================================================
+
+    public long getReaped() {
+        return reaped.sum();
+    }
+
+    public long getPingsSent() {
+        return pingsSent.sum();
+    }
+
+    public int getTracked() {
+        return timeouts.size();
+    }
+
+    /**
+     * Distribución de la inactividad actual de las sesiones abiertas,
+     * como "lt1s=n,lt10s=n,lt1m=n,lt10m=n,ge10m=n".
+     */
+    public String idleDistribution(Collection<Session> openSessions) {
+        long now = clock.getAsLong();
+        int[] counts = new int[IDLE_BUCKET_NAMES.length];
+        for (Session session : openSessions) {
+            long idle = now - session.getLastActivity();
+            int bucket = 0;
+            while (bucket < IDLE_BUCKETS_MS.length && idle >= IDLE_BUCKETS_MS[bucket]) bucket++;
+            counts[bucket]++;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < counts.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(IDLE_BUCKET_NAMES[i]).append('=').append(counts[i]);
+        }
+        return sb.toString();
+    }
+}
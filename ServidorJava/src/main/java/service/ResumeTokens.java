@@ -0,0 +1,146 @@
+package service;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tokens para retomar una sesión después de que se cae la conexión (p.ej.
+ * el socket del proxy Node), sin volver a hacer login.
+ *
+ * El login entrega un token por usuario; mientras la sesión está abierta no
+ * vence, y al desconectarse sigue valiendo ttlMs. Un token nuevo para el
+ * mismo usuario invalida el anterior.
+ *
+ * El token también guarda el último cseq aceptado: el número que el cliente
+ * pone a cada mensaje que envía, creciente dentro de su sesión. Un reenvío
+ * con un cseq ya visto es un duplicado y se descarta.
+ */
+public class ResumeTokens {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int PURGE_EVERY = 1024;
+
+    private final long ttlMs;
+    private final Map<String, Entry> byToken = new ConcurrentHashMap<>();
+    private final Map<String, Entry> byUser = new ConcurrentHashMap<>();
+    private final AtomicLong issued = new AtomicLong();
+
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+
+    private static final class Entry {
+        final String token;
+        final String username;
+        final AtomicLong lastClientSeq = new AtomicLong();
+        // Long.MAX_VALUE mientras la sesión está abierta
+        volatile long expiresAt = Long.MAX_VALUE;
+
+        Entry(String token, String username) {
+            this.token = token;
+            this.username = username;
+        }
+    }
+
+    public ResumeTokens(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * -Dchat.session.resumeTtlMs (5 min): cuánto se puede retomar una sesión caída.
+     */
+    public static ResumeTokens fromSystemProperties() {
+        return new ResumeTokens(Long.getLong("chat.session.resumeTtlMs", 300_000));
+    }
+
+    /**
+     * Token nuevo para username (al hacer login), con el cseq en cero.
+     */
+    public String issue(String username) {
+        if (issued.incrementAndGet() % PURGE_EVERY == 0) purgeExpired();
+
+        byte[] bytes = new byte[18];
+        RANDOM.nextBytes(bytes);
+        Entry entry = new Entry(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), username);
+        byToken.put(entry.token, entry);
+        Entry previous = byUser.put(username, entry);
+        if (previous != null) byToken.remove(previous.token, previous);
+        return entry.token;
+    }
+
+    /**
+     * Toma la sesión del token para una conexión nueva.
+     *
+     * @return el usuario, o null si el token no existe o venció
+     */
+    public String resume(String token) {
+        Entry entry = token == null ? null : byToken.get(token);
+        if (entry == null || entry.expiresAt < System.currentTimeMillis()) return null;
+        entry.expiresAt = Long.MAX_VALUE;
+        resumed.increment();
+        return entry.username;
+    }
+
+    /**
+     * La conexión de username se cerró: su token vale ttlMs más.
+     */
+    public void detach(String username) {
+        Entry entry = byUser.get(username);
+        if (entry != null) entry.expiresAt = System.currentTimeMillis() + ttlMs;
+    }
+
+    /**
+     * Registra el cseq de un mensaje de username. Se llama en el orden en que
+     * llegan los mensajes de la conexión.
+     *
+     * @return false si ya se había aceptado (reenvío duplicado)
+     */
+    public boolean acceptClientSeq(String username, long cseq) {
+        Entry entry = byUser.get(username);
+        if (entry == null) return true;
+        long last;
+        do {
+            last = entry.lastClientSeq.get();
+            if (cseq <= last) {
+                duplicates.increment();
+                return false;
+            }
+        } while (!entry.lastClientSeq.compareAndSet(last, cseq));
+        return true;
+    }
+
+    public long getLastClientSeq(String username) {
+        Entry entry = byUser.get(username);
+        return entry == null ? 0 : entry.lastClientSeq.get();
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> it = byUser.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.expiresAt < now) {
+                it.remove();
+                byToken.remove(entry.token, entry);
+            }
+        }
+    }
+
+    // =====================================================
+    // 📊 Métricas
+    // =====================================================
+
+    public long getResumed() {
+        return resumed.sum();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    public int size() {
+        return byUser.size();
+    }
+}
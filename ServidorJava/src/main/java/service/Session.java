@@ -0,0 +1,68 @@
+package service;
+
+import model.User;
+import network.TCPConnection;
+import network.WireFormat;
+
+/**
+ * Sesión de un usuario conectado: une la identidad con su conexión desde
+ * el login hasta la desconexión. La crea y la descarta {@link SessionRegistry}.
+ *
+ * Los contadores de tráfico y la última actividad los lleva la conexión
+ * (los actualizan sus hilos de E/S sin pasar por aquí); la sesión los expone.
+ */
+public class Session {
+    private final User user;
+    private final TCPConnection connection;
+    private final long loginTime;
+    private volatile boolean heartbeat;
+
+    Session(User user, TCPConnection connection) {
+        this.user = user;
+        this.connection = connection;
+        this.loginTime = System.currentTimeMillis();
+    }
+
+    public String getUsername() { return user.getName(); }
+    public User getUser() { return user; }
+
+    /**
+     * Conexión de la sesión; null para usuarios creados sin socket (consola).
+     */
+    public TCPConnection getConnection() { return connection; }
+
+    public long getLoginTime() { return loginTime; }
+
+    public long getLastActivity() {
+        return connection == null ? loginTime : connection.getLastActivity();
+    }
+
+    public long getBytesIn() {
+        return connection == null ? 0 : connection.getBytesRead();
+    }
+
+    public long getBytesOut() {
+        return connection == null ? 0 : connection.getFlushStats().getBytes();
+    }
+
+    public WireFormat getProtocol() {
+        return connection == null ? WireFormat.TEXT : connection.getWireFormat();
+    }
+
+    /**
+     * true si el cliente usa latidos (envió algún "type:ping"):
+     * solo entonces el servidor le envía pings a él.
+     */
+    public boolean usesHeartbeat() { return heartbeat; }
+
+    public void markHeartbeat() { heartbeat = true; }
+
+    public boolean isConnected() {
+        return connection != null && connection.isConnected();
+    }
+
+    @Override
+    public String toString() {
+        return getUsername() + "@" + (connection == null ? "local" : connection.getRemoteAddress());
+    }
+}
@@ -0,0 +1,103 @@
+package service;
+
+import model.User;
+import network.TCPConnection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro único de sesiones: usuario → sesión y conexión → sesión.
+ *
+ * Ambas búsquedas son O(1), así que desconectar no recorre a los demás
+ * usuarios y una tormenta de desconexiones cuesta trabajo lineal.
+ * Los dos mapas son concurrentes; bind/unbind los mantienen coherentes sin
+ * lock global: el nombre se reserva con putIfAbsent y se libera con
+ * remove(nombre, sesión), de modo que una sesión vieja nunca borra a la nueva.
+ */
+public class SessionRegistry {
+    private final Map<String, Session> byUser = new ConcurrentHashMap<>();
+    // las conexiones usan identidad (no redefinen equals/hashCode)
+    private final Map<TCPConnection, Session> byConnection = new ConcurrentHashMap<>();
+
+    /**
+     * Asocia username a la conexión.
+     *
+     * @param connection null para usuarios sin socket
+     * @return la sesión creada, o null si el nombre está en uso, la conexión ya
+     * tiene sesión o la sesión se quitó por nombre mientras se creaba
+     */
+    public Session bind(String username, TCPConnection connection) {
+        Session session = new Session(new User(username), connection);
+        if (byUser.putIfAbsent(username, session) != null) return null;
+
+        if (connection != null) {
+            if (byConnection.putIfAbsent(connection, session) != null) {
+                byUser.remove(username, session);
+                return null;
+            }
+            // un unbind(username) entre los dos putIfAbsent no encontró la conexión: se deshace acá
+            if (byUser.get(username) != session) {
+                byConnection.remove(connection, session);
+                return null;
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Quita la sesión de la conexión, si tiene.
+     *
+     * @return la sesión quitada, o null si la conexión no estaba autenticada
+     */
+    public Session unbind(TCPConnection connection) {
+        Session session = byConnection.remove(connection);
+        if (session != null) byUser.remove(session.getUsername(), session);
+        return session;
+    }
+
+    public Session unbind(String username) {
+        Session session = byUser.remove(username);
+        if (session != null && session.getConnection() != null) {
+            byConnection.remove(session.getConnection(), session);
+        }
+        return session;
+    }
+
+    public Session get(String username) {
+        return byUser.get(username);
+    }
+
+    public Session get(TCPConnection connection) {
+        return byConnection.get(connection);
+    }
+
+    public TCPConnection getConnection(String username) {
+        Session session = byUser.get(username);
+        return session == null ? null : session.getConnection();
+    }
+
+    public boolean isOnline(String username) {
+        return byUser.containsKey(username);
+    }
+
+    public Collection<Session> getSessions() {
+        return byUser.values();
+    }
+
+    public List<String> getUsernames() {
+        return new ArrayList<>(byUser.keySet());
+    }
+
+    public int size() {
+        return byUser.size();
+    }
+
+    public void clear() {
+        byUser.clear();
+        byConnection.clear();
+    }
+}
@@ -90,6 +90,8 @@ public class MainClient implements TCPConnectionListener, CallService.CallServic
         System.out.println();
 
         if (isLoggedIn) {
+            // anuncia que responde latidos: el servidor le enviará pings si queda inactivo
+            connection.sendObject("type:ping");
             System.out.println("¡Bienvenido, " + username + "!");
             return true;
         } else {
@@ -554,6 +556,7 @@ public class MainClient implements TCPConnectionListener, CallService.CallServic
                     System.out.println("Grupos: " + getVal(payload, "groups"));
             case "error" ->
                     System.out.println("\n[Error] " + getVal(payload, "message"));
+            case "ping" -> connection.sendObject("type:pong");
         }
     }
 
@@ -2,16 +2,45 @@ package ui;
 
 import model.AudioMessage;
 import model.Message;
+import network.ChunkedStream;
+import network.ConnectionExecutors;
+import network.FlushStats;
+import network.NioServer;
+import network.OutboundConfig;
+import network.OutboundMessage;
+import network.OutboundQueue;
 import network.TCPConnection;
 import network.TCPConnectionListener;
+import network.TransportMode;
+import persistence.BlobHandle;
+import persistence.BlobStore;
+import persistence.GroupStore;
+import persistence.HistoryCache;
+import persistence.HistoryPage;
+import persistence.OfflineInbox;
+import persistence.SearchIndex;
+import persistence.WriteAheadLog;
+import persistence.WriteBehindPipeline;
+import protocol.Command;
+import protocol.Frame;
+import protocol.TextCommand;
 import service.ChatManager;
+import service.CommandDispatcher;
+import service.IdleReaper;
+import service.ResumeTokens;
+import service.Session;
+import service.SessionRegistry;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.ServerSocket;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Servidor de chat principal.
@@ -21,82 +50,243 @@ import java.util.concurrent.ConcurrentHashMap;
 public class MainServer implements TCPConnectionListener {
 
     private final ChatManager chatManager;
-    private final Map<String, TCPConnection> userConnections = new ConcurrentHashMap<>();
+    private final CommandDispatcher dispatcher;
+    private final OutboundConfig outboundConfig = OutboundConfig.fromSystemProperties();
+    private final SessionRegistry sessions;
+    private final IdleReaper idleReaper;
+    private final ResumeTokens resumeTokens = ResumeTokens.fromSystemProperties();
+    // tamaño de página de get_history por defecto y máximo (-Dchat.history.pageSize / pageMax)
+    private final int historyPageSize = Integer.getInteger("chat.history.pageSize", 50);
+    private final int historyPageMax = Integer.getInteger("chat.history.pageMax", 500);
+    // resultados de search por defecto y máximo (-Dchat.search.limit / limitMax)
+    private final int searchLimit = Integer.getInteger("chat.search.limit", 20);
+    private final int searchLimitMax = Integer.getInteger("chat.search.limitMax", 100);
+    private final int audioChunkBytes = Integer.getInteger("chat.audio.chunkBytes", 64 * 1024);
+    // tareas de cada conexión que todavía no terminaron y el shard donde esperan
+    private final Map<TCPConnection, Backlog> connectionBacklog = new ConcurrentHashMap<>();
 
+    /**
+     * Uso: MainServer [puerto] [blocking|virtual|nio]
+     * El modo también se puede elegir con -Dchat.transport=nio
+     * y el número de event loops NIO con -Dchat.nio.loops=N.
+     * -Dchat.dispatch.shards=N fija los hilos que procesan comandos.
+     * Las colas de salida por conexión se configuran con -Dchat.outbound.* (ver OutboundConfig).
+     * La inactividad máxima se fija con -Dchat.idle.timeoutMs (ver IdleReaper).
+     */
     public static void main(String[] args) {
         int port = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
-        new MainServer(port);
+        TransportMode mode = TransportMode.parse(args.length > 1 ? args[1] : System.getProperty("chat.transport"));
+        MainServer server = new MainServer();
+        // un solo hook para todo el proceso: primero se vacía la escritura, después se cierra el índice
+        Runtime.getRuntime().addShutdownHook(new Thread(server.chatManager::close, "chat-shutdown"));
+        server.listen(port, mode);
     }
 
     /**
-     * Inicializa el servidor y escucha conexiones entrantes.
+     * Inicializa el estado del servidor, sin abrir el puerto (ver {@link #listen}).
      */
-    private MainServer(int port) {
+    MainServer() {
         this.chatManager = new ChatManager();
-        System.out.println("💬 SERVIDOR DE CHAT INICIADO EN PUERTO " + port);
+        this.sessions = chatManager.getSessions();
+        this.dispatcher = new CommandDispatcher(
+                Integer.getInteger("chat.dispatch.shards", Runtime.getRuntime().availableProcessors()));
+        this.idleReaper = IdleReaper.fromSystemProperties(dispatcher, sessions);
+    }
 
+    /**
+     * Escucha conexiones entrantes; no vuelve mientras el servidor esté arriba.
+     */
+    private void listen(int port, TransportMode mode) {
+        System.out.println("💬 SERVIDOR DE CHAT INICIADO EN PUERTO " + port + " (" + mode + ")");
+
+        try {
+            if (mode == TransportMode.NIO) {
+                int loops = Integer.getInteger("chat.nio.loops", Runtime.getRuntime().availableProcessors());
+                new NioServer(port, loops, this, outboundConfig).run();
+            } else if (mode == TransportMode.VIRTUAL) {
+                acceptBlocking(port, ConnectionExecutors.virtualThreads());
+            } else {
+                acceptBlocking(port, ConnectionExecutors.platformThreads());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("❌ No se pudo iniciar el servidor en el puerto " + port, e);
+        }
+    }
+
+    private void acceptBlocking(int port, Executor readers) throws IOException {
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             while (true) {
                 try {
-                    new TCPConnection(serverSocket.accept(), this);
+                    new TCPConnection(serverSocket.accept(), this, readers, outboundConfig);
                 } catch (IOException e) {
                     System.err.println("⚠️ Error al aceptar conexión: " + e.getMessage());
                 }
             }
-        } catch (IOException e) {
-            throw new RuntimeException("❌ No se pudo iniciar el servidor en el puerto " + port, e);
         }
     }
 
     // =====================================================
     // 🔌 Eventos de conexión
     // =====================================================
+    // Estos callbacks llegan desde los hilos de E/S y no toman ningún lock:
+    // cada evento se reparte al shard de su conversación (ver routingKey).
 
     @Override
-    public synchronized void onConnectionReady(TCPConnection connection) {
+    public void onConnectionReady(TCPConnection connection) {
         System.out.println("🔗 Nueva conexión desde: " + connection.getRemoteAddress());
+        idleReaper.track(connection);
     }
 
     @Override
-    public synchronized void onDisconnect(TCPConnection connection) {
-        String user = findUserByConnection(connection);
-        if (user != null) {
-            userConnections.remove(user);
-            chatManager.logoutUser(user);
-            broadcastObject("type:system_message|content:El usuario " + user + " se ha desconectado.");
-            System.out.println("👋 Usuario desconectado: " + user);
-        }
+    public void onDisconnect(TCPConnection connection) {
+        idleReaper.untrack(connection);
+        dispatchFrom(connection, connection, () -> handleDisconnect(connection));
     }
 
     @Override
-    public synchronized void onReceiveObject(TCPConnection connection, Object object) {
+    public void onReceiveObject(TCPConnection connection, Object object) {
         if (object instanceof String command) {
-            processCommand(connection, command.trim());
+            dispatchCommand(connection, TextCommand.parse(command.trim()));
+        } else if (object instanceof Frame frame) {
+            // modo binario: las notas de voz traen el audio como bytes crudos
+            if ("audio_message".equals(frame.type()) && frame.getBytes("data") != null) {
+                onReceiveObject(connection, new AudioMessage(frame.getString("from"), frame.getString("to"),
+                        frame.getBoolean("isGroup"), frame.getBytes("data"), (int) frame.getLong("duration", 0)));
+            } else {
+                dispatchCommand(connection, frame);
+            }
         } else if (object instanceof AudioMessage audioMessage) {
-            handleAudioMessage(audioMessage);
+            dispatchFrom(connection, conversationKey(audioMessage.getFrom(), audioMessage.getTo(), audioMessage.isGroupMessage()),
+                    () -> handleAudioMessage(audioMessage));
         } else {
             System.out.println("⚠️ Objeto recibido desconocido: " + object);
         }
     }
 
     @Override
-    public synchronized void onException(TCPConnection connection, Exception e) {
+    public void onException(TCPConnection connection, Exception e) {
         System.err.println("💥 Excepción en " + connection.getRemoteAddress() + ": " + e.getMessage());
         onDisconnect(connection);
     }
 
+    private void dispatchCommand(TCPConnection connection, Command data) {
+        if (data.type() == null) return;
+        if (isDuplicate(connection, data)) return;
+        dispatchFrom(connection, routingKey(connection, data), () -> processCommand(connection, data));
+    }
+
+    /**
+     * Tareas de una conexión encoladas y sin terminar, y la clave del shard
+     * donde esperan.
+     */
+    private static final class Backlog {
+        final AtomicInteger pending = new AtomicInteger();
+        Object key;
+    }
+
+    /**
+     * Reparte una tarea que llegó por la conexión al shard de key, sin que
+     * pase a las anteriores de la misma conexión: mientras alguna siga
+     * pendiente, la tarea va detrás de ellas en su shard aunque su clave sea
+     * otra. Así un join_group encadenado detrás del login corre con la sesión
+     * ya abierta, y un logout detrás de un join_group no se le adelanta desde
+     * el shard de la conexión. Sin sesión todo va por conexión. Cuando la
+     * conexión no tiene nada pendiente, cada tarea vuelve a ir a su clave.
+     */
+    private void dispatchFrom(TCPConnection connection, Object key, Runnable task) {
+        if (sessions.get(connection) == null) key = connection;
+        Backlog backlog = connectionBacklog.computeIfAbsent(connection, c -> new Backlog());
+        Object target;
+        synchronized (backlog) {
+            // si justo termina la última pendiente, seguir en su shard solo cuesta paralelismo
+            if (backlog.pending.getAndIncrement() == 0) backlog.key = key;
+            target = backlog.key;
+        }
+        dispatcher.dispatch(target, () -> {
+            try {
+                task.run();
+            } finally {
+                if (backlog.pending.decrementAndGet() == 0 && !connection.isConnected()) {
+                    connectionBacklog.remove(connection, backlog);
+                }
+            }
+        });
+    }
+
+    private void handleDisconnect(TCPConnection connection) {
+        Session session = chatManager.logout(connection);
+        if (session != null) {
+            String user = session.getUsername();
+            resumeTokens.detach(user);
+            broadcastObject(systemMessage("El usuario " + user + " se ha desconectado."));
+            System.out.println("👋 Usuario desconectado: " + user);
+        }
+    }
+
+    /**
+     * Un mensaje con cseq (número que le pone el cliente, creciente en su
+     * sesión) ya aceptado es un reenvío: se descarta y se responde
+     * message_sent con status duplicate. Se chequea acá, en el hilo de E/S,
+     * porque los mensajes de una conexión se leen en orden pero pueden ir a
+     * shards distintos.
+     */
+    private boolean isDuplicate(TCPConnection connection, Command data) {
+        String type = data.type();
+        if (!data.has("cseq") || !("private_message".equals(type) || "group_message".equals(type))) return false;
+        Session session = sessions.get(connection);
+        long cseq = data.getLong("cseq", 0);
+        if (session == null || resumeTokens.acceptClientSeq(session.getUsername(), cseq)) return false;
+        connection.sendObject(new Frame("message_sent").put("status", "duplicate").putLong("cseq", cseq));
+        return true;
+    }
+
+    // =====================================================
+    // 🧭 Enrutamiento a shards
+    // =====================================================
+
+    /**
+     * Clave de orden de un comando: los mensajes de una misma conversación
+     * (par de usuarios o grupo) se procesan en orden; el ciclo de vida de la
+     * sesión (login/logout/desconexión) se ordena por conexión.
+     */
+    private Object routingKey(TCPConnection connection, Command data) {
+        String type = data.type();
+        switch (type) {
+            case "private_message", "call_start", "call_accept" -> {
+                return conversationKey(data.get("from"), data.get("to"), data.getBoolean("isGroup"));
+            }
+            case "group_message", "create_group", "join_group" -> {
+                String group = data.get("group_name");
+                return group != null ? CommandDispatcher.groupKey(group) : connection;
+            }
+            case "get_history" -> {
+                return conversationKey(data.get("username"), data.get("target"), data.getBoolean("isGroup"));
+            }
+            default -> {
+                return connection;
+            }
+        }
+    }
+
+
+    private Object conversationKey(String from, String to, boolean isGroup) {
+        if (to == null) return from;
+        if (isGroup) return CommandDispatcher.groupKey(to);
+        if (from == null) return to;
+        return CommandDispatcher.pairKey(from, to);
+    }
+
     // =====================================================
     // 🧩 Procesamiento de comandos
     // =====================================================
 
-    private void processCommand(TCPConnection connection, String command) {
-        Map<String, String> data = parseCommand(command);
-        String type = data.get("type");
-        if (type == null) return;
+    private void processCommand(TCPConnection connection, Command data) {
+        String type = data.type();
 
         switch (type) {
             case "login" -> handleLogin(connection, data);
-            case "logout" -> onDisconnect(connection);
+            case "resume" -> handleResume(connection, data);
+            case "logout" -> handleDisconnect(connection);
             case "private_message" -> handlePrivateMessage(connection, data);
             case "group_message" -> handleGroupMessage(data);
             case "create_group" -> handleCreateGroup(connection, data);
@@ -104,6 +294,11 @@ public class MainServer implements TCPConnectionListener {
             case "get_online_users" -> handleGetOnlineUsers(connection, data);
             case "get_groups" -> handleGetGroups(connection, data);
             case "get_history" -> handleGetHistory(connection, data);
+            case "search" -> handleSearch(connection, data);
+            case "get_audio" -> handleGetAudio(connection, data);
+            case "get_stats" -> handleGetStats(connection);
+            case "ping" -> handlePing(connection);
+            case "pong" -> { } // la actividad ya quedó registrada al recibirlo
             case "call_start" -> handleCallStart(data);
             case "call_accept" -> handleCallAccept(data);
             case "call_end" -> handleCallEnd(data);
@@ -115,159 +310,481 @@ public class MainServer implements TCPConnectionListener {
     // 👤 Manejo de login / logout
     // =====================================================
 
-    private void handleLogin(TCPConnection connection, Map<String, String> data) {
-        String username = data.get("username");
-        if (username != null && chatManager.loginUser(username)) {
-            userConnections.put(username, connection);
-            sendObjectToUser(username, "type:login_success|message:Bienvenido " + username);
-            broadcastObject("type:system_message|content:" + username + " se ha conectado.");
+    private void handleLogin(TCPConnection connection, Command data) {
+        Session session = chatManager.login(data.get("username"), connection);
+        if (session != null) {
+            String username = session.getUsername();
+            sendObjectToUser(username, new Frame("login_success").put("message", "Bienvenido " + username)
+                    .put("token", resumeTokens.issue(username)));
+            broadcastObject(systemMessage(username + " se ha conectado."));
             System.out.println("✅ Usuario conectado: " + username);
+            deliverInbox(username, Map.of());
         } else {
-            connection.sendObject("type:login_error|message:Nombre de usuario inválido o en uso.");
+            connection.sendObject(new Frame("login_error").put("message", "Nombre de usuario inválido o en uso."));
             connection.disconnect();
         }
     }
 
+    /**
+     * Retoma con token (el de login_success) la sesión de una conexión caída,
+     * sin login ni recargar historial. seqs lleva la última secuencia vista
+     * por conversación: "@usuario" para los privados recibidos y "#grupo"
+     * para cada grupo, p.ej. seqs:@ana=12,#amigos=40. Se manda solo lo
+     * posterior, página a página, y después la bandeja sin lo ya visto.
+     *
+     * resume_success trae last_cseq, el último mensaje propio aceptado: el
+     * cliente reenvía los siguientes (después de esta respuesta) y los
+     * repetidos se descartan. Al final llega resume_done.
+     */
+    private void handleResume(TCPConnection connection, Command data) {
+        String token = data.get("token");
+        String username = resumeTokens.resume(token);
+        if (username == null) {
+            connection.sendObject(new Frame("resume_error").put("message", "Sesión vencida o desconocida, hay que iniciar sesión."));
+            return;
+        }
+        // la conexión vieja puede seguir registrada si el proxy cayó sin cerrarla
+        TCPConnection old = sessions.getConnection(username);
+        if (old != null && old != connection) {
+            chatManager.logout(old);
+            old.disconnect();
+        }
+        if (chatManager.login(username, connection) == null) {
+            resumeTokens.detach(username);
+            connection.sendObject(new Frame("resume_error").put("message", "No se pudo retomar la sesión de " + username + "."));
+            return;
+        }
+        sendObjectToUser(username, new Frame("resume_success").put("token", token)
+                .putLong("last_cseq", resumeTokens.getLastClientSeq(username)));
+
+        Map<String, Long> seen = parseSeqs(data.get("seqs"));
+        int replayed = 0;
+        for (Map.Entry<String, Long> entry : seen.entrySet()) {
+            String key = entry.getKey();
+            boolean isGroup = key.startsWith("#");
+            String target = key.substring(1);
+            if (isGroup ? !chatManager.isUserInGroup(username, target) : !target.equals(username)) continue;
+
+            long after = entry.getValue();
+            while (true) {
+                HistoryPage page = chatManager.getMessagePage(target, isGroup, null, after, historyPageMax);
+                List<Message> messages = page.getMessages();
+                for (int i = 0; i < messages.size(); i++) {
+                    sendObjectToUser(username, offlineFrame(messages.get(i), page.getFirst() + i));
+                }
+                replayed += messages.size();
+                if (!page.isEmpty()) after = page.getLast();
+                if (!page.hasMore()) break;
+            }
+            entry.setValue(after);
+        }
+        int fromInbox = deliverInbox(username, seen);
+
+        sendObjectToUser(username, new Frame("resume_done").putLong("replayed", replayed).putLong("inbox", fromInbox));
+        broadcastObject(systemMessage(username + " se ha reconectado."));
+        System.out.println("🔁 Sesión retomada: " + username + " (" + replayed + " repetidos, " + fromInbox + " de la bandeja)");
+    }
+
+    /**
+     * "@ana=12,#amigos=40" → {@ana=12, #amigos=40}; lo mal formado se ignora.
+     */
+    private static Map<String, Long> parseSeqs(String seqs) {
+        Map<String, Long> parsed = new HashMap<>();
+        if (seqs == null) return parsed;
+        for (String pair : seqs.split(",")) {
+            int eq = pair.lastIndexOf('=');
+            if (eq < 2 || (pair.charAt(0) != '@' && pair.charAt(0) != '#')) continue;
+            try {
+                parsed.put(pair.substring(0, eq), Long.parseLong(pair.substring(eq + 1).trim()));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Manda lo que llegó mientras el usuario no estaba, con los mismos tipos
+     * de trama que la entrega en vivo más offline:true y el timestamp
+     * original; una nota de voz llega como private_message o group_message
+     * con audio_id (el audio se pide con get_audio). Se salta lo que seen
+     * dice que el cliente ya tiene. Al final, inbox_done con la cantidad.
+     * Nada de esto responde a un comando: offline:true lo marca como aviso.
+     *
+     * @param seen última secuencia vista por conversación ("@usuario", "#grupo")
+     * @return mensajes enviados
+     */
+    private int deliverInbox(String username, Map<String, Long> seen) {
+        int[] count = new int[1];
+        chatManager.deliverInbox(username, (message, seq) -> {
+            if (!(message instanceof AudioMessage)) {
+                Long last = seen.get(sequenceKey(message));
+                if (last != null && seq <= last) return;
+            }
+            sendObjectToUser(username, offlineFrame(message, seq));
+            count[0]++;
+        });
+        if (count[0] > 0) {
+            // offline:true como las tramas de la bandeja: el proxy las aparta como notificaciones
+            sendObjectToUser(username, new Frame("inbox_done").putLong("count", count[0]).putBoolean("offline", true));
+            System.out.println("📬 " + count[0] + " mensajes pendientes entregados a " + username);
+        }
+        return count[0];
+    }
+
+    /**
+     * Conversación a la que pertenece la secuencia de un mensaje: "#grupo" o
+     * "@destinatario" (los privados se numeran por destinatario).
+     */
+    private static String sequenceKey(Message message) {
+        return (message.isGroupMessage() ? "#" : "@") + message.getTo();
+    }
+
+    private static Frame offlineFrame(Message message, long seq) {
+        Frame frame = message.isGroupMessage()
+                ? new Frame("group_message").put("from", message.getFrom()).put("group", message.getTo())
+                : new Frame("private_message").put("from", message.getFrom()).put("to", message.getTo());
+        frame.put("content", message.getContent());
+        if (message instanceof AudioMessage audio) {
+            // las notas de voz se numeran aparte, así que no llevan seq
+            frame.put("audio_id", audio.getAudioId()).putLong("duration", audio.getDuration());
+        } else {
+            frame.putLong("seq", seq);
+        }
+        return frame.putBoolean("offline", true).putLong("timestamp", message.getTimestamp().getTime());
+    }
+
     // =====================================================
     // 💬 Mensajería
     // =====================================================
 
-    private void handlePrivateMessage(TCPConnection connection, Map<String, String> data) {
+    private void handlePrivateMessage(TCPConnection connection, Command data) {
         String from = data.get("from");
         String to = data.get("to");
         String content = data.get("content");
 
         if (from == null || to == null || content == null) return;
 
-        chatManager.saveTextMessage(new Message(from, to, content, false));
+        chatManager.saveTextMessage(new Message(from, to, content, false), seq -> {
+            boolean delivered = sendObjectToUser(to,
+                    new Frame("private_message").put("from", from).put("to", to).put("content", content).putLong("seq", seq));
+            sendObjectToUser(from, sentFrame(data, seq).put("to", to).put("status", "ok").put("content", content));
+            return delivered ? List.of() : List.of(to);
+        });
+    }
 
-        String msg = String.format("type:private_message|from:%s|to:%s|content:%s", from, to, content);
-        sendObjectToUser(to, msg);
-        sendObjectToUser(from, "type:message_sent|to:" + to + "|status:ok|content:" + content);
+    /**
+     * message_sent con la secuencia asignada y, si el cliente numeró el mensaje, su cseq.
+     */
+    private static Frame sentFrame(Command data, long seq) {
+        Frame frame = new Frame("message_sent").putLong("seq", seq);
+        if (data.has("cseq")) frame.putLong("cseq", data.getLong("cseq", 0));
+        return frame;
     }
 
     // =====================================================
     // 👥 Grupos
     // =====================================================
 
-    private void handleCreateGroup(TCPConnection connection, Map<String, String> data) {
+    private void handleCreateGroup(TCPConnection connection, Command data) {
         String groupName = data.get("group_name");
         String creator = data.get("creator");
 
         if (groupName != null && creator != null && chatManager.createGroup(groupName, creator)) {
-            sendObjectToUser(creator, "type:group_created|group_name:" + groupName + "|status:ok");
-            broadcastObject("type:system_message|content:Grupo '" + groupName + "' creado por " + creator);
+            sendObjectToUser(creator, new Frame("group_created").put("group_name", groupName).put("status", "ok"));
+            broadcastObject(systemMessage("Grupo '" + groupName + "' creado por " + creator));
         } else {
-            sendObjectToUser(creator, "type:error|message:No se pudo crear el grupo '" + groupName + "'.");
+            sendObjectToUser(creator, errorMessage("No se pudo crear el grupo '" + groupName + "'."));
         }
     }
 
-    private void handleJoinGroup(TCPConnection connection, Map<String, String> data) {
+    private void handleJoinGroup(TCPConnection connection, Command data) {
         String groupName = data.get("group_name");
         String username = data.get("username");
 
         if (groupName != null && username != null && chatManager.joinGroup(groupName, username)) {
-            sendObjectToUser(username, "type:join_group_success|group:" + groupName + "|status:ok");
-            broadcastObject("type:system_message|content:" + username + " se unió al grupo " + groupName);
+            sendObjectToUser(username, new Frame("join_group_success").put("group", groupName).put("status", "ok"));
+            broadcastObject(systemMessage(username + " se unió al grupo " + groupName));
         } else {
-            sendObjectToUser(username, "type:error|message:No se pudo unir al grupo '" + groupName + "'.");
+            sendObjectToUser(username, errorMessage("No se pudo unir al grupo '" + groupName + "'."));
         }
     }
 
-    private void handleGetOnlineUsers(TCPConnection connection, Map<String, String> data) {
+    private void handleGetOnlineUsers(TCPConnection connection, Command data) {
         String user = data.get("username");
         if (user != null) {
             String list = String.join(",", chatManager.getOnlineUsers());
-            sendObjectToUser(user, "type:online_users|users:" + list);
+            sendObjectToUser(user, new Frame("online_users").put("users", list));
         }
     }
 
-    private void handleGetGroups(TCPConnection connection, Map<String, String> data) {
+    private void handleGetGroups(TCPConnection connection, Command data) {
         String user = data.get("username");
         if (user != null) {
             String list = String.join(",", chatManager.getAllGroups());
-            sendObjectToUser(user, "type:groups_list|groups:" + list);
+            sendObjectToUser(user, new Frame("groups_list").put("groups", list));
         }
     }
 
-    private void handleGetHistory(TCPConnection connection, Map<String, String> data) {
+    private void handleGetHistory(TCPConnection connection, Command data) {
         String target = data.get("target");
         String username = data.get("username");
-        String isGroupStr = data.get("isGroup");
 
         if (target == null || username == null) return;
 
-        boolean isGroup = "true".equalsIgnoreCase(isGroupStr);
+        boolean isGroup = data.getBoolean("isGroup");
+        if (data.has("before") || data.has("after") || data.has("limit")) {
+            handleGetHistoryPage(username, target, isGroup, data);
+            return;
+        }
         var messages = chatManager.getMessageHistory(target, isGroup);
+        sendObjectToUser(username, new Frame("history").put("target", target).put("messages", joinHistory(messages)));
+    }
+
+    /**
+     * get_history con cursores: before/after son números de secuencia
+     * exclusivos (los first/last de una respuesta anterior) y limit el tamaño
+     * de la página. La respuesta dice qué rango trae y si hay más.
+     */
+    private void handleGetHistoryPage(String username, String target, boolean isGroup, Command data) {
+        int limit = data.getInt("limit", historyPageSize);
+        limit = Math.max(1, Math.min(limit, historyPageMax));
+        Long before = data.has("before") ? data.getLong("before", 0) : null;
+        Long after = data.has("after") ? data.getLong("after", 0) : null;
+
+        HistoryPage page = chatManager.getMessagePage(target, isGroup, before, after, limit);
+        Frame reply = new Frame("history")
+                .put("target", target)
+                .put("messages", joinHistory(page.getMessages()));
+        if (!page.isEmpty()) {
+            reply.putLong("first", page.getFirst()).putLong("last", page.getLast());
+        }
+        sendObjectToUser(username, reply.putBoolean("has_more", page.hasMore()));
+    }
 
+    private static String joinHistory(Iterable<? extends Message> messages) {
         StringBuilder historyStr = new StringBuilder();
         for (Message msg : messages) {
             if (historyStr.length() > 0) historyStr.append("|");
             historyStr.append(msg.getFrom()).append(":").append(msg.getContent());
         }
+        return historyStr.toString();
+    }
+
+    /**
+     * Búsqueda de texto en el historial. El alcance es el del usuario logueado
+     * en la conexión (no el que diga el comando). Cada resultado va como
+     * conversación:remitente:contenido, del más nuevo al más viejo.
+     */
+    private void handleSearch(TCPConnection connection, Command data) {
+        Session session = sessions.get(connection);
+        String query = data.get("query");
+        if (session == null) {
+            connection.sendObject(errorMessage("Inicia sesión para buscar."));
+            return;
+        }
+        if (query == null || query.isBlank()) return;
+
+        String username = session.getUsername();
+        int limit = Math.max(1, Math.min(data.getInt("limit", searchLimit), searchLimitMax));
+        var results = chatManager.searchMessages(username, query, limit);
 
-        sendObjectToUser(username, "type:history|target:" + target + "|messages:" + historyStr.toString());
+        StringBuilder resultsStr = new StringBuilder();
+        for (Message msg : results) {
+            String conversation = msg.isGroupMessage() || !username.equals(msg.getTo()) ? msg.getTo() : msg.getFrom();
+            if (resultsStr.length() > 0) resultsStr.append("|");
+            resultsStr.append(conversation).append(":").append(msg.getFrom()).append(":").append(msg.getContent());
+        }
+        connection.sendObject(new Frame("search_results")
+                .put("query", query)
+                .putLong("count", results.size())
+                .put("results", resultsStr.toString()));
+    }
+
+    // =====================================================
+    // 💓 Latidos
+    // =====================================================
+
+    private void handlePing(TCPConnection connection) {
+        Session session = sessions.get(connection);
+        if (session != null) session.markHeartbeat();
+        connection.sendObject(new Frame("pong"));
+    }
+
+    // =====================================================
+    // 📊 Métricas
+    // =====================================================
+
+    /**
+     * Responde con métricas del servidor, entre ellas la profundidad de las
+     * colas de salida por conexión (total, máxima y mensajes descartados)
+     * y cuántos mensajes salen en promedio por cada flush al socket.
+     * bytes_in/bytes_out suman el tráfico de las sesiones abiertas; idle_reaped
+     * y idle_ms cuentan las conexiones cerradas por inactividad y cómo se
+     * reparte la inactividad actual de las sesiones. persist_* describe la
+     * cola de escritura diferida del historial: profundidad, tamaño de lote y
+     * latencia de commit (de encolar a durable); wal_* lo escrito en el WAL
+     * desde el último checkpoint y cuántos lotes se releyeron al arrancar.
+     * history_cache_* son los aciertos, fallos y desalojos de la caché de
+     * historial reciente, y
+     * search_* el tamaño del índice de búsqueda y el tiempo medio por consulta.
+     * audio_* describe el almacén de notas de voz: blobs distintos contra
+     * referencias, bytes en packs, duplicados evitados y bytes compactados.
+     * groups* cuenta los grupos, los eventos del diario que no cubre la última
+     * foto, las fotos escritas y cuánto tardó la carga al arrancar.
+     * inbox_* son las referencias anotadas para usuarios desconectados, las
+     * entregadas al volver, las descartadas por bandeja llena y las bandejas abiertas.
+     * resume_* cuenta los tokens vigentes, las sesiones retomadas y los
+     * reenvíos descartados por cseq repetido.
+     */
+    private void handleGetStats(TCPConnection connection) {
+        WriteBehindPipeline persistence = chatManager.getPersistence();
+        HistoryCache historyCache = chatManager.getHistoryCache();
+        SearchIndex searchIndex = chatManager.getSearchIndex();
+        BlobStore blobs = chatManager.getBlobStore();
+        WriteAheadLog wal = chatManager.getWriteAheadLog();
+        GroupStore groupStore = chatManager.getGroupStore();
+        OfflineInbox inbox = chatManager.getInbox();
+        int queued = 0;
+        int maxDepth = 0;
+        long dropped = 0;
+        long flushes = 0;
+        long flushedMessages = 0;
+        long bytesIn = 0;
+        long bytesOut = 0;
+        int connections = 0;
+        StringBuilder perUser = new StringBuilder();
+        for (Session session : sessions.getSessions()) {
+            TCPConnection conn = session.getConnection();
+            if (conn == null) continue;
+            connections++;
+            FlushStats flushStats = conn.getFlushStats();
+            flushes += flushStats.getFlushes();
+            flushedMessages += flushStats.getMessages();
+            bytesIn += session.getBytesIn();
+            bytesOut += session.getBytesOut();
+
+            OutboundQueue queue = conn.getOutboundQueue();
+            if (queue == null) continue;
+            int depth = queue.getDepth();
+            queued += depth;
+            maxDepth = Math.max(maxDepth, depth);
+            dropped += queue.getDropped();
+            if (perUser.length() > 0) perUser.append(",");
+            perUser.append(session.getUsername()).append("=").append(depth);
+        }
+
+        connection.sendObject(new Frame("stats")
+                .putLong("connections", connections)
+                .putLong("outbound_queued", queued)
+                .putLong("outbound_max_depth", maxDepth)
+                .putLong("outbound_dropped", dropped)
+                .putLong("flushes", flushes)
+                .put("messages_per_flush", twoDecimals(flushes == 0 ? 0.0 : (double) flushedMessages / flushes))
+                .putLong("bytes_in", bytesIn)
+                .putLong("bytes_out", bytesOut)
+                .putLong("idle_reaped", idleReaper.getReaped())
+                .putLong("pings_sent", idleReaper.getPingsSent())
+                .put("idle_ms", idleReaper.idleDistribution(sessions.getSessions()))
+                .putLong("persist_queued", persistence.getQueued())
+                .putLong("persist_batches", persistence.getBatches())
+                .put("persist_batch_avg", twoDecimals(persistence.getAverageBatchSize()))
+                .putLong("persist_batch_max", persistence.getMaxBatchSize())
+                .put("persist_commit_avg_ms", twoDecimals(persistence.getAverageCommitMillis()))
+                .put("persist_commit_max_ms", twoDecimals(persistence.getMaxCommitMillis()))
+                .putLong("persist_failed", persistence.getFailed())
+                .putLong("wal_bytes", wal.getBytesSinceCheckpoint())
+                .putLong("wal_segments", wal.getSegmentCount())
+                .putLong("wal_checkpoints", wal.getCheckpoints())
+                .putLong("wal_replayed", wal.getReplayed())
+                .putLong("groups", groupStore.getGroups().size())
+                .putLong("group_journal_events", groupStore.getEventsSinceSnapshot())
+                .putLong("group_snapshots", groupStore.getSnapshots())
+                .putLong("group_load_ms", groupStore.getLoadMillis())
+                .putLong("inbox_enqueued", inbox.getEnqueued())
+                .putLong("inbox_delivered", inbox.getDelivered())
+                .putLong("inbox_dropped", inbox.getDropped())
+                .putLong("inbox_open", inbox.getOpenInboxes())
+                .putLong("resume_tokens", resumeTokens.size())
+                .putLong("resume_sessions", resumeTokens.getResumed())
+                .putLong("resume_duplicates", resumeTokens.getDuplicates())
+                .putLong("history_cache_hits", historyCache.getHits())
+                .putLong("history_cache_misses", historyCache.getMisses())
+                .putLong("history_cache_evictions", historyCache.getEvictions())
+                .putLong("history_cache_bytes", historyCache.getBytes())
+                .putLong("history_cache_conversations", historyCache.getConversations())
+                .putLong("search_docs", searchIndex.getDocCount())
+                .putLong("search_segments", searchIndex.getSegmentCount())
+                .putLong("search_merges", searchIndex.getMerges())
+                .putLong("search_queries", searchIndex.getQueries())
+                .put("search_avg_ms", twoDecimals(searchIndex.getAverageQueryMillis()))
+                .putLong("audio_blobs", blobs.getBlobCount())
+                .putLong("audio_refs", blobs.getReferenceCount())
+                .putLong("audio_bytes", blobs.getStoredBytes())
+                .putLong("audio_packs", blobs.getPackCount())
+                .putLong("audio_dedup_hits", blobs.getDedupHits())
+                .putLong("audio_reclaimed_bytes", blobs.getReclaimedBytes())
+                .put("outbound_depths", perUser.toString()));
     }
 
     // =====================================================
     // 📞 Llamadas simuladas
     // =====================================================
 
-    private void handleCallStart(Map<String, String> data) {
+    private void handleCallStart(Command data) {
         String from = data.get("from");
         String to = data.get("to");
-        String isGroupStr = data.get("isGroup");
-        String udpPortStr = data.get("udpPort");
 
-        if (from == null || to == null || udpPortStr == null) return;
+        if (from == null || to == null || !data.has("udpPort")) return;
 
-        boolean isGroup = "true".equalsIgnoreCase(isGroupStr);
-        int callerUdpPort = Integer.parseInt(udpPortStr);
+        boolean isGroup = data.getBoolean("isGroup");
+        int callerUdpPort = Integer.parseInt(data.get("udpPort"));
 
-        TCPConnection callerConn = userConnections.get(from);
+        TCPConnection callerConn = sessions.getConnection(from);
         if (callerConn == null) return;
         String callerIp = callerConn.getSocket().getInetAddress().getHostAddress();
 
         System.out.println("📞 Llamada de " + from + " a " + to + " | UDP: " + callerIp + ":" + callerUdpPort);
 
-        String incomingCallMsg = String.format(
-                "type:incoming_call|from:%s|to:%s|isGroup:%s|callerIp:%s|callerUdpPort:%d",
-                from, to, isGroup, callerIp, callerUdpPort
-        );
+        Frame incomingCallMsg = new Frame("incoming_call")
+                .put("from", from)
+                .put("to", to)
+                .putBoolean("isGroup", isGroup)
+                .put("callerIp", callerIp)
+                .putLong("callerUdpPort", callerUdpPort);
 
         if (isGroup && chatManager.groupExists(to)) {
+            OutboundMessage shared = OutboundMessage.of(incomingCallMsg);
             for (String member : chatManager.getGroupMembers(to)) {
-                if (!member.equals(from)) sendObjectToUser(member, incomingCallMsg);
+                if (!member.equals(from)) sendToUser(member, shared);
             }
         } else {
             sendObjectToUser(to, incomingCallMsg);
         }
 
-        sendObjectToUser(from, "type:call_waiting|to:" + to);
+        sendObjectToUser(from, new Frame("call_waiting").put("to", to));
     }
 
-    private void handleCallAccept(Map<String, String> data) {
+    private void handleCallAccept(Command data) {
         String from = data.get("from");
         String to = data.get("to");
-        String udpPortStr = data.get("udpPort");
 
-        if (from == null || to == null || udpPortStr == null) return;
+        if (from == null || to == null || !data.has("udpPort")) return;
 
-        int receiverUdpPort = Integer.parseInt(udpPortStr);
-        TCPConnection receiverConn = userConnections.get(from);
+        int receiverUdpPort = Integer.parseInt(data.get("udpPort"));
+        TCPConnection receiverConn = sessions.getConnection(from);
         if (receiverConn == null) return;
 
         String receiverIp = receiverConn.getSocket().getInetAddress().getHostAddress();
 
         System.out.println("📲 Llamada aceptada: " + from + " ↔ " + to);
 
-        sendObjectToUser(to, String.format(
-                "type:call_accepted|from:%s|receiverIp:%s|receiverUdpPort:%d",
-                from, receiverIp, receiverUdpPort
-        ));
+        sendObjectToUser(to, new Frame("call_accepted")
+                .put("from", from)
+                .put("receiverIp", receiverIp)
+                .putLong("receiverUdpPort", receiverUdpPort));
     }
 
-    private void handleCallEnd(Map<String, String> data) {
+    private void handleCallEnd(Command data) {
         String from = data.get("from");
         String callId = data.get("callId");
         System.out.println("🛑 Llamada finalizada por " + from + " (ID: " + callId + ")");
@@ -277,13 +794,84 @@ public class MainServer implements TCPConnectionListener {
     // 🎵 Manejo de audio
     // =====================================================
 
+    /**
+     * get_audio id [offset] [length]: manda la nota de voz (o el tramo pedido)
+     * en tramas "audio_data" de hasta chat.audio.chunkBytes con id, total,
+     * offset, last y data, para que el cliente pueda reproducir mientras llega.
+     * En binario los bytes van del pack al socket con transferTo; en texto,
+     * data viaja en base64. Los ids de audio son UUID que solo conocen quienes
+     * recibieron la nota.
+     */
+    private void handleGetAudio(TCPConnection connection, Command data) {
+        String id = data.get("id");
+        if (sessions.get(connection) == null) {
+            connection.sendObject(errorMessage("Inicia sesión para descargar audio."));
+            return;
+        }
+        if (id == null || id.isBlank()) return;
+
+        BlobHandle handle;
+        try {
+            handle = chatManager.openAudio(id);
+        } catch (IOException e) {
+            System.err.println("Error abriendo audio " + id + ": " + e.getMessage());
+            handle = null;
+        }
+        if (handle == null) {
+            connection.sendObject(errorMessage("Audio no encontrado: " + id));
+            return;
+        }
+
+        long total = handle.size();
+        long offset = data.getLong("offset", 0);
+        long length = data.getLong("length", Long.MAX_VALUE);
+        if (offset < 0 || length < 0) {
+            closeQuietly(handle);
+            connection.sendObject(errorMessage("Rango inválido para el audio " + id));
+            return;
+        }
+        if (offset > total) {
+            closeQuietly(handle);
+            connection.sendObject(errorMessage("El audio " + id + " tiene " + total + " bytes, offset " + offset + " fuera de rango"));
+            return;
+        }
+        // sin sumar offset + length, que con un length enorme desborda
+        long end = offset + Math.min(length, total - offset);
+
+        Frame template = new Frame("audio_data").put("id", id).putLong("total", total);
+        connection.send(OutboundMessage.of(
+                new ChunkedStream(template, "data", handle::transferTo, handle, offset, end, audioChunkBytes)));
+    }
+
+    private static void closeQuietly(BlobHandle handle) {
+        try {
+            handle.close();
+        } catch (IOException ignored) {
+        }
+    }
+
     private void handleAudioMessage(AudioMessage audioMessage) {
         if (audioMessage == null) return;
         String from = audioMessage.getFrom();
         String to = audioMessage.getTo();
 
-        chatManager.saveAudioMessage(audioMessage);
-        sendObjectToUser(to, audioMessage);
+        if (audioMessage.isGroupMessage()) {
+            if (!chatManager.groupExists(to)) return;
+            chatManager.saveAudioMessage(audioMessage, seq -> {
+                // como en handleGroupMessage: una codificación compartida y los desconectados a su bandeja
+                OutboundMessage shared = OutboundMessage.of(audioMessage);
+                List<String> offline = new ArrayList<>();
+                for (String member : chatManager.getGroupMembers(to)) {
+                    if (!member.equals(from) && !sendToUser(member, shared)) {
+                        offline.add(member);
+                    }
+                }
+                return offline;
+            });
+        } else {
+            chatManager.saveAudioMessage(audioMessage, seq ->
+                    sendObjectToUser(to, audioMessage) ? List.of() : List.of(to));
+        }
         System.out.println("🎵 Mensaje de audio de " + from + " a " + to);
     }
 
@@ -291,7 +879,7 @@ public class MainServer implements TCPConnectionListener {
     // 👥 Mensajes de grupo
     // =====================================================
 
-    private void handleGroupMessage(Map<String, String> data) {
+    private void handleGroupMessage(Command data) {
         String from = data.get("from");
         String groupName = data.get("group_name");
         String content = data.get("content");
@@ -299,15 +887,19 @@ public class MainServer implements TCPConnectionListener {
         if (from == null || groupName == null || content == null) return;
 
         if (chatManager.groupExists(groupName)) {
-            chatManager.saveTextMessage(new Message(from, groupName, content, true));
-
-            String msg = String.format("type:group_message|from:%s|group:%s|content:%s", from, groupName, content);
-            for (String member : chatManager.getGroupMembers(groupName)) {
-                if (!member.equals(from)) {
-                    sendObjectToUser(member, msg);
+            chatManager.saveTextMessage(new Message(from, groupName, content, true), seq -> {
+                // se codifica una vez y todos los miembros comparten el buffer
+                OutboundMessage msg = OutboundMessage.of(new Frame("group_message")
+                        .put("from", from).put("group", groupName).put("content", content).putLong("seq", seq));
+                List<String> offline = new ArrayList<>();
+                for (String member : chatManager.getGroupMembers(groupName)) {
+                    if (!member.equals(from) && !sendToUser(member, msg)) {
+                        offline.add(member);
+                    }
                 }
-            }
-            sendObjectToUser(from, "type:message_sent|group:" + groupName + "|status:ok|content:" + content);
+                sendObjectToUser(from, sentFrame(data, seq).put("group", groupName).put("status", "ok").put("content", content));
+                return offline;
+            });
         }
     }
 
@@ -315,34 +907,49 @@ public class MainServer implements TCPConnectionListener {
     // 🧱 Utilidades
     // =====================================================
 
-    private void sendObjectToUser(String username, Object object) {
-        TCPConnection conn = userConnections.get(username);
+    /**
+     * @return false si el usuario no está conectado
+     */
+    private boolean sendObjectToUser(String username, Object object) {
+        return sendToUser(username, OutboundMessage.of((Serializable) object));
+    }
+
+    private boolean sendToUser(String username, OutboundMessage message) {
+        TCPConnection conn = sessions.getConnection(username);
         if (conn != null && conn.isConnected()) {
-            conn.sendObject((Serializable) object);
+            conn.send(message);
+            return true;
         }
+        return false;
     }
 
+    /**
+     * Avisos para todos (conexiones, grupos nuevos): son notificaciones, un
+     * cliente lento con DROP_OLDEST puede perderlas.
+     */
     private void broadcastObject(Object object) {
-        for (TCPConnection conn : userConnections.values()) {
-            if (conn.isConnected()) {
-                conn.sendObject((Serializable) object);
+        OutboundMessage message = OutboundMessage.notification((Serializable) object);
+        for (Session session : sessions.getSessions()) {
+            if (session.isConnected()) {
+                session.getConnection().send(message);
             }
         }
     }
 
-    private String findUserByConnection(TCPConnection connection) {
-        for (Map.Entry<String, TCPConnection> entry : userConnections.entrySet()) {
-            if (entry.getValue().equals(connection)) return entry.getKey();
-        }
-        return null;
+    private static Frame systemMessage(String content) {
+        return new Frame("system_message").put("content", content);
     }
 
-    private Map<String, String> parseCommand(String command) {
-        Map<String, String> result = new HashMap<>();
-        for (String part : command.split("\\|")) {
-            String[] kv = part.split(":", 2);
-            if (kv.length == 2) result.put(kv[0], kv[1]);
-        }
-        return result;
+    private static Frame errorMessage(String message) {
+        return new Frame("error").put("message", message);
+    }
+
+    /**
+     * Número con dos decimales y punto, sin pasar por String.format.
+     */
+    private static String twoDecimals(double value) {
+        long cents = Math.round(value * 100);
+        long fraction = cents % 100;
+        return (cents / 100) + (fraction < 10 ? ".0" : ".") + fraction;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,122 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Utilidades de los benchmarks (clases *Benchmark con @Tag("benchmark")).
+ * No corren con gradle test: se lanzan con gradle benchmark, cada clase en
+ * su JVM, y las propiedades -Dbench.* se pasan a esa JVM.
+ *
+ * No es JMH: se calienta, se repite y se toma la mediana, lo justo para
+ * comparar dos variantes en la misma máquina, no para publicar números.
+ */
+public final class Bench {
+
+    @FunctionalInterface
+    public interface Op {
+        void run() throws Exception;
+    }
+
+    /**
+     * ns/op de reloj, ns/op de CPU del hilo que mide y bytes asignados por op
+     * (mediana de las iteraciones).
+     */
+    public record Result(double nanosPerOp, double cpuNanosPerOp, double bytesPerOp) {
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Bench() {}
+
+    /**
+     * Corre op ops veces por iteración: warmups iteraciones que no se miden
+     * y después iterations que sí. Los bytes son los que asignó el hilo que
+     * mide; lo que op deje a otros hilos no cuenta.
+     */
+    public static Result measure(int warmups, int iterations, int ops, Op op) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            for (int j = 0; j < ops; j++) op.run();
+        }
+        double[] nanos = new double[iterations];
+        double[] cpu = new double[iterations];
+        double[] bytes = new double[iterations];
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < iterations; i++) {
+            long allocated = THREADS.getThreadAllocatedBytes(thread);
+            long cpuStart = THREADS.getCurrentThreadCpuTime();
+            long start = System.nanoTime();
+            for (int j = 0; j < ops; j++) op.run();
+            nanos[i] = (double) (System.nanoTime() - start) / ops;
+            cpu[i] = (double) (THREADS.getCurrentThreadCpuTime() - cpuStart) / ops;
+            bytes[i] = (double) (THREADS.getThreadAllocatedBytes(thread) - allocated) / ops;
+        }
+        return new Result(median(nanos), median(cpu), median(bytes));
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * Heap ocupado después de un par de GC, para comparar antes y después.
+     */
+    public static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Memoria residente del proceso (incluye las pilas de los hilos, que no
+     * están en el heap), o -1 fuera de Linux.
+     */
+    public static long rss() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // sin /proc
+        }
+        return -1;
+    }
+
+    /**
+     * Máximo de descriptores abiertos que permite el sistema, o Long.MAX_VALUE si no se sabe.
+     */
+    public static long maxFileDescriptors() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.UnixOperatingSystemMXBean os) {
+            return os.getMaxFileDescriptorCount();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Lista de enteros de -Dname=a,b,c, o defaults.
+     */
+    public static int[] sizes(String name, int... defaults) {
+        String value = System.getProperty(name);
+        if (value == null || value.isBlank()) return defaults;
+        return Arrays.stream(value.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+
+    public static void report(String format, Object... args) {
+        System.out.printf(format + "%n", args);
+    }
+}
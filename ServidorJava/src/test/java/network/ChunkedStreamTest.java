@@ -0,0 +1,185 @@
+package network;
+
+import org.junit.jupiter.api.Test;
+import protocol.Frame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Una fuente más corta que el rango pedido (un pack truncado) tiene que
+ * cortar la conexión, no dejar al escritor girando con el stream a medias.
+ */
+class ChunkedStreamTest {
+    private static final byte[] DATA = new byte[100];
+
+    /**
+     * Fuente que solo tiene DATA.length bytes y después devuelve 0.
+     */
+    private static long shortSource(long position, long count, WritableByteChannel target) throws IOException {
+        if (position >= DATA.length) return 0;
+        return target.write(ByteBuffer.wrap(DATA, (int) position, (int) Math.min(count, DATA.length - position)));
+    }
+
+    private static ChunkedStream stream(AtomicBoolean closed) {
+        return new ChunkedStream(new Frame("audio_data").put("id", "a1"), "data",
+                ChunkedStreamTest::shortSource, () -> closed.set(true), 0, 1000, 64);
+    }
+
+    /**
+     * Canal que acepta todo, como un socket con lugar.
+     */
+    private static WritableByteChannel sink() {
+        return Channels.newChannel(new ByteArrayOutputStream());
+    }
+
+    @Test
+    void sourceThatStopsAdvancingFailsInsteadOfSpinning() throws IOException {
+        ChunkedStream stream = stream(new AtomicBoolean());
+        FlushStats stats = new FlushStats();
+        // salen los 100 bytes que hay y después nada: parece un socket lleno
+        assertFalse(stream.writeTo(sink(), WireFormat.BINARY, stats));
+        assertFalse(stream.writeTo(sink(), WireFormat.BINARY, stats));
+        // otra vez con lugar en el canal y la fuente sigue sin avanzar
+        assertThrows(IOException.class, () -> stream.writeTo(sink(), WireFormat.BINARY, stats));
+    }
+
+    @Test
+    void fullChannelIsNotMistakenForAShortSource() throws IOException {
+        byte[] full = new byte[1000];
+        ChunkedStream stream = new ChunkedStream(new Frame("audio_data"), "data",
+                (position, count, target) -> target.write(ByteBuffer.wrap(full, (int) position, (int) count)),
+                () -> { }, 0, full.length, 64);
+        WritableByteChannel blocked = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                return 0;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        FlushStats stats = new FlushStats();
+        assertFalse(stream.writeTo(blocked, WireFormat.BINARY, stats));
+        // cuando el canal vuelve a aceptar, el stream sigue
+        assertTrue(stream.writeTo(sink(), WireFormat.BINARY, stats));
+    }
+
+    @Test
+    void textModeReportsTheTruncatedSource() {
+        ChunkedStream stream = stream(new AtomicBoolean());
+        assertThrows(IOException.class, () -> stream.writeTo(sink(), WireFormat.TEXT, new FlushStats()));
+    }
+
+    private static final TCPConnectionListener QUIET = new TCPConnectionListener() {
+        @Override
+        public void onConnectionReady(TCPConnection connection) {
+        }
+
+        @Override
+        public void onReceiveObject(TCPConnection connection, Object message) {
+        }
+
+        @Override
+        public void onDisconnect(TCPConnection connection) {
+        }
+
+        @Override
+        public void onException(TCPConnection connection, Exception e) {
+        }
+    };
+
+    /**
+     * Pide tramas binarias, espera la confirmación y lee hasta que el servidor corte.
+     */
+    private static void negotiateBinary(InputStream in, OutputStream out) throws IOException {
+        out.write("type:hello|protocol:binary\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        ByteArrayOutputStream ack = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n' && b >= 0) ack.write(b);
+        assertEquals("type:hello_ack|protocol:binary", ack.toString(StandardCharsets.UTF_8));
+    }
+
+    private static void assertClosedSoon(InputStream in) throws Exception {
+        CompletableFuture<Void> eof = CompletableFuture.runAsync(() -> {
+            try {
+                while (in.read() >= 0) {
+                    // se descarta lo que llegó del stream antes del corte
+                }
+            } catch (IOException e) {
+                // conexión reiniciada: también es un corte
+            }
+        });
+        eof.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void blockingConnectionDisconnectsOnShortSource() throws Exception {
+        AtomicBoolean closed = new AtomicBoolean();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+            TCPConnection connection = new TCPConnection(server.accept(), QUIET,
+                    ConnectionExecutors.platformThreads(), new OutboundConfig(64, OverflowPolicy.DISCONNECT, 0, 0, 64 * 1024));
+            negotiateBinary(client.getInputStream(), client.getOutputStream());
+
+            connection.send(OutboundMessage.of(stream(closed)));
+            assertClosedSoon(client.getInputStream());
+            assertFalse(connection.isConnected());
+            assertTrue(closed.get());
+        }
+    }
+
+    @Test
+    void nioConnectionDisconnectsOnShortSource() throws Exception {
+        AtomicBoolean closed = new AtomicBoolean();
+        NioEventLoop loop = new NioEventLoop("nio-test");
+        loop.start();
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             SocketChannel client = SocketChannel.open(server.getLocalAddress())) {
+            SocketChannel accepted = server.accept();
+            accepted.configureBlocking(false);
+            NioTCPConnection connection = new NioTCPConnection(accepted, QUIET, loop,
+                    new OutboundConfig(64, OverflowPolicy.DISCONNECT, 0, 0, 64 * 1024));
+            loop.register(connection);
+            InputStream in = Channels.newInputStream(client);
+            negotiateBinary(in, Channels.newOutputStream(client));
+
+            connection.send(OutboundMessage.of(stream(closed)));
+            assertClosedSoon(in);
+            assertFalse(connection.isConnected());
+            // el event loop cierra el stream al desconectar
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!closed.get() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertTrue(closed.get());
+        } finally {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package network;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionExecutorsTest {
+
+    private static boolean isVirtual(Thread thread) throws ReflectiveOperationException {
+        return (boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
+
+    @Test
+    void virtualModeUsesVirtualThreadsOrFallsBack() throws Exception {
+        Thread thread = runOn(ConnectionExecutors.virtualThreads());
+        if (Runtime.version().feature() >= 21) {
+            assertTrue(isVirtual(thread));
+        } else {
+            // JDK 17: hilos de plataforma del pool lector
+            assertTrue(thread.getName().startsWith("tcp-io-"));
+            assertTrue(thread.isDaemon());
+        }
+    }
+
+    private static Thread runOn(Executor executor) throws Exception {
+        CompletableFuture<Thread> thread = new CompletableFuture<>();
+        executor.execute(() -> thread.complete(Thread.currentThread()));
+        return thread.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void transportModeParsing() {
+        assertEquals(TransportMode.VIRTUAL, TransportMode.parse(" virtual "));
+        assertEquals(TransportMode.NIO, TransportMode.parse("NIO"));
+        assertEquals(TransportMode.BLOCKING, TransportMode.parse(null));
+        assertEquals(TransportMode.BLOCKING, TransportMode.parse("hilos"));
+    }
+
+    @Test
+    void blockingConnectionsServeManyClientsOnTheVirtualExecutor() throws Exception {
+        int clients = 200;
+        Executor readers = ConnectionExecutors.virtualThreads();
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(clients);
+        TCPConnectionListener listener = new TCPConnectionListener() {
+            @Override
+            public void onConnectionReady(TCPConnection connection) {
+            }
+
+            @Override
+            public void onReceiveObject(TCPConnection connection, Object message) {
+                if (received.add((String) message)) done.countDown();
+            }
+
+            @Override
+            public void onDisconnect(TCPConnection connection) {
+            }
+
+            @Override
+            public void onException(TCPConnection connection, Exception e) {
+            }
+        };
+
+        List<Socket> sockets = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0, clients, InetAddress.getLoopbackAddress())) {
+            for (int i = 0; i < clients; i++) {
+                Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+                sockets.add(client);
+                new TCPConnection(server.accept(), listener, readers, OutboundConfig.DIRECT);
+            }
+            // cada lector está bloqueado en su socket; todos tienen que seguir atendiendo
+            for (int i = 0; i < clients; i++) {
+                OutputStream out = sockets.get(i).getOutputStream();
+                out.write(("type:ping|n:" + i + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(clients, received.size());
+        } finally {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
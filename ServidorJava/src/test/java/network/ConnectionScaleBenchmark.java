@@ -0,0 +1,142 @@
+package network;
+
+import bench.Bench;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conexiones ociosas por transporte: memoria por conexión, hilos, y cuánto
+ * tarda en atender una línea en cada una (todos los lectores despiertan).
+ *
+ * gradle benchmark --tests network.ConnectionScaleBenchmark -Dbench.connections=1000,10000,50000
+ *
+ * Cliente y servidor están en el mismo proceso: cada conexión usa dos
+ * descriptores y un puerto efímero de loopback, así que los tamaños que no
+ * entran en el límite de descriptores se saltean (ulimit -n). Con JDK 17 el
+ * modo VIRTUAL usa hilos de plataforma (ver {@link ConnectionExecutors}).
+ */
+@Tag("benchmark")
+class ConnectionScaleBenchmark {
+    private static final byte[] PING = "type:ping\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final class Counting implements TCPConnectionListener {
+        final CountDownLatch ready;
+        final CountDownLatch received;
+        final CountDownLatch closed;
+
+        Counting(int connections) {
+            ready = new CountDownLatch(connections);
+            received = new CountDownLatch(connections);
+            closed = new CountDownLatch(connections);
+        }
+
+        @Override
+        public void onConnectionReady(TCPConnection connection) {
+            ready.countDown();
+        }
+
+        @Override
+        public void onReceiveObject(TCPConnection connection, Object message) {
+            received.countDown();
+        }
+
+        @Override
+        public void onDisconnect(TCPConnection connection) {
+            closed.countDown();
+        }
+
+        @Override
+        public void onException(TCPConnection connection, Exception e) {
+        }
+    }
+
+    @Test
+    void idleConnectionsPerTransport() throws Exception {
+        int[] sizes = Bench.sizes("bench.connections", 1_000, 10_000, 50_000);
+        Bench.report("%-9s %7s %11s %13s %14s %8s %12s", "modo", "conex.", "conectar ms",
+                "RSS KB/conex.", "heap KB/conex.", "hilos", "atender ms");
+        for (int connections : sizes) {
+            if (2L * connections + 512 > Bench.maxFileDescriptors()) {
+                Bench.report("%-9s %7d  salteado: hacen falta %d descriptores y el límite es %d", "*",
+                        connections, 2L * connections + 512, Bench.maxFileDescriptors());
+                continue;
+            }
+            for (TransportMode mode : TransportMode.values()) {
+                try {
+                    run(mode, connections);
+                } catch (IOException e) {
+                    // p.ej. se acabaron los puertos efímeros de loopback
+                    Bench.report("%-9s %7d  falló: %s", mode, connections, e);
+                }
+            }
+        }
+    }
+
+    private static void run(TransportMode mode, int connections) throws Exception {
+        Counting listener = new Counting(connections);
+        List<Socket> clients = new ArrayList<>(connections);
+        NioEventLoop loop = mode == TransportMode.NIO ? new NioEventLoop("bench-nio") : null;
+        Executor readers = mode == TransportMode.VIRTUAL
+                ? ConnectionExecutors.virtualThreads()
+                : ConnectionExecutors.platformThreads();
+        if (loop != null) loop.start();
+
+        long rss = Bench.rss();
+        long heap = Bench.usedHeap();
+        int threads = Thread.activeCount();
+        long start = System.nanoTime();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+            for (int i = 0; i < connections; i++) {
+                clients.add(new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort()));
+                SocketChannel channel = server.accept();
+                if (loop != null) {
+                    channel.configureBlocking(false);
+                    loop.register(new NioTCPConnection(channel, listener, loop, OutboundConfig.fromSystemProperties()));
+                } else {
+                    new TCPConnection(channel.socket(), listener, readers, OutboundConfig.DIRECT);
+                }
+            }
+            if (!listener.ready.await(60, TimeUnit.SECONDS)) throw new IOException("no arrancaron todas las conexiones");
+            long connectMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            double rssPer = (Bench.rss() - rss) / 1024.0 / connections;
+            double heapPer = (Bench.usedHeap() - heap) / 1024.0 / connections;
+            int threadCount = Thread.activeCount() - threads;
+
+            long wake = System.nanoTime();
+            for (Socket client : clients) {
+                OutputStream out = client.getOutputStream();
+                out.write(PING);
+                out.flush();
+            }
+            if (!listener.received.await(60, TimeUnit.SECONDS)) throw new IOException("no se atendieron todas las líneas");
+            long serveMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - wake);
+
+            Bench.report("%-9s %7d %11d %13.1f %14.1f %8d %12d", mode, connections, connectMs, rssPer, heapPer,
+                    threadCount, serveMs);
+        } finally {
+            for (Socket client : clients) {
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                }
+            }
+            listener.closed.await(60, TimeUnit.SECONDS);
+            if (loop != null) loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package network;
+
+import bench.Bench;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import protocol.Frame;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Costo de mandar un mensaje de grupo a todos sus miembros, según cuántos
+ * sean: codificando una vez por conexión (sendObject a cada una, como antes)
+ * o una sola vez con un {@link OutboundMessage} compartido.
+ *
+ * gradle benchmark --tests network.FanOutBenchmark -Dbench.members=10,100,500,1000
+ *
+ * Las conexiones escriben en el hilo que envía (OutboundConfig.DIRECT), así
+ * el CPU y lo asignado por difusión son los de ese hilo. Del otro lado un
+ * Selector descarta lo que llega, para que los sockets no se llenen.
+ */
+@Tag("benchmark")
+class FanOutBenchmark {
+    private static final TCPConnectionListener QUIET = new TCPConnectionListener() {
+        @Override
+        public void onConnectionReady(TCPConnection connection) {
+        }
+
+        @Override
+        public void onReceiveObject(TCPConnection connection, Object message) {
+        }
+
+        @Override
+        public void onDisconnect(TCPConnection connection) {
+        }
+
+        @Override
+        public void onException(TCPConnection connection, Exception e) {
+        }
+    };
+
+    /**
+     * Lee y descarta todo lo que llega a los clientes.
+     */
+    private static final class Drain extends Thread {
+        final Selector selector = Selector.open();
+        volatile boolean running = true;
+
+        Drain() throws IOException {
+            super("bench-drain");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            try {
+                while (running) {
+                    selector.select(100);
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        buffer.clear();
+                        if (((SocketChannel) key.channel()).read(buffer) < 0) key.cancel();
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                System.err.println("Error descartando: " + e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    void groupMessagePerMemberCount() throws Exception {
+        int[] groupSizes = Bench.sizes("bench.members", 10, 100, 500, 1_000);
+        Frame message = new Frame("group_message").put("from", "ana").put("group", "amigos")
+                .put("content", "x".repeat(Integer.getInteger("bench.contentBytes", 200)));
+        Bench.report("%-8s %-13s %14s %14s %15s %13s", "miembros", "codificación", "µs/difusión",
+                "CPU µs/difus.", "KB asig./difus.", "ns/miembro");
+
+        for (int members : groupSizes) {
+            List<TCPConnection> connections = new ArrayList<>(members);
+            List<SocketChannel> clients = new ArrayList<>(members);
+            Drain drain = new Drain();
+            Executor readers = ConnectionExecutors.platformThreads();
+            try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), members);
+                for (int i = 0; i < members; i++) {
+                    SocketChannel client = SocketChannel.open(server.getLocalAddress());
+                    client.configureBlocking(false);
+                    client.register(drain.selector, SelectionKey.OP_READ);
+                    clients.add(client);
+                    connections.add(new TCPConnection(server.accept().socket(), QUIET, readers, OutboundConfig.DIRECT));
+                }
+                drain.start();
+
+                int ops = Math.max(20, 50_000 / members);
+                row(members, "por conexión", ops, () -> {
+                    for (TCPConnection connection : connections) connection.sendObject(message);
+                });
+                row(members, "compartida", ops, () -> {
+                    OutboundMessage shared = OutboundMessage.of(message);
+                    for (TCPConnection connection : connections) connection.send(shared);
+                });
+            } finally {
+                drain.running = false;
+                for (TCPConnection connection : connections) connection.disconnect();
+                for (SocketChannel client : clients) client.close();
+                drain.selector.close();
+            }
+        }
+    }
+
+    private static void row(int members, String name, int ops, Bench.Op op) throws Exception {
+        Bench.Result result = Bench.measure(3, 7, ops, op);
+        Bench.report("%-8d %-13s %14.1f %14.1f %15.1f %13.1f", members, name, result.nanosPerOp() / 1000,
+                result.cpuNanosPerOp() / 1000, result.bytesPerOp() / 1024, result.cpuNanosPerOp() / members);
+    }
+}
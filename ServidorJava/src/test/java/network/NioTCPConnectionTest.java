@@ -0,0 +1,222 @@
+package network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NioTCPConnectionTest {
+    private static final OutboundConfig OUTBOUND = new OutboundConfig(4096, OverflowPolicy.BLOCK, 5000, 0, 64 * 1024);
+
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private SocketChannel accepted;
+    private NioEventLoop loop;
+    private final Listener listener = new Listener();
+
+    private static final class Listener implements TCPConnectionListener {
+        final CountDownLatch ready = new CountDownLatch(1);
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+        final AtomicInteger disconnects = new AtomicInteger();
+        final CountDownLatch disconnected = new CountDownLatch(1);
+
+        @Override
+        public void onConnectionReady(TCPConnection connection) {
+            ready.countDown();
+        }
+
+        @Override
+        public void onReceiveObject(TCPConnection connection, Object message) {
+            received.add(message);
+        }
+
+        @Override
+        public void onDisconnect(TCPConnection connection) {
+            disconnects.incrementAndGet();
+            disconnected.countDown();
+        }
+
+        @Override
+        public void onException(TCPConnection connection, Exception e) {
+        }
+    }
+
+    @BeforeEach
+    void connect() throws IOException {
+        server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        client = SocketChannel.open();
+        // buffers chicos: las escrituras grandes quedan a medias
+        client.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+        client.connect(server.getLocalAddress());
+        accepted = server.accept();
+        accepted.configureBlocking(false);
+        accepted.setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+        loop = new NioEventLoop("nio-test");
+        loop.start();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        loop.shutdown();
+        client.close();
+        accepted.close();
+        server.close();
+    }
+
+    private NioTCPConnection register() throws InterruptedException {
+        NioTCPConnection connection = new NioTCPConnection(accepted, listener, loop, OUTBOUND);
+        loop.register(connection);
+        assertTrue(listener.ready.await(5, TimeUnit.SECONDS));
+        return connection;
+    }
+
+    private String readLine(BufferedReader reader) throws Exception {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return reader.readLine();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void messagesQueuedBeforeRegistrationAreFlushed() throws Exception {
+        NioTCPConnection connection = new NioTCPConnection(accepted, listener, loop, OUTBOUND);
+        connection.sendObject("type:system_message|content:hola");
+        connection.sendObject("type:system_message|content:chau");
+        loop.register(connection);
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+        assertEquals("type:system_message|content:hola", readLine(reader));
+        assertEquals("type:system_message|content:chau", readLine(reader));
+    }
+
+    @Test
+    void lineArrivingInPiecesIsSplitCorrectly() throws Exception {
+        register();
+        String longLine = "type:private_message|content:" + "y".repeat(300_000);
+        ByteBuffer bytes = ByteBuffer.wrap((longLine + "\r\ncorta\nsin terminar").getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            ByteBuffer piece = bytes.slice(bytes.position(), Math.min(1000, bytes.remaining()));
+            while (piece.hasRemaining()) client.write(piece);
+            bytes.position(bytes.position() + piece.limit());
+        }
+
+        assertEquals(longLine, listener.received.poll(5, TimeUnit.SECONDS));
+        assertEquals("corta", listener.received.poll(5, TimeUnit.SECONDS));
+        assertNull(listener.received.poll(200, TimeUnit.MILLISECONDS));
+
+        client.write(ByteBuffer.wrap("\n".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("sin terminar", listener.received.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void partialWritesCountEachMessageOnce() throws Exception {
+        NioTCPConnection connection = register();
+        String payload = "x".repeat(10_000);
+        for (int i = 0; i < 100; i++) connection.sendObject(i + ":" + payload);
+
+        // el cliente no lee hasta que el servidor ya escribió a medias
+        Thread.sleep(200);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+        for (int i = 0; i < 100; i++) assertEquals(i + ":" + payload, reader.readLine());
+        Thread.sleep(200);
+
+        FlushStats stats = connection.getFlushStats();
+        assertEquals(100, stats.getMessages());
+        assertTrue(stats.getFlushes() > 1);
+        long bytes = 0;
+        for (int i = 0; i < 100; i++) bytes += (i + ":" + payload + "\n").length();
+        assertEquals(bytes, stats.getBytes());
+    }
+
+    @Test
+    void oneLoopServesManyConnections() throws Exception {
+        int clients = 50;
+        Set<Boolean> onLoop = ConcurrentHashMap.newKeySet();
+        // responde cada línea desde el event loop, por la misma conexión
+        TCPConnectionListener echo = new TCPConnectionListener() {
+            @Override
+            public void onConnectionReady(TCPConnection connection) {
+            }
+
+            @Override
+            public void onReceiveObject(TCPConnection connection, Object message) {
+                onLoop.add(loop.inEventLoop());
+                connection.sendObject(((String) message).replace("ping", "pong"));
+            }
+
+            @Override
+            public void onDisconnect(TCPConnection connection) {
+            }
+
+            @Override
+            public void onException(TCPConnection connection, Exception e) {
+            }
+        };
+
+        List<SocketChannel> channels = new ArrayList<>();
+        try {
+            for (int i = 0; i < clients; i++) {
+                SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+                channels.add(channel);
+                SocketChannel serverSide = server.accept();
+                serverSide.configureBlocking(false);
+                loop.register(new NioTCPConnection(serverSide, echo, loop, OUTBOUND));
+            }
+            for (int i = 0; i < clients; i++) {
+                channels.get(i).write(ByteBuffer.wrap(("type:ping|n:" + i + "\n").getBytes(StandardCharsets.UTF_8)));
+            }
+            for (int i = 0; i < clients; i++) {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(Channels.newInputStream(channels.get(i)), StandardCharsets.UTF_8));
+                assertEquals("type:pong|n:" + i, readLine(reader));
+            }
+            // un solo hilo atendió a todos
+            assertEquals(Set.of(true), onLoop);
+        } finally {
+            for (SocketChannel channel : channels) channel.close();
+        }
+    }
+
+    @Test
+    void peerCloseDisconnectsOnce() throws Exception {
+        NioTCPConnection connection = register();
+        client.close();
+
+        assertTrue(listener.disconnected.await(5, TimeUnit.SECONDS));
+        assertFalse(connection.isConnected());
+        // lo que se envíe después se descarta sin errores ni otro aviso
+        connection.sendObject("type:system_message|content:tarde");
+        connection.disconnect();
+        Thread.sleep(100);
+        assertEquals(1, listener.disconnects.get());
+    }
+}
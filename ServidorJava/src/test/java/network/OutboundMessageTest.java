@@ -0,0 +1,134 @@
+package network;
+
+import org.junit.jupiter.api.Test;
+import protocol.BinaryCodec;
+import protocol.Frame;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class OutboundMessageTest {
+
+    /**
+     * Payload que cuenta cuántas veces se codificó (toString en ambos formatos).
+     */
+    private static final class Counted implements Serializable {
+        final AtomicInteger encodings = new AtomicInteger();
+
+        @Override
+        public String toString() {
+            encodings.incrementAndGet();
+            return "type:group_message|from:ana|content:hola";
+        }
+    }
+
+    @Test
+    void eachFormatIsEncodedOnceAndShared() throws Exception {
+        Counted payload = new Counted();
+        OutboundMessage message = OutboundMessage.of(payload);
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<ByteBuffer>> views = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                WireFormat format = i % 2 == 0 ? WireFormat.TEXT : WireFormat.BINARY;
+                views.add(pool.submit(() -> {
+                    start.await();
+                    return message.encode(format);
+                }));
+            }
+            start.countDown();
+
+            ByteBuffer text = views.get(0).get();
+            ByteBuffer binary = views.get(1).get();
+            for (int i = 0; i < views.size(); i++) {
+                ByteBuffer view = views.get(i).get();
+                assertSame((i % 2 == 0 ? text : binary).array(), view.array());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(2, payload.encodings.get());
+    }
+
+    @Test
+    void viewsHaveIndependentPositions() throws IOException {
+        OutboundMessage message = OutboundMessage.of(new Frame("ping").putLong("n", 7));
+        ByteBuffer first = message.encode(WireFormat.BINARY);
+        ByteBuffer second = message.encode(WireFormat.BINARY);
+        assertNotSame(first, second);
+
+        first.position(first.limit());
+        assertEquals(0, second.position());
+        assertEquals(second.remaining() - 4, second.getInt(0));
+        second.position(4);
+        assertEquals(7, BinaryCodec.decode(second).getLong("n", 0));
+
+        assertArrayEquals("type:ping|n:7\n".getBytes(StandardCharsets.UTF_8),
+                message.encode(WireFormat.TEXT).array());
+    }
+
+    @Test
+    void broadcastToManyConnectionsEncodesOnce() throws Exception {
+        int clients = 20;
+        Counted payload = new Counted();
+        OutboundMessage message = OutboundMessage.of(payload);
+        TCPConnectionListener listener = new TCPConnectionListener() {
+            @Override
+            public void onConnectionReady(TCPConnection connection) {
+            }
+
+            @Override
+            public void onReceiveObject(TCPConnection connection, Object object) {
+            }
+
+            @Override
+            public void onDisconnect(TCPConnection connection) {
+            }
+
+            @Override
+            public void onException(TCPConnection connection, Exception e) {
+            }
+        };
+
+        List<Socket> sockets = new ArrayList<>();
+        List<TCPConnection> connections = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0, clients, InetAddress.getLoopbackAddress())) {
+            for (int i = 0; i < clients; i++) {
+                sockets.add(new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+                connections.add(new TCPConnection(server.accept(), listener,
+                        ConnectionExecutors.platformThreads(), OutboundConfig.DIRECT));
+            }
+            for (TCPConnection connection : connections) connection.send(message);
+
+            for (Socket socket : sockets) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                assertEquals("type:group_message|from:ana|content:hola", in.readLine());
+            }
+            assertEquals(1, payload.encodings.get());
+        } finally {
+            for (TCPConnection connection : connections) connection.disconnect();
+            for (Socket socket : sockets) socket.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package network;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+
+    private static OutboundQueue queue(OverflowPolicy policy, long blockTimeoutMs) {
+        return new OutboundQueue(new OutboundConfig(3, policy, blockTimeoutMs, 0, 64 * 1024));
+    }
+
+    private static List<Object> drain(OutboundQueue queue) {
+        List<Object> payloads = new ArrayList<>();
+        OutboundMessage message;
+        while ((message = queue.poll()) != null) payloads.add(message.getPayload());
+        return payloads;
+    }
+
+    @Test
+    void dropOldestShedsOnlyNotifications() {
+        OutboundQueue queue = queue(OverflowPolicy.DROP_OLDEST, 0);
+        assertTrue(queue.offer(OutboundMessage.formatSwitch(WireFormat.BINARY), false));
+        assertTrue(queue.offer(OutboundMessage.of("chat 1"), false));
+        assertTrue(queue.offer(OutboundMessage.notification("aviso 1"), false));
+
+        // se va el aviso aunque el cambio de formato y el chat estén antes
+        assertTrue(queue.offer(OutboundMessage.of("chat 2"), false));
+        assertEquals(1, queue.getDropped());
+
+        List<Object> left = drain(queue);
+        assertEquals(List.of(WireFormat.BINARY.ackLine(), "chat 1", "chat 2"), left);
+    }
+
+    @Test
+    void dropOldestDropsTheOldestOfSeveralNotifications() {
+        OutboundQueue queue = queue(OverflowPolicy.DROP_OLDEST, 0);
+        queue.offer(OutboundMessage.notification("aviso 1"), false);
+        queue.offer(OutboundMessage.of("chat 1"), false);
+        queue.offer(OutboundMessage.notification("aviso 2"), false);
+
+        assertTrue(queue.offer(OutboundMessage.notification("aviso 3"), false));
+        assertEquals(List.of("chat 1", "aviso 2", "aviso 3"), drain(queue));
+    }
+
+    @Test
+    void dropOldestDisconnectsWhenNothingCanBeDropped() {
+        OutboundQueue queue = queue(OverflowPolicy.DROP_OLDEST, 0);
+        for (int i = 0; i < 3; i++) queue.offer(OutboundMessage.of("chat " + i), false);
+
+        // un aviso nuevo se pierde él solo
+        assertTrue(queue.offer(OutboundMessage.notification("aviso"), false));
+        assertEquals(1, queue.getDropped());
+        // un mensaje que no se puede perder pide cortar la conexión
+        assertFalse(queue.offer(OutboundMessage.of("chat 3"), false));
+        assertEquals(2, queue.getDropped());
+        assertEquals(List.of("chat 0", "chat 1", "chat 2"), drain(queue));
+    }
+
+    @Test
+    void disconnectRejectsWhenFull() {
+        OutboundQueue queue = queue(OverflowPolicy.DISCONNECT, 0);
+        for (int i = 0; i < 3; i++) assertTrue(queue.offer(OutboundMessage.notification("aviso " + i), true));
+        assertFalse(queue.offer(OutboundMessage.notification("aviso 3"), true));
+        assertEquals(1, queue.getDropped());
+        assertEquals(3, queue.getDepth());
+        assertEquals(3, queue.getHighWater());
+    }
+
+    @Test
+    void blockWaitsForTheWriter() throws Exception {
+        OutboundQueue queue = queue(OverflowPolicy.BLOCK, 5000);
+        for (int i = 0; i < 3; i++) queue.offer(OutboundMessage.of("chat " + i), true);
+
+        CompletableFuture<Boolean> blocked = CompletableFuture.supplyAsync(() -> queue.offer(OutboundMessage.of("chat 3"), true));
+        Thread.sleep(50);
+        assertFalse(blocked.isDone());
+        queue.poll();
+        assertTrue(blocked.get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("chat 1", "chat 2", "chat 3"), drain(queue));
+    }
+
+    @Test
+    void blockGivesUpAfterTheTimeout() {
+        OutboundQueue queue = queue(OverflowPolicy.BLOCK, 20);
+        for (int i = 0; i < 3; i++) queue.offer(OutboundMessage.of("chat " + i), true);
+
+        long start = System.nanoTime();
+        assertFalse(queue.offer(OutboundMessage.of("chat 3"), true));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(1, queue.getDropped());
+    }
+
+    @Test
+    void blockNeverWaitsOnAThreadThatCannotBlock() {
+        OutboundQueue queue = queue(OverflowPolicy.BLOCK, 60_000);
+        for (int i = 0; i < 3; i++) queue.offer(OutboundMessage.of("chat " + i), false);
+        assertFalse(queue.offer(OutboundMessage.of("chat 3"), false));
+    }
+
+    @Test
+    void clearWakesBlockedSenders() throws Exception {
+        OutboundQueue queue = queue(OverflowPolicy.BLOCK, 60_000);
+        for (int i = 0; i < 3; i++) queue.offer(OutboundMessage.of("chat " + i), true);
+
+        CompletableFuture<Boolean> blocked = CompletableFuture.supplyAsync(() -> queue.offer(OutboundMessage.of("chat 3"), true));
+        Thread.sleep(50);
+        queue.clear();
+        assertTrue(blocked.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,109 @@
+package network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Un cliente que no lee llena el socket y después la cola de salida: la
+ * conexión se corta según la política y quien envía nunca queda trabado
+ * más que lo que la política permite.
+ */
+class SlowConsumerTest {
+    private static final String LINE = "type:system_message|content:" + "x".repeat(16 * 1024);
+
+    private static final class Disconnects implements TCPConnectionListener {
+        final CountDownLatch disconnected = new CountDownLatch(1);
+
+        @Override
+        public void onConnectionReady(TCPConnection connection) {
+        }
+
+        @Override
+        public void onReceiveObject(TCPConnection connection, Object message) {
+        }
+
+        @Override
+        public void onDisconnect(TCPConnection connection) {
+            disconnected.countDown();
+        }
+
+        @Override
+        public void onException(TCPConnection connection, Exception e) {
+        }
+    }
+
+    private final Disconnects listener = new Disconnects();
+    private ServerSocket server;
+    private Socket client;
+
+    @BeforeEach
+    void listen() throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        if (client != null) client.close();
+        server.close();
+    }
+
+    private TCPConnection connect(OutboundConfig outbound) throws IOException {
+        client = new Socket();
+        // buffers chicos: el socket se llena enseguida
+        client.setReceiveBufferSize(4096);
+        client.connect(server.getLocalSocketAddress());
+        Socket accepted = server.accept();
+        accepted.setSendBufferSize(4096);
+        return new TCPConnection(accepted, listener, ConnectionExecutors.platformThreads(), outbound);
+    }
+
+    /**
+     * Envía hasta que la conexión se corta.
+     *
+     * @return la espera más larga de un sendObject, en milisegundos
+     */
+    private static long sendUntilDisconnected(TCPConnection connection) {
+        long slowest = 0;
+        for (int i = 0; i < 100_000 && connection.isConnected(); i++) {
+            long start = System.nanoTime();
+            connection.sendObject(LINE);
+            slowest = Math.max(slowest, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        return slowest;
+    }
+
+    @Test
+    void disconnectPolicyCutsTheClientWithoutBlockingTheSender() throws Exception {
+        TCPConnection connection = connect(new OutboundConfig(8, OverflowPolicy.DISCONNECT, 1000, 0, 64 * 1024));
+
+        long slowest = sendUntilDisconnected(connection);
+
+        assertFalse(connection.isConnected());
+        assertTrue(listener.disconnected.await(5, TimeUnit.SECONDS));
+        assertTrue(connection.getOutboundQueue().getDropped() >= 1);
+        assertTrue(slowest < 500, "sendObject esperó " + slowest + " ms");
+    }
+
+    @Test
+    void blockPolicyWaitsAtMostTheTimeoutThenDisconnects() throws Exception {
+        TCPConnection connection = connect(new OutboundConfig(8, OverflowPolicy.BLOCK, 200, 0, 64 * 1024));
+
+        long slowest = sendUntilDisconnected(connection);
+
+        assertFalse(connection.isConnected());
+        assertTrue(listener.disconnected.await(5, TimeUnit.SECONDS));
+        assertTrue(slowest >= 150, "sendObject esperó " + slowest + " ms");
+        assertTrue(slowest < 2000, "sendObject esperó " + slowest + " ms");
+    }
+}
@@ -0,0 +1,179 @@
+package network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import protocol.BinaryCodec;
+import protocol.Frame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Negociación de tramas binarias: el saludo no llega al listener, lo que se
+ * encoló antes sale en texto, la confirmación en texto y desde ahí todo en
+ * tramas, en los dos sentidos y con los dos transportes.
+ */
+class WireFormatNegotiationTest {
+    private static final OutboundConfig OUTBOUND = new OutboundConfig(1024, OverflowPolicy.BLOCK, 1000, 0, 64 * 1024);
+
+    private static final class Recorder implements TCPConnectionListener {
+        final CountDownLatch ready = new CountDownLatch(1);
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+        volatile TCPConnection connection;
+
+        @Override
+        public void onConnectionReady(TCPConnection connection) {
+            this.connection = connection;
+            ready.countDown();
+        }
+
+        @Override
+        public void onReceiveObject(TCPConnection connection, Object message) {
+            received.add(message);
+        }
+
+        @Override
+        public void onDisconnect(TCPConnection connection) {
+        }
+
+        @Override
+        public void onException(TCPConnection connection, Exception e) {
+        }
+    }
+
+    private final Recorder recorder = new Recorder();
+    private ServerSocketChannel server;
+    private Socket client;
+    private DataInputStream in;
+    private OutputStream out;
+    private NioEventLoop loop;
+
+    @BeforeEach
+    void listen() throws IOException {
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+        in = new DataInputStream(client.getInputStream());
+        out = client.getOutputStream();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        if (recorder.connection != null) recorder.connection.disconnect();
+        if (loop != null) loop.shutdown();
+        client.close();
+        server.close();
+    }
+
+    private TCPConnection blocking() throws Exception {
+        SocketChannel accepted = server.accept();
+        new TCPConnection(accepted.socket(), recorder, ConnectionExecutors.platformThreads(), OUTBOUND);
+        assertTrue(recorder.ready.await(5, TimeUnit.SECONDS));
+        return recorder.connection;
+    }
+
+    private TCPConnection nio() throws Exception {
+        SocketChannel accepted = server.accept();
+        accepted.configureBlocking(false);
+        loop = new NioEventLoop("nio-test");
+        loop.start();
+        loop.register(new NioTCPConnection(accepted, recorder, loop, OUTBOUND));
+        assertTrue(recorder.ready.await(5, TimeUnit.SECONDS));
+        return recorder.connection;
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) throw new IOException("Fin del stream");
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private void write(String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private void write(Frame frame) throws IOException {
+        ByteBuffer wire = BinaryCodec.encode(frame);
+        out.write(wire.array(), wire.arrayOffset() + wire.position(), wire.remaining());
+        out.flush();
+    }
+
+    private void negotiate(TCPConnection connection) throws Exception {
+        connection.sendObject("type:system_message|content:antes");
+        write("type:hello|protocol:binary");
+        // justo detrás del saludo, ya en binario
+        write(new Frame("private_message").put("to", "bob").put("content", "hola | a:b\nñandú"));
+
+        assertEquals("type:system_message|content:antes", readLine());
+        assertEquals("type:hello_ack|protocol:binary", readLine());
+
+        Frame received = assertInstanceOf(Frame.class, recorder.received.poll(5, TimeUnit.SECONDS));
+        assertEquals("private_message", received.type());
+        assertEquals("hola | a:b\nñandú", received.get("content"));
+        // el saludo no se entrega como mensaje
+        assertNull(recorder.received.poll(100, TimeUnit.MILLISECONDS));
+
+        // después de la confirmación el servidor escribe tramas, también lo armado como línea
+        connection.sendObject(new Frame("system_message").put("content", "después"));
+        connection.sendObject("type:group_message|from:ana|group:amigos|content:hola");
+        Frame first = BinaryCodec.read(in);
+        assertEquals("system_message", first.type());
+        assertEquals("después", first.get("content"));
+        Frame second = BinaryCodec.read(in);
+        assertEquals("group_message", second.type());
+        assertEquals("amigos", second.get("group"));
+    }
+
+    @Test
+    void blockingConnectionSwitchesToBinary() throws Exception {
+        negotiate(blocking());
+    }
+
+    @Test
+    void nioConnectionSwitchesToBinary() throws Exception {
+        negotiate(nio());
+    }
+
+    @Test
+    void textGreetingKeepsTextFraming() throws Exception {
+        blocking();
+        write("type:hello|protocol:text");
+        write("type:ping");
+
+        assertEquals("type:hello_ack|protocol:text", readLine());
+        assertEquals("type:ping", recorder.received.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void handshakeParsing() {
+        assertEquals(WireFormat.BINARY, WireFormat.parseHandshake("type:hello|protocol:BINARY"));
+        assertEquals(WireFormat.BINARY, WireFormat.parseHandshake("type:hello|version:2|protocol:binary|x:y"));
+        assertEquals(WireFormat.TEXT, WireFormat.parseHandshake("type:hello|protocol:json"));
+        assertNull(WireFormat.parseHandshake("type:hello"));
+        assertNull(WireFormat.parseHandshake("type:private_message|content:type:hello|protocol:binary"));
+        assertNull(WireFormat.parseHandshake("type:hello_ack|protocol:binary"));
+    }
+}
@@ -0,0 +1,155 @@
+package network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Escritura agrupada de la conexión bloqueante: lo que está en la cola sale
+ * en un solo flush, hasta coalesceBytes, y la ventana espera a los que
+ * llegan detrás.
+ */
+class WriteCoalescingTest {
+    private static final TCPConnectionListener QUIET = new TCPConnectionListener() {
+        @Override
+        public void onConnectionReady(TCPConnection connection) {
+        }
+
+        @Override
+        public void onReceiveObject(TCPConnection connection, Object message) {
+        }
+
+        @Override
+        public void onDisconnect(TCPConnection connection) {
+        }
+
+        @Override
+        public void onException(TCPConnection connection, Exception e) {
+        }
+    };
+
+    /**
+     * El lector corre en su hilo; las tareas escritoras esperan a release.
+     */
+    private static final class HeldWriters implements Executor {
+        private final List<Runnable> held = new ArrayList<>();
+        private boolean readerStarted;
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            if (readerStarted) {
+                held.add(task);
+                return;
+            }
+            readerStarted = true;
+            Thread reader = new Thread(task, "test-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void release() {
+            List<Runnable> tasks;
+            synchronized (this) {
+                tasks = new ArrayList<>(held);
+                held.clear();
+            }
+            tasks.forEach(Runnable::run);
+        }
+    }
+
+    private ServerSocket server;
+    private Socket client;
+    private BufferedReader reader;
+
+    @BeforeEach
+    void listen() throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        if (client != null) client.close();
+        server.close();
+    }
+
+    private TCPConnection connect(Executor writers, OutboundConfig outbound) throws IOException {
+        client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        reader = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+        return new TCPConnection(server.accept(), QUIET, writers, outbound);
+    }
+
+    private static OutboundConfig queued(long windowMicros, int coalesceBytes) {
+        return new OutboundConfig(1024, OverflowPolicy.BLOCK, 1000, windowMicros, coalesceBytes);
+    }
+
+    @Test
+    void queuedMessagesGoOutInOneFlush() throws IOException {
+        HeldWriters writers = new HeldWriters();
+        TCPConnection connection = connect(writers, queued(0, 64 * 1024));
+        for (int i = 0; i < 20; i++) connection.sendObject("type:system_message|n:" + i);
+        writers.release();
+
+        for (int i = 0; i < 20; i++) assertEquals("type:system_message|n:" + i, reader.readLine());
+        FlushStats stats = connection.getFlushStats();
+        assertEquals(1, stats.getFlushes());
+        assertEquals(20, stats.getMessages());
+        assertEquals(20, stats.getMaxMessagesPerFlush());
+        connection.disconnect();
+    }
+
+    @Test
+    void coalesceBytesCapsEachFlush() throws IOException {
+        HeldWriters writers = new HeldWriters();
+        // cada línea ocupa 40 bytes: el lote se corta al pasar 100, con 3 mensajes
+        TCPConnection connection = connect(writers, queued(0, 100));
+        String line = "type:system_message|content:" + "x".repeat(11);
+        for (int i = 0; i < 20; i++) connection.sendObject(line);
+        writers.release();
+
+        for (int i = 0; i < 20; i++) assertEquals(line, reader.readLine());
+        FlushStats stats = connection.getFlushStats();
+        assertEquals(7, stats.getFlushes());
+        assertEquals(3, stats.getMaxMessagesPerFlush());
+        assertEquals(20 * 40, stats.getBytes());
+        connection.disconnect();
+    }
+
+    @Test
+    void windowWaitsForMessagesThatFollow() throws Exception {
+        TCPConnection connection = connect(ConnectionExecutors.platformThreads(), queued(500_000, 64 * 1024));
+        connection.sendObject("type:system_message|n:1");
+        Thread.sleep(50);
+        connection.sendObject("type:system_message|n:2");
+
+        assertEquals("type:system_message|n:1", reader.readLine());
+        assertEquals("type:system_message|n:2", reader.readLine());
+        FlushStats stats = connection.getFlushStats();
+        assertEquals(1, stats.getFlushes());
+        assertEquals(2, stats.getMessages());
+        connection.disconnect();
+    }
+
+    @Test
+    void directModeFlushesEveryMessage() throws IOException {
+        TCPConnection connection = connect(ConnectionExecutors.platformThreads(), OutboundConfig.DIRECT);
+        for (int i = 0; i < 5; i++) connection.sendObject("type:system_message|n:" + i);
+
+        for (int i = 0; i < 5; i++) assertEquals("type:system_message|n:" + i, reader.readLine());
+        assertEquals(5, connection.getFlushStats().getFlushes());
+        assertEquals(1, connection.getFlushStats().getMaxMessagesPerFlush());
+        connection.disconnect();
+    }
+}
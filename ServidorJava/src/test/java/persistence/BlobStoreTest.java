@@ -0,0 +1,115 @@
+package persistence;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlobStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private static byte[] audio(int seed, int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) seed);
+        data[0] = (byte) (seed >> 8);
+        return data;
+    }
+
+    private long packFiles() throws IOException {
+        try (var files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".pack")).count();
+        }
+    }
+
+    @Test
+    void sameContentIsStoredOnce() throws IOException {
+        BlobStore store = new BlobStore(dir, 1 << 20, 0.5);
+        byte[] note = audio(1, 1000);
+        String hash = store.put("a1", note);
+        assertEquals(hash, store.put("a2", note.clone()));
+        assertEquals(hash, store.put("a1", note));
+        store.put("a3", audio(2, 1000));
+        store.force();
+
+        assertEquals(2, store.getBlobCount());
+        assertEquals(3, store.getReferenceCount());
+        assertEquals(1, store.getDedupHits());
+        assertEquals(2000, store.getStoredBytes());
+        assertArrayEquals(note, store.get("a2"));
+
+        BlobStore reopened = new BlobStore(dir, 1 << 20, 0.5);
+        assertEquals(2, reopened.getBlobCount());
+        assertEquals(3, reopened.getReferenceCount());
+        assertArrayEquals(note, reopened.get("a1"));
+        assertArrayEquals(audio(2, 1000), reopened.get("a3"));
+        assertNull(reopened.get("nada"));
+    }
+
+    @Test
+    void releasingOneReferenceKeepsTheSharedBlob() throws IOException {
+        BlobStore store = new BlobStore(dir, 1 << 20, 0.5);
+        byte[] note = audio(3, 500);
+        store.put("a1", note);
+        store.put("a2", note);
+        store.release("a1");
+
+        assertFalse(store.contains("a1"));
+        assertArrayEquals(note, store.get("a2"));
+        assertEquals(0, store.compact());
+        assertEquals(1, store.getBlobCount());
+    }
+
+    @Test
+    void compactionReclaimsGarbagePacks() throws IOException {
+        // packs de ~4 KB: 10 notas de 1 KB llenan tres packs
+        BlobStore store = new BlobStore(dir, 4000, 0.5);
+        for (int i = 0; i < 10; i++) store.put("a" + i, audio(i, 1000));
+        assertEquals(3, store.getPackCount());
+
+        // el primer pack queda con 3 de 4 blobs sin referencias, el segundo con 1 de 4
+        for (int i : new int[]{0, 1, 2, 4}) store.release("a" + i);
+        // solo el primero supera compactRatio; el blob suelto del segundo espera
+        assertEquals(3000, store.compact());
+
+        assertEquals(3000, store.getReclaimedBytes());
+        assertEquals(1, store.getCompactions());
+        assertEquals(7, store.getBlobCount());
+        assertEquals(7000, store.getStoredBytes());
+        assertEquals(store.getPackCount(), packFiles());
+        for (int i : new int[]{3, 5, 6, 7, 8, 9}) assertArrayEquals(audio(i, 1000), store.get("a" + i));
+        assertNull(store.get("a0"));
+
+        // el catálogo reescrito describe los blobs en su nuevo lugar
+        BlobStore reopened = new BlobStore(dir, 4000, 0.5);
+        assertEquals(7, reopened.getBlobCount());
+        assertEquals(7000, reopened.getStoredBytes());
+        for (int i : new int[]{3, 5, 6, 7, 8, 9}) assertArrayEquals(audio(i, 1000), reopened.get("a" + i));
+        assertFalse(reopened.contains("a4"));
+    }
+
+    @Test
+    void openHandleSurvivesCompaction() throws IOException {
+        BlobStore store = new BlobStore(dir, 2000, 0.5);
+        store.put("a0", audio(0, 1000));
+        store.put("a1", audio(1, 1000));
+        store.put("a2", audio(2, 1000));
+
+        try (BlobHandle handle = store.open("a1")) {
+            store.release("a0");
+            assertTrue(store.compact() > 0);
+            assertArrayEquals(audio(1, 1000), handle.readAll());
+        }
+        assertArrayEquals(audio(1, 1000), store.get("a1"));
+    }
+}
@@ -0,0 +1,94 @@
+package persistence;
+
+import model.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Guardar un mensaje agrega al final del log: lo ya escrito no se reescribe,
+ * y al reabrir la conversación se lee entera y en orden.
+ */
+class ChatHistoryAppendTest {
+    private static final Path DATA = Paths.get("data");
+    private static final Path LOG = DATA.resolve("history").resolve("user_bob");
+
+    @BeforeEach
+    @AfterEach
+    void clean() throws IOException {
+        System.clearProperty("chat.history.segmentBytes");
+        if (Files.exists(DATA)) ChatHistory.deleteRecursively(DATA);
+    }
+
+    private static List<Message> messages(int from, int to) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = from; i < to; i++) messages.add(new Message("ana", "bob", "mensaje " + i, false));
+        return messages;
+    }
+
+    private static List<Path> segments() throws IOException {
+        try (var files = Files.list(LOG)) {
+            return files.filter(p -> p.toString().endsWith(SegmentedLog.SEGMENT_SUFFIX)).sorted().toList();
+        }
+    }
+
+    private static byte[] written(Path segment) throws IOException {
+        byte[] bytes = Files.readAllBytes(segment);
+        // el segmento activo está preasignado con ceros al final
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == 0) end--;
+        return Arrays.copyOf(bytes, end);
+    }
+
+    @Test
+    void savingAppendsWithoutRewritingEarlierRecords() throws IOException {
+        ChatHistory history = new ChatHistory();
+        history.appendAll(messages(0, 100));
+        history.sync();
+        Path segment = segments().get(0);
+        Object inode = Files.getAttribute(segment, "unix:ino");
+        byte[] before = written(segment);
+
+        for (Message message : messages(100, 200)) history.saveMessage(message);
+        history.sync();
+
+        // mismo archivo, y lo anterior quedó byte por byte igual
+        assertEquals(inode, Files.getAttribute(segment, "unix:ino"));
+        byte[] after = written(segment);
+        assertTrue(after.length > before.length);
+        assertArrayEquals(before, Arrays.copyOf(after, before.length));
+        assertEquals(200, history.nextSeq("user_bob"));
+    }
+
+    @Test
+    void reopenedLogReadsEveryRecordInOrderAndKeepsNumbering() throws IOException {
+        System.setProperty("chat.history.segmentBytes", "4096");
+        ChatHistory history = new ChatHistory();
+        // un lote no se parte entre segmentos: se rota entre lotes
+        for (int i = 0; i < 500; i += 50) history.appendAll(messages(i, i + 50));
+        history.sync();
+        history.checkpoint();
+        assertTrue(segments().size() > 1);
+
+        ChatHistory reopened = new ChatHistory();
+        List<Message> loaded = reopened.loadMessages("bob", false);
+        assertEquals(500, loaded.size());
+        for (int i = 0; i < 500; i++) assertEquals("mensaje " + i, loaded.get(i).getContent());
+
+        long[] seqs = reopened.appendAll(messages(500, 502));
+        assertArrayEquals(new long[]{500, 501}, seqs);
+        assertEquals("mensaje 501", reopened.readAt("user_bob", 501).getContent());
+    }
+}
@@ -0,0 +1,118 @@
+package persistence;
+
+import model.AudioMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Las notas de voz se listan solo con sus metadatos; los bytes están en el
+ * almacén de blobs y se leen aparte, también los que vinieron de data/audio/.
+ */
+class ChatHistoryAudioTest {
+    private static final Path DATA = Paths.get("data");
+    private static final Path BLOBS = DATA.resolve("blobs");
+    private static final Path AUDIO = DATA.resolve("audio");
+
+    @BeforeEach
+    @AfterEach
+    void clean() throws IOException {
+        if (Files.exists(DATA)) ChatHistory.deleteRecursively(DATA);
+    }
+
+    private static byte[] audio(int seed, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) data[i] = (byte) (seed + i * 31);
+        return data;
+    }
+
+    private static void truncatePacks() throws IOException {
+        try (var files = Files.list(BLOBS)) {
+            for (Path pack : files.filter(p -> p.toString().endsWith(".pack")).toList()) {
+                try (FileChannel channel = FileChannel.open(pack, StandardOpenOption.WRITE)) {
+                    channel.truncate(0);
+                }
+            }
+        }
+    }
+
+    @Test
+    void listingReadsOnlyTheMetadata() throws IOException {
+        ChatHistory history = new ChatHistory();
+        try {
+            AudioMessage first = new AudioMessage("ana", "amigos", true, audio(1, 50_000), 3);
+            AudioMessage second = new AudioMessage("bob", "amigos", true, audio(2, 80_000), 5);
+            history.appendAll(List.of(first, second));
+            history.sync();
+            // sin los bytes del audio: si el listado los leyera, fallaría
+            truncatePacks();
+
+            List<AudioMessage> listed = history.loadAudioMessages("amigos", true);
+            assertEquals(2, listed.size());
+            assertEquals(first.getId(), listed.get(0).getAudioId());
+            assertEquals(50_000, listed.get(0).getAudioSize());
+            assertEquals(3, listed.get(0).getDuration());
+            assertEquals(second.getId(), listed.get(1).getAudioId());
+            assertEquals(80_000, listed.get(1).getAudioSize());
+            for (AudioMessage message : listed) assertNull(message.getAudioData());
+
+            // los bytes se piden aparte, y ahí sí se nota que faltan
+            assertNull(history.loadAudioData(first.getId()));
+        } finally {
+            history.close();
+        }
+    }
+
+    @Test
+    void migratedAudioOpensThroughItsHandle() throws IOException {
+        String id = "d0cde9e1-a504-4826-abf4-d6bdef4fc4a5";
+        byte[] data = audio(7, 92_204);
+        Files.createDirectories(AUDIO);
+        Files.write(AUDIO.resolve(id + ".audio"), data);
+
+        ChatHistory history = new ChatHistory();
+        try {
+            assertFalse(Files.exists(AUDIO));
+            history.appendAll(List.of(new AudioMessage(id, "ana", "amigos", true, 1_700_000_000_000L, data.length, 4)));
+            history.sync();
+            assertEquals(id, history.loadAudioMessages("amigos", true).get(0).getAudioId());
+
+            try (BlobHandle handle = history.openAudio(id)) {
+                assertNotNull(handle);
+                assertEquals(data.length, handle.size());
+                assertArrayEquals(data, handle.readAll());
+                assertArrayEquals(Arrays.copyOfRange(data, 90_000, data.length), handle.read(90_000, 10_000));
+                try (InputStream stream = handle.openStream()) {
+                    assertArrayEquals(data, stream.readAllBytes());
+                }
+            }
+        } finally {
+            history.close();
+        }
+
+        // en el próximo arranque no hay nada que migrar y el audio sigue ahí
+        ChatHistory reopened = new ChatHistory();
+        try (BlobHandle handle = reopened.openAudio(id)) {
+            assertArrayEquals(data, handle.readAll());
+            assertEquals(1, reopened.getBlobStore().getBlobCount());
+        } finally {
+            reopened.close();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package persistence;
+
+import model.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Muchos hilos escribiendo y leyendo muchas conversaciones a la vez, con
+ * checkpoints en el medio: los locks por franja no pueden perder ni
+ * desordenar mensajes de ninguna conversación.
+ */
+class ChatHistoryConcurrencyTest {
+    private static final Path DATA = Paths.get("data");
+    private static final int WRITERS = 8;
+    private static final int CONVERSATIONS = 40;
+    private static final int BATCHES = 150;
+
+    @BeforeEach
+    @AfterEach
+    void clean() throws IOException {
+        if (Files.exists(DATA)) ChatHistory.deleteRecursively(DATA);
+    }
+
+    private static String target(int conversation) {
+        return "conv" + conversation;
+    }
+
+    @Test
+    void stripedWritersKeepEveryConversationComplete() throws Exception {
+        ChatHistory history = new ChatHistory();
+        ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int w = 0; w < WRITERS; w++) {
+            int writer = w;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    for (int b = 0; b < BATCHES; b++) {
+                        // cada lote toca varias conversaciones, igual que un lote del escritor diferido
+                        List<Message> batch = new ArrayList<>();
+                        for (int k = 0; k < 4; k++) {
+                            int conversation = (writer * 7 + b * 3 + k * 11) % CONVERSATIONS;
+                            batch.add(new Message("w" + writer, target(conversation), writer + ":" + b + ":" + k,
+                                    conversation % 2 == 0));
+                        }
+                        long[] seqs = history.appendAll(batch);
+                        for (int k = 0; k < batch.size(); k++) {
+                            Message message = batch.get(k);
+                            Message stored = history.readAt(ChatHistory.logNameOf(message), seqs[k]);
+                            if (stored == null || !stored.getContent().equals(message.getContent())) {
+                                errors.add(new AssertionError("Secuencia " + seqs[k] + " no es " + message.getContent()));
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            try {
+                start.await();
+                while (writing.get()) {
+                    history.sync();
+                    history.checkpoint();
+                }
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        }));
+        for (int r = 0; r < 2; r++) {
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    int i = 0;
+                    while (writing.get()) {
+                        int conversation = i++ % CONVERSATIONS;
+                        HistoryPage page = history.loadPage(target(conversation), conversation % 2 == 0, null, null, 50);
+                        if (!page.getMessages().isEmpty()
+                                && page.getLast() - page.getFirst() + 1 != page.getMessages().size()) {
+                            errors.add(new AssertionError("Página con huecos en " + target(conversation)));
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+
+        threads.forEach(Thread::start);
+        start.countDown();
+        for (int w = 0; w < WRITERS; w++) threads.get(w).join();
+        writing.set(false);
+        for (Thread thread : threads) thread.join();
+        assertTrue(errors.isEmpty(), () -> errors.peek().toString());
+
+        // cada conversación tiene todos sus mensajes, y los de cada hilo en el orden en que los escribió
+        int total = 0;
+        for (int c = 0; c < CONVERSATIONS; c++) {
+            Map<String, Integer> lastBatch = new HashMap<>();
+            for (Message message : history.loadMessages(target(c), c % 2 == 0)) {
+                String[] parts = message.getContent().split(":");
+                int batch = Integer.parseInt(parts[1]);
+                Integer previous = lastBatch.put(parts[0], batch);
+                assertTrue(previous == null || previous <= batch, "Desordenado en " + target(c));
+                total++;
+            }
+        }
+        assertEquals(WRITERS * BATCHES * 4, total);
+
+        // y lo mismo después de reabrir
+        ChatHistory reopened = new ChatHistory();
+        int reloaded = 0;
+        for (int c = 0; c < CONVERSATIONS; c++) {
+            reloaded += reopened.loadMessages(target(c), c % 2 == 0).size();
+        }
+        assertEquals(total, reloaded);
+    }
+
+    /**
+     * Mensaje cuyo contenido se traba la segunda vez que se pide: la primera
+     * es al codificarlo, la segunda al indexarlo, ya dentro del lock de su
+     * conversación.
+     */
+    private static final class StuckWhileIndexed extends Message {
+        final CountDownLatch inside = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger reads = new AtomicInteger();
+
+        StuckWhileIndexed(String to) {
+            super("ana", to, "trabado", false);
+        }
+
+        @Override
+        public String getContent() {
+            if (reads.incrementAndGet() == 2) {
+                inside.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.getContent();
+        }
+    }
+
+    private static int stripeOf(String logName) {
+        return Math.floorMod(logName.hashCode(), 64);
+    }
+
+    @Test
+    void stalledConversationDoesNotBlockOtherStripes() throws Exception {
+        ChatHistory history = new ChatHistory();
+        String other = "bob";
+        for (int i = 0; stripeOf("user_" + other) == stripeOf("user_ana"); i++) other = "bob" + i;
+        String free = other;
+
+        StuckWhileIndexed stuck = new StuckWhileIndexed("ana");
+        CompletableFuture<long[]> stalled = CompletableFuture.supplyAsync(() -> {
+            try {
+                return history.appendAll(List.of(stuck));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        try {
+            assertTrue(stuck.inside.await(5, TimeUnit.SECONDS));
+
+            // otra franja: escribir y leer no espera a la conversación trabada
+            CompletableFuture<Message> written = CompletableFuture.supplyAsync(() -> {
+                try {
+                    long[] seqs = history.appendAll(List.of(new Message("ana", free, "libre", false)));
+                    return history.readAt("user_" + free, seqs[0]);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            assertEquals("libre", written.get(5, TimeUnit.SECONDS).getContent());
+            assertFalse(stalled.isDone());
+        } finally {
+            stuck.release.countDown();
+        }
+        assertArrayEquals(new long[]{0}, stalled.get(5, TimeUnit.SECONDS));
+        assertEquals("trabado", history.readAt("user_ana", 0).getContent());
+    }
+}
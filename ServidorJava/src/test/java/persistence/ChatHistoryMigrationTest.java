@@ -0,0 +1,86 @@
+package persistence;
+
+import model.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * El historial del formato anterior (data/history/x.txt) se migra solo a un
+ * log vacío: nunca se renumeran mensajes que ya tienen secuencia.
+ */
+class ChatHistoryMigrationTest {
+    private static final Path DATA = Paths.get("data");
+    private static final Path LEGACY = DATA.resolve("history").resolve("user_bob.txt");
+
+    @BeforeEach
+    @AfterEach
+    void clean() throws IOException {
+        if (Files.exists(DATA)) ChatHistory.deleteRecursively(DATA);
+    }
+
+    private static void writeLegacy(String... contents) throws IOException {
+        Files.createDirectories(LEGACY.getParent());
+        StringBuilder text = new StringBuilder();
+        long timestamp = 1_700_000_000_000L;
+        for (String content : contents) {
+            text.append("from:ana|to:bob|content:").append(content)
+                    .append("|isGroup:false|timestamp:").append(timestamp++).append('\n');
+        }
+        Files.writeString(LEGACY, text);
+    }
+
+    private static List<String> contents(List<Message> messages) {
+        List<String> contents = new ArrayList<>();
+        for (Message message : messages) contents.add(message.getContent());
+        return contents;
+    }
+
+    @Test
+    void legacyFileIsMigratedIntoEmptyLog() throws IOException {
+        writeLegacy("viejo 1", "viejo 2");
+
+        ChatHistory history = new ChatHistory();
+        assertEquals(List.of("viejo 1", "viejo 2"), contents(history.loadMessages("bob", false)));
+        assertEquals("viejo 2", history.readAt("user_bob", 1).getContent());
+        assertTrue(Files.exists(LEGACY.resolveSibling("user_bob.txt.migrated")));
+    }
+
+    @Test
+    void legacyFileIsNotMigratedIntoNonEmptyLog() throws IOException {
+        ChatHistory history = new ChatHistory();
+        history.appendAll(List.of(new Message("ana", "bob", "nuevo", false)));
+        history.sync();
+        history.checkpoint();
+        writeLegacy("viejo 1", "viejo 2");
+
+        ChatHistory reopened = new ChatHistory();
+        assertEquals(List.of("nuevo"), contents(reopened.loadMessages("bob", false)));
+        assertEquals("nuevo", reopened.readAt("user_bob", 0).getContent());
+        assertTrue(Files.exists(LEGACY));
+    }
+
+    @Test
+    void legacyFileIsNotMigratedOverPendingWalBatches() throws IOException {
+        ChatHistory history = new ChatHistory();
+        history.appendAll(List.of(new Message("ana", "bob", "nuevo", false)));
+        history.sync();
+        // la caída se llevó el log de la conversación, pero el lote sigue en el WAL
+        ChatHistory.deleteRecursively(DATA.resolve("history").resolve("user_bob"));
+        writeLegacy("viejo 1", "viejo 2");
+
+        ChatHistory reopened = new ChatHistory();
+        assertEquals(List.of("nuevo"), contents(reopened.loadMessages("bob", false)));
+        assertTrue(Files.exists(LEGACY));
+    }
+}
@@ -0,0 +1,143 @@
+package persistence;
+
+import model.Message;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Páginas del historial leídas del log mapeado, con segmentos chicos para
+ * que las páginas crucen de un segmento a otro.
+ */
+class ChatHistoryPagingTest {
+    private static final Path DATA = Paths.get("data");
+    private static final int TOTAL = 300;
+
+    @BeforeAll
+    static void smallSegments() {
+        System.setProperty("chat.history.segmentBytes", "2048");
+        System.setProperty("chat.history.indexInterval", "8");
+    }
+
+    @AfterAll
+    static void restore() {
+        System.clearProperty("chat.history.segmentBytes");
+        System.clearProperty("chat.history.indexInterval");
+    }
+
+    @BeforeEach
+    @AfterEach
+    void clean() throws IOException {
+        if (Files.exists(DATA)) ChatHistory.deleteRecursively(DATA);
+    }
+
+    private static List<String> contents(HistoryPage page) {
+        List<String> contents = new ArrayList<>();
+        for (Message message : page.getMessages()) contents.add(message.getContent());
+        return contents;
+    }
+
+    private static List<String> range(int from, int to) {
+        List<String> contents = new ArrayList<>();
+        for (int i = from; i < to; i++) contents.add("mensaje " + i);
+        return contents;
+    }
+
+    private static ChatHistory filled() throws IOException {
+        ChatHistory history = new ChatHistory();
+        for (int i = 0; i < TOTAL; i++) {
+            history.appendAll(List.of(new Message("ana", "bob", "mensaje " + i, false)));
+        }
+        return history;
+    }
+
+    @Test
+    void pagesBackwardsFromTheNewest() throws IOException {
+        ChatHistory history = filled();
+
+        List<String> seen = new ArrayList<>();
+        HistoryPage page = history.loadPage("bob", false, null, null, 64);
+        assertEquals(TOTAL - 1, page.getLast());
+        while (true) {
+            List<String> chunk = contents(page);
+            chunk.addAll(seen);
+            seen = chunk;
+            if (!page.hasMore()) break;
+            page = history.loadPage("bob", false, page.getFirst(), null, 64);
+        }
+        assertEquals(range(0, TOTAL), seen);
+    }
+
+    @Test
+    void pagesForwardAfterASeq() throws IOException {
+        ChatHistory history = filled();
+
+        HistoryPage page = history.loadPage("bob", false, null, 99L, 50);
+        assertEquals(100, page.getFirst());
+        assertEquals(149, page.getLast());
+        assertEquals(range(100, 150), contents(page));
+        assertTrue(page.hasMore());
+
+        page = history.loadPage("bob", false, null, 279L, 50);
+        assertEquals(range(280, TOTAL), contents(page));
+        assertFalse(page.hasMore());
+
+        page = history.loadPage("bob", false, null, (long) TOTAL - 1, 50);
+        assertTrue(page.isEmpty());
+    }
+
+    @Test
+    void pagesSurviveReopening() throws IOException {
+        filled().checkpoint();
+
+        ChatHistory reopened = new ChatHistory();
+        assertEquals(range(137, 137 + 40), contents(reopened.loadPage("bob", false, 177L, null, 40)));
+        assertEquals(range(0, 10), contents(reopened.loadPage("bob", false, 10L, null, 40)));
+        assertFalse(reopened.loadPage("bob", false, 10L, null, 40).hasMore());
+    }
+
+    @Test
+    void boundaryCursorsDoNotOverflow() throws IOException {
+        ChatHistory history = filled();
+
+        HistoryPage page = history.loadPage("bob", false, null, Long.MAX_VALUE, 50);
+        assertTrue(page.isEmpty());
+        assertFalse(page.hasMore());
+        assertTrue(history.loadPage("bob", false, null, Long.MAX_VALUE - 1, Integer.MAX_VALUE).isEmpty());
+
+        assertEquals(range(0, 50), contents(history.loadPage("bob", false, null, Long.MIN_VALUE, 50)));
+        assertEquals(range(250, TOTAL), contents(history.loadPage("bob", false, Long.MAX_VALUE, null, 50)));
+        assertTrue(history.loadPage("bob", false, Long.MIN_VALUE, null, 50).isEmpty());
+
+        // el límite no se suma al cursor: una página enorme trae lo que quede
+        assertEquals(range(200, TOTAL), contents(history.loadPage("bob", false, null, 199L, Integer.MAX_VALUE)));
+        assertEquals(range(0, 100), contents(history.loadPage("bob", false, 100L, null, Integer.MAX_VALUE)));
+    }
+
+    @Test
+    void zeroOrNegativeLimitReturnsAnEmptyPage() throws IOException {
+        ChatHistory history = filled();
+
+        for (int limit : new int[]{0, -1, Integer.MIN_VALUE}) {
+            assertTrue(history.loadPage("bob", false, null, null, limit).isEmpty());
+            assertTrue(history.loadPage("bob", false, 150L, null, limit).isEmpty());
+            assertTrue(history.loadPage("bob", false, null, 150L, limit).isEmpty());
+        }
+        // la página vacía no cierra el cursor
+        assertTrue(history.loadPage("bob", false, null, 150L, 0).hasMore());
+        assertTrue(history.loadPage("bob", false, 150L, null, 0).hasMore());
+    }
+}
@@ -0,0 +1,121 @@
+package persistence;
+
+import model.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Caídas simuladas: lo que quedó en el WAL forzado tiene que reaparecer en
+ * el log de la conversación aunque su cola se haya perdido.
+ */
+class ChatHistoryRecoveryTest {
+    private static final Path DATA = Paths.get("data");
+
+    @BeforeEach
+    @AfterEach
+    void clean() throws IOException {
+        if (Files.exists(DATA)) ChatHistory.deleteRecursively(DATA);
+    }
+
+    private static List<String> contents(List<Message> messages) {
+        List<String> contents = new ArrayList<>();
+        for (Message message : messages) contents.add(message.getContent());
+        return contents;
+    }
+
+    private static Path segmentOf(String logName) throws IOException {
+        try (var segments = Files.list(DATA.resolve("history").resolve(logName))) {
+            return segments.filter(p -> p.toString().endsWith(SegmentedLog.SEGMENT_SUFFIX))
+                    .max(Path::compareTo).orElseThrow();
+        }
+    }
+
+    private static List<String> writeAndSync(ChatHistory history, int count) throws IOException {
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String content = "mensaje " + i;
+            history.appendAll(List.of(new Message("ana", "bob", content, false)));
+            sent.add(content);
+        }
+        // el WAL queda en disco; el log de la conversación no (no hubo checkpoint)
+        history.sync();
+        return sent;
+    }
+
+    @Test
+    void zeroFilledConversationTailIsRecoveredFromWal() throws IOException {
+        ChatHistory history = new ChatHistory();
+        List<String> sent = writeAndSync(history, 40);
+        long durable = Files.size(segmentOf("user_bob"));
+        sent.addAll(writeAndSync(history, 10));
+
+        // las páginas de los últimos 10 registros se perdieron: el archivo quedó con ceros
+        Path segment = segmentOf("user_bob");
+        long size = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate((int) (size - durable)), durable);
+            channel.write(ByteBuffer.allocate(4096), size);
+        }
+
+        ChatHistory reopened = new ChatHistory();
+        assertEquals(sent, contents(reopened.loadMessages("bob", false)));
+        assertEquals(50, reopened.nextSeq("user_bob"));
+    }
+
+    @Test
+    void tornAppendIsRecoveredFromWal() throws IOException {
+        List<String> sent = writeAndSync(new ChatHistory(), 20);
+
+        // la caída cortó el último registro a la mitad
+        Path segment = segmentOf("user_bob");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(segment) - 7);
+        }
+
+        ChatHistory reopened = new ChatHistory();
+        assertEquals(sent, contents(reopened.loadMessages("bob", false)));
+    }
+
+    @Test
+    void logEndingBeforeTheWalFailsRecovery() throws IOException {
+        ChatHistory history = new ChatHistory();
+        writeAndSync(history, 20);
+        // el checkpoint vacía el WAL: lo que sigue empieza en el offset 20
+        history.checkpoint();
+        writeAndSync(history, 10);
+
+        // el log perdió registros que el WAL ya no tiene
+        Path segment = segmentOf("user_bob");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(segment) / 4);
+        }
+        long walBytes = walSize();
+
+        UncheckedIOException failure = assertThrows(UncheckedIOException.class, ChatHistory::new);
+        assertTrue(failure.getCause().getMessage().contains("user_bob"), failure.getCause().getMessage());
+        // el WAL queda intacto para revisarlo
+        assertEquals(walBytes, walSize());
+    }
+
+    private static long walSize() throws IOException {
+        try (var files = Files.walk(DATA.resolve("wal"))) {
+            return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package persistence;
+
+import model.Group;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * El estado de los grupos tiene que sobrevivir igual al reabrir desde el
+ * diario solo, desde una foto, o desde una foto más la cola del diario.
+ */
+class GroupStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private static Map<String, String> state(GroupStore store) {
+        Map<String, String> state = new TreeMap<>();
+        for (Group group : store.getGroups().values()) {
+            state.put(group.getName(), group.getCreator() + " " + new TreeSet<>(group.getMembers()));
+        }
+        return state;
+    }
+
+    private static void populate(GroupStore store, int from, int to) {
+        for (int g = from; g < to; g++) {
+            String name = "grupo" + g;
+            store.create(name, "u" + g);
+            for (int m = 0; m < 5; m++) store.join(name, "u" + (g + m));
+            if (g % 3 == 0) store.leave(name, "u" + g);
+        }
+    }
+
+    @Test
+    void journalAloneIsReplayed() throws IOException {
+        GroupStore store = new GroupStore(dir, 1024, 1_000_000);
+        populate(store, 0, 20);
+        assertFalse(store.create("grupo0", "otro"));
+        assertFalse(store.join("nada", "u1"));
+        // el último miembro que sale borra el grupo
+        store.create("solo", "ana");
+        store.join("solo", "ana");
+        assertTrue(store.leave("solo", "ana"));
+
+        GroupStore reopened = new GroupStore(dir, 1024, 1_000_000);
+        assertEquals(state(store), state(reopened));
+        assertFalse(reopened.getGroups().containsKey("solo"));
+        assertEquals(store.getEventsSinceSnapshot(), reopened.getReplayed());
+    }
+
+    @Test
+    void snapshotPlusJournalTailRoundTrip() throws IOException {
+        GroupStore store = new GroupStore(dir, 1024, 1_000_000);
+        populate(store, 0, 30);
+        store.snapshot();
+        assertEquals(0, store.getEventsSinceSnapshot());
+
+        // después de la foto: cambios a grupos de la foto y grupos nuevos
+        store.leave("grupo1", "u1");
+        store.join("grupo2", "nuevo");
+        populate(store, 30, 35);
+        long tail = store.getEventsSinceSnapshot();
+
+        GroupStore reopened = new GroupStore(dir, 1024, 1_000_000);
+        assertEquals(state(store), state(reopened));
+        assertEquals(tail, reopened.getReplayed());
+        // el creador que salió antes de la foto sigue fuera
+        assertFalse(reopened.getGroups().get("grupo0").hasMember("u0"));
+    }
+
+    @Test
+    void clearIsJournaledAfterASnapshot() throws IOException {
+        GroupStore store = new GroupStore(dir, 1024, 1_000_000);
+        populate(store, 0, 5);
+        store.snapshot();
+        store.clear();
+        populate(store, 100, 102);
+
+        GroupStore reopened = new GroupStore(dir, 1024, 1_000_000);
+        assertEquals(Set.of("grupo100", "grupo101"), reopened.getGroups().keySet());
+        assertEquals(state(store), state(reopened));
+    }
+
+    @Test
+    void backgroundSnapshotsTrimTheJournal() throws IOException, InterruptedException {
+        GroupStore store = new GroupStore(dir, 512, 50);
+        populate(store, 0, 40);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (store.getSnapshots() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertTrue(store.getSnapshots() > 0);
+        // puede coincidir con una foto de fondo: la forzada espera a que termine
+        store.snapshot();
+        populate(store, 40, 42);
+
+        GroupStore reopened = new GroupStore(dir, 512, 50);
+        assertEquals(state(store), state(reopened));
+        assertTrue(reopened.getReplayed() < 50);
+    }
+
+    @Test
+    void concurrentSnapshotsDoNotCollide() throws Exception {
+        GroupStore store = new GroupStore(dir, 512, 20);
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) store.snapshot();
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        // mientras tanto los cambios disparan fotos de fondo
+        populate(store, 0, 60);
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(List.of(), errors);
+        store.snapshot();
+        GroupStore reopened = new GroupStore(dir, 512, 1_000_000);
+        assertEquals(state(store), state(reopened));
+        assertEquals(0, reopened.getReplayed());
+    }
+
+    @Test
+    void corruptSnapshotFallsBackToTheJournal() throws IOException {
+        GroupStore store = new GroupStore(dir, 1024, 1_000_000);
+        store.create("a", "ana");
+        store.snapshot();
+        store.create("b", "bob");
+
+        byte[] snapshot = Files.readAllBytes(dir.resolve("snapshot"));
+        snapshot[snapshot.length - 1] ^= 1;
+        Files.write(dir.resolve("snapshot"), snapshot);
+
+        // se recupera lo que quede en el diario, como mínimo lo posterior a la foto
+        GroupStore reopened = new GroupStore(dir, 1024, 1_000_000);
+        assertTrue(reopened.getGroups().containsKey("b"));
+        assertEquals(reopened.getReplayed(), reopened.getEventsSinceSnapshot());
+    }
+}
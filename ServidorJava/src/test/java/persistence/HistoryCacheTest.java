@@ -0,0 +1,163 @@
+package persistence;
+
+import model.Message;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * La caché lee el disco una vez por conversación, se mantiene al día con lo
+ * que se guarda y desaloja por LRU al pasarse de maxBytes.
+ */
+class HistoryCacheTest {
+
+    private static List<Message> messages(String to, int from, int count) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = from; i < from + count; i++) messages.add(new Message("ana", to, "m" + i, false));
+        return messages;
+    }
+
+    private static List<String> contents(List<Message> messages) {
+        List<String> contents = new ArrayList<>();
+        for (Message message : messages) contents.add(message.getContent());
+        return contents;
+    }
+
+    /**
+     * Loader que cuenta cuántas veces se leyó "el disco".
+     */
+    private static Supplier<List<Message>> counting(AtomicInteger loads, List<Message> disk) {
+        return () -> {
+            loads.incrementAndGet();
+            return new ArrayList<>(disk);
+        };
+    }
+
+    @Test
+    void secondReadIsServedFromMemory() {
+        HistoryCache cache = new HistoryCache(10, 1 << 20);
+        AtomicInteger loads = new AtomicInteger();
+        List<Message> disk = messages("bob", 0, 3);
+
+        assertEquals(contents(disk), contents(cache.get("@bob", counting(loads, disk))));
+        assertEquals(contents(disk), contents(cache.get("@bob", counting(loads, disk))));
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    void keepsOnlyTheLastMessagesAndFollowsWrites() {
+        HistoryCache cache = new HistoryCache(3, 1 << 20);
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals(List.of("m2", "m3", "m4"), contents(cache.get("@bob", counting(loads, messages("bob", 0, 5)))));
+
+        for (Message message : messages("bob", 5, 2)) cache.append("@bob", message);
+        assertEquals(List.of("m4", "m5", "m6"), contents(cache.get("@bob", counting(loads, List.of()))));
+        assertEquals(1, loads.get());
+
+        // lo guardado en una conversación que no está en caché no crea entrada
+        cache.append("@carla", new Message("ana", "carla", "hola", false));
+        assertEquals(1, cache.getConversations());
+    }
+
+    @Test
+    void leastRecentlyUsedConversationIsEvicted() {
+        // cada conversación ocupa algo menos de la mitad del límite
+        long perConversation = sizeOf(messages("a", 0, 5));
+        HistoryCache cache = new HistoryCache(10, perConversation * 2 + perConversation / 2);
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.get("@a", counting(loads, messages("a", 0, 5)));
+        cache.get("@b", counting(loads, messages("b", 0, 5)));
+        cache.get("@a", counting(loads, messages("a", 0, 5)));
+        cache.get("@c", counting(loads, messages("c", 0, 5)));
+
+        assertEquals(3, loads.get());
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.getBytes() <= perConversation * 2 + perConversation / 2);
+        // a se usó después que b: sigue en memoria, b hay que volver a leerla
+        cache.get("@a", counting(loads, messages("a", 0, 5)));
+        assertEquals(3, loads.get());
+        cache.get("@b", counting(loads, messages("b", 0, 5)));
+        assertEquals(4, loads.get());
+    }
+
+    private static long sizeOf(List<Message> messages) {
+        HistoryCache probe = new HistoryCache(messages.size(), Long.MAX_VALUE);
+        probe.get("x", () -> messages);
+        return probe.getBytes();
+    }
+
+    @Test
+    void concurrentMissesShareOneLoad() throws Exception {
+        HistoryCache cache = new HistoryCache(10, 1 << 20);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Supplier<List<Message>> slow = () -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return messages("bob", 0, 3);
+        };
+
+        CompletableFuture<List<Message>> first = CompletableFuture.supplyAsync(() -> cache.get("@bob", slow));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        List<CompletableFuture<List<Message>>> waiting = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            waiting.add(CompletableFuture.supplyAsync(() -> cache.get("@bob", slow)));
+        }
+        // guardado mientras se lee: no estaba en disco todavía
+        cache.append("@bob", new Message("ana", "bob", "nuevo", false));
+        release.countDown();
+
+        assertEquals(List.of("m0", "m1", "m2", "nuevo"), contents(first.get(5, TimeUnit.SECONDS)));
+        for (CompletableFuture<List<Message>> other : waiting) {
+            assertEquals(4, other.get(5, TimeUnit.SECONDS).size());
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void messageAlreadyOnDiskIsNotAddedTwice() {
+        HistoryCache cache = new HistoryCache(10, 1 << 20);
+        List<Message> disk = messages("bob", 0, 2);
+        Message saved = new Message("ana", "bob", "recién guardado", false);
+        disk.add(saved);
+
+        List<Message> loaded = cache.get("@bob", () -> {
+            // el guardado llega a la caché mientras el disco ya lo incluye
+            cache.append("@bob", saved);
+            return disk;
+        });
+        assertEquals(List.of("m0", "m1", "recién guardado"), contents(loaded));
+    }
+
+    @Test
+    void failedLoadIsRetried() {
+        HistoryCache cache = new HistoryCache(10, 1 << 20);
+        assertThrows(IllegalStateException.class, () -> cache.get("@bob", () -> {
+            throw new IllegalStateException("disco");
+        }));
+        assertEquals(0, cache.getConversations());
+
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals(List.of("m0"), contents(cache.get("@bob", counting(loads, messages("bob", 0, 1)))));
+        assertEquals(1, loads.get());
+    }
+}
@@ -0,0 +1,115 @@
+package persistence;
+
+import bench.Bench;
+import model.Message;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencia de leer una página del historial (loadPage sobre los segmentos
+ * mapeados) en una conversación grande, en frío y en caliente, contra leer
+ * la conversación entera con loadMessages y quedarse con el final.
+ *
+ * gradle benchmark --tests persistence.HistoryReadBenchmark -Dbench.historyMb=1024
+ *
+ * "Frío" es la primera lectura con un ChatHistory recién abierto (nada
+ * mapeado todavía); si el proceso puede escribir /proc/sys/vm/drop_caches
+ * también se vacía antes la caché de páginas del sistema, y se avisa.
+ */
+@Tag("benchmark")
+class HistoryReadBenchmark {
+    private static final Path DATA = Paths.get("data");
+    private static final int PAGE = 50;
+
+    private static long sink;
+
+    @Test
+    void pageReadLatency() throws Exception {
+        long historyBytes = Long.getLong("bench.historyMb", 256L) * 1024 * 1024;
+        int contentBytes = Integer.getInteger("bench.contentBytes", 1000);
+        long fullScanMax = Long.getLong("bench.fullScanMaxMb", 256L) * 1024 * 1024;
+        if (Files.exists(DATA)) ChatHistory.deleteRecursively(DATA);
+        try {
+            long messages = write(historyBytes, contentBytes);
+
+            boolean dropped = dropPageCache();
+            ChatHistory history = new ChatHistory();
+            Bench.report("%d mensajes (%d MB), páginas de %d; caché del sistema %s", messages,
+                    historyBytes / (1024 * 1024), PAGE, dropped ? "vaciada" : "sin vaciar (no hay permiso)");
+            Bench.report("%-34s %12s %12s", "lectura", "µs", "KB asig.");
+
+            once("frío: última página", () -> sink += history.loadPage("sala", true, null, null, PAGE).getLast());
+            once("frío: página del medio", () ->
+                    sink += history.loadPage("sala", true, messages / 2, null, PAGE).getLast());
+
+            Random random = new Random(42);
+            row("caliente: última página", () -> sink += history.loadPage("sala", true, null, null, PAGE).getLast());
+            row("caliente: página al azar", () ->
+                    sink += history.loadPage("sala", true, 1 + (long) (random.nextDouble() * messages), null, PAGE)
+                            .getLast());
+            if (historyBytes <= fullScanMax) {
+                once("loadMessages + últimos " + PAGE, () -> {
+                    List<Message> all = history.loadMessages("sala", true);
+                    sink += all.subList(Math.max(0, all.size() - PAGE), all.size()).size();
+                });
+            } else {
+                Bench.report("%-34s salteado: más de -Dbench.fullScanMaxMb", "loadMessages + últimos " + PAGE);
+            }
+            Bench.report("(sink %d)", sink);
+            history.close();
+        } finally {
+            ChatHistory.deleteRecursively(DATA);
+        }
+    }
+
+    /**
+     * Llena el grupo "sala" hasta historyBytes de contenido, en lotes como los del escritor.
+     */
+    private static long write(long historyBytes, int contentBytes) throws IOException {
+        long start = System.nanoTime();
+        ChatHistory history = new ChatHistory();
+        String content = "a".repeat(contentBytes);
+        long total = historyBytes / contentBytes;
+        List<Message> batch = new ArrayList<>();
+        for (long i = 0; i < total; i++) {
+            batch.add(new Message("user" + (i % 50), "sala", content, true));
+            if (batch.size() == 1000 || i == total - 1) {
+                history.appendAll(batch);
+                batch.clear();
+            }
+        }
+        history.sync();
+        history.checkpoint();
+        history.close();
+        Bench.report("historial escrito en %d ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return total;
+    }
+
+    private static boolean dropPageCache() {
+        try {
+            Files.writeString(Paths.get("/proc/sys/vm/drop_caches"), "3");
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static void once(String name, Bench.Op op) throws Exception {
+        Bench.Result result = Bench.measure(0, 1, 1, op);
+        Bench.report("%-34s %12.1f %12.1f", name, result.nanosPerOp() / 1000, result.bytesPerOp() / 1024);
+    }
+
+    private static void row(String name, Bench.Op op) throws Exception {
+        Bench.Result result = Bench.measure(200, 11, 200, op);
+        Bench.report("%-34s %12.1f %12.1f", name, result.nanosPerOp() / 1000, result.bytesPerOp() / 1024);
+    }
+}
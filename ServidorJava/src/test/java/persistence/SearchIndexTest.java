@@ -0,0 +1,151 @@
+package persistence;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Los resultados tienen que ser los mismos mientras los mensajes pasan de
+ * memoria a segmentos, los segmentos se fusionan y el índice se reabre.
+ */
+class SearchIndexTest {
+
+    @TempDir
+    Path dir;
+
+    private record Doc(String conversation, long seq, String sender, String content) {
+    }
+
+    private final List<Doc> docs = new ArrayList<>();
+
+    private static String content(int i) {
+        return "Mensaje n" + i + (i % 2 == 0 ? " par" : " impar") + (i % 3 == 0 ? " Canción" : "");
+    }
+
+    private void add(SearchIndex index, int from, int to) {
+        for (int i = from; i < to; i++) {
+            String conversation = i % 4 == 0 ? "group_equipo" : "user_bob";
+            long seq = docs.stream().filter(d -> d.conversation.equals(conversation)).count();
+            Doc doc = new Doc(conversation, seq, i % 2 == 0 ? "ana" : "bob", content(i));
+            docs.add(doc);
+            index.add(doc.conversation, doc.seq, doc.sender, doc.content);
+        }
+    }
+
+    /**
+     * Lo que debería devolver la búsqueda: todos los términos, del más nuevo al más viejo.
+     */
+    private List<String> expected(String query, String sender, int limit) {
+        List<String> terms = Tokenizer.tokenize(query);
+        List<String> hits = new ArrayList<>();
+        for (int i = docs.size() - 1; i >= 0 && hits.size() < limit; i--) {
+            Doc doc = docs.get(i);
+            if (sender != null && !sender.equals(doc.sender)) continue;
+            if (Tokenizer.tokenize(doc.content).containsAll(terms)) hits.add(doc.conversation + "#" + doc.seq);
+        }
+        return hits;
+    }
+
+    private static List<String> search(SearchIndex index, String query, String sender, int limit) {
+        List<String> hits = new ArrayList<>();
+        for (SearchIndex.Hit hit : index.search(query, (c, s) -> sender == null || sender.equals(s), limit)) {
+            hits.add(hit.getConversation() + "#" + hit.getSeq());
+        }
+        return hits;
+    }
+
+    private void assertResults(SearchIndex index) {
+        for (String query : List.of("par", "impar", "cancion", "CANCIÓN par", "n42", "mensaje", "nada")) {
+            assertEquals(expected(query, null, 1000), search(index, query, null, 1000), query);
+            assertEquals(expected(query, "bob", 7), search(index, query, "bob", 7), query);
+        }
+    }
+
+    @Test
+    void resultsFollowIncrementalUpdates() throws IOException, InterruptedException {
+        SearchIndex index = new SearchIndex(dir, 10, 3);
+        for (int batch = 0; batch < 30; batch++) {
+            add(index, batch * 7, batch * 7 + 7);
+            assertResults(index);
+        }
+        assertEquals(docs.size(), index.getDocCount());
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (index.getMerges() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertTrue(index.getMerges() > 0);
+        assertResults(index);
+        index.close();
+
+        SearchIndex reopened = new SearchIndex(dir, 10, 3);
+        // lo que quedó en memoria se escribió al cerrar
+        assertEquals(docs.size(), reopened.getDocCount());
+        assertResults(reopened);
+        assertEquals(docs.stream().filter(d -> d.conversation.equals("user_bob")).count(),
+                reopened.getNextSeq("user_bob"));
+
+        // lo ya indexado se ignora; lo nuevo se encuentra junto con lo anterior
+        reopened.add("user_bob", 0, "ana", "repetido");
+        assertEquals(List.of(), search(reopened, "repetido", null, 10));
+        add(reopened, 210, 230);
+        assertResults(reopened);
+        reopened.close();
+    }
+
+    private static void awaitSegments(SearchIndex index, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (index.getSegmentCount() < count && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(count, index.getSegmentCount());
+    }
+
+    @Test
+    void frozenSegmentsAreWrittenInTheBackgroundAndStaySearchable() throws IOException, InterruptedException {
+        SearchIndex index = new SearchIndex(dir, 10, 100);
+        add(index, 0, 35);
+        // lo congelado se sigue encontrando esté o no escrito
+        assertResults(index);
+        assertEquals(35, index.getDocCount());
+        awaitSegments(index, 3);
+        assertResults(index);
+        index.close();
+
+        SearchIndex reopened = new SearchIndex(dir, 10, 100);
+        assertEquals(4, reopened.getSegmentCount());
+        assertResults(reopened);
+        reopened.close();
+    }
+
+    @Test
+    void failedFlushIsRetriedWithoutLosingDocuments() throws IOException, InterruptedException {
+        SearchIndex index = new SearchIndex(dir, 10, 100);
+        add(index, 0, 10);
+        awaitSegments(index, 1);
+
+        // sin directorio el flush falla en su hilo: add no se entera y lo congelado sigue en memoria
+        Path moved = dir.resolveSibling(dir.getFileName() + ".aparte");
+        Files.move(dir, moved);
+        add(index, 10, 20);
+        Thread.sleep(100);
+        assertEquals(1, index.getSegmentCount());
+        assertResults(index);
+
+        Files.move(moved, dir);
+        add(index, 20, 30);
+        awaitSegments(index, 3);
+        assertEquals(30, index.getDocCount());
+        assertResults(index);
+        index.close();
+
+        SearchIndex reopened = new SearchIndex(dir, 10, 100);
+        assertEquals(30, reopened.getDocCount());
+        assertResults(reopened);
+        reopened.close();
+    }
+}
@@ -0,0 +1,207 @@
+package persistence;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentedLogTest {
+
+    @TempDir
+    Path dir;
+
+    private static byte[] record(int i) {
+        return ("registro-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> readAll(SegmentedLog log) throws IOException {
+        List<String> records = new ArrayList<>();
+        log.forEach(record -> records.add(StandardCharsets.UTF_8.decode(record).toString()));
+        return records;
+    }
+
+    private static List<String> expected(int count) {
+        List<String> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) records.add("registro-" + i);
+        return records;
+    }
+
+    private Path activeSegment() throws IOException {
+        try (var segments = Files.list(dir)) {
+            return segments.filter(p -> p.toString().endsWith(SegmentedLog.SEGMENT_SUFFIX))
+                    .max(Path::compareTo).orElseThrow();
+        }
+    }
+
+    @Test
+    void zeroFilledTailIsDiscardedOnReopen() throws IOException {
+        SegmentedLog log = new SegmentedLog(dir, 1 << 20);
+        for (int i = 0; i < 100; i++) log.append(record(i));
+        log.force();
+        log.close();
+
+        // bloques reservados que la caída dejó en ceros: parecerían registros vacíos con CRC 0
+        Files.write(activeSegment(), new byte[4096], StandardOpenOption.APPEND);
+
+        log = new SegmentedLog(dir, 1 << 20);
+        assertEquals(100, log.getNextOffset());
+        assertEquals(expected(100), readAll(log));
+
+        assertEquals(100, log.append(record(100)));
+        log.close();
+        log = new SegmentedLog(dir, 1 << 20);
+        assertEquals(expected(101), readAll(log));
+        log.close();
+    }
+
+    @Test
+    void zeroedRecordsAreTruncated() throws IOException {
+        SegmentedLog log = new SegmentedLog(dir, 1 << 20);
+        for (int i = 0; i < 10; i++) log.append(record(i));
+        log.close();
+
+        // las páginas de los últimos registros no llegaron a disco
+        Path segment = activeSegment();
+        long size = Files.size(segment);
+        try (var channel = java.nio.channels.FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(40), size - 40);
+        }
+
+        log = new SegmentedLog(dir, 1 << 20);
+        List<String> records = readAll(log);
+        assertEquals(records.size(), log.getNextOffset());
+        assertEquals(expected(records.size()), records);
+        log.close();
+    }
+
+    @Test
+    void partialFrameIsDiscardedOnReopen() throws IOException {
+        SegmentedLog log = new SegmentedLog(dir, 1 << 20);
+        for (int i = 0; i < 10; i++) log.append(record(i));
+        log.close();
+
+        // caída a mitad de un append: largo y parte de los datos, sin CRC
+        Files.write(activeSegment(), new byte[]{20, 'r', 'e', 'g'}, StandardOpenOption.APPEND);
+
+        log = new SegmentedLog(dir, 1 << 20);
+        assertEquals(10, log.getNextOffset());
+        assertEquals(10, log.append(record(10)));
+        assertEquals(expected(11), readAll(log));
+        log.close();
+    }
+
+    @Test
+    void failedAppendLeavesLogAsItWas() throws IOException {
+        SegmentedLog log = new SegmentedLog(dir, 64, 4);
+        int count = 0;
+        while (Files.size(activeSegment()) < 64) log.append(record(count++));
+
+        // el próximo append rota y no puede escribir el índice del segmento nuevo
+        Path blocked = dir.resolve(String.format("%020d", log.getNextOffset()) + OffsetIndex.INDEX_SUFFIX);
+        Files.createDirectory(blocked);
+        long next = log.getNextOffset();
+        assertThrows(IOException.class, () -> log.append(List.of(record(-1), record(-2))));
+        assertEquals(next, log.getNextOffset());
+        assertEquals(expected(count), readAll(log));
+
+        Files.delete(blocked);
+        assertEquals(next, log.append(List.of(record(count), record(count + 1))));
+        count += 2;
+        assertEquals(expected(count), readAll(log));
+        log.close();
+
+        SegmentedLog reopened = new SegmentedLog(dir, 64, 4);
+        assertEquals(count, reopened.getNextOffset());
+        assertEquals(expected(count), readAll(reopened));
+        List<String> page = new ArrayList<>();
+        reopened.read(next, 2, record -> page.add(StandardCharsets.UTF_8.decode(record).toString()));
+        assertEquals(expected(count).subList((int) next, count), page);
+        reopened.close();
+    }
+
+    @Test
+    void appendAfterUnrecoverableFailureIsRefused() throws IOException {
+        SegmentedLog log = new SegmentedLog(dir, 1 << 20);
+        for (int i = 0; i < 10; i++) log.append(record(i));
+        log.activeChannel().close();
+
+        assertThrows(IOException.class, () -> log.append(record(10)));
+        // el segmento no se pudo recortar: mejor no seguir escribiendo detrás de algo a medias
+        assertThrows(IOException.class, () -> log.append(record(10)));
+        assertEquals(10, log.getNextOffset());
+
+        SegmentedLog reopened = new SegmentedLog(dir, 1 << 20);
+        assertEquals(expected(10), readAll(reopened));
+        assertEquals(10, reopened.append(record(10)));
+        reopened.close();
+    }
+
+    @Test
+    void emptyRecordsAreRejected() throws IOException {
+        SegmentedLog log = new SegmentedLog(dir, 1 << 20);
+        assertThrows(IllegalArgumentException.class, () -> log.append(new byte[0]));
+        assertEquals(0, log.getNextOffset());
+        log.close();
+    }
+
+    private static List<String> read(SegmentedLog log, long from, int count) throws IOException {
+        List<String> records = new ArrayList<>();
+        log.read(from, count, (record, offset) -> {
+            String text = StandardCharsets.UTF_8.decode(record).toString();
+            assertEquals("registro-" + offset, text);
+            records.add(text);
+        });
+        return records;
+    }
+
+    @Test
+    void readPagesAcrossSegmentsThroughTheIndex() throws IOException {
+        // segmentos chicos e índice cada 4 registros: las páginas cruzan segmentos y entradas
+        SegmentedLog log = new SegmentedLog(dir, 256, 4);
+        for (int i = 0; i < 500; i++) log.append(record(i));
+        assertTrue(log.getSegmentCount() > 10);
+
+        for (int reopen = 0; reopen < 2; reopen++) {
+            for (long from = 0; from < 500; from += 37) {
+                int count = 1 + (int) (from % 50);
+                List<String> expected = expected(500).subList((int) from, (int) Math.min(500, from + count));
+                assertEquals(expected, read(log, from, count));
+            }
+            assertEquals(List.of(), read(log, 500, 10));
+            assertEquals(expected(3), read(log, -5, 8));
+
+            log.close();
+            log = new SegmentedLog(dir, 256, 4);
+        }
+
+        // sin los primeros segmentos se sigue leyendo desde donde quedó
+        assertTrue(log.deleteBefore(250) > 0);
+        assertEquals(expected(500).subList(250, 300), read(log, 250, 50));
+        log.close();
+    }
+
+    @Test
+    void readNearTheEdgesOfLongDoesNotOverflow() throws IOException {
+        SegmentedLog log = new SegmentedLog(dir, 256, 4);
+        for (int i = 0; i < 20; i++) log.append(record(i));
+
+        assertEquals(List.of(), read(log, Long.MAX_VALUE, 10));
+        assertEquals(List.of(), read(log, Long.MAX_VALUE - 5, Integer.MAX_VALUE));
+        assertEquals(List.of(), read(log, Long.MIN_VALUE, Integer.MAX_VALUE));
+        assertEquals(expected(20).subList(5, 20), read(log, 5, Integer.MAX_VALUE));
+        assertEquals(List.of(), read(log, 5, 0));
+        assertEquals(List.of(), read(log, 5, -3));
+        log.close();
+    }
+}
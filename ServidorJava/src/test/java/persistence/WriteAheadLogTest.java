@@ -0,0 +1,84 @@
+package persistence;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WriteAheadLogTest {
+
+    @TempDir
+    Path dir;
+
+    private static List<byte[]> records(String... texts) {
+        List<byte[]> records = new ArrayList<>();
+        for (String text : texts) records.add(text.getBytes(StandardCharsets.UTF_8));
+        return records;
+    }
+
+    private static List<String> replay(WriteAheadLog wal) throws IOException {
+        List<String> batches = new ArrayList<>();
+        wal.replay((name, first, records) -> batches.add(name + "@" + first + "x" + records.size()));
+        return batches;
+    }
+
+    private void writeThree() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir, 1 << 20);
+        wal.append("user_bob", 0, records("a", "b"));
+        wal.append("group_g", 0, records("c"));
+        wal.force();
+        wal.checkpoint(wal.getNextOffset() - 1, wal.getAppendedBytes());
+        wal.append("user_bob", 2, records("d"));
+        wal.force();
+    }
+
+    @Test
+    void replaysOnlyAfterCheckpoint() throws IOException {
+        writeThree();
+        WriteAheadLog reopened = new WriteAheadLog(dir, 1 << 20);
+        assertEquals(List.of("group_g@0x1", "user_bob@2x1"), replay(reopened));
+        assertEquals("1", Files.readString(dir.resolve("checkpoint")));
+        assertFalse(Files.exists(dir.resolve("checkpoint.tmp")));
+    }
+
+    @Test
+    void unreadableCheckpointReplaysEverything() throws IOException {
+        writeThree();
+        Files.writeString(dir.resolve("checkpoint"), "12x");
+        assertEquals(3, replay(new WriteAheadLog(dir, 1 << 20)).size());
+
+        Files.writeString(dir.resolve("checkpoint"), "");
+        assertEquals(3, replay(new WriteAheadLog(dir, 1 << 20)).size());
+    }
+
+    @Test
+    void forceSurvivesConcurrentRolls() throws Exception {
+        // segmentos chicos: los append rotan mientras otro hilo fuerza
+        WriteAheadLog wal = new WriteAheadLog(dir, 256);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread forcer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 2000; i++) wal.force();
+            } catch (IOException e) {
+                failure.set(e);
+            }
+        });
+        forcer.start();
+        for (int i = 0; i < 2000; i++) wal.append("user_bob", i, records("mensaje " + i));
+        forcer.join();
+        assertNull(failure.get());
+        wal.force();
+
+        assertEquals(2000, replay(new WriteAheadLog(dir, 256)).size());
+    }
+}
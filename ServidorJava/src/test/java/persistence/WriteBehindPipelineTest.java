@@ -0,0 +1,394 @@
+package persistence;
+
+import model.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * La secuencia que recibe cada mensaje tiene que ser el offset donde queda en
+ * su log, también con varios productores y cuando falla un lote.
+ */
+class WriteBehindPipelineTest {
+    private static final Path DATA = Paths.get("data");
+
+    private ChatHistory history;
+    private OfflineInbox inbox;
+    private WriteBehindPipeline pipeline;
+
+    /**
+     * Mensaje que no se puede codificar: el lote donde caiga falla.
+     */
+    private static final class Poison extends Message {
+        Poison(String to) {
+            super("ana", to, "veneno", true);
+        }
+
+        @Override
+        public String getContent() {
+            throw new IllegalStateException("veneno");
+        }
+    }
+
+    /**
+     * Mensaje cuya codificación espera a release: deja al escritor trabado.
+     */
+    private static final class Stuck extends Message {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Stuck(String to) {
+            super("ana", to, "trabado", true);
+        }
+
+        @Override
+        public String getContent() {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.getContent();
+        }
+    }
+
+    @BeforeEach
+    void open() throws IOException {
+        clean();
+        history = new ChatHistory();
+        inbox = new OfflineInbox(DATA.resolve("inbox"), history, 1 << 20, 1000, 16, 64);
+        pipeline = new WriteBehindPipeline(history, inbox, 2, 64, 16, Durability.NEVER, 1000, 1000);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        pipeline.close();
+        clean();
+    }
+
+    private static void clean() throws IOException {
+        if (Files.exists(DATA)) ChatHistory.deleteRecursively(DATA);
+    }
+
+    private static void await(CompletableFuture<Void> future) {
+        try {
+            future.join();
+        } catch (RuntimeException e) {
+            // los que fallan se revisan aparte
+        }
+    }
+
+    private static void runConcurrently(int threads, Runnable task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> started = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                task.run();
+            });
+            thread.start();
+            started.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : started) thread.join();
+    }
+
+    @Test
+    void concurrentSendersGetConsecutiveSeqsInDeliveryOrder() throws Exception {
+        List<Long> delivered = Collections.synchronizedList(new ArrayList<>());
+        Map<String, Long> seqs = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+
+        runConcurrently(8, () -> {
+            for (int i = 0; i < 300; i++) {
+                String content = Thread.currentThread().getName() + "-" + i;
+                futures.add(pipeline.submit(new Message("ana", "amigos", content, true), seq -> {
+                    delivered.add(seq);
+                    seqs.put(content, seq);
+                    return List.of();
+                }));
+            }
+        });
+        futures.forEach(CompletableFuture::join);
+
+        assertEquals(2400, delivered.size());
+        for (int i = 0; i < delivered.size(); i++) assertEquals(i, delivered.get(i));
+        for (Map.Entry<String, Long> entry : seqs.entrySet()) {
+            assertEquals(entry.getKey(), history.readAt("group_amigos", entry.getValue()).getContent());
+        }
+    }
+
+    @Test
+    void failedBatchDoesNotShiftLaterSeqs() throws Exception {
+        Map<String, Long> seqs = new ConcurrentHashMap<>();
+        Map<String, CompletableFuture<Void>> futures = new ConcurrentHashMap<>();
+
+        runConcurrently(4, () -> {
+            for (int i = 0; i < 500; i++) {
+                if (i % 37 == 0) {
+                    pipeline.submit(new Poison("amigos"));
+                    continue;
+                }
+                String content = Thread.currentThread().getName() + "-" + i;
+                futures.put(content, pipeline.submit(new Message("ana", "amigos", content, true), seq -> {
+                    seqs.put(content, seq);
+                    return List.of();
+                }));
+            }
+        });
+        futures.values().forEach(WriteBehindPipelineTest::await);
+
+        // todo lo que se confirmó está exactamente en la secuencia que se le entregó
+        int saved = 0;
+        for (Map.Entry<String, CompletableFuture<Void>> entry : futures.entrySet()) {
+            if (entry.getValue().isCompletedExceptionally()) continue;
+            Message message = history.readAt("group_amigos", seqs.get(entry.getKey()));
+            assertNotNull(message);
+            assertEquals(entry.getKey(), message.getContent());
+            saved++;
+        }
+        assertTrue(saved > 0);
+        assertTrue(pipeline.getFailed() > 0);
+
+        // después de las fallas la numeración sigue donde quedó el log
+        long[] last = new long[1];
+        pipeline.submit(new Message("ana", "amigos", "final", true), seq -> {
+            last[0] = seq;
+            return List.of();
+        }).join();
+        assertEquals(history.nextSeq("group_amigos") - 1, last[0]);
+        assertEquals("final", history.readAt("group_amigos", last[0]).getContent());
+    }
+
+    private static long seqOf(WriteBehindPipeline pipeline, Message message) {
+        long[] seq = {-1};
+        await(pipeline.submit(message, delivered -> {
+            seq[0] = delivered;
+            return List.of();
+        }));
+        return seq[0];
+    }
+
+    @Test
+    void seqOfAFailedMessageIsNeverReused() throws IOException {
+        assertEquals(0, seqOf(pipeline, new Message("ana", "amigos", "primero", true)));
+        Poison poison = new Poison("amigos");
+        assertEquals(1, seqOf(pipeline, poison));
+        assertEquals(1, history.nextSeq("group_amigos"));
+
+        // la secuencia 1 ya se entregó: queda un hueco y el siguiente sigue en 2
+        assertEquals(2, seqOf(pipeline, new Message("ana", "amigos", "segundo", true)));
+        assertNull(history.readAt("group_amigos", 1));
+        assertEquals("segundo", history.readAt("group_amigos", 2).getContent());
+        List<String> contents = new ArrayList<>();
+        for (Message message : history.loadMessages("amigos", true)) contents.add(message.getContent());
+        assertEquals(List.of("primero", "segundo"), contents);
+    }
+
+    @Test
+    void concurrentFailuresNeverHandOutTheSameSeqTwice() throws Exception {
+        List<Long> delivered = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+
+        runConcurrently(4, () -> {
+            for (int i = 0; i < 400; i++) {
+                Message message = i % 23 == 0 ? new Poison("amigos")
+                        : new Message("ana", "amigos", Thread.currentThread().getName() + "-" + i, true);
+                futures.add(pipeline.submit(message, seq -> {
+                    delivered.add(seq);
+                    return List.of();
+                }));
+            }
+        });
+        futures.forEach(WriteBehindPipelineTest::await);
+
+        // los que encontraron la numeración rota fallan sin recibir secuencia
+        assertTrue(delivered.size() > 0);
+        Set<Long> distinct = new HashSet<>(delivered);
+        assertEquals(delivered.size(), distinct.size());
+        assertTrue(pipeline.getFailed() > 0);
+    }
+
+    @Test
+    void fullQueueFailsTheMessageInsteadOfBlockingTheSender() throws Exception {
+        WriteBehindPipeline slow = new WriteBehindPipeline(history, inbox, 1, 1, 1, Durability.NEVER, 1000, 50);
+        try {
+            Stuck stuck = new Stuck("lento");
+            CompletableFuture<Void> first = slow.submit(stuck);
+            // el escritor lo toma y queda trabado; el segundo ocupa el único lugar de la cola
+            // y se guarda igual: solo falla lo numerado desde el rechazado
+            while (slow.getQueued() > 0) Thread.sleep(1);
+            CompletableFuture<Void> queued = slow.submit(new Message("ana", "lento", "en cola", true));
+
+            long start = System.nanoTime();
+            long[] rejectedSeq = {-1};
+            CompletableFuture<Void> rejected = slow.submit(new Message("ana", "lento", "sin lugar", true), seq -> {
+                rejectedSeq[0] = seq;
+                return List.of();
+            });
+            assertTrue(rejected.isCompletedExceptionally());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertEquals(2, rejectedSeq[0]);
+
+            stuck.release.countDown();
+            first.join();
+            queued.join();
+            // la secuencia entregada al rechazado no se repite
+            assertEquals(3, seqOf(slow, new Message("ana", "lento", "después", true)));
+            assertNull(history.readAt("group_lento", 2));
+            assertEquals("en cola", history.readAt("group_lento", 1).getContent());
+        } finally {
+            slow.close();
+        }
+    }
+
+    /**
+     * Encola count mensajes mientras el escritor está trabado, así al
+     * soltarlo los encuentra todos juntos en la cola.
+     */
+    private static List<CompletableFuture<Void>> submitBehindStuck(WriteBehindPipeline pipeline, Stuck stuck,
+                                                                   String group, int count) throws InterruptedException {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        futures.add(pipeline.submit(stuck));
+        while (pipeline.getQueued() > 0) Thread.sleep(1);
+        for (int i = 0; i < count; i++) {
+            futures.add(pipeline.submit(new Message("ana", group, "mensaje " + i, true)));
+        }
+        return futures;
+    }
+
+    @Test
+    void batchDurabilityGroupsCommitsIntoOneSync() throws Exception {
+        WriteBehindPipeline batch = new WriteBehindPipeline(history, inbox, 1, 1000, 256, Durability.BATCH, 1000, 1000);
+        try {
+            Stuck stuck = new Stuck("lote");
+            List<CompletableFuture<Void>> futures = submitBehindStuck(batch, stuck, "lote", 100);
+            stuck.release.countDown();
+            futures.forEach(CompletableFuture::join);
+
+            // el trabado va solo; los 100 que esperaban entran en un lote y un fsync
+            assertEquals(2, batch.getBatches());
+            assertEquals(100, batch.getMaxBatchSize());
+            assertEquals(2, batch.getSyncs());
+            assertEquals(101, history.nextSeq("group_lote"));
+        } finally {
+            batch.close();
+        }
+    }
+
+    @Test
+    void intervalDurabilityCommitsOnTheNextFsync() throws Exception {
+        WriteBehindPipeline interval = new WriteBehindPipeline(history, inbox, 1, 1000, 256, Durability.INTERVAL, 1000, 1000);
+        try {
+            Stuck stuck = new Stuck("intervalo");
+            List<CompletableFuture<Void>> futures = submitBehindStuck(interval, stuck, "intervalo", 50);
+            stuck.release.countDown();
+
+            interval.awaitAppended("intervalo", true);
+            assertEquals(51, history.nextSeq("group_intervalo"));
+            // ya están escritos, pero son durables recién con el fsync del intervalo
+            assertTrue(futures.stream().noneMatch(CompletableFuture::isDone));
+            assertEquals(0, interval.getSyncs());
+
+            futures.forEach(CompletableFuture::join);
+            // los dos lotes comparten el mismo fsync
+            assertEquals(2, interval.getBatches());
+            assertEquals(1, interval.getSyncs());
+        } finally {
+            interval.close();
+        }
+    }
+
+    @Test
+    void neverDurabilityCompletesOnAppendWithoutSync() throws IOException {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) futures.add(pipeline.submit(new Message("ana", "nunca", "m" + i, true)));
+        futures.forEach(CompletableFuture::join);
+
+        assertEquals(50, history.nextSeq("group_nunca"));
+        assertEquals(0, pipeline.getSyncs());
+        assertEquals(0, pipeline.getFailed());
+    }
+
+    @Test
+    void closeDrainsAndSyncsWhatIsQueued() throws Exception {
+        WriteBehindPipeline draining = new WriteBehindPipeline(history, inbox, 1, 1000, 16, Durability.INTERVAL, 60_000, 1000);
+        Stuck stuck = new Stuck("cierre");
+        List<CompletableFuture<Void>> futures = submitBehindStuck(draining, stuck, "cierre", 100);
+
+        Thread release = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            stuck.release.countDown();
+        });
+        release.start();
+        // el intervalo de fsync no llega: lo que quedó lo escribe y sincroniza close
+        draining.close();
+        release.join();
+
+        for (CompletableFuture<Void> future : futures) {
+            assertTrue(future.isDone() && !future.isCompletedExceptionally());
+        }
+        assertEquals(101, history.nextSeq("group_cierre"));
+        assertEquals(1, draining.getSyncs());
+        assertEquals(0, draining.getQueued());
+    }
+
+    @Test
+    void failedBatchFailsItsFuturesAndSkipsTheInbox() throws Exception {
+        WriteBehindPipeline single = new WriteBehindPipeline(history, inbox, 1, 1000, 256, Durability.BATCH, 1000, 1000);
+        try {
+            Stuck stuck = new Stuck("fallas");
+            CompletableFuture<Void> first = single.submit(stuck);
+            while (single.getQueued() > 0) Thread.sleep(1);
+            // el veneno cae en el mismo lote que los otros dos: falla el lote entero
+            CompletableFuture<Void> before = single.submit(new Message("ana", "fallas", "antes", true), List.of("bob"));
+            CompletableFuture<Void> poison = single.submit(new Poison("fallas"), List.of("bob"));
+            CompletableFuture<Void> after = single.submit(new Message("ana", "fallas", "después", true), List.of("bob"));
+            stuck.release.countDown();
+            first.join();
+            await(after);
+
+            assertTrue(before.isCompletedExceptionally());
+            assertTrue(poison.isCompletedExceptionally());
+            assertTrue(after.isCompletedExceptionally());
+            assertEquals(3, single.getFailed());
+            assertEquals(1, history.nextSeq("group_fallas"));
+            assertEquals(0, inbox.drain("bob", (message, seq) -> { }));
+
+            // el escritor sigue: lo siguiente se guarda, se sincroniza y llega a la bandeja
+            single.submit(new Message("ana", "fallas", "otra vez", true), List.of("bob")).join();
+            List<String> drained = new ArrayList<>();
+            inbox.drain("bob", (message, seq) -> drained.add(message.getContent()));
+            assertEquals(List.of("otra vez"), drained);
+        } finally {
+            single.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryCodecTest {
+
+    private static Frame roundTrip(Frame frame) throws IOException {
+        ByteBuffer wire = BinaryCodec.encode(frame);
+        assertEquals(wire.remaining() - 4, wire.getInt(0));
+        wire.position(4);
+        return BinaryCodec.decode(wire);
+    }
+
+    @Test
+    void everyFieldKindSurvivesARoundTrip() throws IOException {
+        byte[] audio = {0, 1, 2, (byte) 0xff};
+        Frame frame = new Frame("private_message")
+                .put("content", "hola | a:b\nñandú")
+                .putBytes("data", audio)
+                .putLong("seq", Long.MAX_VALUE)
+                .putBoolean("isGroup", true);
+
+        Frame decoded = roundTrip(frame);
+        assertEquals("private_message", decoded.type());
+        assertEquals("hola | a:b\nñandú", decoded.get("content"));
+        assertArrayEquals(audio, decoded.getBytes("data"));
+        assertEquals(Long.MAX_VALUE, decoded.getLong("seq", 0));
+        assertTrue(decoded.getBoolean("isGroup"));
+    }
+
+    @Test
+    void unknownTypesTravelByName() throws IOException {
+        assertEquals("resume_done", roundTrip(new Frame("resume_done").putLong("count", 3)).type());
+    }
+
+    @Test
+    void trailingFieldIsReadAsARegularField() throws IOException {
+        byte[] chunk = "bytes enviados aparte".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = BinaryCodec.encode(new Frame("audio_data").put("id", "a1"), "data", chunk.length);
+        ByteBuffer wire = ByteBuffer.allocate(header.remaining() + chunk.length).put(header).put(chunk).flip();
+
+        Frame decoded = BinaryCodec.read(new DataInputStream(new ByteArrayInputStream(wire.array())));
+        assertEquals("a1", decoded.get("id"));
+        assertArrayEquals(chunk, decoded.getBytes("data"));
+    }
+
+    @Test
+    void streamEndsCleanlyBetweenFrames() throws IOException {
+        ByteBuffer first = BinaryCodec.encode(new Frame("ping"));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(first.array()));
+        assertEquals("ping", BinaryCodec.read(in).type());
+        assertNull(BinaryCodec.read(in));
+    }
+
+    @Test
+    void malformedFramesAreRejected() {
+        ByteBuffer wire = BinaryCodec.encode(new Frame("login").put("username", "ana"));
+        byte[] truncated = new byte[wire.remaining() - 4 - 2];
+        wire.position(4);
+        wire.get(truncated);
+        assertThrows(IOException.class, () -> BinaryCodec.decode(ByteBuffer.wrap(truncated)));
+        assertThrows(IOException.class, () -> BinaryCodec.checkLength(BinaryCodec.MAX_FRAME_LENGTH + 1));
+        assertThrows(IOException.class, () -> BinaryCodec.checkLength(-1));
+    }
+
+    @Test
+    void framesWithoutTypeAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.encode(new Frame(null).put("a", "b")));
+    }
+
+    @Test
+    void framesAreSerializable() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new Frame("message_sent").putLong("seq", 4).put("status", "ok"));
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            Frame frame = (Frame) in.readObject();
+            assertEquals("message_sent", frame.type());
+            assertEquals(4, frame.getLong("seq", 0));
+            assertEquals("ok", frame.get("status"));
+        }
+    }
+}
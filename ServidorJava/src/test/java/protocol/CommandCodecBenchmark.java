@@ -0,0 +1,80 @@
+package protocol;
+
+import bench.Bench;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Costo por comando de leer una línea entrante y de armar la respuesta:
+ * el camino anterior (split + HashMap, String.format + getBytes) contra
+ * {@link TextCommand}, {@link TextCodec} y {@link BinaryCodec}.
+ *
+ * gradle benchmark --tests protocol.CommandCodecBenchmark -Dbench.ops=200000
+ */
+@Tag("benchmark")
+class CommandCodecBenchmark {
+    private static final String LINE =
+            "type:private_message|from:ana|to:bob|content:hola, ¿nos vemos a las 8 en la puerta del cine?";
+
+    // lo que devuelve cada op se acumula acá para que el JIT no la elimine
+    private static long sink;
+
+    /**
+     * Como parseaba MainServer antes del codec.
+     */
+    private static Map<String, String> splitParse(String command) {
+        Map<String, String> result = new HashMap<>();
+        for (String part : command.split("\\|")) {
+            String[] kv = part.split(":", 2);
+            if (kv.length == 2) result.put(kv[0], kv[1]);
+        }
+        return result;
+    }
+
+    private static Frame response(String from, String to, String content) {
+        return new Frame("private_message").put("from", from).put("to", to).put("content", content);
+    }
+
+    @Test
+    void parseAndEncodePerCommand() throws Exception {
+        int ops = Bench.sizes("bench.ops", 200_000)[0];
+        Bench.report("%-36s %10s %10s", "operación", "ns/op", "B/op");
+
+        row("parse: split + HashMap", ops, () -> {
+            Map<String, String> data = splitParse(LINE);
+            if (data.get("type").equals("private_message")) {
+                sink += data.get("from").length() + data.get("to").length() + data.get("content").length();
+            }
+        });
+        row("parse: TextCommand", ops, () -> {
+            TextCommand data = TextCommand.parse(LINE);
+            if (data.is("type", "private_message")) {
+                sink += data.get("from").length() + data.get("to").length() + data.get("content").length();
+            }
+        });
+
+        String from = "ana";
+        String to = "bob";
+        String content = "hola, ¿nos vemos a las 8 en la puerta del cine?";
+        row("encode: String.format + getBytes", ops, () -> {
+            String msg = String.format("type:private_message|from:%s|to:%s|content:%s", from, to, content);
+            sink += (msg + "\n").getBytes(StandardCharsets.UTF_8).length;
+        });
+        row("encode: Frame + TextCodec", ops, () -> sink += TextCodec.encodeLine(response(from, to, content)).length);
+        row("encode: Frame + BinaryCodec", ops, () -> {
+            ByteBuffer frame = BinaryCodec.encode(response(from, to, content));
+            sink += frame.remaining();
+        });
+        Bench.report("(sink %d)", sink);
+    }
+
+    private static void row(String name, int ops, Bench.Op op) throws Exception {
+        Bench.Result result = Bench.measure(5, 10, ops, op);
+        Bench.report("%-36s %10.1f %10.1f", name, result.nanosPerOp(), result.bytesPerOp());
+    }
+}
@@ -0,0 +1,81 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TextCodecTest {
+
+    @Test
+    void escapedLineSurvivesARoundTrip() {
+        String content = "hola | a:b\\c\r\nñandú 😀";
+        Frame frame = new Frame("private_message")
+                .put("from", "ana")
+                .put("content", content)
+                .putLong("seq", -42)
+                .putBoolean("isGroup", true)
+                .putBytes("data", new byte[]{1, 2});
+
+        TextCommand command = TextCommand.parseEscaped(TextCodec.toLine(frame, true));
+        assertEquals("private_message", command.type());
+        assertEquals("ana", command.get("from"));
+        assertEquals(content, command.get("content"));
+        assertEquals(-42, command.getLong("seq", 0));
+        assertTrue(command.getBoolean("isGroup"));
+        // los campos binarios no van en la línea
+        assertFalse(command.has("data"));
+
+        Frame back = command.toFrame();
+        assertEquals("private_message", back.type());
+        assertEquals(content, back.get("content"));
+        assertEquals("-42", back.get("seq"));
+        // type no se repite como campo
+        assertEquals(4, back.size());
+    }
+
+    @Test
+    void networkLinesAreNotEscaped() {
+        TextCommand command = TextCommand.parse("type:login|username:a\\b|password:x");
+        assertEquals("login", command.type());
+        assertEquals("a\\b", command.get("username"));
+        assertTrue(command.is("password", "x"));
+        assertFalse(command.is("password", "xy"));
+        assertNull(command.get("missing"));
+        // una clave que es prefijo de otra no la encuentra
+        assertNull(command.get("user"));
+    }
+
+    @Test
+    void getLongFallsBackOnGarbageAndOverflow() {
+        TextCommand command = TextCommand.parse("a: 12 |b:x1|c:99999999999999999999|d:-|e:");
+        assertEquals(12, command.getLong("a", -1));
+        assertEquals(-1, command.getLong("b", -1));
+        assertEquals(-1, command.getLong("c", -1));
+        assertEquals(-1, command.getLong("d", -1));
+        assertEquals(-1, command.getLong("e", -1));
+        assertEquals(-1, command.getLong("f", -1));
+    }
+
+    @Test
+    void encodeLineMatchesStringUtf8() {
+        Frame frame = new Frame("group_message").put("content", "ñandú € 😀 \uD800 fin");
+        String line = TextCodec.toLine(frame, false);
+        byte[] expected = (line.replace('\uD800', '?') + "\n").getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, TextCodec.encodeLine(frame));
+        assertArrayEquals(expected, TextCodec.encodeLine(line));
+    }
+
+    @Test
+    void largeLinesEncodeAndLaterSmallOnesStillWork() {
+        String big = "é".repeat(100_000);
+        byte[] encoded = TextCodec.encodeLine(new Frame("x").put("content", big));
+        assertEquals("type:x|content:" + big + "\n", new String(encoded, StandardCharsets.UTF_8));
+        assertEquals("type:y\n", new String(TextCodec.encodeLine(new Frame("y")), StandardCharsets.UTF_8));
+    }
+}
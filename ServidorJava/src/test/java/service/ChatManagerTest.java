@@ -0,0 +1,62 @@
+package service;
+
+import model.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ChatManagerTest {
+    private static final Path DATA = Paths.get("data");
+
+    @BeforeEach
+    @AfterEach
+    void clean() throws IOException {
+        if (!Files.exists(DATA)) return;
+        try (var paths = Files.walk(DATA)) {
+            for (Path path : paths.sorted(Collections.reverseOrder()).toList()) Files.delete(path);
+        }
+    }
+
+    private static List<String> ids(List<Message> messages) {
+        List<String> ids = new ArrayList<>();
+        for (Message message : messages) ids.add(message.getId());
+        return ids;
+    }
+
+    @Test
+    void cachedHistoryFollowsLogOrderWithConcurrentSenders() throws Exception {
+        ChatManager chatManager = new ChatManager();
+        // la conversación ya está en caché: cada mensaje nuevo se agrega por write-through
+        chatManager.getMessageHistory("amigos", true);
+
+        List<CompletableFuture<Void>> saved = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            String from = "user" + t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    saved.add(chatManager.saveTextMessage(new Message(from, "amigos", from + " " + i, true)));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) thread.join();
+        saved.forEach(CompletableFuture::join);
+
+        List<Message> cached = chatManager.getMessageHistory("amigos", true);
+        List<Message> logged = chatManager.getMessagePage("amigos", true, null, null, 400).getMessages();
+        assertEquals(400, logged.size());
+        assertEquals(ids(logged), ids(cached));
+    }
+}
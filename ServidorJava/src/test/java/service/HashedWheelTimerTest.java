@@ -0,0 +1,132 @@
+package service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * La rueda sin hilo propio y con reloj falso: cada tick se procesa cuando
+ * la prueba mueve el reloj, así los vencimientos se pueden medir exactos.
+ */
+class HashedWheelTimerTest {
+    private static final long TICK_MS = 100;
+
+    private final AtomicLong nanos = new AtomicLong(1_000_000_000L);
+    // 8 casillas: 800 ms por vuelta
+    private final HashedWheelTimer timer =
+            new HashedWheelTimer(TICK_MS, TimeUnit.MILLISECONDS, 8, nanos::get, false);
+    private final long start = nanos.get();
+
+    /**
+     * Mueve el reloj hasta ms desde el arranque y procesa los ticks vencidos.
+     */
+    private void advanceTo(long ms) {
+        nanos.set(start + TimeUnit.MILLISECONDS.toNanos(ms));
+        timer.runDueTicks();
+    }
+
+    /**
+     * Avanza de a 1 ms y devuelve cuándo corrió la tarea (-1 si no corrió hasta limit).
+     */
+    private long firedAt(AtomicInteger runs, long from, long limit) {
+        for (long ms = from; ms <= limit; ms++) {
+            advanceTo(ms);
+            if (runs.get() > 0) return ms;
+        }
+        return -1;
+    }
+
+    @Test
+    void deadlinesRoundUpToTheNextTick() {
+        for (long delay : new long[]{0, 1, 99, 100, 101, 250, 799}) {
+            HashedWheelTimer wheel = new HashedWheelTimer(TICK_MS, TimeUnit.MILLISECONDS, 8, nanos::get, false);
+            long base = nanos.get();
+            AtomicInteger runs = new AtomicInteger();
+            wheel.schedule(runs::incrementAndGet, delay, TimeUnit.MILLISECONDS);
+
+            long fired = -1;
+            for (long ms = 0; ms <= 2_000 && fired < 0; ms++) {
+                nanos.set(base + TimeUnit.MILLISECONDS.toNanos(ms));
+                wheel.runDueTicks();
+                if (runs.get() > 0) fired = ms;
+            }
+            // nunca antes del plazo y como mucho un tick después (el primer tick termina en TICK_MS)
+            long expected = Math.max(TICK_MS, (delay / TICK_MS + 1) * TICK_MS);
+            assertEquals(expected, fired, "delay " + delay);
+            assertEquals(1, runs.get());
+            assertEquals(0, wheel.getPendingCount());
+        }
+    }
+
+    @Test
+    void deadlinesBeyondOneTurnWaitTheirRounds() {
+        AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.schedule(runs::incrementAndGet, 2_050, TimeUnit.MILLISECONDS);
+
+        // la casilla pasa dos veces antes (a los 500 y 1300 ms) sin que venza
+        assertEquals(2_100, firedAt(runs, 0, 5_000));
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    void scheduledAfterSomeTicksCountsFromNow() {
+        advanceTo(1_234);
+        AtomicInteger runs = new AtomicInteger();
+        timer.schedule(runs::incrementAndGet, 300, TimeUnit.MILLISECONDS);
+        assertEquals(1_600, firedAt(runs, 1_234, 5_000));
+    }
+
+    @Test
+    void cancelledBeforeItsTickNeverRuns() {
+        AtomicInteger runs = new AtomicInteger();
+        // una se cancela antes de que la rueda la ubique, la otra ya en su casilla
+        HashedWheelTimer.Timeout early = timer.schedule(runs::incrementAndGet, 500, TimeUnit.MILLISECONDS);
+        HashedWheelTimer.Timeout placed = timer.schedule(runs::incrementAndGet, 500, TimeUnit.MILLISECONDS);
+        assertEquals(2, timer.getPendingCount());
+        assertTrue(early.cancel());
+        advanceTo(200);
+        assertTrue(placed.cancel());
+        assertFalse(placed.cancel());
+        assertEquals(0, timer.getPendingCount());
+
+        advanceTo(3_000);
+        assertEquals(0, runs.get());
+        assertTrue(early.isCancelled());
+        assertTrue(placed.isCancelled());
+        assertFalse(placed.isExpired());
+    }
+
+    @Test
+    void tasksOfOneTickRunInScheduleOrder() {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            int n = i;
+            timer.schedule(() -> order.add(n), 150, TimeUnit.MILLISECONDS);
+        }
+        advanceTo(199);
+        assertEquals(List.of(), order);
+        advanceTo(200);
+        assertEquals(List.of(0, 1, 2, 3, 4), order);
+    }
+
+    @Test
+    void failingTaskDoesNotStopTheWheel() {
+        AtomicInteger runs = new AtomicInteger();
+        timer.schedule(() -> {
+            throw new IllegalStateException("falla");
+        }, 100, TimeUnit.MILLISECONDS);
+        timer.schedule(runs::incrementAndGet, 100, TimeUnit.MILLISECONDS);
+        timer.schedule(runs::incrementAndGet, 300, TimeUnit.MILLISECONDS);
+        advanceTo(400);
+        assertEquals(2, runs.get());
+    }
+}
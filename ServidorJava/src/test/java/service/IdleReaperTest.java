@@ -0,0 +1,219 @@
+package service;
+
+import network.OutboundConfig;
+import network.TCPConnection;
+import network.TCPConnectionListener;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import protocol.Frame;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Inactividad con reloj falso: la rueda avanza cuando la prueba mueve el
+ * reloj y las revisiones corren en el mismo hilo, así cada ping y cada
+ * cierre se puede ubicar en el milisegundo (redondeado al tick).
+ */
+class IdleReaperTest {
+    private static final long TICK_MS = 10;
+    private static final long PING_MS = 1_000;
+    private static final long TIMEOUT_MS = 3_000;
+
+    private static final TCPConnectionListener QUIET = new TCPConnectionListener() {
+        @Override
+        public void onConnectionReady(TCPConnection connection) {
+        }
+
+        @Override
+        public void onReceiveObject(TCPConnection connection, Object message) {
+        }
+
+        @Override
+        public void onDisconnect(TCPConnection connection) {
+        }
+
+        @Override
+        public void onException(TCPConnection connection, Exception e) {
+        }
+    };
+
+    /**
+     * Conexión sin socket abierto, con la actividad en el reloj falso y que
+     * guarda lo que se le envía.
+     */
+    private static final class FakeConnection extends TCPConnection {
+        volatile long activity;
+        final List<Serializable> sent = new ArrayList<>();
+
+        FakeConnection(SocketChannel channel, long activity) {
+            super(channel, QUIET, OutboundConfig.DIRECT);
+            this.activity = activity;
+        }
+
+        @Override
+        public long getLastActivity() {
+            return activity;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "prueba";
+        }
+
+        @Override
+        public void sendObject(Serializable object) {
+            sent.add(object);
+        }
+
+        long pings() {
+            return sent.stream().filter(o -> o instanceof Frame frame && frame.type().equals("ping")).count();
+        }
+    }
+
+    private final AtomicLong millis = new AtomicLong(1_700_000_000_000L);
+    private final long start = millis.get();
+    private final HashedWheelTimer timer = new HashedWheelTimer(TICK_MS, TimeUnit.MILLISECONDS, 64,
+            () -> TimeUnit.MILLISECONDS.toNanos(millis.get()), false);
+    // las revisiones corren en el hilo de la prueba
+    private final CommandDispatcher inline = new CommandDispatcher(1) {
+        @Override
+        public void dispatch(Object key, Runnable task) {
+            task.run();
+        }
+    };
+    private final SessionRegistry sessions = new SessionRegistry();
+    private final IdleReaper reaper = new IdleReaper(timer, inline, sessions, TIMEOUT_MS, PING_MS, millis::get);
+    private final List<SocketChannel> channels = new ArrayList<>();
+
+    @AfterEach
+    void close() throws IOException {
+        inline.shutdown();
+        for (SocketChannel channel : channels) channel.close();
+    }
+
+    private FakeConnection connection() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channels.add(channel);
+        return new FakeConnection(channel, millis.get());
+    }
+
+    private FakeConnection heartbeatSession(String username) throws IOException {
+        FakeConnection connection = connection();
+        sessions.bind(username, connection).markHeartbeat();
+        return connection;
+    }
+
+    private void advanceTo(long ms) {
+        millis.set(start + ms);
+        timer.runDueTicks();
+    }
+
+    /**
+     * Avanza de a un tick hasta que la conexión se cierre; devuelve cuándo (-1 si no pasó hasta limit).
+     */
+    private long reapedAt(TCPConnection connection, long from, long limit) {
+        for (long ms = from; ms <= limit; ms += TICK_MS) {
+            advanceTo(ms);
+            if (!connection.isConnected()) return ms;
+        }
+        return -1;
+    }
+
+    @Test
+    void missedPongIsReapedAfterTheTimeout() throws IOException {
+        FakeConnection connection = heartbeatSession("ana");
+        reaper.track(connection);
+
+        advanceTo(PING_MS - TICK_MS);
+        assertEquals(0, connection.pings());
+        advanceTo(PING_MS + TICK_MS);
+        assertEquals(1, connection.pings());
+        assertTrue(connection.isConnected());
+
+        // nunca contesta: se cierra al cumplir el plazo, redondeado al tick
+        long reaped = reapedAt(connection, PING_MS + 2 * TICK_MS, 10 * TIMEOUT_MS);
+        assertTrue(reaped >= TIMEOUT_MS && reaped <= TIMEOUT_MS + 2 * TICK_MS, "cerrada a los " + reaped);
+        assertEquals(1, reaper.getReaped());
+        assertEquals(0, reaper.getTracked());
+    }
+
+    @Test
+    void pongPushesTheDeadline() throws IOException {
+        FakeConnection connection = heartbeatSession("ana");
+        reaper.track(connection);
+        advanceTo(PING_MS + TICK_MS);
+        assertEquals(1, connection.pings());
+
+        // el pong llega a los 1500 ms: el plazo pasa a contar desde ahí
+        connection.activity = start + 1_500;
+        advanceTo(TIMEOUT_MS + 2 * TICK_MS);
+        assertTrue(connection.isConnected());
+        assertEquals(2, connection.pings());
+
+        long reaped = reapedAt(connection, TIMEOUT_MS + 3 * TICK_MS, 10 * TIMEOUT_MS);
+        assertTrue(reaped >= 1_500 + TIMEOUT_MS && reaped <= 1_500 + TIMEOUT_MS + 2 * TICK_MS,
+                "cerrada a los " + reaped);
+    }
+
+    @Test
+    void clientsWithoutHeartbeatAreNeverPinged() throws IOException {
+        FakeConnection connection = connection();
+        sessions.bind("proxy", connection);
+        reaper.track(connection);
+
+        long reaped = reapedAt(connection, 0, 10 * TIMEOUT_MS);
+        assertTrue(reaped >= TIMEOUT_MS && reaped <= TIMEOUT_MS + 2 * TICK_MS, "cerrada a los " + reaped);
+        assertEquals(0, connection.pings());
+        assertEquals(0, reaper.getPingsSent());
+    }
+
+    @Test
+    void untrackedConnectionIsNotReaped() throws IOException {
+        FakeConnection connection = heartbeatSession("ana");
+        reaper.track(connection);
+        advanceTo(PING_MS / 2);
+        reaper.untrack(connection);
+        assertEquals(0, timer.getPendingCount());
+
+        advanceTo(10 * TIMEOUT_MS);
+        assertTrue(connection.isConnected());
+        assertEquals(0, connection.pings());
+        assertEquals(0, reaper.getReaped());
+    }
+
+    @Test
+    void activeConnectionIsOnlyRescheduled() throws IOException {
+        FakeConnection connection = heartbeatSession("ana");
+        reaper.track(connection);
+
+        // actividad cada 500 ms: ni pings ni cierre, y un solo plazo vivo
+        for (long ms = 0; ms <= 5 * TIMEOUT_MS; ms += TICK_MS) {
+            if (ms % 500 == 0) connection.activity = start + ms;
+            advanceTo(ms);
+        }
+        assertTrue(connection.isConnected());
+        assertEquals(0, connection.pings());
+        assertEquals(1, timer.getPendingCount());
+        assertEquals(1, reaper.getTracked());
+        assertFalse(reaper.getReaped() > 0);
+    }
+
+    @Test
+    void idleDistributionUsesTheClock() throws IOException {
+        FakeConnection connection = heartbeatSession("ana");
+        heartbeatSession("bob").activity = start - 20_000;
+        millis.set(start + 500);
+        assertEquals("lt1s=1,lt10s=0,lt1m=1,lt10m=0,ge10m=0", reaper.idleDistribution(sessions.getSessions()));
+        assertTrue(connection.isConnected());
+    }
+}
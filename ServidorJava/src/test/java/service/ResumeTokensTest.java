@@ -0,0 +1,56 @@
+package service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResumeTokensTest {
+
+    @Test
+    void duplicateClientSeqsAreRejected() {
+        ResumeTokens tokens = new ResumeTokens(60_000);
+        tokens.issue("ana");
+
+        assertTrue(tokens.acceptClientSeq("ana", 1));
+        assertTrue(tokens.acceptClientSeq("ana", 2));
+        assertFalse(tokens.acceptClientSeq("ana", 2));
+        assertFalse(tokens.acceptClientSeq("ana", 1));
+        assertTrue(tokens.acceptClientSeq("ana", 5));
+        assertEquals(5, tokens.getLastClientSeq("ana"));
+        assertEquals(2, tokens.getDuplicates());
+    }
+
+    @Test
+    void resumeKeepsTheClientSeq() {
+        ResumeTokens tokens = new ResumeTokens(60_000);
+        String token = tokens.issue("ana");
+        tokens.acceptClientSeq("ana", 7);
+        tokens.detach("ana");
+
+        assertEquals("ana", tokens.resume(token));
+        // el reenvío de lo que ya había llegado antes del corte se descarta
+        assertFalse(tokens.acceptClientSeq("ana", 7));
+        assertTrue(tokens.acceptClientSeq("ana", 8));
+        assertEquals(1, tokens.getResumed());
+    }
+
+    @Test
+    void expiredOrReplacedTokensCannotResume() throws InterruptedException {
+        ResumeTokens tokens = new ResumeTokens(1);
+        String token = tokens.issue("ana");
+        tokens.detach("ana");
+        Thread.sleep(20);
+        assertNull(tokens.resume(token));
+
+        String first = tokens.issue("bob");
+        String second = tokens.issue("bob");
+        assertNotEquals(first, second);
+        assertNull(tokens.resume(first));
+        assertEquals("bob", tokens.resume(second));
+        assertNull(tokens.resume(null));
+    }
+}
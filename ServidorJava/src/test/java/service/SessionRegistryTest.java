@@ -0,0 +1,301 @@
+package service;
+
+import network.OutboundConfig;
+import network.TCPConnection;
+import network.TCPConnectionListener;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Los dos mapas del registro tienen que quedar coherentes: también cuando
+ * bind se deshace a medias y con altas y bajas concurrentes.
+ */
+class SessionRegistryTest {
+    private static final Path DATA = Paths.get("data");
+
+    private static final TCPConnectionListener QUIET = new TCPConnectionListener() {
+        @Override
+        public void onConnectionReady(TCPConnection connection) {
+        }
+
+        @Override
+        public void onReceiveObject(TCPConnection connection, Object message) {
+        }
+
+        @Override
+        public void onDisconnect(TCPConnection connection) {
+        }
+
+        @Override
+        public void onException(TCPConnection connection, Exception e) {
+        }
+    };
+
+    private final List<SocketChannel> channels = new ArrayList<>();
+
+    @BeforeEach
+    @AfterEach
+    void clean() throws IOException {
+        for (SocketChannel channel : channels) channel.close();
+        channels.clear();
+        if (!Files.exists(DATA)) return;
+        try (var paths = Files.walk(DATA)) {
+            for (Path path : paths.sorted(Collections.reverseOrder()).toList()) Files.delete(path);
+        }
+    }
+
+    /**
+     * Conexión sin socket abierto: al registro solo le importa su identidad.
+     */
+    private TCPConnection connection() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channels.add(channel);
+        return new TCPConnection(channel, QUIET, OutboundConfig.DIRECT) {
+        };
+    }
+
+    /**
+     * Cada sesión por nombre es la de su conexión, y al revés.
+     */
+    private static void assertConsistent(SessionRegistry sessions, List<TCPConnection> connections) {
+        for (Session session : sessions.getSessions()) {
+            if (session.getConnection() != null) assertSame(session, sessions.get(session.getConnection()));
+        }
+        for (TCPConnection connection : connections) {
+            Session session = sessions.get(connection);
+            if (session != null) assertSame(session, sessions.get(session.getUsername()));
+        }
+    }
+
+    private static void runConcurrently(int threads, IntTask task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> started = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    task.run(index);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            started.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : started) thread.join();
+    }
+
+    @FunctionalInterface
+    private interface IntTask {
+        void run(int index) throws Exception;
+    }
+
+    @Test
+    void bindAndUnbindKeepBothMapsInSync() throws IOException {
+        SessionRegistry sessions = new SessionRegistry();
+        TCPConnection connection = connection();
+
+        Session session = sessions.bind("ana", connection);
+        assertNotNull(session);
+        assertSame(session, sessions.get("ana"));
+        assertSame(session, sessions.get(connection));
+        assertSame(connection, sessions.getConnection("ana"));
+
+        assertSame(session, sessions.unbind(connection));
+        assertNull(sessions.get("ana"));
+        assertNull(sessions.get(connection));
+        assertNull(sessions.unbind(connection));
+        assertEquals(0, sessions.size());
+    }
+
+    @Test
+    void nameInUseIsRejected() throws IOException {
+        SessionRegistry sessions = new SessionRegistry();
+        TCPConnection first = connection();
+        TCPConnection second = connection();
+
+        Session session = sessions.bind("ana", first);
+        assertNull(sessions.bind("ana", second));
+        assertSame(session, sessions.get("ana"));
+        assertNull(sessions.get(second));
+    }
+
+    @Test
+    void secondLoginOnTheSameConnectionRollsBackTheName() throws IOException {
+        SessionRegistry sessions = new SessionRegistry();
+        TCPConnection connection = connection();
+
+        Session ana = sessions.bind("ana", connection);
+        // el nombre se reservó antes de ver que la conexión ya tenía sesión: se libera
+        assertNull(sessions.bind("bob", connection));
+        assertFalse(sessions.isOnline("bob"));
+        assertSame(ana, sessions.get(connection));
+        assertEquals(List.of("ana"), sessions.getUsernames());
+
+        // y queda libre para otra conexión
+        assertNotNull(sessions.bind("bob", connection()));
+    }
+
+    @Test
+    void staleUnbindDoesNotRemoveTheNewSession() throws IOException {
+        SessionRegistry sessions = new SessionRegistry();
+        TCPConnection old = connection();
+        TCPConnection current = connection();
+
+        sessions.bind("ana", old);
+        sessions.unbind("ana");
+        Session session = sessions.bind("ana", current);
+
+        // la desconexión tardía de la conexión vieja no toca la sesión nueva
+        assertNull(sessions.unbind(old));
+        assertSame(session, sessions.get("ana"));
+        assertSame(session, sessions.get(current));
+    }
+
+    @Test
+    void sessionsWithoutConnection() throws IOException {
+        SessionRegistry sessions = new SessionRegistry();
+        TCPConnection connection = connection();
+
+        Session session = sessions.bind("ana", null);
+        assertNotNull(session);
+        assertNull(session.getConnection());
+        assertNull(sessions.getConnection("ana"));
+        assertTrue(sessions.isOnline("ana"));
+        assertNull(sessions.bind("ana", connection));
+        // la conexión que no pudo entrar no queda con sesión
+        assertNull(sessions.get(connection));
+
+        assertSame(session, sessions.unbind("ana"));
+        assertFalse(sessions.isOnline("ana"));
+        assertNotNull(sessions.bind("ana", connection));
+    }
+
+    @Test
+    void loginUserOpensASessionWithoutConnection() {
+        ChatManager chatManager = new ChatManager();
+        try {
+            assertTrue(chatManager.loginUser(" ana "));
+            SessionRegistry sessions = chatManager.getSessions();
+            assertTrue(sessions.isOnline("ana"));
+            assertNull(sessions.getConnection("ana"));
+            assertFalse(chatManager.loginUser("ana"));
+            assertFalse(chatManager.loginUser("  "));
+
+            chatManager.logoutUser("ana");
+            assertFalse(sessions.isOnline("ana"));
+            assertTrue(chatManager.loginUser("ana"));
+        } finally {
+            chatManager.close();
+        }
+    }
+
+    @Test
+    void concurrentLoginsWithTheSameNameHaveOneWinner() throws Exception {
+        SessionRegistry sessions = new SessionRegistry();
+        List<TCPConnection> connections = new ArrayList<>();
+        for (int i = 0; i < 16; i++) connections.add(connection());
+
+        for (int round = 0; round < 200; round++) {
+            String name = "user" + round;
+            AtomicInteger winners = new AtomicInteger();
+            runConcurrently(connections.size(), i -> {
+                if (sessions.bind(name, connections.get(i)) != null) winners.incrementAndGet();
+            });
+            assertEquals(1, winners.get());
+            TCPConnection winner = sessions.getConnection(name);
+            assertNotNull(winner);
+            for (TCPConnection connection : connections) {
+                if (connection != winner) assertNull(sessions.get(connection));
+            }
+            assertSame(sessions.get(name), sessions.unbind(winner));
+        }
+        assertEquals(0, sessions.size());
+    }
+
+    @Test
+    void concurrentLoginsOnTheSameConnectionLeaveNoNames() throws Exception {
+        SessionRegistry sessions = new SessionRegistry();
+        TCPConnection connection = connection();
+
+        for (int round = 0; round < 200; round++) {
+            String prefix = "r" + round + "-";
+            runConcurrently(16, i -> sessions.bind(prefix + i, connection));
+            // una sola sesión; los nombres de los que perdieron se liberaron
+            assertEquals(1, sessions.size());
+            Session session = sessions.get(connection);
+            assertNotNull(session);
+            assertEquals(List.of(session.getUsername()), sessions.getUsernames());
+            sessions.unbind(connection);
+        }
+    }
+
+    @Test
+    void concurrentRegisterAndRemoveStayConsistent() throws Exception {
+        SessionRegistry sessions = new SessionRegistry();
+        List<TCPConnection> connections = new ArrayList<>();
+        for (int i = 0; i < 8; i++) connections.add(connection());
+
+        // cada hilo entra y sale con su conexión; otros tantos sacan por nombre a cualquiera
+        runConcurrently(16, t -> {
+            for (int i = 0; i < 2000; i++) {
+                String name = "user" + (i % 8);
+                if (t < 8) {
+                    TCPConnection connection = connections.get(t);
+                    sessions.bind(name, connection);
+                    if (i % 3 == 0) sessions.unbind(connection);
+                } else {
+                    sessions.unbind(name);
+                }
+            }
+        });
+
+        assertConsistent(sessions, connections);
+        for (TCPConnection connection : connections) sessions.unbind(connection);
+        for (String name : sessions.getUsernames()) sessions.unbind(name);
+        assertEquals(0, sessions.size());
+        for (TCPConnection connection : connections) assertNull(sessions.get(connection));
+    }
+
+    @Test
+    void logoutByNameDuringLoginLeavesNoHalfSession() throws Exception {
+        SessionRegistry sessions = new SessionRegistry();
+        TCPConnection connection = connection();
+
+        for (int round = 0; round < 5_000; round++) {
+            String name = "user" + round;
+            runConcurrently(2, t -> {
+                if (t == 0) {
+                    sessions.bind(name, connection);
+                } else {
+                    sessions.unbind(name);
+                }
+            });
+            // o quedó la sesión entera, o no quedó nada
+            Session session = sessions.get(connection);
+            assertSame(session, sessions.get(name));
+            sessions.unbind(connection);
+        }
+    }
+}
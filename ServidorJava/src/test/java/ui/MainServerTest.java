@@ -0,0 +1,324 @@
+package ui;
+
+import model.AudioMessage;
+import network.ConnectionExecutors;
+import network.OutboundConfig;
+import network.TCPConnection;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import protocol.TextCommand;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Clientes conectados por loopback a un MainServer real, con varios shards.
+ */
+class MainServerTest {
+    private static final Path DATA = Paths.get("data");
+
+    private ServerSocket server;
+    private MainServer mainServer;
+    private final List<Socket> clients = new ArrayList<>();
+    // lado servidor de la última conexión aceptada
+    private TCPConnection lastAccepted;
+
+    @BeforeAll
+    static void manyShards() {
+        System.setProperty("chat.dispatch.shards", "8");
+        System.setProperty("chat.audio.chunkBytes", "4096");
+    }
+
+    @AfterAll
+    static void restore() {
+        System.clearProperty("chat.dispatch.shards");
+        System.clearProperty("chat.audio.chunkBytes");
+    }
+
+    @BeforeEach
+    void start() throws IOException {
+        clean();
+        mainServer = new MainServer();
+        server = new ServerSocket(0, 256, InetAddress.getLoopbackAddress());
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        for (Socket client : clients) client.close();
+        server.close();
+        clean();
+    }
+
+    private static void clean() throws IOException {
+        if (!Files.exists(DATA)) return;
+        try (var paths = Files.walk(DATA)) {
+            for (Path path : paths.sorted(Collections.reverseOrder()).toList()) Files.deleteIfExists(path);
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        client.setSoTimeout(10_000);
+        clients.add(client);
+        lastAccepted = new TCPConnection(server.accept(), mainServer, ConnectionExecutors.platformThreads(), OutboundConfig.DIRECT);
+        return client;
+    }
+
+    private static void send(Socket client, String... lines) throws IOException {
+        OutputStream out = client.getOutputStream();
+        out.write((String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Primera línea de tipo success o error, saltando avisos del sistema.
+     */
+    private static String await(BufferedReader in, String success) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("type:" + success) || line.startsWith("type:error")) return line;
+        }
+        return null;
+    }
+
+    /**
+     * Primera línea de ese tipo, saltando las demás.
+     */
+    private static String awaitType(BufferedReader in, String type) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("type:" + type + "|") || line.equals("type:" + type)) return line;
+        }
+        return null;
+    }
+
+    private static BufferedReader reader(Socket client) throws IOException {
+        return new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void groupCommandsPipelinedBehindLoginRunAfterIt() throws IOException {
+        Socket owner = connect();
+        BufferedReader ownerIn = reader(owner);
+        send(owner, "type:login|username:duena", "type:create_group|group_name:sala|creator:duena");
+        assertTrue(await(ownerIn, "group_created").startsWith("type:group_created"));
+
+        int users = 100;
+        List<BufferedReader> readers = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            Socket client = connect();
+            readers.add(reader(client));
+            // sin esperar login_success: el join va en el mismo envío
+            send(client, "type:login|username:user" + i, "type:join_group|group_name:sala|username:user" + i);
+        }
+        for (int i = 0; i < users; i++) {
+            String reply = await(readers.get(i), "join_group_success");
+            assertTrue(reply != null && reply.startsWith("type:join_group_success"), "user" + i + ": " + reply);
+        }
+    }
+
+    @Test
+    void logoutPipelinedBehindAGroupCommandWaitsForIt() throws IOException {
+        Socket owner = connect();
+        BufferedReader ownerIn = reader(owner);
+        send(owner, "type:login|username:duena", "type:create_group|group_name:sala|creator:duena");
+        assertTrue(await(ownerIn, "group_created").startsWith("type:group_created"));
+
+        int users = 100;
+        List<Socket> clients = new ArrayList<>();
+        List<BufferedReader> readers = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            Socket client = connect();
+            clients.add(client);
+            readers.add(reader(client));
+            send(client, "type:login|username:user" + i);
+            assertTrue(await(readers.get(i), "login_success").startsWith("type:login_success"));
+        }
+        // con la sesión abierta, el join va al shard del grupo y el logout detrás de él
+        for (int i = 0; i < users; i++) {
+            send(clients.get(i), "type:join_group|group_name:sala|username:user" + i, "type:logout");
+        }
+        for (int i = 0; i < users; i++) {
+            String reply = await(readers.get(i), "join_group_success");
+            assertTrue(reply != null && reply.startsWith("type:join_group_success"), "user" + i + ": " + reply);
+        }
+    }
+
+    @Test
+    void messagesPipelinedBehindLoginAreDelivered() throws IOException {
+        Socket bob = connect();
+        BufferedReader bobIn = reader(bob);
+        send(bob, "type:login|username:bob");
+        assertTrue(await(bobIn, "login_success").startsWith("type:login_success"));
+
+        int users = 50;
+        List<BufferedReader> readers = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            Socket client = connect();
+            readers.add(reader(client));
+            send(client, "type:login|username:ana" + i,
+                    "type:private_message|from:ana" + i + "|to:bob|content:hola " + i);
+        }
+        for (int i = 0; i < users; i++) {
+            String reply = await(readers.get(i), "message_sent");
+            assertTrue(reply != null && reply.contains("status:ok"), "ana" + i + ": " + reply);
+        }
+        int received = 0;
+        while (received < users) {
+            String line = bobIn.readLine();
+            if (line.startsWith("type:private_message")) received++;
+        }
+        assertEquals(users, received);
+    }
+
+    @Test
+    void privateMessagesForAnOfflineUserAreDrainedOnLogin() throws IOException {
+        Socket ana = connect();
+        BufferedReader anaIn = reader(ana);
+        send(ana, "type:login|username:ana");
+        for (int i = 0; i < 3; i++) send(ana, "type:private_message|from:ana|to:bob|content:pendiente " + i);
+        for (int i = 0; i < 3; i++) assertTrue(awaitType(anaIn, "message_sent").contains("status:ok"));
+
+        Socket bob = connect();
+        BufferedReader bobIn = reader(bob);
+        send(bob, "type:login|username:bob");
+        assertTrue(awaitType(bobIn, "login_success") != null);
+        for (int i = 0; i < 3; i++) {
+            String line = awaitType(bobIn, "private_message");
+            assertTrue(line.contains("content:pendiente " + i) && line.contains("offline:true"), line);
+        }
+        String done = awaitType(bobIn, "inbox_done");
+        assertTrue(done.contains("count:3") && done.contains("offline:true"), done);
+    }
+
+    @Test
+    void groupVoiceNotesReachOfflineMembersInbox() throws IOException {
+        Socket ana = connect();
+        TCPConnection anaConnection = lastAccepted;
+        BufferedReader anaIn = reader(ana);
+        send(ana, "type:login|username:ana", "type:create_group|group_name:sala|creator:ana");
+        assertTrue(awaitType(anaIn, "group_created") != null);
+
+        Socket bob = connect();
+        BufferedReader bobIn = reader(bob);
+        send(bob, "type:login|username:bob", "type:join_group|group_name:sala|username:bob", "type:logout");
+        assertTrue(awaitType(bobIn, "join_group_success") != null);
+        // bob ya no está en línea cuando ana ve el aviso
+        String left;
+        do {
+            left = awaitType(anaIn, "system_message");
+        } while (!left.contains("bob se ha desconectado"));
+
+        AudioMessage note = new AudioMessage("ana", "sala", true, new byte[]{1, 2, 3}, 3);
+        mainServer.onReceiveObject(anaConnection, note);
+        // va al mismo shard que la nota: cuando ana recibe el acuse, la nota ya se encoló
+        send(ana, "type:group_message|from:ana|group_name:sala|content:después del audio");
+        assertTrue(awaitType(anaIn, "message_sent").contains("status:ok"));
+
+        Socket again = connect();
+        BufferedReader againIn = reader(again);
+        send(again, "type:login|username:bob");
+        String line = awaitType(againIn, "group_message");
+        assertTrue(line.contains("audio_id:" + note.getAudioId()) && line.contains("offline:true"), line);
+        assertTrue(awaitType(againIn, "group_message").contains("content:después del audio"));
+        assertTrue(awaitType(againIn, "inbox_done").contains("count:2"));
+    }
+
+    /**
+     * Tramas audio_data de un get_audio hasta la que trae last:true; los bytes de cada una en data (base64).
+     */
+    private static List<TextCommand> audioChunks(BufferedReader in) throws IOException {
+        List<TextCommand> chunks = new ArrayList<>();
+        TextCommand chunk;
+        do {
+            String line = await(in, "audio_data");
+            assertTrue(line.startsWith("type:audio_data"), line);
+            chunk = TextCommand.parse(line);
+            chunks.add(chunk);
+        } while (!chunk.getBoolean("last"));
+        return chunks;
+    }
+
+    private static byte[] bytesOf(List<TextCommand> chunks) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (TextCommand chunk : chunks) bytes.writeBytes(Base64.getDecoder().decode(chunk.get("data")));
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void getAudioStreamsTheRequestedRangeInChunks() throws IOException {
+        Socket ana = connect();
+        TCPConnection anaConnection = lastAccepted;
+        BufferedReader anaIn = reader(ana);
+        send(ana, "type:login|username:ana");
+        assertTrue(awaitType(anaIn, "login_success") != null);
+
+        byte[] audio = new byte[10_000];
+        for (int i = 0; i < audio.length; i++) audio[i] = (byte) (i * 7);
+        AudioMessage note = new AudioMessage("ana", "bob", false, audio, 5);
+        mainServer.onReceiveObject(anaConnection, note);
+        // misma conversación: el historial espera a que la nota esté escrita
+        send(ana, "type:get_history|username:ana|target:bob|isGroup:false|limit:10");
+        assertTrue(awaitType(anaIn, "history") != null);
+        String id = note.getAudioId();
+
+        // entera, en tramos de chat.audio.chunkBytes
+        send(ana, "type:get_audio|id:" + id);
+        List<TextCommand> chunks = audioChunks(anaIn);
+        assertEquals(3, chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            assertEquals(i * 4096L, chunks.get(i).getLong("offset", -1));
+            assertEquals(10_000, chunks.get(i).getLong("total", -1));
+        }
+        assertArrayEquals(audio, bytesOf(chunks));
+
+        send(ana, "type:get_audio|id:" + id + "|offset:5000|length:3000");
+        assertArrayEquals(Arrays.copyOfRange(audio, 5000, 8000), bytesOf(audioChunks(anaIn)));
+
+        // un length enorme se recorta al final del audio sin desbordar
+        send(ana, "type:get_audio|id:" + id + "|offset:9000|length:" + Long.MAX_VALUE);
+        assertArrayEquals(Arrays.copyOfRange(audio, 9000, 10_000), bytesOf(audioChunks(anaIn)));
+
+        // al final justo: una trama vacía que cierra
+        send(ana, "type:get_audio|id:" + id + "|offset:10000");
+        List<TextCommand> empty = audioChunks(anaIn);
+        assertEquals(1, empty.size());
+        assertEquals(0, bytesOf(empty).length);
+
+        send(ana, "type:get_audio|id:" + id + "|offset:10001");
+        assertTrue(await(anaIn, "audio_data").contains("fuera de rango"));
+        send(ana, "type:get_audio|id:" + id + "|offset:-1");
+        assertTrue(await(anaIn, "audio_data").contains("Rango inválido"));
+        send(ana, "type:get_audio|id:no-existe");
+        assertTrue(await(anaIn, "audio_data").contains("Audio no encontrado"));
+    }
+
+    @Test
+    void getAudioRequiresALogin() throws IOException {
+        Socket anonymous = connect();
+        send(anonymous, "type:get_audio|id:cualquiera");
+        assertTrue(await(reader(anonymous), "audio_data").contains("Inicia sesión"));
+    }
+}